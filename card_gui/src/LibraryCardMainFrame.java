@@ -58,30 +58,17 @@ public class LibraryCardMainFrame extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         
-        // Pre-check server availability trong background để cache sớm
-        // Giúp các pages sau không phải chờ check server
-        preCheckServerAvailability();
+        // [UPDATED] Khởi tạo ApiClient sớm -> health monitor bắt đầu probe server ở nền
+        // Các pages sau chỉ đọc trạng thái (isServerAvailable không còn chặn)
+        startServerHealthMonitor();
     }
     
     /**
-     * Pre-check server availability trong background để cache sớm
-     * Giúp các pages sau không phải chờ check server
+     * [UPDATED] Thay cho pre-check /health: monitor tự probe và nhận kết quả của mọi request
      */
-    private void preCheckServerAvailability() {
-        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
-            @Override
-            protected Void doInBackground() {
-                try {
-                    // Check server 1 lần để cache kết quả
-                    api.ApiServiceManager.getInstance().isServerAvailable();
-                    System.out.println("[LibraryCardMainFrame] Server availability pre-checked and cached");
-                } catch (Exception e) {
-                    System.err.println("[LibraryCardMainFrame] Error pre-checking server: " + e.getMessage());
-                }
-                return null;
-            }
-        };
-        worker.execute();
+    private void startServerHealthMonitor() {
+        api.ServerHealthMonitor monitor = api.ApiClient.getHealthMonitor();
+        System.out.println("[LibraryCardMainFrame] Server health monitor started (state: " + monitor.getState() + ")");
     }
 
     private void initSimulator() {
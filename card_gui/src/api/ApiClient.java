@@ -1,10 +1,18 @@
 package api;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import okhttp3.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 
 import config.ApiConfig;
@@ -19,23 +27,98 @@ public class ApiClient {
     private static final int CONNECT_TIMEOUT = 2;  // 2s đủ cho local connection
     private static final int READ_TIMEOUT = 5;      // 5s cho local API với MySQL (đủ cho queries phức tạp)
     
+    // [NEW] Một Dispatcher + ConnectionPool cho mọi ApiClient: giới hạn số request đồng thời
+    // (tổng và mỗi host) áp dụng chung, request bất đồng bộ của các trang chạy chồng lên nhau
+    private static final Dispatcher DISPATCHER = createDispatcher();
+    // [NEW] Cache GET trên đĩa + request có điều kiện (ETag -> 304), xem ResponseCache
+    private static final ResponseCache RESPONSE_CACHE = ResponseCache.createDefault();
+    // [NEW] Circuit breaker: nhận kết quả của mọi request + probe /health ở nền (xem ServerHealthMonitor)
+    private static final ServerHealthMonitor HEALTH = new ServerHealthMonitor(BASE_URL + "/health");
+    private static final OkHttpClient SHARED_CLIENT = RESPONSE_CACHE.install(new OkHttpClient.Builder()
+                    .addInterceptor(HEALTH.interceptor()))
+            .dispatcher(DISPATCHER)
+            .connectionPool(new ConnectionPool())
+            .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
+            .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
+            .build();
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    // [NEW] GET giống hệt nhau (URL + token) đang chạy dùng chung một HTTP call và một kết quả
+    private static final RequestCoalescer COALESCER = new RequestCoalescer();
+    
+    static {
+        HEALTH.start(SHARED_CLIENT);
+    }
+    
     private final OkHttpClient client;
     public final Gson gson; // Made public for CardApiService to use
     
-    // Cache server availability để tránh gọi nhiều lần
-    private Boolean cachedServerAvailable = null;
-    private long lastCheckTime = 0;
-    private static final long CACHE_DURATION_MS = 5000; // Cache 5 giây
-    
     // JWT Token storage - static để share giữa tất cả ApiClient instances
     private static String sharedAuthToken = null;
     
     public ApiClient() {
-        this.client = new OkHttpClient.Builder()
-                .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
-                .build();
-        this.gson = new Gson();
+        this.client = SHARED_CLIENT;
+        this.gson = JsonAdapters.register(new GsonBuilder()).create();
+    }
+    
+    private static Dispatcher createDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(ApiConfig.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(ApiConfig.getMaxRequestsPerHost());
+        return dispatcher;
+    }
+    
+    /**
+     * [NEW] Đổi giới hạn request đồng thời khi đang chạy (áp dụng cho mọi ApiClient)
+     */
+    public static void setConcurrencyLimits(int maxRequests, int maxRequestsPerHost) {
+        DISPATCHER.setMaxRequests(maxRequests);
+        DISPATCHER.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+    
+    /**
+     * [NEW] Hủy mọi request (đang chờ hoặc đang chạy) gắn tag này - gọi khi rời trang
+     */
+    public static void cancelAll(Object tag) {
+        if (tag == null) {
+            return;
+        }
+        int cancelled = COALESCER.cancelAll(tag);
+        for (Call call : DISPATCHER.queuedCalls()) {
+            if (tag.equals(call.request().tag())) {
+                call.cancel();
+                cancelled++;
+            }
+        }
+        for (Call call : DISPATCHER.runningCalls()) {
+            if (tag.equals(call.request().tag())) {
+                call.cancel();
+                cancelled++;
+            }
+        }
+        if (cancelled > 0) {
+            System.out.println("[ApiClient] Cancelled " + cancelled + " in-flight request(s) for " + tag.getClass().getSimpleName());
+        }
+    }
+    
+    /**
+     * [NEW] Số HTTP GET thực sự được gửi qua single-flight (mỗi GET có thể phục vụ nhiều người gọi)
+     */
+    public static long getSharedRequestCount() {
+        return COALESCER.getSharedCalls();
+    }
+    
+    /**
+     * [NEW] Số lần gọi GET được gộp vào một request đang chạy (không gửi request mới)
+     */
+    public static long getCoalescedRequestCount() {
+        return COALESCER.getCoalescedCalls();
+    }
+    
+    /**
+     * [NEW] Xóa toàn bộ HTTP cache (lần GET sau tải lại đầy đủ từ server)
+     */
+    public static void clearResponseCache() {
+        RESPONSE_CACHE.clear();
     }
     
     /**
@@ -76,31 +159,15 @@ public class ApiClient {
      * GET request
      */
     public ApiResponse get(String endpoint) throws IOException {
-        Request.Builder builder = new Request.Builder()
-                .url(BASE_URL + endpoint)
-                .get();
-        addAuthHeader(builder);
-        Request request = builder.build();
-        
-        return executeRequest(request);
+        return get(endpoint, null);
     }
     
     /**
      * GET request with query parameters
      */
     public ApiResponse get(String endpoint, String queryParams) throws IOException {
-        String url = BASE_URL + endpoint;
-        if (queryParams != null && !queryParams.isEmpty()) {
-            url += "?" + queryParams;
-        }
-        
-        Request.Builder builder = new Request.Builder()
-                .url(url)
-                .get();
-        addAuthHeader(builder);
-        Request request = builder.build();
-        
-        return executeRequest(request);
+        Request request = getRequest(endpoint, queryParams, null);
+        return COALESCER.sync(flightKey("raw", request), () -> executeRequest(request), r -> r);
     }
     
     /**
@@ -108,21 +175,7 @@ public class ApiClient {
      */
     public ApiResponse post(String endpoint, Object body) throws IOException {
         try {
-            String jsonBody = gson.toJson(body);
-            System.out.println("[ApiClient] POST " + endpoint + " with body: " + jsonBody.substring(0, Math.min(100, jsonBody.length())) + "...");
-            
-            RequestBody requestBody = RequestBody.create(
-                    MediaType.parse("application/json; charset=utf-8"),
-                    jsonBody
-            );
-            
-            Request.Builder builder = new Request.Builder()
-                    .url(BASE_URL + endpoint)
-                    .post(requestBody);
-            addAuthHeader(builder);
-            Request request = builder.build();
-            
-            return executeRequest(request);
+            return executeRequest(postRequest(endpoint, body, null));
         } catch (Exception e) {
             System.err.println("[ApiClient] POST error: " + e.getMessage());
             e.printStackTrace();
@@ -134,121 +187,295 @@ public class ApiClient {
      * PUT request
      */
     public ApiResponse put(String endpoint, Object body) throws IOException {
-        String jsonBody = gson.toJson(body);
-        RequestBody requestBody = RequestBody.create(
-                MediaType.parse("application/json; charset=utf-8"),
-                jsonBody
-        );
-        
-        Request.Builder builder = new Request.Builder()
-                .url(BASE_URL + endpoint)
-                .put(requestBody);
-        addAuthHeader(builder);
-        Request request = builder.build();
-        
-        return executeRequest(request);
+        return executeRequest(newRequest(BASE_URL + endpoint, null).put(jsonBody(body)).build());
     }
     
     /**
      * PATCH request
      */
     public ApiResponse patch(String endpoint, Object body) throws IOException {
-        String jsonBody = gson.toJson(body);
-        RequestBody requestBody = RequestBody.create(
-                MediaType.parse("application/json; charset=utf-8"),
-                jsonBody
-        );
-        
-        Request.Builder builder = new Request.Builder()
-                .url(BASE_URL + endpoint)
-                .patch(requestBody);
-        addAuthHeader(builder);
-        Request request = builder.build();
-        
-        return executeRequest(request);
+        return executeRequest(newRequest(BASE_URL + endpoint, null).patch(jsonBody(body)).build());
     }
     
     /**
      * DELETE request
      */
     public ApiResponse delete(String endpoint) throws IOException {
-        Request.Builder builder = new Request.Builder()
-                .url(BASE_URL + endpoint)
-                .delete();
-        addAuthHeader(builder);
-        Request request = builder.build();
-        
-        return executeRequest(request);
+        return executeRequest(newRequest(BASE_URL + endpoint, null).delete().build());
     }
     
+    // --- ASYNC API (OkHttp enqueue, không chặn luồng gọi / EDT) ---
+    
     /**
-     * Execute HTTP request and parse response
+     * [NEW] GET bất đồng bộ
+     * @param tag Chủ sở hữu request (thường là trang) để cancelAll(tag) khi rời trang; null = không gắn
      */
-    private ApiResponse executeRequest(Request request) throws IOException {
-        try (Response response = client.newCall(request).execute()) {
-            String responseBody = response.body() != null ? response.body().string() : "";
-            
-            System.out.println("[ApiClient] Response code: " + response.code() + ", body length: " + responseBody.length());
-            
-            ApiResponse apiResponse = new ApiResponse();
-            apiResponse.setStatusCode(response.code());
-            apiResponse.setSuccess(response.isSuccessful());
+    public CompletableFuture<ApiResponse> getAsync(String endpoint, String queryParams, Object tag) {
+        // Request không gắn tag: cancelAll(tag) gỡ người chờ qua COALESCER, call chỉ hủy khi không còn ai chờ
+        Request request = getRequest(endpoint, queryParams, null);
+        return COALESCER.async(flightKey("raw", request), tag, () -> enqueue(request, this::toApiResponse), r -> r);
+    }
+    
+    public CompletableFuture<ApiResponse> postAsync(String endpoint, Object body, Object tag) {
+        return enqueue(postRequest(endpoint, body, tag), this::toApiResponse);
+    }
+    
+    public CompletableFuture<ApiResponse> putAsync(String endpoint, Object body, Object tag) {
+        return enqueue(newRequest(BASE_URL + endpoint, tag).put(jsonBody(body)).build(), this::toApiResponse);
+    }
+    
+    public CompletableFuture<ApiResponse> deleteAsync(String endpoint, Object tag) {
+        return enqueue(newRequest(BASE_URL + endpoint, tag).delete().build(), this::toApiResponse);
+    }
+    
+    /**
+     * [NEW] Chuyển response thành kết quả của service (parser có thể ném IOException như bản đồng bộ)
+     */
+    public static <R, T> CompletableFuture<T> map(CompletableFuture<R> future, ResponseParser<R, T> parser) {
+        return future.thenApply(response -> {
+            try {
+                return parser.parse(response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+    
+    @FunctionalInterface
+    public interface ResponseParser<R, T> {
+        T parse(R response) throws IOException;
+    }
+    
+    // --- LIST API: đọc stream body thẳng vào model, không dựng String / JsonObject cho cả trang ---
+    
+    /**
+     * [NEW] GET endpoint danh sách: { data: [...], message, pagination: {...} }
+     * @param adapter Adapter cho từng phần tử của "data" (xem JsonAdapters)
+     */
+    public <T> ListResponse<T> getList(String endpoint, String queryParams, TypeAdapter<T> adapter) throws IOException {
+        Request request = getRequest(endpoint, queryParams, null);
+        return COALESCER.sync(flightKey(adapter.getClass().getName(), request), () -> {
+            try (Response response = client.newCall(request).execute()) {
+                return toListResponse(response, adapter);
+            }
+        }, ListResponse::copy);
+    }
+    
+    /**
+     * [NEW] Bất đồng bộ của getList (tag: xem cancelAll)
+     */
+    public <T> CompletableFuture<ListResponse<T>> getListAsync(String endpoint, String queryParams,
+                                                              TypeAdapter<T> adapter, Object tag) {
+        Request request = getRequest(endpoint, queryParams, null);
+        return COALESCER.async(flightKey(adapter.getClass().getName(), request), tag,
+                () -> enqueue(request, response -> toListResponse(response, adapter)), ListResponse::copy);
+    }
+    
+    // Cùng URL nhưng khác token (đăng nhập khác) hoặc khác kiểu kết quả -> không gộp
+    private static String flightKey(String kind, Request request) {
+        return kind + "\n" + request.header("Authorization") + "\n" + request.url();
+    }
+    
+    private Request getRequest(String endpoint, String queryParams, Object tag) {
+        String url = BASE_URL + endpoint;
+        if (queryParams != null && !queryParams.isEmpty()) {
+            url += "?" + queryParams;
+        }
+        return newRequest(url, tag).get().build();
+    }
+    
+    private Request postRequest(String endpoint, Object body, Object tag) {
+        String jsonBody = gson.toJson(body);
+        System.out.println("[ApiClient] POST " + endpoint + " with body: " + jsonBody.substring(0, Math.min(100, jsonBody.length())) + "...");
+        return newRequest(BASE_URL + endpoint, tag).post(RequestBody.create(JSON, jsonBody)).build();
+    }
+    
+    private Request.Builder newRequest(String url, Object tag) {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (tag != null) {
+            builder.tag(tag);
+        }
+        return addAuthHeader(builder);
+    }
+    
+    private RequestBody jsonBody(Object body) {
+        return RequestBody.create(JSON, gson.toJson(body));
+    }
+    
+    @FunctionalInterface
+    private interface BodyReader<T> {
+        T read(Response response) throws IOException;
+    }
+    
+    /**
+     * [NEW] Gửi request qua Dispatcher dùng chung; hủy future -> hủy luôn HTTP call
+     */
+    private <T> CompletableFuture<T> enqueue(Request request, BodyReader<T> reader) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Call call = client.newCall(request);
+        future.whenComplete((r, ex) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call c, IOException e) {
+                future.completeExceptionally(e);
+            }
             
-            if (!responseBody.isEmpty()) {
-                try {
-                    JsonObject json = gson.fromJson(responseBody, JsonObject.class);
-                    apiResponse.setData(json);
-                    apiResponse.setMessage(json.has("message") ? json.get("message").getAsString() : "");
-                    System.out.println("[ApiClient] Parsed JSON successfully, has 'data' field: " + json.has("data"));
+            @Override
+            public void onResponse(Call c, Response response) {
+                try (Response r = response) {
+                    future.complete(reader.read(r));
                 } catch (Exception e) {
-                    System.err.println("[ApiClient] Failed to parse JSON: " + e.getMessage());
-                    apiResponse.setRawResponse(responseBody);
+                    future.completeExceptionally(e);
                 }
             }
-            
-            return apiResponse;
+        });
+        return future;
+    }
+    
+    /**
+     * Execute HTTP request and parse response
+     */
+    private ApiResponse executeRequest(Request request) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            return toApiResponse(response);
+        }
+    }
+    
+    private ApiResponse toApiResponse(Response response) throws IOException {
+        String responseBody = response.body() != null ? response.body().string() : "";
+        
+        System.out.println("[ApiClient] Response code: " + response.code() + ", body length: " + responseBody.length()
+                + source(response));
+        
+        ApiResponse apiResponse = new ApiResponse();
+        apiResponse.setStatusCode(response.code());
+        apiResponse.setSuccess(response.isSuccessful());
+        
+        if (!responseBody.isEmpty()) {
+            try {
+                JsonObject json = gson.fromJson(responseBody, JsonObject.class);
+                apiResponse.setData(json);
+                apiResponse.setMessage(json.has("message") ? json.get("message").getAsString() : "");
+                System.out.println("[ApiClient] Parsed JSON successfully, has 'data' field: " + json.has("data"));
+            } catch (Exception e) {
+                System.err.println("[ApiClient] Failed to parse JSON: " + e.getMessage());
+                apiResponse.setRawResponse(responseBody);
+            }
         }
+        
+        return apiResponse;
     }
     
     /**
-     * Check if server is available
-     * Cached để tránh gọi nhiều lần trong thời gian ngắn
+     * [NEW] Đọc envelope danh sách trong một lượt từ charStream(): phần tử "data" qua adapter,
+     * "message" và "pagination" lấy cùng lúc, các field khác bỏ qua
      */
-    public boolean isServerAvailable() {
-        long currentTime = System.currentTimeMillis();
+    private <T> ListResponse<T> toListResponse(Response response, TypeAdapter<T> adapter) throws IOException {
+        ListResponse<T> result = new ListResponse<>();
+        result.statusCode = response.code();
+        result.success = response.isSuccessful();
         
-        // Nếu có cache và chưa hết hạn, dùng cache
-        if (cachedServerAvailable != null && (currentTime - lastCheckTime) < CACHE_DURATION_MS) {
-            return cachedServerAvailable;
+        ResponseBody body = response.body();
+        if (body == null || body.contentLength() == 0) {
+            return result;
+        }
+        try (JsonReader in = new JsonReader(body.charStream())) {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new IOException("Unexpected JSON: " + in.peek());
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "data":
+                        readItems(in, adapter, result.items);
+                        break;
+                    case "message":
+                        result.message = JsonAdapters.nextString(in, "");
+                        break;
+                    case "pagination":
+                        readPagination(in, result);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        } catch (IOException | RuntimeException e) {
+            if (result.success) {
+                throw e instanceof IOException ? (IOException) e
+                        : new IOException("Failed to parse JSON: " + e.getMessage(), e);
+            }
+            System.err.println("[ApiClient] Failed to parse JSON: " + e.getMessage());
         }
         
-        // Check server
-        try {
-            System.out.println("[ApiClient] Checking server availability at " + BASE_URL + "/health");
-            ApiResponse response = get("/health");
-            boolean available = response.isSuccess();
-            System.out.println("[ApiClient] Server available: " + available + " (status: " + response.getStatusCode() + ")");
-            
-            // Cache kết quả
-            cachedServerAvailable = available;
-            lastCheckTime = currentTime;
-            return available;
-        } catch (Exception e) {
-            System.err.println("[ApiClient] Server not available: " + e.getMessage());
-            
-            // Cache kết quả false
-            cachedServerAvailable = false;
-            lastCheckTime = currentTime;
-            return false;
+        System.out.println("[ApiClient] Response code: " + result.statusCode + ", items: " + result.items.size()
+                + source(response));
+        return result;
+    }
+    
+    // Nguồn của body: bản lưu còn hạn, bản lưu được server xác nhận (304) hoặc tải mới
+    private static String source(Response response) {
+        if (response.networkResponse() == null) {
+            return response.cacheResponse() != null ? " (cache)" : "";
+        }
+        return response.cacheResponse() != null ? " (304, from cache)" : "";
+    }
+    
+    private static <T> void readItems(JsonReader in, TypeAdapter<T> adapter, List<T> items) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+            in.skipValue();
+            return;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            T item = adapter.read(in);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        in.endArray();
+    }
+    
+    private static void readPagination(JsonReader in, ListResponse<?> result) throws IOException {
+        if (!JsonAdapters.beginObject(in)) {
+            return;
+        }
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "total": result.total = (int) JsonAdapters.nextLong(in, 0); break;
+                case "totalPages": result.totalPages = (int) JsonAdapters.nextLong(in, 0); break;
+                case "hasNext": result.hasNext = JsonAdapters.nextBoolean(in); break;
+                case "hasPrev": result.hasPrev = JsonAdapters.nextBoolean(in); break;
+                default: in.skipValue();
+            }
         }
+        in.endObject();
+    }
+    
+    /**
+     * Check if server is available
+     * [UPDATED] Đọc trạng thái circuit breaker, không gửi request / không chặn (false khi mạch OPEN)
+     */
+    public boolean isServerAvailable() {
+        return HEALTH.isAvailable();
     }
     
     /**
-     * Clear cache (dùng khi muốn force check lại)
+     * [UPDATED] Yêu cầu kiểm tra lại server ở nền ngay (không chờ kết quả)
      */
     public void clearServerAvailabilityCache() {
-        cachedServerAvailable = null;
-        lastCheckTime = 0;
+        HEALTH.probeNow();
+    }
+    
+    /**
+     * [NEW] Theo dõi trạng thái server (đăng ký listener khi cần phản ứng lúc server online/offline)
+     */
+    public static ServerHealthMonitor getHealthMonitor() {
+        return HEALTH;
     }
     
     /**
@@ -276,5 +503,42 @@ public class ApiClient {
         public String getRawResponse() { return rawResponse; }
         public void setRawResponse(String rawResponse) { this.rawResponse = rawResponse; }
     }
+    
+    /**
+     * [NEW] Kết quả của getList: các phần tử đã parse + thông tin phân trang (nếu server gửi)
+     */
+    public static class ListResponse<T> {
+        private int statusCode;
+        private boolean success;
+        private String message = "";
+        private final List<T> items = new ArrayList<>();
+        private int total;
+        private int totalPages = 1;
+        private boolean hasNext;
+        private boolean hasPrev;
+        
+        public int getStatusCode() { return statusCode; }
+        public boolean isSuccess() { return success; }
+        public String getMessage() { return message; }
+        public List<T> getItems() { return items; }
+        public int getTotal() { return total; }
+        public int getTotalPages() { return totalPages; }
+        public boolean hasNext() { return hasNext; }
+        public boolean hasPrev() { return hasPrev; }
+        
+        // Bản sao nông cho mỗi người gọi được gộp (model dùng chung, danh sách riêng)
+        ListResponse<T> copy() {
+            ListResponse<T> copy = new ListResponse<>();
+            copy.statusCode = statusCode;
+            copy.success = success;
+            copy.message = message;
+            copy.items.addAll(items);
+            copy.total = total;
+            copy.totalPages = totalPages;
+            copy.hasNext = hasNext;
+            copy.hasPrev = hasPrev;
+            return copy;
+        }
+    }
 }
 
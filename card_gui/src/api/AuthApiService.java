@@ -1,6 +1,7 @@
 package api;
 
 import com.google.gson.JsonObject;
+import config.AuthConfig;
 import java.io.IOException;
 import java.util.Base64;
 
@@ -32,6 +33,15 @@ public class AuthApiService {
      * @return JWT token nếu thành công, null nếu thất bại
      */
     public String login(String studentId, byte[] challenge, byte[] signature) throws IOException {
+        return login(studentId, challenge, signature, AuthConfig.ALGORITHM_RSA);
+    }
+    
+    /**
+     * [NEW] Login với chữ ký theo thuật toán đã thỏa thuận cho thẻ
+     * 
+     * @param algorithm "RSA" (SHA1withRSA) hoặc "EC" (SHA256withECDSA, DER)
+     */
+    public String login(String studentId, byte[] challenge, byte[] signature, String algorithm) throws IOException {
         try {
             // Encode challenge và signature thành Base64
             String challengeBase64 = Base64.getEncoder().encodeToString(challenge);
@@ -42,6 +52,7 @@ public class AuthApiService {
             body.addProperty("studentId", studentId);
             body.addProperty("challenge", challengeBase64);
             body.addProperty("signature", signatureBase64);
+            body.addProperty("algorithm", algorithm);
             
             System.out.println("[AuthApiService] Calling login API for studentId: " + studentId);
             
@@ -88,6 +99,59 @@ public class AuthApiService {
         }
     }
     
+    /**
+     * [NEW] Mở phiên Secure Messaging cho thẻ (POST /auth/session)
+     * 
+     * @param algorithm "RSA" (secret mã hóa PKCS#1) hoặc "EC" (ECDH khóa tạm)
+     * @return data { sessionId, algorithm, hostChallenge, keyBlob (Base64) } hoặc null nếu server từ chối
+     */
+    public JsonObject createSession(String studentId, String algorithm) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("studentId", studentId);
+        body.addProperty("algorithm", algorithm);
+        
+        ApiClient.ApiResponse response = apiClient.post("/auth/session", body);
+        if (!response.isSuccess() || response.getData() == null
+                || !response.getData().has("data") || !response.getData().get("data").isJsonObject()) {
+            System.err.println("[AuthApiService] Create session failed: " + response.getMessage());
+            return null;
+        }
+        return response.getData().getAsJsonObject("data");
+    }
+    
+    /**
+     * [NEW] Login bằng cryptogram của thẻ cho phiên đã mở (algorithm = SESSION)
+     * 
+     * @param cardChallenge Challenge của thẻ (16 bytes)
+     * @param cryptogram AES-CMAC cryptogram của thẻ (8 bytes)
+     * @return K_MAC của phiên (16 bytes) nếu thành công (token đã được set), null nếu thất bại
+     */
+    public byte[] loginWithSession(String studentId, String sessionId, byte[] cardChallenge, byte[] cryptogram) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("studentId", studentId);
+        body.addProperty("algorithm", "SESSION");
+        body.addProperty("sessionId", sessionId);
+        body.addProperty("cardChallenge", Base64.getEncoder().encodeToString(cardChallenge));
+        body.addProperty("cryptogram", Base64.getEncoder().encodeToString(cryptogram));
+        
+        System.out.println("[AuthApiService] Calling session login API for studentId: " + studentId);
+        ApiClient.ApiResponse response = apiClient.post("/auth/login", body);
+        if (!response.isSuccess() || response.getData() == null
+                || !response.getData().has("data") || !response.getData().get("data").isJsonObject()) {
+            System.err.println("[AuthApiService] Session login failed: " + response.getMessage());
+            return null;
+        }
+        
+        JsonObject data = response.getData().getAsJsonObject("data");
+        if (!data.has("token") || !data.has("sessionKey")) {
+            System.err.println("[AuthApiService] Token/sessionKey not found in response");
+            return null;
+        }
+        apiClient.setAuthToken(data.get("token").getAsString());
+        System.out.println("[AuthApiService] Session login successful");
+        return Base64.getDecoder().decode(data.get("sessionKey").getAsString());
+    }
+    
     /**
      * Get ApiClient instance (để share token)
      */
@@ -1,16 +1,14 @@
 package api;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import models.BorrowedBook;
 import models.FinePaymentResult;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.net.URLEncoder;
 
 /**
@@ -18,7 +16,6 @@ import java.net.URLEncoder;
  */
 public class BookApiService {
     private final ApiClient apiClient;
-    private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
     
     public BookApiService() {
         this.apiClient = new ApiClient();
@@ -67,22 +64,14 @@ public class BookApiService {
      * Get outstanding fines (returned books with unpaid fine) by student
      */
     public List<BorrowedBook> getOutstandingFinesByStudent(String studentId) throws IOException {
-        ApiClient.ApiResponse response = apiClient.get("/books/fines/student/" + studentId);
+        ApiClient.ListResponse<BorrowedBook> response = apiClient.getList("/books/fines/student/" + studentId, null,
+                JsonAdapters.BORROWED_BOOK);
 
         if (!response.isSuccess()) {
             throw new IOException("Failed to get outstanding fines: " + response.getMessage());
         }
 
-        List<BorrowedBook> fines = new ArrayList<>();
-        JsonArray dataArray = response.getData().getAsJsonArray("data");
-        if (dataArray == null) return fines;
-
-        for (JsonElement element : dataArray) {
-            BorrowedBook b = parseBorrowedBookFromJson(element.getAsJsonObject());
-            if (b != null) fines.add(b);
-        }
-
-        return fines;
+        return response.getItems();
     }
 
     /**
@@ -121,50 +110,52 @@ public class BookApiService {
      * Get borrowed books by student with pagination
      */
     public List<BorrowedBook> getBorrowedBooksByStudent(String studentId, String status, int page, int limit) throws IOException {
+        return parseBorrowedBooks(apiClient.getList("/books/student/" + studentId, statusQuery(status, page, limit),
+                JsonAdapters.BORROWED_BOOK));
+    }
+    
+    /**
+     * [NEW] Bất đồng bộ của getBorrowedBooksByStudent (tag: xem ApiClient.cancelAll)
+     */
+    public CompletableFuture<List<BorrowedBook>> getBorrowedBooksByStudentAsync(String studentId, String status,
+                                                                             int page, int limit, Object tag) {
+        try {
+            return ApiClient.map(apiClient.getListAsync("/books/student/" + studentId, statusQuery(status, page, limit),
+                    JsonAdapters.BORROWED_BOOK, tag), this::parseBorrowedBooks);
+        } catch (IOException e) {
+            CompletableFuture<List<BorrowedBook>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+    
+    private static String statusQuery(String status, int page, int limit) throws IOException {
         StringBuilder queryParams = new StringBuilder("page=" + page + "&limit=" + limit);
         if (status != null && !status.isEmpty()) {
             queryParams.append("&status=").append(URLEncoder.encode(status, "UTF-8"));
         }
-        
-        ApiClient.ApiResponse response = apiClient.get("/books/student/" + studentId, queryParams.toString());
-        
+        return queryParams.toString();
+    }
+    
+    private List<BorrowedBook> parseBorrowedBooks(ApiClient.ListResponse<BorrowedBook> response) throws IOException {
         if (!response.isSuccess()) {
             throw new IOException("Failed to get borrowed books: " + response.getMessage());
         }
-        
-        List<BorrowedBook> books = new ArrayList<>();
-        JsonArray dataArray = response.getData().getAsJsonArray("data");
-        
-        for (JsonElement element : dataArray) {
-            books.add(parseBorrowedBookFromJson(element.getAsJsonObject()));
-        }
-        
-        return books;
+        return response.getItems();
     }
     
     /**
      * Get all borrowed books with pagination
      */
     public List<BorrowedBook> getAllBorrowedBooks(String status, int page, int limit) throws IOException {
-        StringBuilder queryParams = new StringBuilder("page=" + page + "&limit=" + limit);
-        if (status != null && !status.isEmpty()) {
-            queryParams.append("&status=").append(URLEncoder.encode(status, "UTF-8"));
-        }
-        
-        ApiClient.ApiResponse response = apiClient.get("/books", queryParams.toString());
+        ApiClient.ListResponse<BorrowedBook> response = apiClient.getList("/books", statusQuery(status, page, limit),
+                JsonAdapters.BORROWED_BOOK);
         
         if (!response.isSuccess()) {
             throw new IOException("Failed to get all borrowed books: " + response.getMessage());
         }
         
-        List<BorrowedBook> books = new ArrayList<>();
-        JsonArray dataArray = response.getData().getAsJsonArray("data");
-        
-        for (JsonElement element : dataArray) {
-            books.add(parseBorrowedBookFromJson(element.getAsJsonObject()));
-        }
-        
-        return books;
+        return response.getItems();
     }
     
     /**
@@ -176,51 +167,15 @@ public class BookApiService {
     }
     
     /**
-     * Parse BorrowedBook from JSON
+     * Parse BorrowedBook from JSON ([UPDATED] cùng quy tắc với danh sách: JsonAdapters.BORROWED_BOOK)
      */
     private BorrowedBook parseBorrowedBookFromJson(JsonObject json) {
         try {
-            int id = json.has("id") ? json.get("id").getAsInt() : 0;
-            String bookId = json.has("bookId") ? json.get("bookId").getAsString() : "";
-            String bookName = json.has("bookName") ? json.get("bookName").getAsString() : "";
-            String borrowDate = json.has("borrowDate") ? formatDate(json.get("borrowDate").getAsString()) : "";
-            String dueDate = json.has("dueDate") ? formatDate(json.get("dueDate").getAsString()) : "";
-            String status = json.has("status") ? json.get("status").getAsString() : "Đang mượn";
-            int overdueDays = json.has("overdueDays") ? json.get("overdueDays").getAsInt() : 0;
-
-            BorrowedBook book = new BorrowedBook(id, bookId, bookName, borrowDate, dueDate, status, overdueDays);
-
-            if (json.has("fine")) {
-                try { book.setFine(json.get("fine").getAsLong()); } catch (Exception ignored) {}
-            }
-            if (json.has("finePaid")) {
-                try { book.setFinePaid(json.get("finePaid").getAsBoolean()); } catch (Exception ignored) {}
-            }
-
-            return book;
+            return JsonAdapters.BORROWED_BOOK.fromJsonTree(json);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
-    
-    /**
-     * Format date string from ISO format to dd/MM/yyyy
-     */
-    private String formatDate(String isoDate) {
-        try {
-            SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            Date date = isoFormat.parse(isoDate);
-            return dateFormat.format(date);
-        } catch (Exception e) {
-            try {
-                SimpleDateFormat isoFormat2 = new SimpleDateFormat("yyyy-MM-dd");
-                Date date = isoFormat2.parse(isoDate);
-                return dateFormat.format(date);
-            } catch (Exception e2) {
-                return isoDate;
-            }
-        }
-    }
 }
 
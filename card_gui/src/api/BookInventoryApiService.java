@@ -7,6 +7,7 @@ import com.google.gson.JsonObject;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * API Service for Book Inventory operations
@@ -29,6 +30,20 @@ public class BookInventoryApiService {
      * Get all books with pagination and filters
      */
     public List<BookInfo> getAllBooks(String category, String status, String search, int page, int limit) throws IOException {
+        return parseBooks(apiClient.getList("/library/books", booksQuery(category, status, search, page, limit),
+                JsonAdapters.BOOK));
+    }
+    
+    /**
+     * [NEW] Bất đồng bộ của getAllBooks (tag: xem ApiClient.cancelAll)
+     */
+    public CompletableFuture<List<BookInfo>> getAllBooksAsync(String category, String status, String search,
+                                                            int page, int limit, Object tag) {
+        return ApiClient.map(apiClient.getListAsync("/library/books", booksQuery(category, status, search, page, limit),
+                JsonAdapters.BOOK, tag), this::parseBooks);
+    }
+    
+    private static String booksQuery(String category, String status, String search, int page, int limit) {
         StringBuilder queryParams = new StringBuilder("page=" + page + "&limit=" + limit);
         if (category != null && !category.isEmpty()) {
             queryParams.append("&category=").append(category);
@@ -39,51 +54,15 @@ public class BookInventoryApiService {
         if (search != null && !search.isEmpty()) {
             queryParams.append("&search=").append(search);
         }
-        
-        ApiClient.ApiResponse response = apiClient.get("/library/books", queryParams.toString());
-        
+        return queryParams.toString();
+    }
+    
+    // [UPDATED] "data" thiếu / null / không phải mảng -> danh sách rỗng (ApiClient.getList bỏ qua)
+    private List<BookInfo> parseBooks(ApiClient.ListResponse<BookInfo> response) throws IOException {
         if (!response.isSuccess()) {
             throw new IOException("Failed to get books: " + response.getMessage());
         }
-        
-        List<BookInfo> books = new ArrayList<>();
-        
-        // Handle null or empty data
-        JsonObject responseData = response.getData();
-        if (responseData == null) {
-            System.out.println("[BookInventoryApi] No response data");
-            return books;
-        }
-        
-        // Check if "data" field exists and is an array
-        if (!responseData.has("data")) {
-            System.out.println("[BookInventoryApi] Response has no 'data' field");
-            return books;
-        }
-        
-        JsonElement dataElement = responseData.get("data");
-        if (dataElement == null || dataElement.isJsonNull()) {
-            System.out.println("[BookInventoryApi] 'data' field is null");
-            return books;
-        }
-        
-        if (!dataElement.isJsonArray()) {
-            System.out.println("[BookInventoryApi] 'data' is not an array: " + dataElement.getClass().getSimpleName());
-            return books;
-        }
-        
-        JsonArray dataArray = dataElement.getAsJsonArray();
-        System.out.println("[BookInventoryApi] Found " + dataArray.size() + " books");
-        
-        for (JsonElement element : dataArray) {
-            try {
-                books.add(parseBookFromJson(element.getAsJsonObject()));
-            } catch (Exception e) {
-                System.err.println("[BookInventoryApi] Error parsing book: " + e.getMessage());
-            }
-        }
-        
-        return books;
+        return response.getItems();
     }
     
     /**
@@ -96,20 +75,14 @@ public class BookInventoryApiService {
             queryParams.append("&category=").append(category);
         }
         
-        ApiClient.ApiResponse response = apiClient.get("/library/books/search", queryParams.toString());
+        ApiClient.ListResponse<BookInfo> response = apiClient.getList("/library/books/search", queryParams.toString(),
+                JsonAdapters.BOOK);
         
         if (!response.isSuccess()) {
             throw new IOException("Failed to search books: " + response.getMessage());
         }
         
-        List<BookInfo> books = new ArrayList<>();
-        JsonArray dataArray = response.getData().getAsJsonArray("data");
-        
-        for (JsonElement element : dataArray) {
-            books.add(parseBookFromJson(element.getAsJsonObject()));
-        }
-        
-        return books;
+        return response.getItems();
     }
     
     /**
@@ -183,43 +156,10 @@ public class BookInventoryApiService {
     }
     
     /**
-     * Parse BookInfo from JSON
+     * Parse BookInfo from JSON ([UPDATED] cùng quy tắc với danh sách: JsonAdapters.BOOK)
      */
     private BookInfo parseBookFromJson(JsonObject json) {
-        BookInfo book = new BookInfo();
-        book.setBookId(getStringOrDefault(json, "bookId", ""));
-        book.setTitle(getStringOrDefault(json, "title", ""));
-        book.setAuthor(getStringOrDefault(json, "author", ""));
-        book.setIsbn(getStringOrDefault(json, "isbn", ""));
-        book.setPublisher(getStringOrDefault(json, "publisher", ""));
-        book.setPublishYear(getIntOrDefault(json, "publishYear", 0));
-        book.setCategory(getStringOrDefault(json, "category", ""));
-        book.setDescription(getStringOrDefault(json, "description", ""));
-        book.setTotalCopies(getIntOrDefault(json, "totalCopies", 0));
-        book.setAvailableCopies(getIntOrDefault(json, "availableCopies", 0));
-        book.setStatus(getStringOrDefault(json, "status", "Có sẵn"));
-        book.setLocation(getStringOrDefault(json, "location", ""));
-        return book;
-    }
-    
-    /**
-     * Safely get string from JSON, handling null values
-     */
-    private String getStringOrDefault(JsonObject json, String key, String defaultValue) {
-        if (!json.has(key)) return defaultValue;
-        JsonElement element = json.get(key);
-        if (element == null || element.isJsonNull()) return defaultValue;
-        return element.getAsString();
-    }
-    
-    /**
-     * Safely get int from JSON, handling null values
-     */
-    private int getIntOrDefault(JsonObject json, String key, int defaultValue) {
-        if (!json.has(key)) return defaultValue;
-        JsonElement element = json.get(key);
-        if (element == null || element.isJsonNull()) return defaultValue;
-        return element.getAsInt();
+        return JsonAdapters.BOOK.fromJsonTree(json);
     }
     
     /**
@@ -1,13 +1,11 @@
 package api;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import models.CardInfo;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * API Service for Card operations
@@ -62,8 +60,17 @@ public class CardApiService {
      * Get card by student ID
      */
     public CardInfo getCard(String studentId) throws IOException {
-        ApiClient.ApiResponse response = apiClient.get("/cards/" + studentId);
-        
+        return parseCardResponse(apiClient.get("/cards/" + studentId));
+    }
+    
+    /**
+     * [NEW] Bất đồng bộ của getCard (tag: xem ApiClient.cancelAll)
+     */
+    public CompletableFuture<CardInfo> getCardAsync(String studentId, Object tag) {
+        return ApiClient.map(apiClient.getAsync("/cards/" + studentId, null, tag), this::parseCardResponse);
+    }
+    
+    private CardInfo parseCardResponse(ApiClient.ApiResponse response) throws IOException {
         if (!response.isSuccess()) {
             if (response.getStatusCode() == 404) {
                 return null;
@@ -120,8 +127,19 @@ public class CardApiService {
         String queryParams = "page=" + page + "&limit=" + limit;
         System.out.println("[CardApiService] Fetching cards from server: /cards?" + queryParams);
         
-        ApiClient.ApiResponse response = apiClient.get("/cards", queryParams);
-        
+        return toCardPage(apiClient.getList("/cards", queryParams, JsonAdapters.CARD), page, limit);
+    }
+    
+    /**
+     * [NEW] Bất đồng bộ của getAllCardsWithPagination (tag: xem ApiClient.cancelAll)
+     */
+    public CompletableFuture<PaginationResult> getAllCardsWithPaginationAsync(int page, int limit, Object tag) {
+        return ApiClient.map(apiClient.getListAsync("/cards", "page=" + page + "&limit=" + limit, JsonAdapters.CARD, tag),
+                response -> toCardPage(response, page, limit));
+    }
+    
+    // [UPDATED] Thẻ + phân trang đã được đọc trong một lượt stream (ApiClient.getList + JsonAdapters.CARD)
+    private PaginationResult toCardPage(ApiClient.ListResponse<CardInfo> response, int page, int limit) throws IOException {
         System.out.println("[CardApiService] Response status: " + response.getStatusCode() + ", success: " + response.isSuccess());
         
         if (!response.isSuccess()) {
@@ -130,62 +148,10 @@ public class CardApiService {
             throw new IOException("Failed to get cards: " + errorMsg);
         }
         
-        if (response.getData() == null) {
-            System.err.println("[CardApiService] Response data is null");
-            throw new IOException("Response data is null");
-        }
-        
-        List<CardInfo> cards = new ArrayList<>();
-        int total = 0;
-        int totalPages = 1;
-        boolean hasNext = false;
-        boolean hasPrev = false;
-        
-        try {
-            if (!response.getData().has("data")) {
-                System.err.println("[CardApiService] Response does not have 'data' field");
-                System.err.println("[CardApiService] Response keys: " + response.getData().keySet());
-                return new PaginationResult(cards, page, limit, 0, 1, false, false);
-            }
-            
-            // Parse pagination info
-            if (response.getData().has("pagination")) {
-                JsonObject pagination = response.getData().getAsJsonObject("pagination");
-                if (pagination.has("total")) {
-                    total = pagination.get("total").getAsInt();
-                }
-                if (pagination.has("totalPages")) {
-                    totalPages = pagination.get("totalPages").getAsInt();
-                }
-                if (pagination.has("hasNext")) {
-                    hasNext = pagination.get("hasNext").getAsBoolean();
-                }
-                if (pagination.has("hasPrev")) {
-                    hasPrev = pagination.get("hasPrev").getAsBoolean();
-                }
-            }
-            
-            JsonArray dataArray = response.getData().getAsJsonArray("data");
-            System.out.println("[CardApiService] Found " + dataArray.size() + " cards in response (total: " + total + ", pages: " + totalPages + ")");
-            
-            for (JsonElement element : dataArray) {
-                try {
-                    CardInfo card = parseCardFromJson(element.getAsJsonObject());
-                    cards.add(card);
-                } catch (Exception e) {
-                    System.err.println("[CardApiService] Error parsing card: " + e.getMessage());
-                    e.printStackTrace();
-                }
-            }
-            
-            System.out.println("[CardApiService] Successfully parsed " + cards.size() + " cards");
-        } catch (Exception e) {
-            System.err.println("[CardApiService] Error parsing response: " + e.getMessage());
-            e.printStackTrace();
-            throw new IOException("Error parsing cards response: " + e.getMessage(), e);
-        }
-        
-        return new PaginationResult(cards, page, limit, total, totalPages, hasNext, hasPrev);
+        System.out.println("[CardApiService] Successfully parsed " + response.getItems().size() + " cards (total: "
+                + response.getTotal() + ", pages: " + response.getTotalPages() + ")");
+        return new PaginationResult(response.getItems(), page, limit, response.getTotal(), response.getTotalPages(),
+                response.hasNext(), response.hasPrev());
     }
     
     /**
@@ -334,69 +300,74 @@ public class CardApiService {
         return true;
     }
     
+    /**
+     * [NEW] Đăng ký RSA public key dạng thẻ trả về (modulus / exponent hex).
+     * Server sinh AES key riêng cho thẻ và mã hóa bằng khóa này.
+     */
+    public boolean registerRSAPublicKey(String studentId, String modulusHex, String exponentHex) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("rsaModulus", modulusHex);
+        body.addProperty("rsaExponent", exponentHex);
+        
+        ApiClient.ApiResponse response = apiClient.put("/cards/" + studentId + "/rsa-key", body);
+        
+        if (!response.isSuccess()) {
+            throw new IOException("Failed to register RSA public key: " + response.getMessage());
+        }
+        
+        return true;
+    }
+    
+    /**
+     * [NEW] Đăng ký EC public key (điểm W không nén, hex)
+     */
+    public boolean registerECPublicKey(String studentId, String ecPointHex) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("ecPoint", ecPointHex);
+        
+        ApiClient.ApiResponse response = apiClient.put("/cards/" + studentId + "/ec-key", body);
+        
+        if (!response.isSuccess()) {
+            throw new IOException("Failed to register EC public key: " + response.getMessage());
+        }
+        
+        return true;
+    }
+    
+    /**
+     * [NEW] Master Key của thẻ đã mã hóa RSA (PKCS#1) bằng public key của thẻ - chỉ thẻ giải mã được
+     * @return ciphertext (base64 đã giải mã)
+     */
+    public byte[] getEncryptedMasterKey(String studentId, String modulusHex, String exponentHex) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("studentId", studentId);
+        body.addProperty("rsaModulus", modulusHex);
+        body.addProperty("rsaExponent", exponentHex);
+        
+        ApiClient.ApiResponse response = apiClient.post("/cards/master-key", body);
+        
+        if (!response.isSuccess() || response.getData() == null || !response.getData().has("data")) {
+            throw new IOException("Failed to get encrypted master key: " + response.getMessage());
+        }
+        JsonObject data = response.getData().getAsJsonObject("data");
+        if (!data.has("encryptedMasterKey") || data.get("encryptedMasterKey").isJsonNull()) {
+            throw new IOException("Encrypted Master Key not found in response");
+        }
+        return java.util.Base64.getDecoder().decode(data.get("encryptedMasterKey").getAsString());
+    }
+    
     /**
      * Parse CardInfo from JSON
      */
     private CardInfo parseCardFromJson(JsonObject json) {
         try {
-            CardInfo card = new CardInfo();
-            
-            // Required fields
-            if (json.has("studentId") && !json.get("studentId").isJsonNull()) {
-                card.setStudentId(json.get("studentId").getAsString());
-            }
-            
-            // Optional fields with safe parsing
-            if (json.has("holderName") && !json.get("holderName").isJsonNull()) {
-                card.setHolderName(json.get("holderName").getAsString());
-            }
-            
-            if (json.has("email") && !json.get("email").isJsonNull()) {
-                card.setEmail(json.get("email").getAsString());
-            }
-            
-            if (json.has("department") && !json.get("department").isJsonNull()) {
-                card.setDepartment(json.get("department").getAsString());
-            }
-            
-            if (json.has("birthDate") && !json.get("birthDate").isJsonNull()) {
-                card.setBirthDate(json.get("birthDate").getAsString());
-            }
-            
-            if (json.has("address") && !json.get("address").isJsonNull()) {
-                card.setAddress(json.get("address").getAsString());
-            }
-            
-            if (json.has("status") && !json.get("status").isJsonNull()) {
-                card.setStatus(json.get("status").getAsString());
-            } else {
-                card.setStatus("Hoạt động");
-            }
-            
-            if (json.has("balance") && !json.get("balance").isJsonNull()) {
-                card.setBalance(json.get("balance").getAsLong());
-            }
-            
-            // CardInfo model uses setBorrowedBooks()
-            if (json.has("borrowedBooksCount") && !json.get("borrowedBooksCount").isJsonNull()) {
-                card.setBorrowedBooks(json.get("borrowedBooksCount").getAsInt());
-            }
-            
-            // RSA public key
-            if (json.has("rsaPublicKey") && !json.get("rsaPublicKey").isJsonNull()) {
-                card.setRsaPublicKey(json.get("rsaPublicKey").getAsString());
-            }
-            
-            // Image path
-            if (json.has("imagePath") && !json.get("imagePath").isJsonNull()) {
-                card.setImagePath(json.get("imagePath").getAsString());
-            }
-            
+            // [UPDATED] Dùng chung quy tắc parse với danh sách (JsonAdapters.CARD)
+            CardInfo card = JsonAdapters.CARD.fromJsonTree(json);
             System.out.println("[CardApiService] Parsed card: " + card.getStudentId() + " - " + card.getHolderName());
             return card;
         } catch (Exception e) {
             System.err.println("[CardApiService] Error parsing card JSON: " + e.getMessage());
-            System.err.println("[CardApiService] JSON: " + json.toString());
+            System.err.println("[CardApiService] JSON: " + json);
             e.printStackTrace();
             throw new RuntimeException("Failed to parse card from JSON: " + e.getMessage(), e);
         }
@@ -0,0 +1,305 @@
+package api;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import models.BorrowedBook;
+import models.CardInfo;
+import models.Transaction;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * [NEW] Gson TypeAdapter đọc thẳng từ luồng JSON vào model (không dựng cây JsonObject)
+ *
+ * Dùng cho các endpoint danh sách (ApiClient.getList): mỗi phần tử của "data" được đọc
+ * field-by-field từ JsonReader, nên trang 1000 dòng không còn giữ cả body String + cây JSON.
+ * Quy tắc mặc định giữ như các hàm parse*FromJson cũ; field null / sai kiểu -> giá trị mặc định.
+ * Chỉ đọc: các model này không được gửi lên server bằng Gson.
+ */
+public final class JsonAdapters {
+
+    public static final TypeAdapter<CardInfo> CARD = new ReadOnlyAdapter<CardInfo>() {
+        @Override
+        public CardInfo read(JsonReader in) throws IOException {
+            if (!beginObject(in)) {
+                return null;
+            }
+            CardInfo card = new CardInfo();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "studentId": card.setStudentId(nextString(in, card.getStudentId())); break;
+                    case "holderName": card.setHolderName(nextString(in, card.getHolderName())); break;
+                    case "email": card.setEmail(nextString(in, card.getEmail())); break;
+                    case "department": card.setDepartment(nextString(in, card.getDepartment())); break;
+                    case "birthDate": card.setBirthDate(nextString(in, card.getBirthDate())); break;
+                    case "address": card.setAddress(nextString(in, card.getAddress())); break;
+                    case "status": card.setStatus(nextString(in, "Hoạt động")); break;
+                    case "balance": card.setBalance(nextLong(in, 0)); break;
+                    case "borrowedBooksCount": card.setBorrowedBooks((int) nextLong(in, 0)); break;
+                    case "rsaPublicKey": card.setRsaPublicKey(nextString(in, null)); break;
+                    case "ecPublicKey": card.setEcPublicKey(nextString(in, null)); break;
+                    case "imagePath": card.setImagePath(nextString(in, card.getImagePath())); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return card;
+        }
+    };
+
+    public static final TypeAdapter<BookInventoryApiService.BookInfo> BOOK =
+            new ReadOnlyAdapter<BookInventoryApiService.BookInfo>() {
+        @Override
+        public BookInventoryApiService.BookInfo read(JsonReader in) throws IOException {
+            if (!beginObject(in)) {
+                return null;
+            }
+            BookInventoryApiService.BookInfo book = new BookInventoryApiService.BookInfo();
+            book.setBookId("");
+            book.setTitle("");
+            book.setAuthor("");
+            book.setIsbn("");
+            book.setPublisher("");
+            book.setCategory("");
+            book.setDescription("");
+            book.setStatus("Có sẵn");
+            book.setLocation("");
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "bookId": book.setBookId(nextString(in, "")); break;
+                    case "title": book.setTitle(nextString(in, "")); break;
+                    case "author": book.setAuthor(nextString(in, "")); break;
+                    case "isbn": book.setIsbn(nextString(in, "")); break;
+                    case "publisher": book.setPublisher(nextString(in, "")); break;
+                    case "publishYear": book.setPublishYear((int) nextLong(in, 0)); break;
+                    case "category": book.setCategory(nextString(in, "")); break;
+                    case "description": book.setDescription(nextString(in, "")); break;
+                    case "totalCopies": book.setTotalCopies((int) nextLong(in, 0)); break;
+                    case "availableCopies": book.setAvailableCopies((int) nextLong(in, 0)); break;
+                    case "status": book.setStatus(nextString(in, "Có sẵn")); break;
+                    case "location": book.setLocation(nextString(in, "")); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return book;
+        }
+    };
+
+    public static final TypeAdapter<BorrowedBook> BORROWED_BOOK = new ReadOnlyAdapter<BorrowedBook>() {
+        @Override
+        public BorrowedBook read(JsonReader in) throws IOException {
+            if (!beginObject(in)) {
+                return null;
+            }
+            int id = 0;
+            String bookId = "";
+            String bookName = "";
+            String borrowDate = "";
+            String dueDate = "";
+            String status = "Đang mượn";
+            int overdueDays = 0;
+            long fine = 0;
+            boolean finePaid = false;
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id": id = (int) nextLong(in, 0); break;
+                    case "bookId": bookId = nextString(in, ""); break;
+                    case "bookName": bookName = nextString(in, ""); break;
+                    case "borrowDate": borrowDate = formatDate(nextString(in, "")); break;
+                    case "dueDate": dueDate = formatDate(nextString(in, "")); break;
+                    case "status": status = nextString(in, "Đang mượn"); break;
+                    case "overdueDays": overdueDays = (int) nextLong(in, 0); break;
+                    case "fine": fine = nextLong(in, 0); break;
+                    case "finePaid": finePaid = nextBoolean(in); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            BorrowedBook book = new BorrowedBook(id, bookId, bookName, borrowDate, dueDate, status, overdueDays);
+            book.setFine(fine);
+            book.setFinePaid(finePaid);
+            return book;
+        }
+    };
+
+    public static final TypeAdapter<Transaction> TRANSACTION = new ReadOnlyAdapter<Transaction>() {
+        @Override
+        public Transaction read(JsonReader in) throws IOException {
+            if (!beginObject(in)) {
+                return null;
+            }
+            // Thứ tự ưu tiên ngày: createdAt > created_at > date (field có thể tới theo thứ tự bất kỳ)
+            String createdAt = null;
+            String createdAtSnake = null;
+            String date = null;
+            String type = "";
+            String description = null;
+            long amount = 0;
+            String status = "Thành công";
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "createdAt": createdAt = nextString(in, null); break;
+                    case "created_at": createdAtSnake = nextString(in, null); break;
+                    case "date": date = nextString(in, null); break;
+                    case "type": type = nextString(in, ""); break;
+                    case "description": description = nextString(in, null); break;
+                    case "amount": amount = nextLong(in, 0); break;
+                    case "status": status = nextString(in, "Thành công"); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+
+            if (createdAt != null) {
+                date = formatDateTime(createdAt);
+            } else if (createdAtSnake != null) {
+                date = formatDateTime(createdAtSnake);
+            }
+            if (date == null || date.isEmpty()) {
+                date = DATE_FORMAT.get().format(new Date());
+            }
+            // Ensure 'Trả phạt' is always negative
+            if ("Trả phạt".equalsIgnoreCase(type) && amount > 0) {
+                amount = -amount;
+            }
+            return new Transaction(date, type, amount, status);
+        }
+    };
+
+    // SimpleDateFormat không thread-safe -> mỗi luồng một bộ
+    private static final ThreadLocal<SimpleDateFormat> ISO_DATE_TIME = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    });
+    private static final ThreadLocal<SimpleDateFormat> ISO_DATE = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    });
+    private static final ThreadLocal<SimpleDateFormat> LOCAL_ISO_DATE_TIME =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"));
+    private static final ThreadLocal<SimpleDateFormat> LOCAL_ISO_DATE =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd"));
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("dd/MM/yyyy"));
+    private static final ThreadLocal<SimpleDateFormat> DATE_TIME_VN = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat format = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("Asia/Ho_Chi_Minh")); // UTC+7
+        return format;
+    });
+
+    /**
+     * Gson của ApiClient với các adapter trên đã đăng ký
+     */
+    static GsonBuilder register(GsonBuilder builder) {
+        return builder
+                .registerTypeAdapter(CardInfo.class, CARD)
+                .registerTypeAdapter(BookInventoryApiService.BookInfo.class, BOOK)
+                .registerTypeAdapter(BorrowedBook.class, BORROWED_BOOK)
+                .registerTypeAdapter(Transaction.class, TRANSACTION);
+    }
+
+    /**
+     * ISO (yyyy-MM-dd'T'HH:mm:ss.SSS'Z' hoặc yyyy-MM-dd) -> dd/MM/yyyy; không parse được thì giữ nguyên
+     */
+    static String formatDate(String isoDate) {
+        if (isoDate == null || isoDate.isEmpty()) {
+            return "";
+        }
+        try {
+            return DATE_FORMAT.get().format(LOCAL_ISO_DATE_TIME.get().parse(isoDate));
+        } catch (ParseException e) {
+            try {
+                return DATE_FORMAT.get().format(LOCAL_ISO_DATE.get().parse(isoDate));
+            } catch (ParseException e2) {
+                return isoDate;
+            }
+        }
+    }
+
+    /**
+     * ISO (UTC) -> dd/MM/yyyy HH:mm:ss (UTC+7); không parse được thì giữ nguyên
+     */
+    static String formatDateTime(String isoDate) {
+        try {
+            return DATE_TIME_VN.get().format(ISO_DATE_TIME.get().parse(isoDate));
+        } catch (ParseException e) {
+            try {
+                return DATE_TIME_VN.get().format(ISO_DATE.get().parse(isoDate));
+            } catch (ParseException e2) {
+                return isoDate;
+            }
+        }
+    }
+
+    // --- Đọc giá trị dễ dãi như JsonPrimitive.getAs*() (số dạng chuỗi, null -> mặc định) ---
+
+    static boolean beginObject(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return false;
+        }
+        in.beginObject();
+        return true;
+    }
+
+    static String nextString(JsonReader in, String defaultValue) throws IOException {
+        switch (in.peek()) {
+            case STRING:
+            case NUMBER:
+                return in.nextString();
+            case BOOLEAN:
+                return Boolean.toString(in.nextBoolean());
+            case NULL:
+                in.nextNull();
+                return defaultValue;
+            default:
+                in.skipValue();
+                return defaultValue;
+        }
+    }
+
+    static long nextLong(JsonReader in, long defaultValue) throws IOException {
+        String value = nextString(in, null);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value); // DECIMAL từ MySQL: "12345.00"
+            } catch (NumberFormatException e2) {
+                return defaultValue;
+            }
+        }
+    }
+
+    static boolean nextBoolean(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.BOOLEAN) {
+            return in.nextBoolean();
+        }
+        String value = nextString(in, null);
+        return "1".equals(value) || Boolean.parseBoolean(value);
+    }
+
+    private abstract static class ReadOnlyAdapter<T> extends TypeAdapter<T> {
+        @Override
+        public void write(JsonWriter out, T value) {
+            throw new UnsupportedOperationException("Read-only adapter");
+        }
+    }
+
+    private JsonAdapters() {
+        // Prevent instantiation
+    }
+}
@@ -0,0 +1,236 @@
+package api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * [NEW] Gộp các GET giống hệt nhau đang chạy (single-flight)
+ *
+ * Key = loại kết quả + URL + token: người gọi thứ hai trở đi không gửi request mới mà chờ
+ * kết quả của request đang chạy. Khi có nhiều người chờ, mỗi người nhận bản sao nông của
+ * kết quả (copy) để thao tác trên danh sách của trang này không ảnh hưởng trang khác.
+ *
+ * Hủy: future của một người chờ bị hủy / cancelAll(tag) chỉ gỡ người đó;
+ * HTTP call chỉ bị hủy khi không còn ai chờ.
+ */
+final class RequestCoalescer {
+
+    @FunctionalInterface
+    interface SyncCall<T> {
+        T execute() throws IOException;
+    }
+
+    private final Map<String, Flight<?>> inFlight = new HashMap<>(); // guarded by this
+    private final AtomicLong sharedCalls = new AtomicLong();
+    private final AtomicLong coalescedCalls = new AtomicLong();
+
+    /**
+     * Bất đồng bộ: trả về future riêng cho người gọi (hủy được độc lập)
+     */
+    <T> CompletableFuture<T> async(String key, Object tag, Supplier<CompletableFuture<T>> call, UnaryOperator<T> copy) {
+        Flight<T> flight;
+        boolean leader;
+        Subscription<T> subscription = new Subscription<>(tag);
+        synchronized (this) {
+            flight = lookup(key);
+            leader = flight == null;
+            if (leader) {
+                flight = new Flight<>(key);
+                inFlight.put(key, flight);
+            }
+            flight.subscribers++;
+            flight.subscriptions.add(subscription);
+        }
+        subscribe(flight, subscription, copy);
+
+        if (leader) {
+            sharedCalls.incrementAndGet();
+            CompletableFuture<T> network;
+            try {
+                network = call.get();
+            } catch (RuntimeException e) {
+                network = new CompletableFuture<>();
+                network.completeExceptionally(e);
+            }
+            Flight<T> started = flight;
+            synchronized (this) {
+                started.network = network;
+            }
+            network.whenComplete((result, ex) -> finish(started, result, ex));
+            cancelIfAbandoned(flight);
+        } else {
+            onCoalesced(key);
+        }
+        return subscription.future;
+    }
+
+    /**
+     * Đồng bộ: người đầu tiên chạy call trên luồng của mình, những người sau chờ kết quả
+     */
+    <T> T sync(String key, SyncCall<T> call, UnaryOperator<T> copy) throws IOException {
+        Flight<T> flight;
+        boolean leader;
+        synchronized (this) {
+            flight = lookup(key);
+            leader = flight == null;
+            if (leader) {
+                flight = new Flight<>(key);
+                inFlight.put(key, flight);
+            }
+            flight.subscribers++;
+            flight.blockingWaiters++;
+        }
+
+        if (leader) {
+            sharedCalls.incrementAndGet();
+            try {
+                finish(flight, call.execute(), null);
+            } catch (IOException | RuntimeException e) {
+                finish(flight, null, e);
+            }
+        } else {
+            onCoalesced(key);
+        }
+
+        try {
+            T result = flight.result.get();
+            return flight.subscribers > 1 ? copy.apply(result) : result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Gỡ mọi người chờ gắn tag (future của họ kết thúc với "Canceled")
+     * @return số người chờ đã gỡ
+     */
+    int cancelAll(Object tag) {
+        List<Subscription<?>> removed = new ArrayList<>();
+        List<Flight<?>> touched = new ArrayList<>();
+        synchronized (this) {
+            for (Flight<?> flight : inFlight.values()) {
+                for (Iterator<? extends Subscription<?>> it = flight.subscriptions.iterator(); it.hasNext(); ) {
+                    Subscription<?> subscription = it.next();
+                    if (tag.equals(subscription.tag)) {
+                        it.remove();
+                        removed.add(subscription);
+                        if (!touched.contains(flight)) {
+                            touched.add(flight);
+                        }
+                    }
+                }
+            }
+        }
+        for (Subscription<?> subscription : removed) {
+            subscription.future.completeExceptionally(new IOException("Canceled"));
+        }
+        for (Flight<?> flight : touched) {
+            cancelIfAbandoned(flight);
+        }
+        return removed.size();
+    }
+
+    long getSharedCalls() {
+        return sharedCalls.get();
+    }
+
+    long getCoalescedCalls() {
+        return coalescedCalls.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Flight<T> lookup(String key) {
+        return (Flight<T>) inFlight.get(key);
+    }
+
+    private <T> void subscribe(Flight<T> flight, Subscription<T> subscription, UnaryOperator<T> copy) {
+        flight.result.whenComplete((result, ex) -> {
+            if (ex != null) {
+                subscription.future.completeExceptionally(ex);
+            } else {
+                // Sau finish() không ai vào thêm được -> subscribers đã cố định
+                subscription.future.complete(flight.subscribers > 1 ? copy.apply(result) : result);
+            }
+        });
+        subscription.future.whenComplete((result, ex) -> {
+            if (subscription.future.isCancelled()) {
+                synchronized (this) {
+                    flight.subscriptions.remove(subscription);
+                }
+                cancelIfAbandoned(flight);
+            }
+        });
+    }
+
+    private <T> void finish(Flight<T> flight, T result, Throwable ex) {
+        synchronized (this) {
+            inFlight.remove(flight.key, flight);
+        }
+        if (ex != null) {
+            flight.result.completeExceptionally(ex);
+        } else {
+            flight.result.complete(result);
+        }
+    }
+
+    // Không còn ai chờ (và không có người gọi đồng bộ) -> hủy HTTP call
+    private void cancelIfAbandoned(Flight<?> flight) {
+        CompletableFuture<?> network;
+        synchronized (this) {
+            if (!flight.subscriptions.isEmpty() || flight.blockingWaiters > 0 || flight.network == null) {
+                return;
+            }
+            inFlight.remove(flight.key, flight);
+            network = flight.network;
+        }
+        network.cancel(true);
+    }
+
+    private void onCoalesced(String key) {
+        long count = coalescedCalls.incrementAndGet();
+        // key = "<loại>\n<token>\n<url>": không in token ra log
+        System.out.println("[ApiClient] Coalesced GET " + key.substring(key.lastIndexOf('\n') + 1)
+                + " with in-flight request (total coalesced: " + count + ")");
+    }
+
+    private static final class Flight<T> {
+        final String key;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final List<Subscription<T>> subscriptions = new ArrayList<>();
+        int subscribers;
+        int blockingWaiters;
+        CompletableFuture<T> network;
+
+        Flight(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Subscription<T> {
+        final Object tag;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Subscription(Object tag) {
+            this.tag = tag;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package api;
+
+import config.ApiConfig;
+import okhttp3.Cache;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * [NEW] HTTP cache cho ApiClient (OkHttp Cache trên đĩa, có giới hạn dung lượng)
+ *
+ * - GET lưu lại kèm ETag của Express; lần sau gửi If-None-Match, server trả 304 (không có body)
+ *   nên mở lại trang danh sách 1000 dòng chỉ tốn vài KB
+ * - TTL theo endpoint (POLICIES): trong TTL dùng bản lưu không cần hỏi server;
+ *   TTL = 0 -> luôn hỏi lại server bằng request có điều kiện
+ * - POST/PUT/PATCH/DELETE thành công -> xóa bản lưu của nhóm endpoint liên quan (INVALIDATES)
+ */
+final class ResponseCache {
+
+    private static final String API_PATH = "/api";
+    private static final long NO_STORE = -1;
+
+    // Tiền tố đường dẫn (sau /api) -> TTL (giây); khớp tiền tố dài nhất khai báo trước
+    private static final Map<String, Long> POLICIES = new LinkedHashMap<>();
+    // Nhóm bị thay đổi -> các nhóm cần xóa bản lưu (luôn gồm chính nó)
+    private static final Map<String, String[]> INVALIDATES = new LinkedHashMap<>();
+
+    static {
+        POLICIES.put("/library/books/categories", 600L);
+        POLICIES.put("/library/books", 30L);
+        POLICIES.put("/cards", 0L);
+        POLICIES.put("/books", 0L);
+        POLICIES.put("/transactions", 0L);
+        POLICIES.put("/health", NO_STORE);
+
+        // Mượn/trả sách đổi số bản còn lại, số sách đang mượn của thẻ; trả phạt đổi số dư + giao dịch
+        INVALIDATES.put("/books", new String[] { "/library", "/cards", "/transactions" });
+        INVALIDATES.put("/transactions", new String[] { "/cards" });
+    }
+
+    private final Cache cache;
+
+    ResponseCache(File directory, long maxBytes) {
+        this.cache = new Cache(directory, maxBytes);
+    }
+
+    static ResponseCache createDefault() {
+        return new ResponseCache(new File(ApiConfig.getHttpCacheDirectory()),
+                ApiConfig.getHttpCacheMaxMegabytes() * 1024L * 1024L);
+    }
+
+    OkHttpClient.Builder install(OkHttpClient.Builder builder) {
+        return builder
+                .cache(cache)
+                .addInterceptor(this::invalidateOnWrite)
+                .addNetworkInterceptor(ResponseCache::applyPolicy);
+    }
+
+    /**
+     * Xóa toàn bộ bản lưu (VD: đổi server / cần dữ liệu mới hoàn toàn)
+     */
+    void clear() {
+        try {
+            cache.evictAll();
+        } catch (IOException e) {
+            System.err.println("[ResponseCache] Failed to clear cache: " + e.getMessage());
+        }
+    }
+
+    // Server không gửi Cache-Control cho JSON: gắn TTL theo endpoint trước khi OkHttp lưu
+    private static Response applyPolicy(Interceptor.Chain chain) throws IOException {
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+        if (!"GET".equals(request.method())) {
+            return response;
+        }
+        Long ttl = policyFor(apiPath(request.url()));
+        if (ttl == null) {
+            return response;
+        }
+        String cacheControl = ttl == NO_STORE ? "no-store" : "private, max-age=" + ttl;
+        return response.newBuilder()
+                .header("Cache-Control", cacheControl)
+                .removeHeader("Pragma")
+                .removeHeader("Expires")
+                .build();
+    }
+
+    private Response invalidateOnWrite(Interceptor.Chain chain) throws IOException {
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+        if (!"GET".equals(request.method()) && !"HEAD".equals(request.method()) && response.isSuccessful()) {
+            invalidate(apiPath(request.url()));
+        }
+        return response;
+    }
+
+    private void invalidate(String path) {
+        String group = group(path);
+        if (group.isEmpty()) {
+            return;
+        }
+        List<String> prefixes = new ArrayList<>();
+        prefixes.add(group);
+        String[] related = INVALIDATES.get(group);
+        if (related != null) {
+            for (String prefix : related) {
+                prefixes.add(prefix);
+            }
+        }
+
+        int removed = 0;
+        try {
+            for (Iterator<String> urls = cache.urls(); urls.hasNext(); ) {
+                HttpUrl url = HttpUrl.parse(urls.next());
+                if (url != null && startsWithAny(apiPath(url), prefixes)) {
+                    urls.remove();
+                    removed++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[ResponseCache] Failed to invalidate " + group + ": " + e.getMessage());
+        }
+        if (removed > 0) {
+            System.out.println("[ResponseCache] Invalidated " + removed + " cached response(s) after write to " + path);
+        }
+    }
+
+    private static Long policyFor(String path) {
+        for (Map.Entry<String, Long> policy : POLICIES.entrySet()) {
+            if (matches(path, policy.getKey())) {
+                return policy.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWithAny(String path, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (matches(path, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // "/books" khớp "/books" và "/books/student/..." nhưng không khớp "/booksx"
+    private static boolean matches(String path, String prefix) {
+        return path.startsWith(prefix)
+                && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/');
+    }
+
+    // "/cards/SV001/balance" -> "/cards"
+    private static String group(String path) {
+        int next = path.indexOf('/', 1);
+        return next < 0 ? path : path.substring(0, next);
+    }
+
+    private static String apiPath(HttpUrl url) {
+        String path = url.encodedPath();
+        return path.startsWith(API_PATH + "/") ? path.substring(API_PATH.length()) : path;
+    }
+}
@@ -0,0 +1,236 @@
+package api;
+
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * [NEW] Theo dõi server ở nền bằng circuit breaker (thay cho /health chặn luồng trong isServerAvailable)
+ *
+ * - CLOSED   : server hoạt động, request đi bình thường
+ * - OPEN     : server coi như offline; isAvailable() trả false ngay, trang dùng dữ liệu local
+ * - HALF_OPEN: hết thời gian chờ của OPEN, đang thử lại (probe /health hoặc request thật)
+ *
+ * Nguồn tín hiệu: kết quả của mọi request qua ApiClient (interceptor) và probe /health định kỳ.
+ * Đọc trạng thái không bao giờ chặn; listener được gọi trên luồng "api-health" hoặc luồng OkHttp.
+ */
+public final class ServerHealthMonitor {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    @FunctionalInterface
+    public interface Listener {
+        void onStateChanged(State previous, State current);
+    }
+
+    private static final int FAILURE_THRESHOLD = 3;           // lỗi liên tiếp của request thật -> OPEN
+    private static final long MIN_OPEN_MS = 5_000;            // OPEN -> HALF_OPEN lần đầu sau 5s
+    private static final long MAX_OPEN_MS = 60_000;           // mỗi lần thử lại thất bại: x2, tối đa 60s
+    private static final long IDLE_PROBE_MS = 30_000;         // CLOSED mà không có request nào: probe mỗi 30s
+    private static final Object PROBE_TAG = new Object();
+
+    private final String healthUrl;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "api-health");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile State state = State.CLOSED;
+    private volatile OkHttpClient client;
+    // guarded by this
+    private int consecutiveFailures;
+    private long openDurationMs = MIN_OPEN_MS;
+    private long lastOutcomeAt;
+    private ScheduledFuture<?> nextProbe;
+
+    ServerHealthMonitor(String healthUrl) {
+        this.healthUrl = healthUrl;
+    }
+
+    /**
+     * Bắt đầu probe (gọi một lần sau khi OkHttpClient đã dựng xong)
+     */
+    synchronized void start(OkHttpClient client) {
+        if (this.client != null) {
+            return;
+        }
+        this.client = client;
+        scheduleProbe(0);
+    }
+
+    /**
+     * Server có nên được gọi không (không chặn): false chỉ khi mạch đang OPEN
+     */
+    public boolean isAvailable() {
+        return state != State.OPEN;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Yêu cầu probe ngay ở nền (VD: trước khi login); không chờ kết quả
+     */
+    public synchronized void probeNow() {
+        if (client != null) {
+            scheduleProbe(0);
+        }
+    }
+
+    /**
+     * Interceptor ghi nhận kết quả của request thật (bỏ qua request bị hủy và probe)
+     */
+    Interceptor interceptor() {
+        return chain -> {
+            Request request = chain.request();
+            if (request.tag() == PROBE_TAG) {
+                return chain.proceed(request);
+            }
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                if (!chain.call().isCanceled()) {
+                    recordFailure(request.url().encodedPath() + ": " + e.getMessage());
+                }
+                throw e;
+            }
+            if (response.networkResponse() != null) {
+                if (isServerFailure(response)) {
+                    recordFailure(request.url().encodedPath() + ": HTTP " + response.code());
+                } else {
+                    recordSuccess();
+                }
+            }
+            return response;
+        };
+    }
+
+    // 502/503/504 (proxy không tới được server) và trang lỗi của ngrok khi tunnel tắt
+    private static boolean isServerFailure(Response response) {
+        int code = response.code();
+        return code == 502 || code == 503 || code == 504 || response.header("Ngrok-Error-Code") != null;
+    }
+
+    private void probe() {
+        synchronized (this) {
+            nextProbe = null; // chính là probe đang chạy
+            if (state == State.CLOSED && System.currentTimeMillis() - lastOutcomeAt < IDLE_PROBE_MS) {
+                // Có request thật gần đây -> không cần probe
+                scheduleProbe(IDLE_PROBE_MS - (System.currentTimeMillis() - lastOutcomeAt));
+                return;
+            }
+        }
+        if (state == State.OPEN) {
+            transition(State.HALF_OPEN);
+        }
+
+        Request request = new Request.Builder().url(healthUrl).tag(PROBE_TAG).get().build();
+        Call call = client.newCall(request);
+        try (Response response = call.execute()) {
+            if (isServerFailure(response) || !response.isSuccessful()) {
+                openCircuit("probe HTTP " + response.code());
+            } else {
+                recordSuccess();
+            }
+        } catch (IOException e) {
+            openCircuit("probe " + e.getMessage());
+        }
+    }
+
+    private void recordSuccess() {
+        State previous;
+        synchronized (this) {
+            consecutiveFailures = 0;
+            openDurationMs = MIN_OPEN_MS;
+            lastOutcomeAt = System.currentTimeMillis();
+            previous = state;
+            if (previous != State.CLOSED) {
+                state = State.CLOSED;
+                scheduleProbe(IDLE_PROBE_MS);
+            } else if (nextProbe == null || nextProbe.isDone()) {
+                scheduleProbe(IDLE_PROBE_MS);
+            }
+        }
+        notifyListeners(previous, State.CLOSED);
+    }
+
+    private void recordFailure(String reason) {
+        boolean open;
+        synchronized (this) {
+            lastOutcomeAt = System.currentTimeMillis();
+            consecutiveFailures++;
+            open = state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD);
+        }
+        if (open) {
+            openCircuit(reason);
+        }
+    }
+
+    private void openCircuit(String reason) {
+        State previous;
+        synchronized (this) {
+            previous = state;
+            state = State.OPEN;
+            long delay = openDurationMs;
+            openDurationMs = Math.min(openDurationMs * 2, MAX_OPEN_MS);
+            scheduleProbe(delay);
+            if (previous != State.OPEN) {
+                System.out.println("[ServerHealth] Server unavailable (" + reason + "), retry in " + delay + " ms");
+            }
+        }
+        notifyListeners(previous, State.OPEN);
+    }
+
+    private void transition(State next) {
+        State previous;
+        synchronized (this) {
+            previous = state;
+            state = next;
+        }
+        notifyListeners(previous, next);
+    }
+
+    // Chỉ giữ một probe đang chờ
+    private void scheduleProbe(long delayMs) {
+        if (nextProbe != null) {
+            nextProbe.cancel(false);
+        }
+        nextProbe = scheduler.schedule(this::probe, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyListeners(State previous, State current) {
+        if (previous == current) {
+            return;
+        }
+        System.out.println("[ServerHealth] " + previous + " -> " + current);
+        for (Listener listener : listeners) {
+            try {
+                listener.onStateChanged(previous, current);
+            } catch (RuntimeException e) {
+                System.err.println("[ServerHealth] Listener error: " + e.getMessage());
+            }
+        }
+    }
+}
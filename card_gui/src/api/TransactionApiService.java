@@ -1,22 +1,19 @@
 package api;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import models.Transaction;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * API Service for Transaction operations
  */
 public class TransactionApiService {
     private final ApiClient apiClient;
-    private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
     
     public TransactionApiService() {
         this.apiClient = new ApiClient();
@@ -62,6 +59,22 @@ public class TransactionApiService {
      */
     public List<Transaction> getTransactionsByStudent(String studentId, String type, String status,
                                                      Date startDate, Date endDate, int page, int limit) throws IOException {
+        return parseTransactions(apiClient.getList("/transactions/student/" + studentId,
+                transactionQuery(type, status, startDate, endDate, page, limit), JsonAdapters.TRANSACTION));
+    }
+    
+    /**
+     * [NEW] Bất đồng bộ của getTransactionsByStudent (tag: xem ApiClient.cancelAll)
+     */
+    public CompletableFuture<List<Transaction>> getTransactionsByStudentAsync(String studentId, String type, String status,
+                                                                            Date startDate, Date endDate, int page, int limit,
+                                                                            Object tag) {
+        return ApiClient.map(apiClient.getListAsync("/transactions/student/" + studentId,
+                transactionQuery(type, status, startDate, endDate, page, limit), JsonAdapters.TRANSACTION, tag),
+                this::parseTransactions);
+    }
+    
+    private static String transactionQuery(String type, String status, Date startDate, Date endDate, int page, int limit) {
         StringBuilder queryParams = new StringBuilder("page=" + page + "&limit=" + limit);
         if (type != null && !type.isEmpty()) {
             queryParams.append("&type=").append(type);
@@ -75,21 +88,14 @@ public class TransactionApiService {
         if (endDate != null) {
             queryParams.append("&endDate=").append(new SimpleDateFormat("yyyy-MM-dd").format(endDate));
         }
-        
-        ApiClient.ApiResponse response = apiClient.get("/transactions/student/" + studentId, queryParams.toString());
-        
+        return queryParams.toString();
+    }
+    
+    private List<Transaction> parseTransactions(ApiClient.ListResponse<Transaction> response) throws IOException {
         if (!response.isSuccess()) {
             throw new IOException("Failed to get transactions: " + response.getMessage());
         }
-        
-        List<Transaction> transactions = new ArrayList<>();
-        JsonArray dataArray = response.getData().getAsJsonArray("data");
-        
-        for (JsonElement element : dataArray) {
-            transactions.add(parseTransactionFromJson(element.getAsJsonObject()));
-        }
-        
-        return transactions;
+        return response.getItems();
     }
     
     /**
@@ -97,37 +103,20 @@ public class TransactionApiService {
      */
     public List<Transaction> getAllTransactions(String type, String status, Date startDate, 
                                                Date endDate, int page, int limit) throws IOException {
-        StringBuilder queryParams = new StringBuilder("page=" + page + "&limit=" + limit);
-        if (type != null && !type.isEmpty()) {
-            queryParams.append("&type=").append(type);
-        }
-        if (status != null && !status.isEmpty()) {
-            queryParams.append("&status=").append(status);
-        }
-        if (startDate != null) {
-            queryParams.append("&startDate=").append(new SimpleDateFormat("yyyy-MM-dd").format(startDate));
-        }
-        if (endDate != null) {
-            queryParams.append("&endDate=").append(new SimpleDateFormat("yyyy-MM-dd").format(endDate));
-        }
-        
-        ApiClient.ApiResponse response = apiClient.get("/transactions", queryParams.toString());
+        ApiClient.ListResponse<Transaction> response = apiClient.getList("/transactions",
+                transactionQuery(type, status, startDate, endDate, page, limit), JsonAdapters.TRANSACTION);
         
         if (!response.isSuccess()) {
             System.err.println("[TransactionAPI] Failed: " + response.getMessage());
             throw new IOException("Failed to get all transactions: " + response.getMessage());
         }
         
-        List<Transaction> transactions = new ArrayList<>();
-        JsonArray dataArray = response.getData().getAsJsonArray("data");
+        List<Transaction> transactions = response.getItems();
         
-        
-        for (int i = 0; i < dataArray.size(); i++) {
-            Transaction tx = parseTransactionFromJson(dataArray.get(i).getAsJsonObject());
-            transactions.add(tx);
-            
-            // Log first and last transaction
-            if (i == 0 || i == dataArray.size() - 1) {
+        // Log first and last transaction
+        for (int i = 0; i < transactions.size(); i++) {
+            if (i == 0 || i == transactions.size() - 1) {
+                Transaction tx = transactions.get(i);
                 System.out.println("[TransactionAPI] #" + (i + 1) + ": " + 
                     tx.getType() + " - " + tx.getAmount() + "đ - " + tx.getDate());
             }
@@ -162,85 +151,15 @@ public class TransactionApiService {
     }
     
     /**
-     * Parse Transaction from JSON
+     * Parse Transaction from JSON ([UPDATED] cùng quy tắc với danh sách: JsonAdapters.TRANSACTION)
      */
     private Transaction parseTransactionFromJson(JsonObject json) {
         try {
-            // Try multiple date field names
-            String date = "";
-            if (json.has("createdAt")) {
-                date = formatDateTime(json.get("createdAt").getAsString());
-            } else if (json.has("created_at")) {
-                date = formatDateTime(json.get("created_at").getAsString());
-            } else if (json.has("date")) {
-                date = json.get("date").getAsString();
-            }
-            
-            // If still no date, use today's date
-            if (date.isEmpty()) {
-                date = dateFormat.format(new Date());
-            }
-            
-            String type = json.has("type") ? json.get("type").getAsString() : "";
-            String description = json.has("description") ? json.get("description").getAsString() : type;
-            long amount = json.has("amount") ? json.get("amount").getAsLong() : 0;
-            String status = json.has("status") ? json.get("status").getAsString() : "Thành công";
-
-            // Ensure 'Trả phạt' is always negative
-            if ("Trả phạt".equalsIgnoreCase(type) && amount > 0) {
-                amount = -amount;
-            }
-            return new Transaction(date, type, amount, status);
+            return JsonAdapters.TRANSACTION.fromJsonTree(json);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
-    
-    /**
-     * Format date string from ISO format to dd/MM/yyyy HH:mm:ss (UTC+7)
-     */
-    private String formatDateTime(String isoDate) {
-        try {
-            SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            isoFormat.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
-            Date date = isoFormat.parse(isoDate);
-            
-            SimpleDateFormat outputFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-            outputFormat.setTimeZone(java.util.TimeZone.getTimeZone("Asia/Ho_Chi_Minh")); // UTC+7
-            return outputFormat.format(date);
-        } catch (Exception e) {
-            try {
-                SimpleDateFormat isoFormat2 = new SimpleDateFormat("yyyy-MM-dd");
-                isoFormat2.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
-                Date date = isoFormat2.parse(isoDate);
-                
-                SimpleDateFormat outputFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-                outputFormat.setTimeZone(java.util.TimeZone.getTimeZone("Asia/Ho_Chi_Minh")); // UTC+7
-                return outputFormat.format(date);
-            } catch (Exception e2) {
-                return isoDate;
-            }
-        }
-    }
-    
-    /**
-     * Format date string from ISO format to dd/MM/yyyy
-     */
-    private String formatDate(String isoDate) {
-        try {
-            SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            Date date = isoFormat.parse(isoDate);
-            return dateFormat.format(date);
-        } catch (Exception e) {
-            try {
-                SimpleDateFormat isoFormat2 = new SimpleDateFormat("yyyy-MM-dd");
-                Date date = isoFormat2.parse(isoDate);
-                return dateFormat.format(date);
-            } catch (Exception e2) {
-                return isoDate;
-            }
-        }
-    }
 }
 
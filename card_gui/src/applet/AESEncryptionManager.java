@@ -37,12 +37,16 @@ public class AESEncryptionManager {
     
     /**
      * Thiết lập AES Key (Admin only - cần PIN đã verify)
+     * [UPDATED] Dữ liệu đã được applet nhận đủ (và bóc lớp Secure Messaging nếu có)
      * Input: [AES_KEY (16 bytes)]
      * 
      * @param apdu APDU command
+     * @param data Bộ đệm chứa dữ liệu lệnh
+     * @param offset Vị trí bắt đầu dữ liệu
+     * @param length Độ dài dữ liệu
      * @param pinManager PinManager để kiểm tra PIN
      */
-    public void setAESKey(APDU apdu, PinManager pinManager) {
+    public void setAESKey(APDU apdu, byte[] data, short offset, short length, PinManager pinManager) {
         if (!pinManager.isPinValidated()) {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
@@ -51,23 +55,40 @@ public class AESEncryptionManager {
             ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
         }
         
-        byte[] buffer = apdu.getBuffer();
-        apdu.setIncomingAndReceive();
-        short offset = ISO7816.OFFSET_CDATA;
-        
         // Đọc AES key (16 bytes)
-        if ((short)(apdu.getIncomingLength() - offset) != AppletConstants.AES_KEY_SIZE) {
+        if (length != AppletConstants.AES_KEY_SIZE) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
         
-        Util.arrayCopy(buffer, offset, aesKey, (short)0, AppletConstants.AES_KEY_SIZE);
+        Util.arrayCopy(data, offset, aesKey, (short)0, AppletConstants.AES_KEY_SIZE);
         keySet = true;
         
         // Response: Success
+        byte[] buffer = apdu.getBuffer();
         buffer[0] = (byte)0x01;
         apdu.setOutgoingAndSend((short)0, (short)1);
     }
     
+    /**
+     * [NEW] Đọc lại AES Key đã lưu (Master Key) - applet chỉ gọi trong phiên Secure Messaging
+     * Output: [AES_KEY (16 bytes)]
+     * 
+     * @param apdu APDU command
+     * @param pinManager PinManager để kiểm tra PIN
+     */
+    public void getAESKey(APDU apdu, PinManager pinManager) {
+        if (!pinManager.isPinValidated()) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if (!keySet) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        Util.arrayCopyNonAtomic(aesKey, (short)0, buffer, (short)0, AppletConstants.AES_KEY_SIZE);
+        apdu.setOutgoingAndSend((short)0, AppletConstants.AES_KEY_SIZE);
+    }
+    
     /**
      * Mã hóa dữ liệu với AES
      * Input: [DATA_LENGTH (1 byte)] [DATA (variable)]
@@ -138,5 +159,33 @@ public class AESEncryptionManager {
     public boolean isKeySet() {
         return keySet;
     }
+    
+    /**
+     * [NEW] Ghi trạng thái EEPROM: [KEY_SET (1)] [AES_KEY (16)]
+     * 
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writeState(byte[] buffer, short offset) {
+        buffer[offset++] = keySet ? (byte)0x01 : (byte)0x00;
+        return Util.arrayCopy(aesKey, (short)0, buffer, offset, AppletConstants.AES_KEY_SIZE);
+    }
+    
+    /**
+     * [NEW] Bỏ qua bản ghi writeState (kiểm tra snapshot trước khi nạp)
+     */
+    public short skipState(byte[] buffer, short offset) {
+        return (short)(offset + 1 + AppletConstants.AES_KEY_SIZE);
+    }
+    
+    /**
+     * [NEW] Khôi phục trạng thái từ writeState
+     * 
+     * @return offset sau dữ liệu vừa đọc
+     */
+    public short readState(byte[] buffer, short offset) {
+        keySet = buffer[offset++] == (byte)0x01;
+        Util.arrayCopy(buffer, offset, aesKey, (short)0, AppletConstants.AES_KEY_SIZE);
+        return (short)(offset + AppletConstants.AES_KEY_SIZE);
+    }
 }
 
@@ -26,6 +26,8 @@ public class AppletConstants {
     // INS codes - Balance Management (Encrypted)
     public static final byte INS_GET_BALANCE = (byte)0xD0;
     public static final byte INS_UPDATE_BALANCE = (byte)0xD1;
+    // [NEW] Cộng delta có dấu vào số dư trên thẻ (một transaction). Data: [DELTA (8)] -> [BALANCE (8)][COUNTER (4)]
+    public static final byte INS_ADJUST_BALANCE = (byte)0xD2;
 
     // INS codes - Book Management
     public static final byte INS_ADD_BORROWED_BOOK = (byte)0x60;
@@ -38,10 +40,75 @@ public class AppletConstants {
     public static final byte INS_RSA_SIGN_CHALLENGE = (byte)0xB2;
     public static final byte INS_RSA_DECRYPT = (byte)0xB3; // [NEW] Decrypt Server Key
 
+    // [NEW] INS codes - ECDSA P-256 Authentication (thay thế RSA cho challenge-response)
+    public static final byte INS_EC_GENERATE_KEYPAIR = (byte)0xB4;
+    public static final byte INS_EC_GET_PUBLIC_KEY = (byte)0xB5;
+    public static final byte INS_EC_SIGN_CHALLENGE = (byte)0xB6;
+
     // INS codes - AES Encryption
     public static final byte INS_AES_SET_KEY = (byte)0xC0;
     public static final byte INS_AES_ENCRYPT = (byte)0xC1;
     public static final byte INS_AES_DECRYPT = (byte)0xC2;
+    // [NEW] Đọc Master Key đã lưu trên thẻ - chỉ trong phiên Secure Messaging
+    public static final byte INS_AES_GET_KEY = (byte)0xC3;
+
+    // [NEW] GET RESPONSE (ISO 7816-4) - lấy tiếp response sau SW 61xx
+    // Trùng mã với INS_AES_SET_KEY: chỉ được hiểu là GET RESPONSE khi applet còn dữ liệu chờ gửi
+    public static final byte INS_GET_RESPONSE = (byte)0xC0;
+
+    // [NEW] CLA bit 0x10 = command chaining (còn block tiếp theo)
+    public static final byte CLA_CHAINING = (byte)0x10;
+
+    // [NEW] Kết thúc phiên (đăng xuất): hủy xác thực PIN, giữ nguyên dữ liệu thẻ
+    public static final byte INS_RESET_SESSION = (byte)0x54;
+
+    // [NEW] Secure Messaging: mở phiên AES-CMAC (một phép toán RSA/EC), P1 = SESSION_ALG_*
+    // Data: [HC (16)] [SECRET mã hóa RSA (128) | W tạm EC (65)] -> [CC (16)] [CRYPTOGRAM (8)]
+    public static final byte INS_OPEN_SECURE_SESSION = (byte)0x56;
+    public static final byte SESSION_ALG_RSA = (byte)0x01;
+    public static final byte SESSION_ALG_EC = (byte)0x02;
+    public static final short SESSION_CHALLENGE_SIZE = (short)16;
+    public static final short SESSION_SECRET_SIZE = (short)16;      // Secret RSA (EC: SHA-1(X) 20 bytes)
+
+    // [NEW] CLA bit 0x04 = lệnh có trailer Secure Messaging: [DATA] [COUNTER (2)] [MAC (8)]
+    public static final byte CLA_SECURE_MESSAGING = (byte)0x04;
+    public static final short SM_COUNTER_LENGTH = (short)2;
+    public static final short SM_MAC_LENGTH = (short)8;
+    // Lệnh có bit SM nhưng phiên không còn (chưa mở / đã đóng do deselect, reset, MAC hoặc counter sai).
+    // Khác 6982 (chưa xác thực PIN...) để client biết phải mở lại phiên, không gửi lại lệnh không MAC
+    public static final short SW_SM_SESSION_CLOSED = (short)0x6988;
+
+    // [NEW] INS codes - EEPROM state snapshot (yêu cầu khóa snapshot của lần cài đặt ở đầu dữ liệu)
+    public static final byte INS_EXPORT_STATE = (byte)0xE0;
+    public static final byte INS_IMPORT_STATE = (byte)0xE1;
+    public static final byte STATE_VERSION = (byte)0x03; // [UPDATED] 0x03: thêm khóa EC
+    public static final byte STATE_VERSION_V2 = (byte)0x02; // số dư + counter, chưa có khóa EC
+    public static final byte STATE_VERSION_V1 = (byte)0x01;
+    // Khóa snapshot: tham số cài đặt (GP: [LEN][AID] [LEN][PRIVILEGES] [LEN][PARAMS]) do host sinh ngẫu nhiên
+    public static final short STATE_KEY_LENGTH = (short)16;
+
+    // INS codes - Session Snapshot (gộp nhiều lệnh đọc vào một lần trao đổi)
+    public static final byte INS_GET_SESSION_SNAPSHOT = (byte)0x52;
+
+    // Session Snapshot: P1 = mask các phần cần đọc (0x00 = mặc định, không gồm public key)
+    public static final byte SNAPSHOT_CARD_INFO = (byte)0x01;
+    public static final byte SNAPSHOT_BALANCE = (byte)0x02;
+    public static final byte SNAPSHOT_BOOKS = (byte)0x04;
+    public static final byte SNAPSHOT_PIN_TRIES = (byte)0x08;
+    public static final byte SNAPSHOT_RSA_PUBLIC_KEY = (byte)0x10;
+    public static final byte SNAPSHOT_EC_PUBLIC_KEY = (byte)0x20;
+    public static final byte SNAPSHOT_DEFAULT = (byte)0x0F;
+
+    // Session Snapshot: TLV tags trong response
+    public static final byte TAG_CARD_INFO = (byte)0x01;      // [FLAG][CARD_ID][NAME_LEN][NAME][EXPIRY]
+    public static final byte TAG_BALANCE = (byte)0x02;        // [ENCRYPTED_BALANCE (16)]
+    public static final byte TAG_BORROWED_BOOKS = (byte)0x03; // [NUM_BOOKS][BOOK_ID_1]...
+    public static final byte TAG_PIN_TRIES = (byte)0x04;      // [TRIES]
+    public static final byte TAG_RSA_STATUS = (byte)0x05;     // [0x01 = đã có keypair]
+    public static final byte TAG_RSA_PUBLIC_KEY = (byte)0x06; // [MODULUS (128)][EXPONENT (3)]
+    public static final byte TAG_BALANCE_VALUE = (byte)0x07;  // [BALANCE (8)][COUNTER (4)]
+    public static final byte TAG_EC_STATUS = (byte)0x08;      // [0x01 = đã có keypair EC]
+    public static final byte TAG_EC_PUBLIC_KEY = (byte)0x09;  // [W (65)]
 
     // PIN Configuration
     public static final byte PIN_TRY_LIMIT = (byte)3;
@@ -53,8 +120,18 @@ public class AppletConstants {
     public static final byte NAME_MAX_LENGTH = (byte)50;
     public static final byte EXPIRY_DATE_LENGTH = (byte)8;
 
+    // [NEW] Card Info format flag + định dạng mở rộng (bản mã đầy đủ, không cắt bớt)
+    public static final byte CARD_INFO_PLAINTEXT = (byte)0x00;
+    public static final byte CARD_INFO_ENCRYPTED = (byte)0x01;
+    public static final byte CARD_INFO_EXTENDED = (byte)0x02;
+    public static final short NAME_EXT_MAX_LENGTH = (short)240;
+    public static final byte EXPIRY_EXT_MAX_LENGTH = (byte)32;
+
+    // [NEW] Bộ đệm I/O của applet (gom command chaining / extended APDU và response nhiều phần)
+    public static final short IO_BUFFER_SIZE = (short)1152; // [UPDATED] đủ chỗ cho state có khóa EC
+
     // Book Management Configuration
-    public static final byte MAX_BORROWED_BOOKS = (byte)10;
+    public static final byte MAX_BORROWED_BOOKS = (byte)32; // [UPDATED] > 256 bytes -> trả qua GET RESPONSE
     public static final byte BOOK_ID_LENGTH = (byte)8;
 
     // RSA Configuration
@@ -62,12 +139,21 @@ public class AppletConstants {
     public static final short RSA_MODULUS_SIZE = (short)128;  // 1024 bits = 128 bytes
     public static final short RSA_EXPONENT_SIZE = (short)3;  // Usually 3 bytes (65537 = 0x010001)
     public static final short RSA_SIGNATURE_SIZE = (short)128;  // 1024-bit signature = 128 bytes
-    public static final short RSA_CHALLENGE_SIZE = (short)16;  // 16 bytes challenge
+    public static final short RSA_CHALLENGE_SIZE = (short)16;  // 16 bytes challenge (dùng chung cho EC)
+
+    // [NEW] EC Configuration (NIST P-256)
+    public static final short EC_KEY_SIZE = (short)256;
+    public static final short EC_PUBLIC_KEY_SIZE = (short)65;      // 04 || X (32) || Y (32)
+    public static final short EC_SIGNATURE_MAX_SIZE = (short)72;   // ECDSA DER
 
     // AES Configuration
     public static final byte AES_KEY_SIZE = (byte)16;  // AES-128: 16 bytes key
     public static final byte AES_BLOCK_SIZE = (byte)16;  // AES block size: 16 bytes
 
+    // [NEW] Balance Configuration
+    public static final short BALANCE_LENGTH = (short)8;          // long big-endian
+    public static final short BALANCE_COUNTER_LENGTH = (short)4;  // Số lần thay đổi số dư
+
     // Default Values (Thêm vào để SimulatorService sử dụng)
     public static final String DEFAULT_PIN = "000000";  // 6 số 0
     public static final int DEFAULT_PIN_TRIES = 3;
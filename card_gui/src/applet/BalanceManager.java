@@ -0,0 +1,125 @@
+package applet;
+
+import javacard.framework.*;
+
+/**
+ * Module quản lý số dư trên thẻ
+ * Cộng/trừ số dư ngay trên thẻ trong một JCSystem transaction (một APDU cho mỗi giao dịch)
+ */
+public class BalanceManager {
+
+    // 100 tỷ VND = 0x000000174876E800
+    private static final byte[] MAX_BALANCE = {
+        (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x17, (byte)0x48, (byte)0x76, (byte)0xE8, (byte)0x00
+    };
+
+    private byte[] balance;   // [BALANCE (8)] big-endian, luôn >= 0
+    private byte[] counter;   // [COUNTER (4)] tăng 1 sau mỗi lần thay đổi số dư
+    private byte[] scratch;   // Kết quả tạm (transient)
+
+    /**
+     * Khởi tạo BalanceManager
+     */
+    public BalanceManager() {
+        balance = new byte[AppletConstants.BALANCE_LENGTH];
+        counter = new byte[AppletConstants.BALANCE_COUNTER_LENGTH];
+        scratch = JCSystem.makeTransientByteArray(AppletConstants.BALANCE_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    /**
+     * Cộng delta (có dấu) vào số dư (yêu cầu xác thực PIN)
+     * Input: [DELTA (8, bù 2)]. Output: [BALANCE (8)] [COUNTER (4)]
+     * Delta = 0: chỉ đọc số dư, không tăng counter.
+     * Số dư âm -> SW_CONDITIONS_NOT_SATISFIED (không đủ tiền); vượt MAX_BALANCE -> SW_WRONG_DATA
+     *
+     * @param apdu APDU command
+     * @param data Dữ liệu lệnh đã nhận đủ (đã bóc lớp Secure Messaging nếu có)
+     * @param deltaOffset Vị trí DELTA trong data
+     * @param length Độ dài dữ liệu
+     * @param pinManager PinManager để kiểm tra PIN đã xác thực
+     */
+    public void adjustBalance(APDU apdu, byte[] data, short deltaOffset, short length, PinManager pinManager) {
+        if (!pinManager.isPinValidated()) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        if (length != AppletConstants.BALANCE_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        boolean zero = true;
+        short carry = 0;
+        for (short i = (short)(AppletConstants.BALANCE_LENGTH - 1); i >= 0; i--) {
+            short sum = (short)((balance[i] & 0xFF) + (data[(short)(deltaOffset + i)] & 0xFF) + carry);
+            scratch[i] = (byte)sum;
+            carry = (short)((sum >> 8) & 1);
+            if (data[(short)(deltaOffset + i)] != 0) {
+                zero = false;
+            }
+        }
+
+        if (!zero) {
+            if (scratch[0] < 0) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+            if (compareUnsigned(scratch, MAX_BALANCE) > 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+
+            // Số dư và counter thay đổi cùng nhau hoặc không thay đổi
+            JCSystem.beginTransaction();
+            Util.arrayCopy(scratch, (short)0, balance, (short)0, AppletConstants.BALANCE_LENGTH);
+            incrementCounter();
+            JCSystem.commitTransaction();
+        }
+
+        byte[] buffer = apdu.getBuffer();
+        apdu.setOutgoingAndSend((short)0, writeBalance(buffer, (short)0));
+    }
+
+    /**
+     * Ghi [BALANCE (8)] [COUNTER (4)] vào buffer
+     *
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writeBalance(byte[] buffer, short offset) {
+        offset = Util.arrayCopyNonAtomic(balance, (short)0, buffer, offset, AppletConstants.BALANCE_LENGTH);
+        return Util.arrayCopyNonAtomic(counter, (short)0, buffer, offset, AppletConstants.BALANCE_COUNTER_LENGTH);
+    }
+
+    /**
+     * Trạng thái để export: [BALANCE (8)] [COUNTER (4)]
+     */
+    public short writeState(byte[] buffer, short offset) {
+        return writeBalance(buffer, offset);
+    }
+
+    public short skipState(byte[] buffer, short offset) {
+        return (short)(offset + AppletConstants.BALANCE_LENGTH + AppletConstants.BALANCE_COUNTER_LENGTH);
+    }
+
+    public short readState(byte[] buffer, short offset) {
+        offset = Util.arrayCopy(buffer, offset, balance, (short)0, AppletConstants.BALANCE_LENGTH);
+        return Util.arrayCopy(buffer, offset, counter, (short)0, AppletConstants.BALANCE_COUNTER_LENGTH);
+    }
+
+    private void incrementCounter() {
+        for (short i = (short)(AppletConstants.BALANCE_COUNTER_LENGTH - 1); i >= 0; i--) {
+            counter[i]++;
+            if (counter[i] != 0) {
+                return;
+            }
+        }
+    }
+
+    private static short compareUnsigned(byte[] a, byte[] b) {
+        for (short i = 0; i < AppletConstants.BALANCE_LENGTH; i++) {
+            short x = (short)(a[i] & 0xFF);
+            short y = (short)(b[i] & 0xFF);
+            if (x != y) {
+                return x < y ? (short)-1 : (short)1;
+            }
+        }
+        return 0;
+    }
+}
@@ -22,11 +22,14 @@ public class BookManager {
     /**
      * Thêm sách mượn (yêu cầu xác thực PIN)
      * Format: [BOOK_ID]
+     * [UPDATED] Dữ liệu đã được applet nhận đủ (và bóc lớp Secure Messaging nếu có)
      * 
-     * @param apdu APDU command
+     * @param data Bộ đệm chứa dữ liệu lệnh
+     * @param offset Vị trí BOOK_ID
+     * @param length Độ dài dữ liệu
      * @param pinManager PinManager để kiểm tra PIN đã xác thực
      */
-    public void addBorrowedBook(APDU apdu, PinManager pinManager) {
+    public void addBorrowedBook(byte[] data, short offset, short length, PinManager pinManager) {
         if (!pinManager.isPinValidated()) {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
@@ -35,59 +38,57 @@ public class BookManager {
             ISOException.throwIt(ISO7816.SW_FILE_FULL);
         }
         
-        byte[] buffer = apdu.getBuffer();
-        apdu.setIncomingAndReceive();
+        if (length < AppletConstants.BOOK_ID_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
         
         // Tính vị trí trong mảng 1 chiều: sách thứ i nằm ở vị trí i * BOOK_ID_LENGTH
         short bookOffset = (short)(numBorrowedBooks * AppletConstants.BOOK_ID_LENGTH);
-        Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, 
+        Util.arrayCopy(data, offset, 
                       borrowedBooks, bookOffset, AppletConstants.BOOK_ID_LENGTH);
         numBorrowedBooks++;
     }
     
     /**
-     * Lấy danh sách sách đang mượn
-     * Response: [NUM_BOOKS][BOOK_ID_1][BOOK_ID_2]...
+     * Ghi danh sách sách đang mượn vào buffer: [NUM_BOOKS][BOOK_ID_1][BOOK_ID_2]...
+     * (Applet gửi đi, danh sách dài hơn 256 bytes được trả tiếp qua GET RESPONSE)
      * 
-     * @param apdu APDU command
+     * @return offset sau dữ liệu vừa ghi
      */
-    public void getBorrowedBooks(APDU apdu) {
-        byte[] buffer = apdu.getBuffer();
-        short offset = 0;
-        
+    public short writeBorrowedBooks(byte[] buffer, short offset) {
         buffer[offset++] = numBorrowedBooks;
         
-        // Copy từng book ID từ mảng 1 chiều
-        for (byte i = 0; i < numBorrowedBooks; i++) {
-            short bookOffset = (short)(i * AppletConstants.BOOK_ID_LENGTH);
-            Util.arrayCopy(borrowedBooks, bookOffset, 
-                          buffer, offset, AppletConstants.BOOK_ID_LENGTH);
-            offset += AppletConstants.BOOK_ID_LENGTH;
-        }
+        // Các book ID nằm liên tiếp trong mảng 1 chiều -> copy một lần
+        short totalLength = (short)(numBorrowedBooks * AppletConstants.BOOK_ID_LENGTH);
+        Util.arrayCopy(borrowedBooks, (short)0, buffer, offset, totalLength);
+        offset += totalLength;
         
-        apdu.setOutgoingAndSend((short)0, offset);
+        return offset;
     }
     
     /**
      * Trả sách (yêu cầu xác thực PIN)
      * Format: [BOOK_ID]
      * 
-     * @param apdu APDU command
+     * @param data Bộ đệm chứa dữ liệu lệnh
+     * @param offset Vị trí BOOK_ID
+     * @param length Độ dài dữ liệu
      * @param pinManager PinManager để kiểm tra PIN đã xác thực
      */
-    public void returnBook(APDU apdu, PinManager pinManager) {
+    public void returnBook(byte[] data, short offset, short length, PinManager pinManager) {
         if (!pinManager.isPinValidated()) {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
         
-        byte[] buffer = apdu.getBuffer();
-        apdu.setIncomingAndReceive();
+        if (length < AppletConstants.BOOK_ID_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
         
         // Tìm sách cần trả trong mảng 1 chiều
         for (byte i = 0; i < numBorrowedBooks; i++) {
             short bookOffset = (short)(i * AppletConstants.BOOK_ID_LENGTH);
             
-            if (Util.arrayCompare(buffer, ISO7816.OFFSET_CDATA, 
+            if (Util.arrayCompare(data, offset, 
                                  borrowedBooks, bookOffset, 
                                  AppletConstants.BOOK_ID_LENGTH) == 0) {
                 // Tìm thấy sách, xóa khỏi danh sách bằng cách dịch các sách sau lên
@@ -114,5 +115,41 @@ public class BookManager {
     public byte getNumBorrowedBooks() {
         return numBorrowedBooks;
     }
+    
+    /**
+     * [NEW] Khôi phục danh sách sách từ bản ghi của writeBorrowedBooks (state snapshot)
+     * 
+     * @return offset sau dữ liệu vừa đọc
+     */
+    public short readBorrowedBooks(byte[] buffer, short offset) {
+        byte count = buffer[offset++];
+        if (count < 0 || count > AppletConstants.MAX_BORROWED_BOOKS) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        short length = (short)(count * AppletConstants.BOOK_ID_LENGTH);
+        Util.arrayCopy(buffer, offset, borrowedBooks, (short)0, length);
+        numBorrowedBooks = count;
+        return (short)(offset + length);
+    }
+    
+    /**
+     * [NEW] Kiểm tra và bỏ qua bản ghi writeBorrowedBooks (không ghi gì vào thẻ)
+     * 
+     * @return offset sau bản ghi
+     */
+    public short skipBorrowedBooks(byte[] buffer, short offset) {
+        byte count = buffer[offset++];
+        if (count < 0 || count > AppletConstants.MAX_BORROWED_BOOKS) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return (short)(offset + count * AppletConstants.BOOK_ID_LENGTH);
+    }
+    
+    /**
+     * Độ dài dữ liệu mà writeBorrowedBooks sẽ ghi
+     */
+    public short getBorrowedBooksLength() {
+        return (short)(1 + numBorrowedBooks * AppletConstants.BOOK_ID_LENGTH);
+    }
 }
 
@@ -13,102 +13,216 @@ import javacard.framework.*;
     private byte[] cardId;
     // Name và Expiry: CÓ THỂ ĐÃ MÃ HÓA (client mã hóa trước khi gửi)
     private byte[] holderName;
-    private byte holderNameLength;
-    private byte[] expiryDate; // DDMMYYYY format
+    private short holderNameLength;
+    private byte[] expiryDate; // DDMMYYYY format (hoặc bản mã đầy đủ với định dạng mở rộng)
+    private byte expiryLength;
     
-    // Flag để biết Name và Expiry có được mã hóa không
+    // Định dạng dữ liệu (CARD_INFO_PLAINTEXT / CARD_INFO_ENCRYPTED / CARD_INFO_EXTENDED)
     // Card ID luôn là plaintext
-    private boolean encrypted;
+    private byte format;
     
     /**
      * Khởi tạo CardInfoManager
      */
     public CardInfoManager() {
         cardId = new byte[AppletConstants.CARD_ID_LENGTH];
-        holderName = new byte[AppletConstants.NAME_MAX_LENGTH];
-        expiryDate = new byte[AppletConstants.EXPIRY_DATE_LENGTH];
+        // [UPDATED] Đủ chỗ cho bản mã đầy đủ (định dạng mở rộng), không còn phải cắt bớt
+        holderName = new byte[AppletConstants.NAME_EXT_MAX_LENGTH];
+        expiryDate = new byte[AppletConstants.EXPIRY_EXT_MAX_LENGTH];
         holderNameLength = 0;
-        encrypted = false;
+        expiryLength = AppletConstants.EXPIRY_DATE_LENGTH;
+        format = AppletConstants.CARD_INFO_PLAINTEXT;
     }
     
     /**
      * Thiết lập thông tin thẻ (yêu cầu xác thực PIN)
-     * Format: [ENCRYPTED_FLAG (1 byte)] [CARD_ID_PLAINTEXT (10)] [NAME_LENGTH] [NAME] [EXPIRY_DATE]
-     * Nếu ENCRYPTED_FLAG = 1: Card ID là plaintext, Name và Expiry đã được mã hóa AES từ client
-     * Nếu ENCRYPTED_FLAG = 0: Tất cả dữ liệu là plaintext
-     * 
-     * @param apdu APDU command
+     * Dữ liệu đã được applet gom đủ (APDU thường, extended-length hoặc command chaining)
+     *
+     * Format cũ (FLAG = 0x00 plaintext / 0x01 encrypted):
+     *   [FLAG (1)] [CARD_ID (10)] [NAME_LENGTH (1)] [NAME (<= 50)] [EXPIRY_DATE (8)]
+     * Format mở rộng (FLAG = 0x02, Name và Expiry mã hóa, không cắt bớt):
+     *   [FLAG (1)] [CARD_ID (10)] [NAME_LENGTH (2)] [NAME] [EXPIRY_LENGTH (1)] [EXPIRY]
+     *
+     * @param data Bộ đệm chứa dữ liệu lệnh
+     * @param offset Vị trí bắt đầu dữ liệu
+     * @param length Độ dài dữ liệu
      * @param pinManager PinManager để kiểm tra PIN đã xác thực
      */
-    public void setCardInfo(APDU apdu, PinManager pinManager) {
+    public void setCardInfo(byte[] data, short offset, short length, PinManager pinManager) {
         if (!pinManager.isPinValidated()) {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
+        parseCardInfo(data, offset, length);
+    }
+    
+    /**
+     * Đọc bản ghi card info (format cũ hoặc mở rộng) vào các trường của thẻ
+     */
+    private void parseCardInfo(byte[] data, short offset, short length) {
+        checkCardInfo(data, offset, length);
         
-        byte[] buffer = apdu.getBuffer();
-        apdu.setIncomingAndReceive();
-        short offset = ISO7816.OFFSET_CDATA;
-        
-        // Đọc flag mã hóa (1 byte)
-        encrypted = (buffer[offset++] == (byte)0x01);
+        // Đọc flag định dạng (1 byte)
+        byte flag = data[offset++];
         
         // Đọc Card ID (10 bytes) - LUÔN LÀ PLAINTEXT
-        Util.arrayCopy(buffer, offset, cardId, (short)0, AppletConstants.CARD_ID_LENGTH);
+        Util.arrayCopy(data, offset, cardId, (short)0, AppletConstants.CARD_ID_LENGTH);
         offset += AppletConstants.CARD_ID_LENGTH;
         
-        // Đọc tên (độ dài biến đổi) - CÓ THỂ ĐÃ MÃ HÓA nếu encrypted = true
-        holderNameLength = buffer[offset++];
-        if (holderNameLength > AppletConstants.NAME_MAX_LENGTH) {
-            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        short nameLength;
+        byte expLength;
+        if (flag == AppletConstants.CARD_INFO_EXTENDED) {
+            nameLength = Util.getShort(data, offset);
+            offset += 2;
+            expLength = data[(short)(offset + nameLength)];
+        } else {
+            nameLength = (short)(data[offset++] & 0xFF);
+            expLength = AppletConstants.EXPIRY_DATE_LENGTH;
         }
-        Util.arrayCopy(buffer, offset, holderName, (short)0, holderNameLength);
-        offset += holderNameLength;
         
-        // Đọc ngày hết hạn (8 bytes - DDMMYYYY) - CÓ THỂ ĐÃ MÃ HÓA nếu encrypted = true
-        Util.arrayCopy(buffer, offset, expiryDate, (short)0, AppletConstants.EXPIRY_DATE_LENGTH);
+        // Đọc tên - CÓ THỂ ĐÃ MÃ HÓA
+        Util.arrayCopy(data, offset, holderName, (short)0, nameLength);
+        offset += nameLength;
+        if (flag == AppletConstants.CARD_INFO_EXTENDED) {
+            offset++; // EXPIRY_LENGTH
+        }
+        
+        // Đọc ngày hết hạn - CÓ THỂ ĐÃ MÃ HÓA
+        Util.arrayCopy(data, offset, expiryDate, (short)0, expLength);
+        
+        holderNameLength = nameLength;
+        expiryLength = expLength;
+        format = flag;
     }
     
     /**
-     * Lấy thông tin thẻ
-     * Response: [ENCRYPTED_FLAG (1 byte)] [CARD_ID_PLAINTEXT][NAME_LENGTH][NAME][EXPIRY_DATE][NUM_BOOKS]
-     * Nếu ENCRYPTED_FLAG = 1: Card ID là plaintext, Name và Expiry đã được mã hóa
-     * 
-     * @param apdu APDU command
-     * @param numBorrowedBooks Số lượng sách đang mượn (từ BookManager)
+     * [NEW] Kiểm tra độ dài bản ghi card info, không ghi gì vào thẻ
      */
-    public void getCardInfo(APDU apdu, byte numBorrowedBooks) {
-        byte[] buffer = apdu.getBuffer();
-        short offset = 0;
+    private static void checkCardInfo(byte[] data, short offset, short length) {
+        short end = (short)(offset + length);
+        if (length < (short)(1 + AppletConstants.CARD_ID_LENGTH + 1)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        byte flag = data[offset++];
+        offset += AppletConstants.CARD_ID_LENGTH;   // Card ID
         
-        // Encrypted flag
-        buffer[offset++] = encrypted ? (byte)0x01 : (byte)0x00;
+        short nameLength;
+        byte expLength;
+        if (flag == AppletConstants.CARD_INFO_EXTENDED) {
+            // Độ dài tên 2 byte
+            if ((short)(offset + 2) > end) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            nameLength = Util.getShort(data, offset);
+            offset += 2;
+            if (nameLength < 0 || nameLength > AppletConstants.NAME_EXT_MAX_LENGTH
+                    || (short)(offset + nameLength + 1) > end) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            expLength = data[(short)(offset + nameLength)];
+            if (expLength < 0 || expLength > AppletConstants.EXPIRY_EXT_MAX_LENGTH
+                    || (short)(offset + nameLength + 1 + expLength) > end) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+        } else {
+            // Format cũ: độ dài tên 1 byte, expiry cố định 8 bytes
+            nameLength = (short)(data[offset++] & 0xFF);
+            if (nameLength > AppletConstants.NAME_MAX_LENGTH
+                    || (short)(offset + nameLength + AppletConstants.EXPIRY_DATE_LENGTH) > end) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+        }
+    }
+    
+    /**
+     * Ghi thông tin thẻ vào buffer (dùng chung cho GET_CARD_INFO và Session Snapshot)
+     * Format cũ: [FLAG (1 byte)] [CARD_ID_PLAINTEXT][NAME_LENGTH (1)][NAME][EXPIRY_DATE (8)]
+     * Format mở rộng: [FLAG = 0x02] [CARD_ID][NAME_LENGTH (2)][NAME][EXPIRY_LENGTH (1)][EXPIRY]
+     *
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writeCardInfo(byte[] buffer, short offset) {
+        // Format flag
+        buffer[offset++] = format;
         
         // Card ID (LUÔN LÀ PLAINTEXT)
         Util.arrayCopy(cardId, (short)0, buffer, offset, AppletConstants.CARD_ID_LENGTH);
         offset += AppletConstants.CARD_ID_LENGTH;
         
-        // Name (CÓ THỂ ĐÃ MÃ HÓA nếu encrypted = true)
-        buffer[offset++] = holderNameLength;
+        // Name (CÓ THỂ ĐÃ MÃ HÓA)
+        if (format == AppletConstants.CARD_INFO_EXTENDED) {
+            offset = Util.setShort(buffer, offset, holderNameLength);
+        } else {
+            buffer[offset++] = (byte)holderNameLength;
+        }
         Util.arrayCopy(holderName, (short)0, buffer, offset, holderNameLength);
         offset += holderNameLength;
         
-        // Expiry Date (CÓ THỂ ĐÃ MÃ HÓA nếu encrypted = true)
-        Util.arrayCopy(expiryDate, (short)0, buffer, offset, AppletConstants.EXPIRY_DATE_LENGTH);
-        offset += AppletConstants.EXPIRY_DATE_LENGTH;
-        
-        // Number of borrowed books
-        buffer[offset++] = numBorrowedBooks;
+        // Expiry Date (CÓ THỂ ĐÃ MÃ HÓA)
+        if (format == AppletConstants.CARD_INFO_EXTENDED) {
+            buffer[offset++] = expiryLength;
+        }
+        Util.arrayCopy(expiryDate, (short)0, buffer, offset, expiryLength);
+        offset += expiryLength;
         
-        apdu.setOutgoingAndSend((short)0, offset);
+        return offset;
     }
     
     /**
-     * Kiểm tra thẻ đã được khởi tạo chưa
+     * Độ dài dữ liệu mà writeCardInfo sẽ ghi
+     */
+    public short getCardInfoLength() {
+        short length = (short)(1 + AppletConstants.CARD_ID_LENGTH + holderNameLength + expiryLength);
+        return format == AppletConstants.CARD_INFO_EXTENDED ? (short)(length + 3) : (short)(length + 1);
+    }
+    
+    /**
+     * [NEW] Ghi trạng thái EEPROM: [RECORD_LENGTH (2)] [bản ghi như writeCardInfo]
+     * 
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writeState(byte[] buffer, short offset) {
+        short end = writeCardInfo(buffer, (short)(offset + 2));
+        Util.setShort(buffer, offset, (short)(end - offset - 2));
+        return end;
+    }
+    
+    /**
+     * [NEW] Khôi phục trạng thái từ writeState
+     * 
+     * @return offset sau dữ liệu vừa đọc
+     */
+    public short readState(byte[] buffer, short offset) {
+        short length = Util.getShort(buffer, offset);
+        offset += 2;
+        parseCardInfo(buffer, offset, length);
+        return (short)(offset + length);
+    }
+    
+    /**
+     * [NEW] Kiểm tra và bỏ qua bản ghi writeState (snapshot được kiểm tra hết trước khi nạp)
      * 
+     * @return offset sau bản ghi
+     */
+    public short skipState(byte[] buffer, short offset, short end) {
+        if ((short)(offset + 2) > end) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short length = Util.getShort(buffer, offset);
+        offset += 2;
+        if (length < 0 || (short)(offset + length) > end) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        checkCardInfo(buffer, offset, length);
+        return (short)(offset + length);
+    }
+    
+    /**
+     * Kiểm tra thẻ đã được khởi tạo chưa
+     *
      * @return true nếu thẻ đã có thông tin
      */
     public boolean isCardInitialized() {
         return holderNameLength > 0;
     }
 }
-
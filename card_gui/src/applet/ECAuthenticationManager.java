@@ -0,0 +1,287 @@
+package applet;
+
+import javacard.framework.*;
+import javacard.security.*;
+
+/**
+ * [NEW] Module xác thực ECDSA P-256 (thay thế RSA-1024 cho challenge-response)
+ * Sinh khóa và ký nhanh hơn RSA nhiều lần, public key 65 bytes, chữ ký DER tối đa 72 bytes.
+ * Khóa và Signature tạo một lần lúc cài applet; genKeyPair ghi lại vào chính các khóa đó.
+ */
+public class ECAuthenticationManager {
+    
+    // Tham số miền secp256r1 (NIST P-256), K = 1
+    private static final byte[] P256_P = {
+        (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x01,
+        (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+        (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+        (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF
+    };
+    private static final byte[] P256_A = {
+        (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x01,
+        (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+        (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+        (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFC
+    };
+    private static final byte[] P256_B = {
+        (byte)0x5A, (byte)0xC6, (byte)0x35, (byte)0xD8, (byte)0xAA, (byte)0x3A, (byte)0x93, (byte)0xE7,
+        (byte)0xB3, (byte)0xEB, (byte)0xBD, (byte)0x55, (byte)0x76, (byte)0x98, (byte)0x86, (byte)0xBC,
+        (byte)0x65, (byte)0x1D, (byte)0x06, (byte)0xB0, (byte)0xCC, (byte)0x53, (byte)0xB0, (byte)0xF6,
+        (byte)0x3B, (byte)0xCE, (byte)0x3C, (byte)0x3E, (byte)0x27, (byte)0xD2, (byte)0x60, (byte)0x4B
+    };
+    private static final byte[] P256_G = {
+        (byte)0x04, (byte)0x6B, (byte)0x17, (byte)0xD1, (byte)0xF2, (byte)0xE1, (byte)0x2C, (byte)0x42,
+        (byte)0x47, (byte)0xF8, (byte)0xBC, (byte)0xE6, (byte)0xE5, (byte)0x63, (byte)0xA4, (byte)0x40,
+        (byte)0xF2, (byte)0x77, (byte)0x03, (byte)0x7D, (byte)0x81, (byte)0x2D, (byte)0xEB, (byte)0x33,
+        (byte)0xA0, (byte)0xF4, (byte)0xA1, (byte)0x39, (byte)0x45, (byte)0xD8, (byte)0x98, (byte)0xC2,
+        (byte)0x96, (byte)0x4F, (byte)0xE3, (byte)0x42, (byte)0xE2, (byte)0xFE, (byte)0x1A, (byte)0x7F,
+        (byte)0x9B, (byte)0x8E, (byte)0xE7, (byte)0xEB, (byte)0x4A, (byte)0x7C, (byte)0x0F, (byte)0x9E,
+        (byte)0x16, (byte)0x2B, (byte)0xCE, (byte)0x33, (byte)0x57, (byte)0x6B, (byte)0x31, (byte)0x5E,
+        (byte)0xCE, (byte)0xCB, (byte)0xB6, (byte)0x40, (byte)0x68, (byte)0x37, (byte)0xBF, (byte)0x51,
+        (byte)0xF5
+    };
+    private static final byte[] P256_N = {
+        (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+        (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+        (byte)0xBC, (byte)0xE6, (byte)0xFA, (byte)0xAD, (byte)0xA7, (byte)0x17, (byte)0x9E, (byte)0x84,
+        (byte)0xF3, (byte)0xB9, (byte)0xCA, (byte)0xC2, (byte)0xFC, (byte)0x63, (byte)0x25, (byte)0x51
+    };
+    
+    private ECPrivateKey privateKey;
+    private ECPublicKey publicKey;
+    private KeyPair keyPair;
+    private Signature ecdsa;            // ALG_ECDSA_SHA_256 (null nếu thẻ không hỗ trợ)
+    private KeyAgreement ecdh;          // [NEW] ECDH cho Secure Messaging (null nếu không hỗ trợ)
+    private boolean ecdhPlain;          // true: ALG_EC_SVDP_DH_PLAIN (X thô) -> tự băm SHA-1
+    private MessageDigest sha1;
+    private boolean keyPairGenerated;
+    
+    /**
+     * Khởi tạo ECAuthenticationManager
+     */
+    public ECAuthenticationManager() {
+        keyPairGenerated = false;
+        try {
+            privateKey = (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, AppletConstants.EC_KEY_SIZE, false);
+            publicKey = (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, AppletConstants.EC_KEY_SIZE, false);
+            setCurve(privateKey);
+            setCurve(publicKey);
+            keyPair = new KeyPair(publicKey, privateKey);
+            ecdsa = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+        } catch (CryptoException e) {
+            // Thẻ không hỗ trợ EC -> các lệnh EC trả về SW_FUNC_NOT_SUPPORTED
+            keyPair = null;
+            ecdsa = null;
+        }
+        try {
+            ecdh = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN, false);
+            sha1 = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
+            ecdhPlain = true;
+        } catch (CryptoException e) {
+            // ALG_EC_SVDP_DH: thẻ trả sẵn SHA-1(X)
+            try {
+                ecdh = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH, false);
+            } catch (CryptoException e2) {
+                ecdh = null;
+            }
+            ecdhPlain = false;
+        }
+    }
+    
+    private static void setCurve(ECKey key) {
+        key.setFieldFP(P256_P, (short)0, (short)P256_P.length);
+        key.setA(P256_A, (short)0, (short)P256_A.length);
+        key.setB(P256_B, (short)0, (short)P256_B.length);
+        key.setG(P256_G, (short)0, (short)P256_G.length);
+        key.setR(P256_N, (short)0, (short)P256_N.length);
+        key.setK((short)1);
+    }
+    
+    private void checkSupported() {
+        if (keyPair == null || ecdsa == null) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+    }
+    
+    /**
+     * Tạo cặp khóa EC P-256
+     * Output: [PUBLIC_KEY W (65 bytes: 04 || X || Y)]
+     * 
+     * @param apdu APDU command
+     */
+    public void generateKeyPair(APDU apdu) {
+        checkSupported();
+        if (keyPairGenerated) {
+            ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+        }
+        
+        try {
+            keyPair.genKeyPair();
+        } catch (CryptoException e) {
+            ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        }
+        keyPairGenerated = true;
+        
+        byte[] buffer = apdu.getBuffer();
+        apdu.setOutgoingAndSend((short)0, writePublicKey(buffer, (short)0));
+    }
+    
+    /**
+     * Lấy Public Key (sau khi đã tạo)
+     * Output: [PUBLIC_KEY W (65 bytes)]
+     * 
+     * @param apdu APDU command
+     */
+    public void getPublicKey(APDU apdu) {
+        if (!keyPairGenerated) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        apdu.setOutgoingAndSend((short)0, writePublicKey(buffer, (short)0));
+    }
+    
+    /**
+     * Ghi Public Key (điểm W không nén) vào buffer
+     * 
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writePublicKey(byte[] buffer, short offset) {
+        return (short)(offset + publicKey.getW(buffer, offset));
+    }
+    
+    /**
+     * Ký challenge với Private Key (ECDSA SHA-256)
+     * Input: [CHALLENGE (16 bytes)]
+     * Output: [SIGNATURE (DER, tối đa 72 bytes)]
+     * 
+     * @param apdu APDU command
+     */
+    public void signChallenge(APDU apdu) {
+        checkSupported();
+        if (!keyPairGenerated) {
+            ISOException.throwIt((short)0x6A00); // Keypair not generated
+        }
+        
+        byte[] buffer = apdu.getBuffer();
+        apdu.setIncomingAndReceive();
+        if (apdu.getIncomingLength() != AppletConstants.RSA_CHALLENGE_SIZE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        short signatureLen = 0;
+        try {
+            ecdsa.init(privateKey, Signature.MODE_SIGN);
+            signatureLen = ecdsa.sign(buffer, ISO7816.OFFSET_CDATA, AppletConstants.RSA_CHALLENGE_SIZE, buffer, (short)0);
+        } catch (CryptoException e) {
+            ISOException.throwIt((short)0x6A13); // Sign failed
+        }
+        apdu.setOutgoingAndSend((short)0, signatureLen);
+    }
+    
+    /**
+     * [NEW] ECDH với khóa tạm của server (secret cho Secure Messaging)
+     * Input: [W tạm (65 bytes)]. Ghi SHA-1(X) (20 bytes) vào out
+     * 
+     * @return độ dài secret
+     */
+    public short deriveSecret(byte[] in, short inOffset, short inLength, byte[] out, short outOffset) {
+        if (ecdh == null) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        if (!keyPairGenerated) {
+            ISOException.throwIt((short)0x6A00); // Keypair not generated
+        }
+        if (inLength != AppletConstants.EC_PUBLIC_KEY_SIZE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        short len = 0;
+        try {
+            ecdh.init(privateKey);
+            len = ecdh.generateSecret(in, inOffset, inLength, out, outOffset);
+            if (ecdhPlain) {
+                len = sha1.doFinal(out, outOffset, len, out, outOffset);
+            }
+        } catch (CryptoException e) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA); // Điểm không hợp lệ
+        }
+        return len;
+    }
+    
+    /**
+     * Kiểm tra đã tạo khóa chưa
+     */
+    public boolean isKeyPairGenerated() {
+        return keyPairGenerated;
+    }
+    
+    /**
+     * Ghi trạng thái EEPROM:
+     * [HAS_KEY (1)] [W_LEN (2)] [W] [S_LEN (2)] [S]
+     * 
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writeState(byte[] buffer, short offset) {
+        if (!keyPairGenerated) {
+            buffer[offset++] = (byte)0x00;
+            return offset;
+        }
+        buffer[offset++] = (byte)0x01;
+        short len = publicKey.getW(buffer, (short)(offset + 2));
+        offset = Util.setShort(buffer, offset, len);
+        offset += len;
+        len = privateKey.getS(buffer, (short)(offset + 2));
+        offset = Util.setShort(buffer, offset, len);
+        offset += len;
+        return offset;
+    }
+    
+    /**
+     * [NEW] Kiểm tra và bỏ qua bản ghi writeState: W 65 bytes, S tối đa 32 bytes
+     * 
+     * @return offset sau bản ghi
+     */
+    public short skipState(byte[] buffer, short offset, short end) {
+        if (buffer[offset++] != (byte)0x01) {
+            return offset;
+        }
+        short wLen = Util.getShort(buffer, offset);
+        offset += 2;
+        if (wLen != AppletConstants.EC_PUBLIC_KEY_SIZE || (short)(offset + wLen + 2) > end) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        offset += wLen;
+        short sLen = Util.getShort(buffer, offset);
+        offset += 2;
+        if (sLen <= 0 || sLen > (short)(AppletConstants.EC_KEY_SIZE / 8)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return (short)(offset + sLen);
+    }
+    
+    /**
+     * Khôi phục keypair từ writeState
+     * 
+     * @return offset sau dữ liệu vừa đọc
+     */
+    public short readState(byte[] buffer, short offset) {
+        if (buffer[offset++] != (byte)0x01) {
+            keyPairGenerated = false;
+            return offset;
+        }
+        short wLen = Util.getShort(buffer, offset);
+        short wOffset = (short)(offset + 2);
+        offset = (short)(wOffset + wLen);
+        short sLen = Util.getShort(buffer, offset);
+        offset += 2;
+        if (keyPair == null) {
+            keyPairGenerated = false;   // Thẻ không hỗ trợ EC: bỏ qua khóa
+            return (short)(offset + sLen);
+        }
+        publicKey.setW(buffer, wOffset, wLen);
+        privateKey.setS(buffer, offset, sLen);
+        keyPairGenerated = true;
+        return (short)(offset + sLen);
+    }
+}
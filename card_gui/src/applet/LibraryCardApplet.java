@@ -1,19 +1,32 @@
 package applet;
 
 import javacard.framework.*;
+import javacardx.apdu.ExtendedLength;
 
 /**
  * Applet Thẻ Thư Viện - Version Modular
  * Router chuyển các lệnh đến module tương ứng
  */
-public class LibraryCardApplet extends Applet {
+public class LibraryCardApplet extends Applet implements ExtendedLength {
+
+    // [NEW] Trạng thái I/O (transient): command chaining và response chờ GET RESPONSE
+    private static final byte CHAIN_LENGTH = 0;
+    private static final byte CHAIN_INS = 1;
+    private static final byte RESP_OFFSET = 2;
+    private static final byte RESP_REMAINING = 3;
 
     private PinManager pinManager;
     private CardInfoManager cardInfoManager;
     private BookManager bookManager;
     private RSAAuthenticationManager rsaAuthManager;
+    private ECAuthenticationManager ecAuthManager; // [NEW] ECDSA P-256 challenge-response
     private AESEncryptionManager aesEncryptionManager;
+    private BalanceManager balanceManager; // [NEW] Số dư cộng/trừ trực tiếp trên thẻ
+    private SecureChannelManager secureChannel; // [NEW] Phiên AES-CMAC cho lệnh nhạy cảm
     private byte[] encryptedBalance; // [NEW] 16 bytes for AES encrypted balance
+    private byte[] ioBuffer; // [NEW] Gom dữ liệu chaining / response dài (CLEAR_ON_DESELECT)
+    private short[] ioState;
+    private byte[] stateKey; // [NEW] Khóa snapshot của lần cài đặt này (null -> không export/import được)
 
     protected LibraryCardApplet() {
         // Constructor rỗng
@@ -26,8 +39,14 @@ public class LibraryCardApplet extends Applet {
         applet.cardInfoManager = new CardInfoManager();
         applet.bookManager = new BookManager();
         applet.rsaAuthManager = new RSAAuthenticationManager();
+        applet.ecAuthManager = new ECAuthenticationManager();
         applet.aesEncryptionManager = new AESEncryptionManager();
+        applet.balanceManager = new BalanceManager();
+        applet.secureChannel = new SecureChannelManager();
         applet.encryptedBalance = new byte[16]; // [NEW] Initialize balance storage
+        applet.ioBuffer = JCSystem.makeTransientByteArray(AppletConstants.IO_BUFFER_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        applet.ioState = JCSystem.makeTransientShortArray((short)4, JCSystem.CLEAR_ON_DESELECT);
+        applet.stateKey = readStateKey(bArray, bOffset, bLength);
 
         if (bLength == 0 || bArray == null || bOffset >= bArray.length) {
             applet.register();
@@ -41,6 +60,35 @@ public class LibraryCardApplet extends Applet {
         }
     }
 
+    // [NEW] Khóa snapshot trong tham số cài đặt GP: [LEN][AID] [LEN][PRIVILEGES] [LEN][PARAMS]
+    // PARAMS phải dài đúng STATE_KEY_LENGTH; thiếu -> thẻ này không cho export/import trạng thái
+    private static byte[] readStateKey(byte[] bArray, short bOffset, byte bLength) {
+        if (bArray == null || bLength <= 0) {
+            return null;
+        }
+        short end = (short)(bOffset + (bLength & 0xFF));
+        short offset = bOffset;
+        for (byte field = 0; field < 2; field++) {     // bỏ qua AID và privileges
+            if (offset >= end) {
+                return null;
+            }
+            offset += (short)(1 + (bArray[offset] & 0xFF));
+        }
+        if (offset >= end || bArray[offset] != (byte)AppletConstants.STATE_KEY_LENGTH
+                || (short)(offset + 1 + AppletConstants.STATE_KEY_LENGTH) > end) {
+            return null;
+        }
+        byte[] key = new byte[AppletConstants.STATE_KEY_LENGTH];
+        Util.arrayCopy(bArray, (short)(offset + 1), key, (short)0, AppletConstants.STATE_KEY_LENGTH);
+        return key;
+    }
+
+    // [NEW] Thẻ bị deselect -> phiên kết thúc (ioBuffer/ioState là CLEAR_ON_DESELECT)
+    public void deselect() {
+        pinManager.resetSession();
+        secureChannel.closeSession();
+    }
+
     public void process(APDU apdu) {
         if (selectingApplet()) {
             return;
@@ -50,6 +98,23 @@ public class LibraryCardApplet extends Applet {
         byte ins = buffer[ISO7816.OFFSET_INS];
         byte p1 = buffer[ISO7816.OFFSET_P1];
 
+        // [NEW] GET RESPONSE: chỉ khi còn dữ liệu chờ gửi (mã 0xC0 trùng INS_AES_SET_KEY)
+        if (ins == AppletConstants.INS_GET_RESPONSE && ioState[RESP_REMAINING] > 0) {
+            sendPendingResponse(apdu);
+            return;
+        }
+        ioState[RESP_REMAINING] = 0;
+
+        // [NEW] Command chaining: chỉ SET_CARD_INFO / IMPORT_STATE, các block phải cùng INS
+        boolean chained = apdu.isCommandChainingCLA();
+        if (ioState[CHAIN_LENGTH] > 0 && ins != (byte)ioState[CHAIN_INS]) {
+            ioState[CHAIN_LENGTH] = 0;
+            ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+        }
+        if (chained && ins != AppletConstants.INS_SET_CARD_INFO && ins != AppletConstants.INS_IMPORT_STATE) {
+            ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+        }
+
         // Support legacy format: INS=0x31 with P1 to distinguish PIN commands
         // Format: 80 31 P1 00 Lc [Data]
         // P1: 0x01=VERIFY, 0x02=CHANGE, 0x03=CREATE, 0x04=RESET
@@ -94,22 +159,42 @@ public class LibraryCardApplet extends Applet {
                 break;
 
             // Card Info Management
-            case AppletConstants.INS_SET_CARD_INFO:
-                cardInfoManager.setCardInfo(apdu, pinManager);
+            case AppletConstants.INS_SET_CARD_INFO: {
+                // [UPDATED] Nhận qua APDU thường, extended-length hoặc command chaining
+                short length = receiveSecureData(apdu, chained);
+                if (length >= 0) {
+                    cardInfoManager.setCardInfo(ioBuffer, (short)0, length, pinManager);
+                }
+                break;
+            }
+            case AppletConstants.INS_GET_CARD_INFO: {
+                // Response: [CARD_INFO] [NUM_BOOKS (1)]
+                short end = cardInfoManager.writeCardInfo(ioBuffer, (short)0);
+                ioBuffer[end++] = bookManager.getNumBorrowedBooks();
+                sendResponse(apdu, end);
                 break;
-            case AppletConstants.INS_GET_CARD_INFO:
-                cardInfoManager.getCardInfo(apdu, bookManager.getNumBorrowedBooks());
+            }
+            case AppletConstants.INS_GET_SESSION_SNAPSHOT: // [NEW] Gộp các lệnh đọc sau đăng nhập
+                getSessionSnapshot(apdu, p1);
+                break;
+            case AppletConstants.INS_RESET_SESSION: // [NEW] Đăng xuất nhưng giữ applet đã cài
+                pinManager.resetSession();
+                secureChannel.closeSession();
+                ioState[CHAIN_LENGTH] = 0;
+                break;
+            case AppletConstants.INS_OPEN_SECURE_SESSION: // [NEW] Một phép toán RSA/EC -> khóa phiên AES-CMAC
+                secureChannel.openSession(apdu, ioBuffer, receiveCommandData(apdu, false), rsaAuthManager, ecAuthManager);
                 break;
 
             // Book Management
             case AppletConstants.INS_ADD_BORROWED_BOOK:
-                bookManager.addBorrowedBook(apdu, pinManager);
+                bookManager.addBorrowedBook(ioBuffer, (short)0, receiveSecureData(apdu, false), pinManager);
                 break;
             case AppletConstants.INS_GET_BORROWED_BOOKS:
-                bookManager.getBorrowedBooks(apdu);
+                sendResponse(apdu, bookManager.writeBorrowedBooks(ioBuffer, (short)0));
                 break;
             case AppletConstants.INS_RETURN_BOOK:
-                bookManager.returnBook(apdu, pinManager);
+                bookManager.returnBook(ioBuffer, (short)0, receiveSecureData(apdu, false), pinManager);
                 break;
 
             // RSA Authentication
@@ -156,9 +241,23 @@ public class LibraryCardApplet extends Applet {
                     ISOException.throwIt(ISO7816.SW_UNKNOWN);
                 }
                 break;
+            // [NEW] EC Authentication
+            case AppletConstants.INS_EC_GENERATE_KEYPAIR:
+                ecAuthManager.generateKeyPair(apdu);
+                break;
+            case AppletConstants.INS_EC_GET_PUBLIC_KEY:
+                ecAuthManager.getPublicKey(apdu);
+                break;
+            case AppletConstants.INS_EC_SIGN_CHALLENGE:
+                ecAuthManager.signChallenge(apdu);
+                break;
             // AES Encryption
             case AppletConstants.INS_AES_SET_KEY:
-                aesEncryptionManager.setAESKey(apdu, pinManager);
+                aesEncryptionManager.setAESKey(apdu, ioBuffer, (short)0, receiveSecureData(apdu, false), pinManager);
+                break;
+            case AppletConstants.INS_AES_GET_KEY: // [NEW] Chỉ trong phiên Secure Messaging
+                secureChannel.unwrap(buffer, ioBuffer, receiveCommandData(apdu, false), true);
+                aesEncryptionManager.getAESKey(apdu, pinManager);
                 break;
             case AppletConstants.INS_AES_ENCRYPT:
                 aesEncryptionManager.encrypt(apdu);
@@ -167,12 +266,27 @@ public class LibraryCardApplet extends Applet {
                 aesEncryptionManager.decrypt(apdu);
                 break;
 
+            // [NEW] EEPROM state snapshot (khởi động nhanh thẻ trong pool)
+            case AppletConstants.INS_EXPORT_STATE:
+                exportState(apdu);
+                break;
+            case AppletConstants.INS_IMPORT_STATE: {
+                short length = receiveCommandData(apdu, chained);
+                if (length >= 0) {
+                    importState(apdu, length);
+                }
+                break;
+            }
+
             // [NEW] Balance Management (Simple inline implementation)
             case AppletConstants.INS_GET_BALANCE:
                 getBalance(apdu);
                 break;
             case AppletConstants.INS_UPDATE_BALANCE:
-                updateBalance(apdu);
+                updateBalance(receiveSecureData(apdu, false));
+                break;
+            case AppletConstants.INS_ADJUST_BALANCE:
+                balanceManager.adjustBalance(apdu, ioBuffer, (short)0, receiveSecureData(apdu, false), pinManager);
                 break;
 
             default:
@@ -187,20 +301,235 @@ public class LibraryCardApplet extends Applet {
         apdu.setOutgoingAndSend((short)0, (short)16);
     }
 
+    // [NEW] Session Snapshot: card info, balance, books, PIN tries, RSA trong một response TLV
+    // P1 = mask SNAPSHOT_* (0x00 = SNAPSHOT_DEFAULT). Response > 256 bytes được trả tiếp qua GET RESPONSE
+    private void getSessionSnapshot(APDU apdu, byte mask) {
+        if (mask == 0) {
+            mask = AppletConstants.SNAPSHOT_DEFAULT;
+        }
+        byte[] buffer = ioBuffer;
+        short offset = 0;
+
+        if ((mask & AppletConstants.SNAPSHOT_CARD_INFO) != 0) {
+            offset = writeTlvHeader(buffer, offset, AppletConstants.TAG_CARD_INFO, cardInfoManager.getCardInfoLength());
+            offset = cardInfoManager.writeCardInfo(buffer, offset);
+        }
+        if ((mask & AppletConstants.SNAPSHOT_BALANCE) != 0) {
+            buffer[offset++] = AppletConstants.TAG_BALANCE;
+            buffer[offset++] = (byte)16;
+            offset = Util.arrayCopy(encryptedBalance, (short)0, buffer, offset, (short)16);
+            buffer[offset++] = AppletConstants.TAG_BALANCE_VALUE;
+            buffer[offset++] = (byte)(AppletConstants.BALANCE_LENGTH + AppletConstants.BALANCE_COUNTER_LENGTH);
+            offset = balanceManager.writeBalance(buffer, offset);
+        }
+        if ((mask & AppletConstants.SNAPSHOT_BOOKS) != 0) {
+            offset = writeTlvHeader(buffer, offset, AppletConstants.TAG_BORROWED_BOOKS, bookManager.getBorrowedBooksLength());
+            offset = bookManager.writeBorrowedBooks(buffer, offset);
+        }
+        if ((mask & AppletConstants.SNAPSHOT_PIN_TRIES) != 0) {
+            buffer[offset++] = AppletConstants.TAG_PIN_TRIES;
+            buffer[offset++] = (byte)1;
+            buffer[offset++] = pinManager.getTriesRemaining();
+        }
+
+        boolean hasKey = rsaAuthManager != null && rsaAuthManager.isKeyPairGenerated();
+        buffer[offset++] = AppletConstants.TAG_RSA_STATUS;
+        buffer[offset++] = (byte)1;
+        buffer[offset++] = hasKey ? (byte)0x01 : (byte)0x00;
+
+        if (hasKey && (mask & AppletConstants.SNAPSHOT_RSA_PUBLIC_KEY) != 0) {
+            offset = writeTlvHeader(buffer, offset, AppletConstants.TAG_RSA_PUBLIC_KEY,
+                    (short)(AppletConstants.RSA_MODULUS_SIZE + AppletConstants.RSA_EXPONENT_SIZE));
+            offset = rsaAuthManager.writePublicKey(buffer, offset);
+        }
+
+        boolean hasEcKey = ecAuthManager.isKeyPairGenerated();
+        buffer[offset++] = AppletConstants.TAG_EC_STATUS;
+        buffer[offset++] = (byte)1;
+        buffer[offset++] = hasEcKey ? (byte)0x01 : (byte)0x00;
+
+        if (hasEcKey && (mask & AppletConstants.SNAPSHOT_EC_PUBLIC_KEY) != 0) {
+            buffer[offset++] = AppletConstants.TAG_EC_PUBLIC_KEY;
+            buffer[offset++] = (byte)AppletConstants.EC_PUBLIC_KEY_SIZE;
+            offset = ecAuthManager.writePublicKey(buffer, offset);
+        }
+
+        sendResponse(apdu, offset);
+    }
+
+    // [NEW] Xuất trạng thái persistent của applet (PIN, card info, sách, số dư, RSA, AES)
+    // Input: [STATE_KEY]. Output: [VERSION (1)] [PIN] [CARD_INFO] [BOOKS] [BALANCE (16)] [RSA] [AES] [BALANCE_VALUE (12)] [EC]
+    private void exportState(APDU apdu) {
+        short length = receiveCommandData(apdu, false);
+        checkStateKey(length);
+
+        short offset = 0;
+        ioBuffer[offset++] = AppletConstants.STATE_VERSION;
+        offset = pinManager.writeState(ioBuffer, offset);
+        offset = cardInfoManager.writeState(ioBuffer, offset);
+        offset = bookManager.writeBorrowedBooks(ioBuffer, offset);
+        offset = Util.arrayCopy(encryptedBalance, (short)0, ioBuffer, offset, (short)16);
+        offset = rsaAuthManager.writeState(ioBuffer, offset);
+        offset = aesEncryptionManager.writeState(ioBuffer, offset);
+        offset = balanceManager.writeState(ioBuffer, offset);
+        offset = ecAuthManager.writeState(ioBuffer, offset);
+        sendResponse(apdu, offset);
+    }
+
+    // [NEW] Nạp lại trạng thái từ exportState. Input: [STATE_KEY] [STATE]
+    // Nhận cả bản 0x01 (chưa có BALANCE_VALUE -> số dư trên thẻ = 0) và 0x02 (chưa có khóa EC)
+    // [UPDATED] Kiểm tra hết snapshot trước rồi mới ghi (trong transaction): blob hỏng không để lại thẻ nạp dở
+    private void importState(APDU apdu, short length) {
+        checkStateKey(length);
+
+        short start = AppletConstants.STATE_KEY_LENGTH;
+        if (start >= length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        byte version = ioBuffer[start];
+        if (version != AppletConstants.STATE_VERSION && version != AppletConstants.STATE_VERSION_V2
+                && version != AppletConstants.STATE_VERSION_V1) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        // 1. Kiểm tra: độ dài từng phần, kích thước khóa, tổng độ dài
+        short offset = (short)(start + 1);
+        offset = checkStateOffset(pinManager.skipState(ioBuffer, offset), length);
+        offset = checkStateOffset(cardInfoManager.skipState(ioBuffer, offset, length), length);
+        offset = checkStateOffset(bookManager.skipBorrowedBooks(ioBuffer, offset), length);
+        offset = checkStateOffset((short)(offset + 16), length);
+        offset = checkStateOffset(rsaAuthManager.skipState(ioBuffer, offset, length), length);
+        offset = checkStateOffset(aesEncryptionManager.skipState(ioBuffer, offset), length);
+        if (version != AppletConstants.STATE_VERSION_V1) {
+            offset = checkStateOffset(balanceManager.skipState(ioBuffer, offset), length);
+        }
+        if (version == AppletConstants.STATE_VERSION) {
+            offset = checkStateOffset(ecAuthManager.skipState(ioBuffer, offset, length), length);
+        }
+        if (offset != length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // 2. Nạp
+        JCSystem.beginTransaction();
+        offset = (short)(start + 1);
+        offset = pinManager.readState(ioBuffer, offset, apdu.getBuffer(), (short)0);
+        offset = cardInfoManager.readState(ioBuffer, offset);
+        offset = bookManager.readBorrowedBooks(ioBuffer, offset);
+        offset = Util.arrayCopy(ioBuffer, offset, encryptedBalance, (short)0, (short)16);
+        offset = rsaAuthManager.readState(ioBuffer, offset);
+        offset = aesEncryptionManager.readState(ioBuffer, offset);
+        if (version != AppletConstants.STATE_VERSION_V1) {
+            offset = balanceManager.readState(ioBuffer, offset);
+        }
+        if (version == AppletConstants.STATE_VERSION) {
+            ecAuthManager.readState(ioBuffer, offset);
+        }
+        JCSystem.commitTransaction();
+    }
+
+    private static short checkStateOffset(short offset, short length) {
+        if (offset < 0 || offset > length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        return offset;
+    }
+
+    // [UPDATED] Khóa snapshot của lần cài đặt (host sinh ngẫu nhiên), không phải hằng số trong mã
+    private void checkStateKey(short length) {
+        if (stateKey == null) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (length < AppletConstants.STATE_KEY_LENGTH
+                || Util.arrayCompare(ioBuffer, (short)0, stateKey, (short)0, AppletConstants.STATE_KEY_LENGTH) != 0) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+    }
+
+    // [NEW] TLV header: [TAG][LEN] / [TAG][0x81][LEN] / [TAG][0x82][LEN_HI][LEN_LO]
+    private short writeTlvHeader(byte[] buffer, short offset, byte tag, short length) {
+        buffer[offset++] = tag;
+        if (length > (short)0xFF) {
+            buffer[offset++] = (byte)0x82;
+            return Util.setShort(buffer, offset, length);
+        }
+        if (length > (short)0x7F) {
+            buffer[offset++] = (byte)0x81;
+        }
+        buffer[offset++] = (byte)length;
+        return offset;
+    }
+
+    // [NEW] Nhận dữ liệu lệnh vào ioBuffer (APDU thường / extended-length / command chaining)
+    // Trả về tổng độ dài khi đã nhận đủ, -1 nếu còn chờ block chaining tiếp theo
+    private short receiveCommandData(APDU apdu, boolean chained) {
+        byte[] buffer = apdu.getBuffer();
+        short offset = ioState[CHAIN_LENGTH];
+        short total = apdu.getIncomingLength();
+        if ((short)(offset + total) > AppletConstants.IO_BUFFER_SIZE) {
+            ioState[CHAIN_LENGTH] = 0;
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        short read = apdu.setIncomingAndReceive();
+        short cdata = apdu.getOffsetCdata();
+        while (read > 0) {
+            offset = Util.arrayCopy(buffer, cdata, ioBuffer, offset, read);
+            read = apdu.receiveBytes(cdata);
+        }
+
+        if (chained) {
+            ioState[CHAIN_LENGTH] = offset;
+            ioState[CHAIN_INS] = buffer[ISO7816.OFFSET_INS];
+            return (short)-1;
+        }
+        ioState[CHAIN_LENGTH] = 0;
+        return offset;
+    }
+
+    // [NEW] Nhận dữ liệu lệnh nhạy cảm rồi kiểm tra lớp Secure Messaging (MAC + counter)
+    // Trả về độ dài dữ liệu đã bỏ trailer, -1 nếu còn chờ block chaining tiếp theo
+    private short receiveSecureData(APDU apdu, boolean chained) {
+        short length = receiveCommandData(apdu, chained);
+        if (length < 0) {
+            return length;
+        }
+        return secureChannel.unwrap(apdu.getBuffer(), ioBuffer, length);
+    }
+
+    // [NEW] Gửi response từ ioBuffer; phần còn lại trả về bằng SW 61xx + GET RESPONSE
+    private void sendResponse(APDU apdu, short length) {
+        ioState[RESP_OFFSET] = 0;
+        ioState[RESP_REMAINING] = length;
+        sendPendingResponse(apdu);
+    }
+
+    private void sendPendingResponse(APDU apdu) {
+        short remaining = ioState[RESP_REMAINING];
+        short le = apdu.setOutgoing();
+        short chunk = (le == 0 || le > remaining) ? remaining : le;
+        apdu.setOutgoingLength(chunk);
+        apdu.sendBytesLong(ioBuffer, ioState[RESP_OFFSET], chunk);
+
+        remaining -= chunk;
+        ioState[RESP_OFFSET] += chunk;
+        ioState[RESP_REMAINING] = remaining;
+        if (remaining > 0) {
+            ISOException.throwIt((short)(ISO7816.SW_BYTES_REMAINING_00 | (remaining > (short)0xFF ? 0 : remaining)));
+        }
+    }
+
     // [NEW] Update encrypted balance (requires PIN verification)
-    private void updateBalance(APDU apdu) {
+    // [UPDATED] Dữ liệu đã nằm trong ioBuffer (receiveSecureData)
+    private void updateBalance(short length) {
         if (!pinManager.isPinValidated()) {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
         
-        byte[] buffer = apdu.getBuffer();
-        short lc = (short)(buffer[ISO7816.OFFSET_LC] & 0xFF);
-        
-        if (lc != 16) {
+        if (length != 16) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
         
-        short bytesRead = apdu.setIncomingAndReceive();
-        Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, encryptedBalance, (short)0, (short)16);
+        Util.arrayCopy(ioBuffer, (short)0, encryptedBalance, (short)0, (short)16);
     }
 }
\ No newline at end of file
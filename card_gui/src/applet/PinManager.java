@@ -10,6 +10,8 @@ public class PinManager {
 
     private OwnerPIN pin;
     private byte[] pinSalt; // [NEW] Lưu trữ Salt
+    private byte[] pinHash; // [NEW] Bản sao hash (OwnerPIN không cho đọc lại) - dùng cho state snapshot
+    private boolean pinSet;
 
     /**
      * Khởi tạo PinManager
@@ -17,6 +19,8 @@ public class PinManager {
     public PinManager() {
         pin = new OwnerPIN(AppletConstants.PIN_TRY_LIMIT, AppletConstants.PIN_MAX_SIZE);
         pinSalt = new byte[AppletConstants.SALT_LENGTH];
+        pinHash = new byte[AppletConstants.PIN_MAX_SIZE];
+        pinSet = false;
     }
 
     /**
@@ -65,7 +69,7 @@ public class PinManager {
 
         // 2. Lưu Hash vào OwnerPIN (32 bytes tiếp theo)
         // Lưu ý: PIN_MAX_SIZE đã được tăng lên 32 trong Constants
-        pin.update(buffer, offset, AppletConstants.PIN_MAX_SIZE);
+        updateHash(buffer, offset);
     }
 
     /**
@@ -121,7 +125,7 @@ public class PinManager {
         offset += AppletConstants.SALT_LENGTH;
 
         // 2. Cập nhật Hash mới vào OwnerPIN
-        pin.update(buffer, offset, AppletConstants.PIN_MAX_SIZE);
+        updateHash(buffer, offset);
 
         // Reset trạng thái xác thực sau khi đổi
         pin.resetAndUnblock();
@@ -167,13 +171,91 @@ public class PinManager {
         offset += AppletConstants.SALT_LENGTH;
 
         // 3. Cập nhật Hash mới
-        pin.update(buffer, offset, AppletConstants.PIN_MAX_SIZE);
+        updateHash(buffer, offset);
 
         // Mở khóa và reset bộ đếm
         pin.resetAndUnblock();
     }
 
+    /**
+     * Số lần thử còn lại (dùng cho Session Snapshot)
+     */
+    public byte getTriesRemaining() {
+        return pin.getTriesRemaining();
+    }
+
     public boolean isPinValidated() {
         return pin.isValidated();
     }
+    
+    /**
+     * [NEW] Hủy trạng thái đã xác thực (đăng xuất / deselect), không đụng tới PIN và bộ đếm
+     */
+    public void resetSession() {
+        pin.reset();
+    }
+    
+    public boolean isPinSet() {
+        return pinSet;
+    }
+    
+    private void updateHash(byte[] buffer, short offset) {
+        pin.update(buffer, offset, AppletConstants.PIN_MAX_SIZE);
+        Util.arrayCopy(buffer, offset, pinHash, (short)0, AppletConstants.PIN_MAX_SIZE);
+        pinSet = true;
+    }
+    
+    /**
+     * [NEW] Ghi trạng thái EEPROM: [PIN_SET (1)] [SALT (16)] [HASH (32)] [TRIES (1)]
+     * 
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writeState(byte[] buffer, short offset) {
+        buffer[offset++] = pinSet ? (byte)0x01 : (byte)0x00;
+        offset = Util.arrayCopy(pinSalt, (short)0, buffer, offset, AppletConstants.SALT_LENGTH);
+        offset = Util.arrayCopy(pinHash, (short)0, buffer, offset, AppletConstants.PIN_MAX_SIZE);
+        buffer[offset++] = pin.getTriesRemaining();
+        return offset;
+    }
+    
+    /**
+     * [NEW] Bỏ qua bản ghi writeState (kiểm tra snapshot trước khi nạp)
+     * 
+     * @return offset sau bản ghi
+     */
+    public short skipState(byte[] buffer, short offset) {
+        return (short)(offset + 1 + AppletConstants.SALT_LENGTH + AppletConstants.PIN_MAX_SIZE + 1);
+    }
+    
+    /**
+     * [NEW] Khôi phục trạng thái từ writeState
+     * OwnerPIN không cho đặt bộ đếm trực tiếp: sau update() bộ đếm đầy, nên trừ lại
+     * bằng các lần check() sai (scratch là vùng đệm tạm >= 32 bytes)
+     * 
+     * @return offset sau dữ liệu vừa đọc
+     */
+    public short readState(byte[] buffer, short offset, byte[] scratch, short scratchOffset) {
+        boolean set = buffer[offset++] == (byte)0x01;
+        Util.arrayCopy(buffer, offset, pinSalt, (short)0, AppletConstants.SALT_LENGTH);
+        offset += AppletConstants.SALT_LENGTH;
+        short hashOffset = offset;
+        offset += AppletConstants.PIN_MAX_SIZE;
+        byte tries = buffer[offset++];
+        
+        if (!set) {
+            pinSet = false;
+            return offset;
+        }
+        updateHash(buffer, hashOffset);
+        pin.reset();
+        
+        Util.arrayFillNonAtomic(scratch, scratchOffset, AppletConstants.PIN_MAX_SIZE, (byte)0);
+        if (Util.arrayCompare(scratch, scratchOffset, pinHash, (short)0, AppletConstants.PIN_MAX_SIZE) == 0) {
+            scratch[scratchOffset] = (byte)0xFF;
+        }
+        for (byte i = tries; i < AppletConstants.PIN_TRY_LIMIT; i++) {
+            pin.check(scratch, scratchOffset, AppletConstants.PIN_MAX_SIZE);
+        }
+        return offset;
+    }
 }
\ No newline at end of file
@@ -7,16 +7,35 @@ import javacardx.crypto.Cipher;
 /**
  * Module quản lý xác thực RSA
  * Tạo cặp khóa RSA và ký challenge để xác thực thẻ
+ * [UPDATED] Signature/Cipher/MessageDigest và buffer padding tạo một lần lúc cài applet,
+ * không cấp phát gì thêm trong signChallenge/decrypt
  */
 public class RSAAuthenticationManager {
     
+    // DigestInfo cho SHA-1: 30 21 30 09 06 05 2B 0E 03 02 1A 05 00 04 14
+    private static final byte[] SHA1_DIGEST_INFO = {
+        (byte)0x30, (byte)0x21, (byte)0x30, (byte)0x09, (byte)0x06, (byte)0x05,
+        (byte)0x2B, (byte)0x0E, (byte)0x03, (byte)0x02, (byte)0x1A, (byte)0x05,
+        (byte)0x00, (byte)0x04, (byte)0x14
+    };
+    private static final short SHA1_LENGTH = (short)20;
+    
+    // [UPDATED] Khóa tạo một lần lúc cài applet; genKeyPair / readState ghi giá trị vào chính các khóa này
     private RSAPrivateKey privateKey;
     private RSAPublicKey publicKey;
+    private KeyPair keyPair;
     private boolean keyPairGenerated;
     
     // Lưu public exponent (thường là 65537 = 0x010001)
     private byte[] publicExponent;
     
+    // [NEW] Đối tượng crypto tạo lúc cài đặt (null nếu thẻ không hỗ trợ thuật toán)
+    private Signature rsaSignature;     // ALG_RSA_SHA_PKCS1
+    private Cipher rsaNoPadCipher;      // ALG_RSA_NOPAD (dự phòng: tự padding)
+    private Cipher rsaPkcs1Cipher;      // ALG_RSA_PKCS1 (giải mã Master Key)
+    private MessageDigest sha1;
+    private byte[] padded;              // [EMSA-PKCS1-v1_5 (128)] transient
+    
     /**
      * Khởi tạo RSAAuthenticationManager
      */
@@ -26,6 +45,37 @@ public class RSAAuthenticationManager {
         publicExponent[0] = (byte)0x01;
         publicExponent[1] = (byte)0x00;
         publicExponent[2] = (byte)0x01;  // 65537
+        
+        padded = JCSystem.makeTransientByteArray(AppletConstants.RSA_MODULUS_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        try {
+            privateKey = (RSAPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE, AppletConstants.RSA_KEY_SIZE, false);
+            publicKey = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, AppletConstants.RSA_KEY_SIZE, false);
+            keyPair = new KeyPair(publicKey, privateKey);
+        } catch (CryptoException e) {
+            privateKey = null;
+            publicKey = null;
+            keyPair = null;
+        }
+        try {
+            rsaSignature = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+        } catch (CryptoException e) {
+            rsaSignature = null;
+        }
+        try {
+            rsaNoPadCipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+        } catch (CryptoException e) {
+            rsaNoPadCipher = null;
+        }
+        try {
+            rsaPkcs1Cipher = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+        } catch (CryptoException e) {
+            rsaPkcs1Cipher = null;
+        }
+        try {
+            sha1 = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
+        } catch (CryptoException e) {
+            sha1 = null;
+        }
     }
     
     /**
@@ -41,11 +91,10 @@ public class RSAAuthenticationManager {
         
         try {
             // Tạo cặp khóa RSA
-            KeyPair rsaKeyPair = new KeyPair(KeyPair.ALG_RSA, AppletConstants.RSA_KEY_SIZE);
-            rsaKeyPair.genKeyPair();
-            
-            privateKey = (RSAPrivateKey) rsaKeyPair.getPrivate();
-            publicKey = (RSAPublicKey) rsaKeyPair.getPublic();
+            if (keyPair == null) {
+                ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+            }
+            keyPair.genKeyPair();
             
             keyPairGenerated = true;
             
@@ -80,8 +129,18 @@ public class RSAAuthenticationManager {
         }
         
         byte[] buffer = apdu.getBuffer();
-        short offset = 0;
+        short offset = writePublicKey(buffer, (short)0);
         
+        apdu.setOutgoingAndSend((short)0, offset);
+    }
+    
+    /**
+     * Ghi Public Key vào buffer: [MODULUS (128 bytes)] [PUBLIC_EXPONENT (3 bytes)]
+     * Gọi khi keypair đã được tạo
+     * 
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writePublicKey(byte[] buffer, short offset) {
         // Modulus
         short modulusLen = publicKey.getModulus(buffer, offset);
         offset += modulusLen;
@@ -90,7 +149,7 @@ public class RSAAuthenticationManager {
         Util.arrayCopy(publicExponent, (short)0, buffer, offset, (short)3);
         offset += 3;
         
-        apdu.setOutgoingAndSend((short)0, offset);
+        return offset;
     }
     
     /**
@@ -101,279 +160,101 @@ public class RSAAuthenticationManager {
      * @param apdu APDU command
      */
     public void signChallenge(APDU apdu) {
-        try {
-            // Step 0: Check keypair exists
-            if (!keyPairGenerated) {
-                ISOException.throwIt((short)0x6A00); // Keypair not generated
-                return;
-            }
-            
-            // Validate privateKey is not null
-            if (privateKey == null) {
-                ISOException.throwIt((short)0x6A0E); // Private key is null
-                return;
-            }
-        } catch (ISOException e) {
-            throw e;
-        } catch (Throwable t) {
-            ISOException.throwIt((short)0x6A20); // Exception in Step 0
-            return;
+        // Step 0: Check keypair exists
+        if (!keyPairGenerated) {
+            ISOException.throwIt((short)0x6A00); // Keypair not generated
         }
-        
-        byte[] buffer;
-        try {
-            buffer = apdu.getBuffer();
-            if (buffer == null) {
-                ISOException.throwIt((short)0x6A19); // Buffer is null
-                return;
-            }
-        } catch (ISOException e) {
-            throw e;
-        } catch (Throwable t) {
-            ISOException.throwIt((short)0x6A21); // Exception in getBuffer()
-            return;
+        if (privateKey == null) {
+            ISOException.throwIt((short)0x6A0E); // Private key is null
         }
         
-        short incomingLength;
+        byte[] buffer = apdu.getBuffer();
         try {
             // Step 1: Receive data first (JCardSim may require this before getIncomingLength)
             apdu.setIncomingAndReceive();
-            
-            // Step 2: Get incoming length AFTER setIncomingAndReceive
-            incomingLength = apdu.getIncomingLength();
-            
-            // Step 3: Validate challenge length
-            if (incomingLength != AppletConstants.RSA_CHALLENGE_SIZE) {
-                ISOException.throwIt((short)0x6700); // Wrong length
-                return;
-            }
         } catch (ISOException e) {
             throw e;
-        } catch (Exception e) {
-            ISOException.throwIt((short)0x6A09); // Receive failed
-            return;
         } catch (Throwable t) {
-            ISOException.throwIt((short)0x6A22); // Exception in setIncomingAndReceive() or getIncomingLength()
-            return;
+            ISOException.throwIt((short)0x6A09); // Receive failed
+        }
+        
+        // Step 2: Validate challenge length
+        if (apdu.getIncomingLength() != AppletConstants.RSA_CHALLENGE_SIZE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
         
         short offset = ISO7816.OFFSET_CDATA;
+        if (buffer.length < AppletConstants.RSA_MODULUS_SIZE
+                || (short)(offset + AppletConstants.RSA_CHALLENGE_SIZE) > buffer.length) {
+            ISOException.throwIt((short)0x6A11); // Buffer too small
+        }
         
-        try {
-            // Validate buffer and offsets before processing
-            if (offset < 0 || offset >= buffer.length) {
-                ISOException.throwIt((short)0x6A11); // Invalid offset
-                return;
-            }
-            if (offset + AppletConstants.RSA_CHALLENGE_SIZE > buffer.length) {
-                ISOException.throwIt((short)0x6A11); // Challenge exceeds buffer
-                return;
-            }
-            if (buffer.length < AppletConstants.RSA_MODULUS_SIZE) {
-                ISOException.throwIt((short)0x6A11); // Buffer too small for signature
-                return;
-            }
-            
-            // Step 4: Hash challenge with SHA-1
-            MessageDigest sha1;
+        // Step 3: Signature API (ALG_RSA_SHA_PKCS1) với challenge gốc
+        short signatureLen = -1;
+        if (rsaSignature != null) {
             try {
-                sha1 = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
-            } catch (ISOException e) {
-                throw e;
+                rsaSignature.init(privateKey, Signature.MODE_SIGN);
+                signatureLen = rsaSignature.sign(buffer, offset, AppletConstants.RSA_CHALLENGE_SIZE, buffer, (short)0);
             } catch (CryptoException e) {
-                ISOException.throwIt((short)0x6A0C); // SHA-1 not supported
-                return;
-            } catch (Throwable t) {
-                ISOException.throwIt((short)0x6A24); // Exception in MessageDigest.getInstance()
-                return;
+                if (e.getReason() == CryptoException.UNINITIALIZED_KEY) {
+                    ISOException.throwIt((short)0x6A0E);
+                }
+                signatureLen = -1; // Fall back
             }
-            
-            byte[] challengeHash = new byte[20]; // SHA-1 produces 20 bytes
+        }
+        
+        // Step 4: Fallback ALG_RSA_NOPAD với padding tự dựng
+        if (signatureLen < 0) {
             try {
-                sha1.doFinal(buffer, offset, AppletConstants.RSA_CHALLENGE_SIZE, challengeHash, (short)0);
+                signatureLen = signWithNoPad(buffer, offset);
             } catch (ISOException e) {
                 throw e;
             } catch (CryptoException e) {
-                ISOException.throwIt((short)0x6A0D); // Hash failed
-                return;
-            } catch (Throwable t) {
-                ISOException.throwIt((short)0x6A25); // Exception in doFinal()
-                return;
-            }
-            
-            // Step 5: Pad with PKCS#1 v1.5 (EMSA-PKCS1-v1_5)
-            // Format: 0x00 || 0x01 || PS || 0x00 || T
-            // Where T = DigestInfo = SEQUENCE { AlgorithmIdentifier, digest }
-            // For SHA-1: T = 30 21 30 09 06 05 2B 0E 03 02 1A 05 00 04 14 || hash
-            // PS = 0xFF repeated (at least 8 bytes)
-            // Total: 128 bytes (RSA_MODULUS_SIZE)
-            
-            byte[] padded = new byte[AppletConstants.RSA_MODULUS_SIZE];
-            short pos = 0;
-            
-            padded[pos++] = (byte)0x00;
-            padded[pos++] = (byte)0x01;
-            
-            // PS: Fill with 0xFF (at least 8 bytes)
-            // PKCS#1 v1.5: k = 128, PS length = k - 3 - len(DigestInfo) - len(hash)
-            // DigestInfo(SHA-1) length = 15, hash length = 20 => PS = 128 - 3 - 15 - 20 = 90 bytes
-            short psLen = (short)(AppletConstants.RSA_MODULUS_SIZE - 3 - 15 - 20); // 90 bytes
-            for (short i = 0; i < psLen; i++) {
-                padded[pos++] = (byte)0xFF;
-            }
-            
-            padded[pos++] = (byte)0x00;
-            
-            // DigestInfo for SHA-1: 30 21 30 09 06 05 2B 0E 03 02 1A 05 00 04 14
-            byte[] digestInfo = {
-                (byte)0x30, (byte)0x21, (byte)0x30, (byte)0x09, (byte)0x06, (byte)0x05,
-                (byte)0x2B, (byte)0x0E, (byte)0x03, (byte)0x02, (byte)0x1A, (byte)0x05,
-                (byte)0x00, (byte)0x04, (byte)0x14
-            };
-            Util.arrayCopyNonAtomic(digestInfo, (short)0, padded, pos, (short)digestInfo.length);
-            pos += digestInfo.length;
-            
-            // Hash value
-            Util.arrayCopyNonAtomic(challengeHash, (short)0, padded, pos, (short)challengeHash.length);
-            pos += challengeHash.length;
-            
-            if (pos != AppletConstants.RSA_MODULUS_SIZE) {
-                ISOException.throwIt((short)0x6A11); // Padding length mismatch
-                return;
-            }
-            
-            // Validate padded data: first byte must be 0x00 to ensure value < modulus
-            if (padded[0] != (byte)0x00) {
-                ISOException.throwIt((short)0x6A11); // Invalid padding format
-                return;
-            }
-            
-            // Step 6: Try Signature API first, fallback to Cipher NOPAD
-            short signatureLen = 0;
-            boolean signed = false;
-
-            // Attempt 1: Signature API (ALG_RSA_SHA_PKCS1) with raw challenge
-            try {
-                Signature sig = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
-                sig.init(privateKey, Signature.MODE_SIGN);
-                signatureLen = sig.sign(buffer, offset, AppletConstants.RSA_CHALLENGE_SIZE, buffer, (short)0);
-                if (signatureLen != AppletConstants.RSA_MODULUS_SIZE) {
-                    ISOException.throwIt((short)0x6A16);
-                    return;
-                }
-                signed = true;
-            } catch (CryptoException e) {
-                // If algorithm not supported or other crypto issue, fall back
                 short reason = e.getReason();
-                if (reason == CryptoException.UNINITIALIZED_KEY) {
-                    ISOException.throwIt((short)0x6A0E);
-                    return;
+                if (reason == CryptoException.ILLEGAL_VALUE) {
+                    ISOException.throwIt((short)0x6A2A);
+                } else if (reason == CryptoException.UNINITIALIZED_KEY) {
+                    ISOException.throwIt((short)0x6A12);
                 }
-            } catch (Throwable t) {
-                // fall back
-            }
-
-            // Attempt 2: ALG_RSA_NOPAD with manual padding, MODE_DECRYPT then MODE_ENCRYPT
-            if (!signed) {
-                Cipher rsaCipher;
-                try {
-                    rsaCipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
-                } catch (CryptoException e) {
-                    ISOException.throwIt((short)0x6A0C);
-                    return;
-                } catch (Throwable t) {
-                    ISOException.throwIt((short)0x6A26);
-                    return;
-                }
-
-                boolean initSuccess = false;
-                try {
-                    try {
-                        rsaCipher.init(privateKey, Cipher.MODE_DECRYPT);
-                        initSuccess = true;
-                    } catch (CryptoException e) {
-                        rsaCipher.init(privateKey, Cipher.MODE_ENCRYPT);
-                        initSuccess = true;
-                    }
-                } catch (CryptoException e) {
-                    short reason = e.getReason();
-                    if (reason == CryptoException.UNINITIALIZED_KEY) {
-                        ISOException.throwIt((short)0x6A0E);
-                    } else {
-                        ISOException.throwIt((short)0x6A0F);
-                    }
-                    return;
-                } catch (Throwable t) {
-                    ISOException.throwIt((short)0x6A27);
-                    return;
-                }
-
-                if (!initSuccess) {
-                    ISOException.throwIt((short)0x6A0F);
-                    return;
-                }
-
-                try {
-                    if (buffer.length < AppletConstants.RSA_MODULUS_SIZE) {
-                        ISOException.throwIt((short)0x6A11);
-                        return;
-                    }
-
-                    signatureLen = rsaCipher.doFinal(padded, (short)0, AppletConstants.RSA_MODULUS_SIZE, buffer, (short)0);
-                    if (signatureLen != AppletConstants.RSA_MODULUS_SIZE) {
-                        ISOException.throwIt((short)0x6A16);
-                        return;
-                    }
-                } catch (CryptoException e) {
-                    short reason = e.getReason();
-                    if (reason == CryptoException.ILLEGAL_VALUE) {
-                        ISOException.throwIt((short)0x6A2A);
-                    } else if (reason == CryptoException.UNINITIALIZED_KEY) {
-                        ISOException.throwIt((short)0x6A12);
-                    } else {
-                        ISOException.throwIt((short)0x6A13);
-                    }
-                    return;
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    ISOException.throwIt((short)0x6A14);
-                    return;
-                } catch (NullPointerException e) {
-                    ISOException.throwIt((short)0x6A17);
-                    return;
-                } catch (Exception e) {
-                    ISOException.throwIt((short)0x6A14);
-                    return;
-                } catch (Throwable t) {
-                    ISOException.throwIt((short)0x6A15);
-                    return;
-                }
-            }
-
-            if (!signed) {
                 ISOException.throwIt((short)0x6A13); // Sign failed
-                return;
-            }
-            
-            // Step 7: Send response
-            try {
-                apdu.setOutgoingAndSend((short)0, signatureLen);
-            } catch (ISOException e) {
-                throw e;
-            } catch (Exception e) {
-                ISOException.throwIt((short)0x6A18); // Send failed
-                return;
             } catch (Throwable t) {
-                ISOException.throwIt((short)0x6A28); // Exception in setOutgoingAndSend()
-                return;
+                ISOException.throwIt((short)0x6A1C); // Unexpected exception in signChallenge
             }
-        } catch (ISOException e) {
-            // Re-throw ISOException (already has proper SW code)
-            throw e;
-        } catch (Throwable t) {
-            // Catch ANY exception/error that wasn't caught above
-            ISOException.throwIt((short)0x6A1C); // Unexpected exception in signChallenge
-            return;
         }
+        
+        if (signatureLen != AppletConstants.RSA_MODULUS_SIZE) {
+            ISOException.throwIt((short)0x6A16);
+        }
+        apdu.setOutgoingAndSend((short)0, signatureLen);
+    }
+    
+    /**
+     * Ký bằng RSA NOPAD: hash SHA-1 rồi padding PKCS#1 v1.5 (EMSA-PKCS1-v1_5) trong buffer transient
+     * Format: 0x00 || 0x01 || PS (0xFF...) || 0x00 || DigestInfo || hash
+     * PS = 128 - 3 - 15 - 20 = 90 bytes
+     * 
+     * @return độ dài chữ ký (ghi vào buffer[0])
+     */
+    private short signWithNoPad(byte[] buffer, short offset) {
+        if (rsaNoPadCipher == null || sha1 == null) {
+            ISOException.throwIt((short)0x6A0C); // Algorithm not supported
+        }
+        
+        short psLen = (short)(AppletConstants.RSA_MODULUS_SIZE - 3 - SHA1_DIGEST_INFO.length - SHA1_LENGTH);
+        short pos = 0;
+        padded[pos++] = (byte)0x00;
+        padded[pos++] = (byte)0x01;
+        pos = Util.arrayFillNonAtomic(padded, pos, psLen, (byte)0xFF);
+        padded[pos++] = (byte)0x00;
+        pos = Util.arrayCopyNonAtomic(SHA1_DIGEST_INFO, (short)0, padded, pos, (short)SHA1_DIGEST_INFO.length);
+        sha1.doFinal(buffer, offset, AppletConstants.RSA_CHALLENGE_SIZE, padded, pos);
+        
+        try {
+            rsaNoPadCipher.init(privateKey, Cipher.MODE_DECRYPT);
+        } catch (CryptoException e) {
+            rsaNoPadCipher.init(privateKey, Cipher.MODE_ENCRYPT);
+        }
+        return rsaNoPadCipher.doFinal(padded, (short)0, AppletConstants.RSA_MODULUS_SIZE, buffer, (short)0);
     }
 
     /**
@@ -394,9 +275,13 @@ public class RSAAuthenticationManager {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
         
+        if (rsaPkcs1Cipher == null) {
+            ISOException.throwIt((short)0x6A13); // Decrypt failed (PKCS#1 not supported)
+        }
+        
         try {
             // Use RSA PKCS#1 padding for compatibility with standard crypto libraries (e.g., Node.js, Java)
-            Cipher cipher = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+            Cipher cipher = rsaPkcs1Cipher;
             cipher.init(privateKey, Cipher.MODE_DECRYPT);
             
             // Decrypt directly in buffer
@@ -413,10 +298,112 @@ public class RSAAuthenticationManager {
         }
     }
     
+    /**
+     * [NEW] Giải mã secret của phiên Secure Messaging (RSA PKCS#1) vào out
+     * Input: [ENCRYPTED_SECRET (128 bytes)]
+     * 
+     * @return độ dài secret (SESSION_SECRET_SIZE)
+     */
+    public short unwrapSecret(byte[] in, short inOffset, short inLength, byte[] out, short outOffset) {
+        if (!keyPairGenerated || privateKey == null) {
+            ISOException.throwIt((short)0x6A00); // Keypair not generated
+        }
+        if (inLength != AppletConstants.RSA_MODULUS_SIZE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        if (rsaPkcs1Cipher == null) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        
+        short len = 0;
+        try {
+            rsaPkcs1Cipher.init(privateKey, Cipher.MODE_DECRYPT);
+            len = rsaPkcs1Cipher.doFinal(in, inOffset, inLength, padded, (short)0);
+        } catch (CryptoException e) {
+            ISOException.throwIt((short)0x6A13); // Decrypt failed
+        }
+        if (len != AppletConstants.SESSION_SECRET_SIZE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        Util.arrayCopyNonAtomic(padded, (short)0, out, outOffset, len);
+        Util.arrayFillNonAtomic(padded, (short)0, AppletConstants.RSA_MODULUS_SIZE, (byte)0);
+        return len;
+    }
+    
     /**
      * Kiểm tra đã tạo khóa chưa
      */
     public boolean isKeyPairGenerated() {
         return keyPairGenerated;
     }
+    
+    /**
+     * [NEW] Ghi trạng thái EEPROM:
+     * [HAS_KEY (1)] [MODULUS_LEN (2)] [MODULUS] [PRIVATE_EXPONENT_LEN (2)] [PRIVATE_EXPONENT]
+     * 
+     * @return offset sau dữ liệu vừa ghi
+     */
+    public short writeState(byte[] buffer, short offset) {
+        if (!keyPairGenerated || privateKey == null) {
+            buffer[offset++] = (byte)0x00;
+            return offset;
+        }
+        buffer[offset++] = (byte)0x01;
+        short len = privateKey.getModulus(buffer, (short)(offset + 2));
+        offset = Util.setShort(buffer, offset, len);
+        offset += len;
+        len = privateKey.getExponent(buffer, (short)(offset + 2));
+        offset = Util.setShort(buffer, offset, len);
+        offset += len;
+        return offset;
+    }
+    
+    /**
+     * [NEW] Kiểm tra và bỏ qua bản ghi writeState: modulus đúng 128 bytes, exponent không dài hơn modulus
+     * 
+     * @return offset sau bản ghi
+     */
+    public short skipState(byte[] buffer, short offset, short end) {
+        if (buffer[offset++] != (byte)0x01) {
+            return offset;
+        }
+        short modulusLen = Util.getShort(buffer, offset);
+        offset += 2;
+        if (modulusLen != AppletConstants.RSA_MODULUS_SIZE || (short)(offset + modulusLen + 2) > end) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        offset += modulusLen;
+        short exponentLen = Util.getShort(buffer, offset);
+        offset += 2;
+        if (exponentLen <= 0 || exponentLen > AppletConstants.RSA_MODULUS_SIZE || keyPair == null) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return (short)(offset + exponentLen);
+    }
+    
+    /**
+     * [NEW] Khôi phục keypair từ writeState (không phải chạy lại genKeyPair)
+     * 
+     * @return offset sau dữ liệu vừa đọc
+     */
+    public short readState(byte[] buffer, short offset) {
+        if (buffer[offset++] != (byte)0x01) {
+            keyPairGenerated = false;
+            return offset;
+        }
+        short modulusLen = Util.getShort(buffer, offset);
+        offset += 2;
+        short modulusOffset = offset;
+        offset += modulusLen;
+        short exponentLen = Util.getShort(buffer, offset);
+        offset += 2;
+        
+        privateKey.setModulus(buffer, modulusOffset, modulusLen);
+        privateKey.setExponent(buffer, offset, exponentLen);
+        publicKey.setModulus(buffer, modulusOffset, modulusLen);
+        publicKey.setExponent(publicExponent, (short)0, (short)publicExponent.length);
+        
+        keyPairGenerated = true;
+        return (short)(offset + exponentLen);
+    }
 }
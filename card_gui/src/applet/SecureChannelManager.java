@@ -0,0 +1,248 @@
+package applet;
+
+import javacard.framework.*;
+import javacard.security.*;
+import javacardx.crypto.Cipher;
+
+/**
+ * [NEW] Module Secure Messaging: phiên AES-CMAC sau đăng nhập
+ *
+ * Mở phiên (INS_OPEN_SECURE_SESSION) chỉ tốn MỘT phép toán bất đối xứng trên thẻ:
+ * - RSA: giải mã secret 16 bytes mà server đã mã hóa bằng public key của thẻ
+ * - EC : ECDH giữa private key EC của thẻ và khóa tạm của server -> SHA-1(X)
+ * Từ secret, challenge của server (HC) và của thẻ (CC):
+ *   K_AUTH = SHA-256(SECRET || HC || CC || 0x01)[0..16]  -> cryptogram gửi server (chứng minh thẻ thật)
+ *   K_MAC  = SHA-256(SECRET || HC || CC || 0x02)[0..16]  -> MAC các lệnh nhạy cảm trong phiên
+ *
+ * Lệnh được bảo vệ: CLA có bit CLA_SECURE_MESSAGING, dữ liệu = [DATA] [COUNTER (2)] [MAC (8)]
+ * MAC = AES-CMAC(K_MAC, DATA || COUNTER || INS || P1 || P2) cắt 8 bytes, COUNTER tăng dần trong phiên.
+ * Phiên kết thúc khi deselect, INS_RESET_SESSION hoặc MAC sai; lệnh SM sau đó nhận
+ * SW_SM_SESSION_CLOSED.
+ */
+public class SecureChannelManager {
+
+    private static final byte LABEL_AUTH = (byte)0x01;
+    private static final byte LABEL_MAC = (byte)0x02;
+    private static final short BLOCK = AppletConstants.AES_BLOCK_SIZE;
+
+    // Trạng thái phiên (transient short[]): mở / counter cuối đã nhận
+    private static final byte STATE_OPEN = 0;
+    private static final byte STATE_COUNTER = 1;
+
+    private Cipher aesCbc;              // ALG_AES_BLOCK_128_CBC_NOPAD, IV = 0 -> dùng cho CMAC
+    private AESKey sessionKey;          // K_AUTH lúc mở phiên, sau đó K_MAC
+    private MessageDigest sha256;
+    private RandomData random;
+
+    private short[] state;
+    private byte[] secret;              // Secret sau RSA / ECDH
+    private byte[] challenges;          // [HC (16)] [CC (16)]
+    private byte[] digest;              // SHA-256 output / MAC nhận được
+    private byte[] k1;                  // CMAC subkey K1
+    private byte[] k2;                  // CMAC subkey K2
+    private byte[] block;
+    private byte[] mac;
+
+    /**
+     * Khởi tạo SecureChannelManager (thẻ không hỗ trợ AES / SHA-256 -> không mở được phiên)
+     */
+    public SecureChannelManager() {
+        state = JCSystem.makeTransientShortArray((short)2, JCSystem.CLEAR_ON_DESELECT);
+        secret = JCSystem.makeTransientByteArray((short)32, JCSystem.CLEAR_ON_DESELECT);
+        challenges = JCSystem.makeTransientByteArray((short)(2 * AppletConstants.SESSION_CHALLENGE_SIZE), JCSystem.CLEAR_ON_DESELECT);
+        digest = JCSystem.makeTransientByteArray((short)32, JCSystem.CLEAR_ON_DESELECT);
+        k1 = JCSystem.makeTransientByteArray(BLOCK, JCSystem.CLEAR_ON_DESELECT);
+        k2 = JCSystem.makeTransientByteArray(BLOCK, JCSystem.CLEAR_ON_DESELECT);
+        block = JCSystem.makeTransientByteArray(BLOCK, JCSystem.CLEAR_ON_DESELECT);
+        mac = JCSystem.makeTransientByteArray(BLOCK, JCSystem.CLEAR_ON_DESELECT);
+        try {
+            aesCbc = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+            sessionKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+            sha256 = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+            random = openRandom();
+        } catch (CryptoException e) {
+            aesCbc = null;
+        }
+    }
+
+    /**
+     * ALG_SECURE_RANDOM / generateData bị deprecated từ API 3.0.5, nhưng JCardSim 3.0.4 (pom.xml)
+     * chưa cài RandomData.OneShot, nextBytes hay ALG_KEYGENERATION nên vẫn phải dùng API cũ
+     */
+    @SuppressWarnings("deprecation")
+    private static RandomData openRandom() {
+        return RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+    }
+
+    @SuppressWarnings("deprecation") // Xem openRandom()
+    private void generateRandom(byte[] buffer, short offset, short length) {
+        random.generateData(buffer, offset, length);
+    }
+
+    /**
+     * Mở phiên Secure Messaging
+     * P1 = SESSION_ALG_RSA: Input [HC (16)] [SECRET mã hóa RSA PKCS#1 (128)]
+     * P1 = SESSION_ALG_EC : Input [HC (16)] [W tạm của server (65)]
+     * Output: [CC (16)] [CRYPTOGRAM (8)] - CRYPTOGRAM = CMAC(K_AUTH, HC || CC)
+     *
+     * @param data Dữ liệu lệnh (ioBuffer)
+     */
+    public void openSession(APDU apdu, byte[] data, short length,
+                            RSAAuthenticationManager rsaAuthManager, ECAuthenticationManager ecAuthManager) {
+        closeSession();
+        if (aesCbc == null) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+
+        byte[] buffer = apdu.getBuffer();
+        short hcLength = AppletConstants.SESSION_CHALLENGE_SIZE;
+        if (length <= hcLength) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // Phép toán bất đối xứng duy nhất của phiên
+        short secretLength = 0;
+        byte algorithm = buffer[ISO7816.OFFSET_P1];
+        if (algorithm == AppletConstants.SESSION_ALG_RSA) {
+            secretLength = rsaAuthManager.unwrapSecret(data, hcLength, (short)(length - hcLength), secret, (short)0);
+        } else if (algorithm == AppletConstants.SESSION_ALG_EC) {
+            secretLength = ecAuthManager.deriveSecret(data, hcLength, (short)(length - hcLength), secret, (short)0);
+        } else {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        Util.arrayCopyNonAtomic(data, (short)0, challenges, (short)0, hcLength);
+        generateRandom(challenges, hcLength, AppletConstants.SESSION_CHALLENGE_SIZE);
+
+        // Cryptogram cho server
+        deriveKey(secretLength, LABEL_AUTH);
+        cmac(challenges, (short)0, (short)challenges.length, mac, (short)0);
+        short offset = Util.arrayCopyNonAtomic(challenges, hcLength, buffer, (short)0, AppletConstants.SESSION_CHALLENGE_SIZE);
+        offset = Util.arrayCopyNonAtomic(mac, (short)0, buffer, offset, AppletConstants.SM_MAC_LENGTH);
+
+        // Khóa MAC cho các lệnh trong phiên
+        deriveKey(secretLength, LABEL_MAC);
+        Util.arrayFillNonAtomic(secret, (short)0, (short)secret.length, (byte)0);
+        state[STATE_COUNTER] = 0;
+        state[STATE_OPEN] = 1;
+
+        apdu.setOutgoingAndSend((short)0, offset);
+    }
+
+    public boolean isSessionOpen() {
+        return state[STATE_OPEN] != 0;
+    }
+
+    public void closeSession() {
+        state[STATE_OPEN] = 0;
+        state[STATE_COUNTER] = 0;
+        if (sessionKey != null) {
+            sessionKey.clearKey();
+        }
+    }
+
+    /**
+     * Kiểm tra và bóc lớp Secure Messaging của lệnh nhạy cảm
+     * - CLA có bit SM: phiên phải đang mở, COUNTER mới hơn lệnh trước, MAC đúng;
+     *   sai -> đóng phiên và trả SW_SM_SESSION_CLOSED
+     * - CLA không có bit SM: chỉ chấp nhận khi chưa mở phiên (luồng cũ chỉ kiểm tra PIN)
+     *
+     * @param buffer APDU buffer (CLA/INS/P1/P2)
+     * @param data Dữ liệu lệnh đã nhận đủ (ioBuffer), có thể bị ghi đè phần trailer
+     * @return độ dài dữ liệu sau khi bỏ [COUNTER][MAC]
+     */
+    public short unwrap(byte[] buffer, byte[] data, short length) {
+        return unwrap(buffer, data, length, false);
+    }
+
+    /**
+     * @param required true: lệnh chỉ được chấp nhận trong phiên Secure Messaging
+     */
+    public short unwrap(byte[] buffer, byte[] data, short length, boolean required) {
+        if ((buffer[ISO7816.OFFSET_CLA] & AppletConstants.CLA_SECURE_MESSAGING) == 0) {
+            if (required || isSessionOpen()) {
+                ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            return length;
+        }
+
+        short dataLength = (short)(length - AppletConstants.SM_COUNTER_LENGTH - AppletConstants.SM_MAC_LENGTH);
+        if (!isSessionOpen()) {
+            ISOException.throwIt(AppletConstants.SW_SM_SESSION_CLOSED);
+        }
+        if (dataLength < 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short counter = Util.getShort(data, dataLength);
+        if (counter <= state[STATE_COUNTER]) {
+            closeSession();
+            ISOException.throwIt(AppletConstants.SW_SM_SESSION_CLOSED);
+        }
+
+        // MAC input = DATA || COUNTER || INS || P1 || P2 (ghi header vào chỗ của MAC)
+        short macOffset = (short)(dataLength + AppletConstants.SM_COUNTER_LENGTH);
+        Util.arrayCopyNonAtomic(data, macOffset, digest, (short)0, AppletConstants.SM_MAC_LENGTH);
+        Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_INS, data, macOffset, (short)3);
+        cmac(data, (short)0, (short)(macOffset + 3), mac, (short)0);
+        if (Util.arrayCompare(mac, (short)0, digest, (short)0, AppletConstants.SM_MAC_LENGTH) != 0) {
+            closeSession();
+            ISOException.throwIt(AppletConstants.SW_SM_SESSION_CLOSED);
+        }
+
+        state[STATE_COUNTER] = counter;
+        return dataLength;
+    }
+
+    // K = SHA-256(SECRET || HC || CC || LABEL)[0..16], nạp vào sessionKey và tính subkey CMAC
+    private void deriveKey(short secretLength, byte label) {
+        sha256.reset();
+        sha256.update(secret, (short)0, secretLength);
+        sha256.update(challenges, (short)0, (short)challenges.length);
+        block[0] = label;
+        sha256.doFinal(block, (short)0, (short)1, digest, (short)0);
+        sessionKey.setKey(digest, (short)0);
+        Util.arrayFillNonAtomic(digest, (short)0, (short)digest.length, (byte)0);
+
+        // L = AES(K, 0^128); K1 = dbl(L); K2 = dbl(K1)
+        Util.arrayFillNonAtomic(block, (short)0, BLOCK, (byte)0);
+        aesCbc.init(sessionKey, Cipher.MODE_ENCRYPT);
+        aesCbc.doFinal(block, (short)0, BLOCK, k1, (short)0);
+        doubleBlock(k1);
+        Util.arrayCopyNonAtomic(k1, (short)0, k2, (short)0, BLOCK);
+        doubleBlock(k2);
+    }
+
+    // AES-CMAC (RFC 4493) bằng AES-CBC với IV = 0, kết quả 16 bytes vào out
+    private void cmac(byte[] msg, short offset, short length, byte[] out, short outOffset) {
+        aesCbc.init(sessionKey, Cipher.MODE_ENCRYPT);
+        short last = length == 0 ? 0 : (short)((length - 1) / BLOCK * BLOCK);
+        for (short i = 0; i < last; i += BLOCK) {
+            aesCbc.update(msg, (short)(offset + i), BLOCK, out, outOffset);
+        }
+
+        short remaining = (short)(length - last);
+        Util.arrayCopyNonAtomic(msg, (short)(offset + last), block, (short)0, remaining);
+        byte[] subkey = k1;
+        if (remaining < BLOCK) {
+            block[remaining] = (byte)0x80;
+            Util.arrayFillNonAtomic(block, (short)(remaining + 1), (short)(BLOCK - remaining - 1), (byte)0);
+            subkey = k2;
+        }
+        for (short i = 0; i < BLOCK; i++) {
+            block[i] ^= subkey[i];
+        }
+        aesCbc.doFinal(block, (short)0, BLOCK, out, outOffset);
+    }
+
+    // Nhân đôi trong GF(2^128): dịch trái 1 bit, MSB = 1 thì XOR 0x87
+    private static void doubleBlock(byte[] b) {
+        byte msb = b[0];
+        for (short i = 0; i < (short)(BLOCK - 1); i++) {
+            b[i] = (byte)((b[i] << 1) | ((b[(short)(i + 1)] >> 7) & 0x01));
+        }
+        b[(short)(BLOCK - 1)] = (byte)(b[(short)(BLOCK - 1)] << 1);
+        if (msb < 0) {
+            b[(short)(BLOCK - 1)] ^= (byte)0x87;
+        }
+    }
+}
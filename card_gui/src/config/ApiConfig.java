@@ -65,6 +65,56 @@ public class ApiConfig {
         return getApiBaseUrl() + "/api/payment/" + paymentId + "/stream";
     }
     
+    /**
+     * [NEW] Số HTTP request đồng thời tối đa của ApiClient (mặc định 16)
+     * Priority: System Property API_MAX_REQUESTS > Environment Variable > Default
+     */
+    public static int getMaxRequests() {
+        return getIntSetting("API_MAX_REQUESTS", 16);
+    }
+    
+    /**
+     * [NEW] Số HTTP request đồng thời tối đa tới cùng một host (mặc định 6)
+     */
+    public static int getMaxRequestsPerHost() {
+        return getIntSetting("API_MAX_REQUESTS_PER_HOST", 6);
+    }
+    
+    /**
+     * [NEW] Thư mục HTTP cache của ApiClient (mặc định ./http_cache)
+     */
+    public static String getHttpCacheDirectory() {
+        String value = System.getProperty("API_CACHE_DIR");
+        if (value == null || value.isEmpty()) {
+            value = System.getenv("API_CACHE_DIR");
+        }
+        return value == null || value.isEmpty() ? "http_cache" : value;
+    }
+    
+    /**
+     * [NEW] Dung lượng tối đa của HTTP cache trên đĩa, tính bằng MB (mặc định 20)
+     */
+    public static int getHttpCacheMaxMegabytes() {
+        return getIntSetting("API_CACHE_MAX_MB", 20);
+    }
+    
+    private static int getIntSetting(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(name);
+        }
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            System.out.println("[ApiConfig] Invalid " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+    
     private ApiConfig() {
         // Prevent instantiation
     }
@@ -0,0 +1,51 @@
+package config;
+
+/**
+ * [NEW] Card Authentication Configuration - chọn thuật toán challenge-response theo deployment
+ *
+ * - RSA: RSA-1024 (mặc định, tương thích thẻ / server cũ)
+ * - EC : ECDSA P-256 (sinh khóa và ký nhanh hơn, APDU nhỏ hơn)
+ *
+ * Để thay đổi:
+ * 1. Set environment variable: CARD_AUTH_ALGORITHM=EC
+ * 2. Hoặc set system property: -DCARD_AUTH_ALGORITHM=EC
+ *
+ * Đây là thuật toán ưu tiên cho thẻ mới; thẻ đã đăng ký khóa với server
+ * vẫn dùng thuật toán của khóa đó (xem SimulatorService.negotiateAuthAlgorithm).
+ */
+public class AuthConfig {
+
+    public static final String ALGORITHM_RSA = "RSA";
+    public static final String ALGORITHM_EC = "EC";
+
+    private static volatile String algorithm;
+
+    /**
+     * Get preferred card authentication algorithm (RSA / EC)
+     * Priority: System Property > Environment Variable > Default (RSA)
+     */
+    public static String getAuthAlgorithm() {
+        String value = algorithm;
+        if (value != null) {
+            return value;
+        }
+
+        String configured = System.getProperty("CARD_AUTH_ALGORITHM");
+        if (configured == null || configured.isEmpty()) {
+            configured = System.getenv("CARD_AUTH_ALGORITHM");
+        }
+        value = ALGORITHM_EC.equalsIgnoreCase(configured != null ? configured.trim() : null)
+                ? ALGORITHM_EC : ALGORITHM_RSA;
+        System.out.println("[AuthConfig] Card authentication algorithm: " + value);
+        algorithm = value;
+        return value;
+    }
+
+    public static boolean isEcPreferred() {
+        return ALGORITHM_EC.equals(getAuthAlgorithm());
+    }
+
+    private AuthConfig() {
+        // Prevent instantiation
+    }
+}
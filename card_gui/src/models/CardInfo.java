@@ -19,6 +19,7 @@ public class CardInfo {
     private String imagePath;      // Đường dẫn đến ảnh đại diện
     private int pinRetryCount;
     private String rsaPublicKey;   // RSA public key (PEM format)
+    private String ecPublicKey;    // [NEW] ECDSA P-256 public key (PEM format), null nếu thẻ dùng RSA
 
     public CardInfo() {
         this.studentId = "";
@@ -157,6 +158,14 @@ public class CardInfo {
         this.rsaPublicKey = rsaPublicKey;
     }
 
+    public String getEcPublicKey() {
+        return ecPublicKey;
+    }
+
+    public void setEcPublicKey(String ecPublicKey) {
+        this.ecPublicKey = ecPublicKey;
+    }
+
     public boolean isInitialized() {
         return studentId != null && !studentId.isEmpty()
                 && holderName != null && !holderName.isEmpty();
@@ -0,0 +1,82 @@
+package models;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Session snapshot read from the card in one APDU exchange
+ * (card info, balance, borrowed books, PIN tries, RSA / EC key status).
+ */
+public class SessionSnapshot {
+    private final CardInfo cardInfo;
+    private final long balance;
+    private final List<String> borrowedBookIds;
+    private final int pinTriesRemaining;
+    private final boolean rsaKeyPresent;
+    private final byte[] rsaPublicKey;
+    private final boolean ecKeyPresent;
+    private final byte[] ecPublicKey;
+    private final long readAtMillis;
+
+    public SessionSnapshot(CardInfo cardInfo, long balance, List<String> borrowedBookIds,
+                           int pinTriesRemaining, boolean rsaKeyPresent, byte[] rsaPublicKey) {
+        this(cardInfo, balance, borrowedBookIds, pinTriesRemaining, rsaKeyPresent, rsaPublicKey, false, null);
+    }
+
+    public SessionSnapshot(CardInfo cardInfo, long balance, List<String> borrowedBookIds,
+                           int pinTriesRemaining, boolean rsaKeyPresent, byte[] rsaPublicKey,
+                           boolean ecKeyPresent, byte[] ecPublicKey) {
+        this.cardInfo = cardInfo;
+        this.balance = balance;
+        this.borrowedBookIds = borrowedBookIds != null
+                ? Collections.unmodifiableList(borrowedBookIds) : Collections.<String>emptyList();
+        this.pinTriesRemaining = pinTriesRemaining;
+        this.rsaKeyPresent = rsaKeyPresent;
+        this.rsaPublicKey = rsaPublicKey;
+        this.ecKeyPresent = ecKeyPresent;
+        this.ecPublicKey = ecPublicKey;
+        this.readAtMillis = System.currentTimeMillis();
+    }
+
+    public CardInfo getCardInfo() {
+        return cardInfo;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public List<String> getBorrowedBookIds() {
+        return borrowedBookIds;
+    }
+
+    public int getPinTriesRemaining() {
+        return pinTriesRemaining;
+    }
+
+    public boolean isRsaKeyPresent() {
+        return rsaKeyPresent;
+    }
+
+    /**
+     * Public key [MODULUS (128)] [EXPONENT (3)], or null if the card has none
+     */
+    public byte[] getRsaPublicKey() {
+        return rsaPublicKey;
+    }
+
+    public boolean isEcKeyPresent() {
+        return ecKeyPresent;
+    }
+
+    /**
+     * EC public key W [04 || X (32) || Y (32)], or null if not requested / the card has none
+     */
+    public byte[] getEcPublicKey() {
+        return ecPublicKey;
+    }
+
+    public long getReadAtMillis() {
+        return readAtMillis;
+    }
+}
@@ -8,6 +8,7 @@ import constants.AppConstants;
 import models.CardInfo;
 import models.BorrowedBook;
 import models.Transaction;
+import service.ApduMetrics;
 import service.SimulatorService;
 
 import javax.swing.*;
@@ -667,8 +668,8 @@ public class AdminDashboardPage extends JPanel {
             }
         }));
         
-        row.add(createQuickActionCard("CHART", "Báo cáo", "Xem báo cáo chi tiết", PRIMARY_ORANGE, () -> {
-            showNotification("Tính năng đang phát triển");
+        row.add(createQuickActionCard("CHART", "Báo cáo", "Hiệu năng giao tiếp thẻ", PRIMARY_ORANGE, () -> {
+            showApduMetrics();
         }));
         
         row.add(createQuickActionCard("GEAR", "Cài đặt", "Cấu hình hệ thống", PRIMARY_PURPLE, () -> {
@@ -678,6 +679,23 @@ public class AdminDashboardPage extends JPanel {
         return row;
     }
 
+    // [NEW] Bảng số liệu APDU theo INS (số lệnh, tỉ lệ lỗi, p50/p99, status word)
+    private void showApduMetrics() {
+        ApduMetrics.Snapshot snapshot = simulatorService.getApduMetrics();
+        String report = snapshot.getStats().isEmpty()
+            ? "Chưa có lệnh APDU nào được gửi tới thẻ."
+            : snapshot.toReport();
+        
+        JTextArea area = new JTextArea(report);
+        area.setEditable(false);
+        area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JScrollPane scroll = new JScrollPane(area);
+        scroll.setPreferredSize(new Dimension(820, 360));
+        
+        JOptionPane.showMessageDialog(this, scroll,
+            "Giao tiếp thẻ - " + snapshot.getTotalCount() + " lệnh", JOptionPane.INFORMATION_MESSAGE);
+    }
+
     private JPanel createQuickActionCard(String iconType, String title, String subtitle, Color accentColor, Runnable onClick) {
         JPanel card = new JPanel() {
             private boolean hovered = false;
@@ -17,6 +17,7 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Mượn / Trả Sách Page - Giao diện Split View (2 cột)
@@ -39,6 +40,7 @@ public class BorrowedBooksPage extends JPanel {
     private JTable catalogTable;
     private JTextField searchField;
     private TableRowSorter<DefaultTableModel> catalogSorter;
+    private int refreshGeneration; // [NEW] Lần nạp dữ liệu mới nhất (chỉ truy cập trên EDT)
 
     // Danh mục sách gốc (Mock Database của thư viện để hiển thị bên phải)
     // Dữ liệu này khớp với AVAILABLE_BOOKS trong SimulatorService
@@ -302,42 +304,76 @@ public class BorrowedBooksPage extends JPanel {
      * Logic:
      * - Bảng Trái: Lấy từ API hoặc simulatorService.getBorrowedBooks()
      * - Bảng Phải: Lấy từ API hoặc LIBRARY_CATALOG trừ đi những cuốn đã có bên Trái
+     *
+     * [UPDATED] Ba request (Đang mượn, Quá hạn, kho sách) độc lập nên chạy song song qua
+     * ApiClient bất đồng bộ - không chặn EDT, thời gian chờ ~ request chậm nhất thay vì tổng cả ba.
+     * Rời trang (removeNotify) thì hủy các request còn dở.
      */
     private void refreshData() {
         String studentCode = simulatorService.getCurrentStudentCode();
-        List<BorrowedBook> currentBorrowed = null;
-        List<String> borrowedIDs = new ArrayList<>();
-
-        // 1. Load borrowed books từ API hoặc SimulatorService
-        if (apiManager.isServerAvailable()) {
-            try {
-                // Include both active statuses so overdue books still appear in "Sách Đang Mượn"
-                List<BorrowedBook> borrowing = bookApi.getBorrowedBooksByStudent(studentCode, "Đang mượn", 1, 100);
-                List<BorrowedBook> overdue = bookApi.getBorrowedBooksByStudent(studentCode, "Quá hạn", 1, 100);
-                currentBorrowed = new ArrayList<>();
-                if (borrowing != null) currentBorrowed.addAll(borrowing);
-                if (overdue != null) {
-                    for (BorrowedBook b : overdue) {
-                        boolean exists = false;
-                        for (BorrowedBook x : currentBorrowed) {
-                            if (x.getId() == b.getId() && x.getId() != 0) { exists = true; break; }
-                            if (x.getId() == 0 && b.getId() == 0 && x.getBookId().equalsIgnoreCase(b.getBookId())) { exists = true; break; }
-                        }
-                        if (!exists) currentBorrowed.add(b);
+        int generation = ++refreshGeneration;
+
+        // 1. Borrowed books: gộp cả hai trạng thái để sách quá hạn vẫn nằm trong "Sách Đang Mượn"
+        CompletableFuture<List<BorrowedBook>> borrowing =
+                bookApi.getBorrowedBooksByStudentAsync(studentCode, "Đang mượn", 1, 100, this);
+        CompletableFuture<List<BorrowedBook>> overdue =
+                bookApi.getBorrowedBooksByStudentAsync(studentCode, "Quá hạn", 1, 100, this);
+        // 2. Library catalog
+        CompletableFuture<List<BookInventoryApiService.BookInfo>> catalog =
+                inventoryApi.getAllBooksAsync(null, "Có sẵn", null, 1, 100, this);
+
+        CompletableFuture<List<BorrowedBook>> borrowed = borrowing.thenCombine(overdue, this::mergeBorrowed)
+                .handle((books, ex) -> {
+                    if (ex == null) {
+                        return books;
                     }
+                    System.err.println("[BorrowedBooksPage] Error loading borrowed books from API");
+                    System.err.println("[BorrowedBooksPage] Student ID: " + studentCode);
+                    System.err.println("[BorrowedBooksPage] Status filter: Đang mượn + Quá hạn");
+                    System.err.println("[BorrowedBooksPage] Error: " + ex.getMessage());
+                    System.err.println("[BorrowedBooksPage] Using fallback to SimulatorService");
+                    return simulatorService.getBorrowedBooks(studentCode);
+                });
+        CompletableFuture<List<BookInventoryApiService.BookInfo>> books = catalog.handle((list, ex) -> {
+            if (ex == null) {
+                return list;
+            }
+            System.err.println("[BorrowedBooksPage] Error loading catalog from API");
+            System.err.println("[BorrowedBooksPage] Filters: status=Có sẵn, page=1, limit=100");
+            System.err.println("[BorrowedBooksPage] Error: " + ex.getMessage());
+            System.err.println("[BorrowedBooksPage] Using fallback to LIBRARY_CATALOG");
+            return null;
+        });
+
+        borrowed.thenAcceptBoth(books, (currentBorrowed, catalogBooks) -> SwingUtilities.invokeLater(() -> {
+            // Bỏ kết quả cũ (đã có lần nạp mới hơn) hoặc trang đã bị đóng
+            if (generation == refreshGeneration && isDisplayable()) {
+                fillTables(currentBorrowed, catalogBooks);
+            }
+        }));
+    }
+
+    private List<BorrowedBook> mergeBorrowed(List<BorrowedBook> borrowing, List<BorrowedBook> overdue) {
+        List<BorrowedBook> currentBorrowed = new ArrayList<>();
+        if (borrowing != null) currentBorrowed.addAll(borrowing);
+        if (overdue != null) {
+            for (BorrowedBook b : overdue) {
+                boolean exists = false;
+                for (BorrowedBook x : currentBorrowed) {
+                    if (x.getId() == b.getId() && x.getId() != 0) { exists = true; break; }
+                    if (x.getId() == 0 && b.getId() == 0 && x.getBookId().equalsIgnoreCase(b.getBookId())) { exists = true; break; }
                 }
-            } catch (Exception e) {
-                System.err.println("[BorrowedBooksPage] Error loading borrowed books from API");
-                System.err.println("[BorrowedBooksPage] Student ID: " + studentCode);
-                System.err.println("[BorrowedBooksPage] Status filter: Đang mượn + Quá hạn");
-                System.err.println("[BorrowedBooksPage] Error: " + e.getMessage());
-                System.err.println("[BorrowedBooksPage] Using fallback to SimulatorService");
-                // Fallback
-                currentBorrowed = simulatorService.getBorrowedBooks(studentCode);
+                if (!exists) currentBorrowed.add(b);
             }
-        } else {
-            currentBorrowed = simulatorService.getBorrowedBooks(studentCode);
         }
+        return currentBorrowed;
+    }
+
+    /**
+     * Đổ dữ liệu vào 2 bảng (EDT); catalogBooks = null -> dùng LIBRARY_CATALOG
+     */
+    private void fillTables(List<BorrowedBook> currentBorrowed, List<BookInventoryApiService.BookInfo> catalogBooks) {
+        List<String> borrowedIDs = new ArrayList<>();
 
         // Fill Bảng Trái (Đang mượn)
         borrowedModel.setRowCount(0);
@@ -355,41 +391,35 @@ public class BorrowedBooksPage extends JPanel {
             borrowedCountLabel.setText(currentBorrowed.size() + " cuốn");
         }
 
-        // 2. Load library catalog từ API hoặc LIBRARY_CATALOG
+        // Fill Bảng Phải (Kho sách)
         catalogModel.setRowCount(0);
-        
-        if (apiManager.isServerAvailable()) {
-            try {
-                // Load từ API
-                List<BookInventoryApiService.BookInfo> books = inventoryApi.getAllBooks(
-                    null, "Có sẵn", null, 1, 100
-                );
-                
-                for (BookInventoryApiService.BookInfo book : books) {
-                    String id = book.getBookId();
-                    // Chỉ thêm vào kho nếu chưa bị mượn và còn sẵn
-                    if (!borrowedIDs.contains(id) && book.getAvailableCopies() > 0) {
-                        catalogModel.addRow(new Object[]{
-                                false, // Checkbox chưa tick
-                                id,
-                                book.getTitle(),
-                                book.getAuthor()
-                        });
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("[BorrowedBooksPage] Error loading catalog from API");
-                System.err.println("[BorrowedBooksPage] Filters: status=Có sẵn, page=1, limit=100");
-                System.err.println("[BorrowedBooksPage] Error: " + e.getMessage());
-                System.err.println("[BorrowedBooksPage] Using fallback to LIBRARY_CATALOG");
-                // Fallback to LIBRARY_CATALOG
-                loadCatalogFromLocal(borrowedIDs);
-            }
-        } else {
+        if (catalogBooks == null) {
             // Fallback to LIBRARY_CATALOG
             loadCatalogFromLocal(borrowedIDs);
+            return;
+        }
+        for (BookInventoryApiService.BookInfo book : catalogBooks) {
+            String id = book.getBookId();
+            // Chỉ thêm vào kho nếu chưa bị mượn và còn sẵn
+            if (!borrowedIDs.contains(id) && book.getAvailableCopies() > 0) {
+                catalogModel.addRow(new Object[]{
+                        false, // Checkbox chưa tick
+                        id,
+                        book.getTitle(),
+                        book.getAuthor()
+                });
+            }
         }
     }
+
+    /**
+     * [NEW] Rời trang -> hủy các request API còn đang chờ của trang
+     */
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        api.ApiClient.cancelAll(this);
+    }
     
     /**
      * Load catalog từ local LIBRARY_CATALOG
@@ -317,8 +317,10 @@ public class CardInfoPage extends JPanel {
         String currentStudentCode = simulatorService.getCurrentStudentCode();
         
         // Ưu tiên lấy từ thẻ nếu đã kết nối và xác thực PIN
-        if (simulatorService.isConnected() && simulatorService.isPinVerified()) {
-            balance = simulatorService.getBalance(currentStudentCode);
+        // (đọc Session Snapshot nền trên luồng của thẻ, tạm hiển thị số dư đã cache)
+        boolean loadFromCard = simulatorService.isConnected() && simulatorService.isPinVerified();
+        if (loadFromCard) {
+            balance = cardInfo != null ? cardInfo.getBalance() : 0;
         } else if (apiManager.isServerAvailable()) {
             try {
                 // Load balance từ API (nếu chưa kết nối thẻ)
@@ -340,6 +342,16 @@ public class CardInfoPage extends JPanel {
         balanceLabel.setForeground(AppConstants.TEXT_SECONDARY);
         balanceLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
         balanceLabel.setBorder(new EmptyBorder(5, 0, 0, 0));
+        if (loadFromCard) {
+            simulatorService.readSessionSnapshotAsync().whenComplete((snapshot, error) ->
+                SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        error.printStackTrace();
+                        return;
+                    }
+                    balanceLabel.setText("Số dư: " + String.format("%,d VND", snapshot.getBalance()));
+                }));
+        }
         
         panel.add(avatarBox);
         panel.add(Box.createVerticalStrut(10));
@@ -20,6 +20,7 @@ import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Tài Chính Page - UI cải tiến
@@ -41,6 +42,7 @@ public class FinancePage extends JPanel {
     private DefaultTableModel finesModel;
     private JTable finesTable; // Add reference to fines table
     private static final Color GOLD_COLOR = new Color(234, 179, 8);
+    private static final int HISTORY_PAGE_SIZE = 50; // [NEW] Số giao dịch hiển thị (giống trang API)
     
     public FinancePage(SimulatorService simulatorService) {
         this.simulatorService = simulatorService;
@@ -89,8 +91,20 @@ public class FinancePage extends JPanel {
      */
     private void loadFinanceData() {
         // [UPDATED] Ưu tiên lấy số dư từ thẻ nếu đã kết nối và xác thực PIN
+        // Đọc Session Snapshot (một lần trao đổi APDU) trên luồng của thẻ, cập nhật label khi xong
         if (simulatorService.isConnected() && simulatorService.isPinVerified()) {
-            this.balance = simulatorService.getBalance(studentCode);
+            simulatorService.readSessionSnapshotAsync().whenComplete((snapshot, error) ->
+                SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        error.printStackTrace();
+                        return;
+                    }
+                    this.balance = snapshot.getBalance();
+                    if (balanceValue != null) {
+                        NumberFormat fmt = NumberFormat.getInstance(new Locale("vi", "VN"));
+                        balanceValue.setText(fmt.format(balance) + " VND");
+                    }
+                }));
         } else if (apiManager.isServerAvailable()) {
             try {
                 // Load balance từ API (nếu chưa kết nối thẻ)
@@ -110,7 +124,7 @@ public class FinancePage extends JPanel {
         if (apiManager.isServerAvailable()) {
             try {
                 List<Transaction> apiTransactions = transactionApi.getTransactionsByStudent(
-                    studentCode, null, null, null, null, 1, 50
+                    studentCode, null, null, null, null, 1, HISTORY_PAGE_SIZE
                 );
                 if (apiTransactions != null) {
                     this.transactions = apiTransactions;
@@ -120,7 +134,7 @@ public class FinancePage extends JPanel {
                 this.transactions = new ArrayList<>();
             }
         } else {
-            this.transactions = simulatorService.getTransactions(studentCode);
+            this.transactions = simulatorService.getTransactions(studentCode, 0, HISTORY_PAGE_SIZE);
         }
         
         // [FIX] Update UI after loading data
@@ -577,63 +591,81 @@ public class FinancePage extends JPanel {
                 "Xác nhận", JOptionPane.YES_NO_OPTION);
             if (confirm != JOptionPane.YES_OPTION) return;
 
-            try {
-                // Check balance trước (ưu tiên từ card nếu có)
-                long currentBalance = 0;
-                
-                if (simulatorService.isConnected() && simulatorService.isPinVerified()) {
-                    currentBalance = simulatorService.getBalance(studentCode);
-                } else {
-                    // Fallback to memory/API
-                    models.CardInfo card = simulatorService.getCardByStudentCode(studentCode);
-                    if (card != null) {
-                        currentBalance = card.getBalance();
+            // Đọc/ghi số dư trên thẻ (AES) và gọi API chạy nền, kết quả hiển thị trên EDT
+            final long amountToPay = totalAmount;
+            payBtn.setEnabled(false);
+            new SwingWorker<FinePaymentResult, Void>() {
+                private long currentBalance = 0;
+
+                @Override
+                protected FinePaymentResult doInBackground() throws Exception {
+                    // Check balance trước (ưu tiên từ card nếu có)
+                    if (simulatorService.isConnected() && simulatorService.isPinVerified()) {
+                        currentBalance = simulatorService.getBalance(studentCode);
+                    } else {
+                        // Fallback to memory/API
+                        models.CardInfo card = simulatorService.getCardByStudentCode(studentCode);
+                        if (card != null) {
+                            currentBalance = card.getBalance();
+                        }
                     }
-                }
-                
-                if (currentBalance < totalAmount) {
-                    JOptionPane.showMessageDialog(this,
-                        String.format("Số dư không đủ để thanh toán tiền phạt.\nSố dư: %,d VND\nCần thanh toán: %,d VND",
-                            currentBalance, totalAmount),
-                        "Lỗi", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                
-                
-                FinePaymentResult result = bookApi.payOutstandingFines(studentCode);
-                
-                // [NEW] Trừ tiền trên thẻ nếu có kết nối
-                if (simulatorService.isConnected() && simulatorService.isPinVerified()) {
-                    simulatorService.payFine(studentCode, totalAmount);
+
+                    if (currentBalance < amountToPay) {
+                        return null;
+                    }
+
+                    FinePaymentResult result = bookApi.payOutstandingFines(studentCode);
+
+                    // [NEW] Trừ tiền trên thẻ nếu có kết nối
+                    if (simulatorService.isConnected() && simulatorService.isPinVerified()) {
+                        simulatorService.payFine(studentCode, amountToPay);
+                    }
+                    return result;
                 }
 
-                // Refresh balance + transactions
-                loadFinanceData();
-                // Refresh fines list
-                loadOutstandingFines();
+                @Override
+                protected void done() {
+                    payBtn.setEnabled(true);
+                    try {
+                        FinePaymentResult result = get();
+                        if (result == null) {
+                            JOptionPane.showMessageDialog(FinancePage.this,
+                                String.format("Số dư không đủ để thanh toán tiền phạt.\nSố dư: %,d VND\nCần thanh toán: %,d VND",
+                                    currentBalance, amountToPay),
+                                "Lỗi", JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
 
-                // Update summary
-                long newTotal = 0;
-                int newPayable = 0;
-                if (outstandingFines != null) {
-                    for (BorrowedBook b : outstandingFines) {
-                        newTotal += Math.max(0, b.getFine());
-                        if (!b.isFinePaid() && "Đã trả".equalsIgnoreCase(b.getStatus()) && b.getFine() > 0) {
-                            newPayable++;
+                        // Refresh balance + transactions
+                        loadFinanceData();
+                        // Refresh fines list
+                        loadOutstandingFines();
+
+                        // Update summary
+                        long newTotal = 0;
+                        int newPayable = 0;
+                        if (outstandingFines != null) {
+                            for (BorrowedBook b : outstandingFines) {
+                                newTotal += Math.max(0, b.getFine());
+                                if (!b.isFinePaid() && "Đã trả".equalsIgnoreCase(b.getStatus()) && b.getFine() > 0) {
+                                    newPayable++;
+                                }
+                            }
                         }
+                        summary.setText("Tổng: " + fmt.format(newTotal) + " VND • Có thể thanh toán: " + newPayable + " khoản");
+
+                        JOptionPane.showMessageDialog(FinancePage.this,
+                            String.format("Thanh toán thành công!\nSố khoản đã thanh toán: %d\nSố tiền đã trả: %,d VND\nSố dư mới: %,d VND", 
+                                result.getPaidCount(), result.getTotalPaid(), result.getBalanceAfter()),
+                            "Thành công", JOptionPane.INFORMATION_MESSAGE);
+                    } catch (Exception ex) {
+                        Throwable cause = ex instanceof ExecutionException && ex.getCause() != null ? ex.getCause() : ex;
+                        JOptionPane.showMessageDialog(FinancePage.this,
+                            "Lỗi khi thanh toán phạt: " + cause.getMessage(),
+                            "Lỗi", JOptionPane.ERROR_MESSAGE);
                     }
                 }
-                summary.setText("Tổng: " + fmt.format(newTotal) + " VND • Có thể thanh toán: " + newPayable + " khoản");
-
-                JOptionPane.showMessageDialog(this,
-                    String.format("Thanh toán thành công!\nSố khoản đã thanh toán: %d\nSố tiền đã trả: %,d VND\nSố dư mới: %,d VND", 
-                        result.getPaidCount(), result.getTotalPaid(), result.getBalanceAfter()),
-                    "Thành công", JOptionPane.INFORMATION_MESSAGE);
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this,
-                    "Lỗi khi thanh toán phạt: " + ex.getMessage(),
-                    "Lỗi", JOptionPane.ERROR_MESSAGE);
-            }
+            }.execute();
         });
         
         return panel;
@@ -884,7 +916,7 @@ public class FinancePage extends JPanel {
             }
             
             // Reload transactions từ SimulatorService
-            this.transactions = new ArrayList<>(simulatorService.getTransactions(studentCode));
+            this.transactions = new ArrayList<>(simulatorService.getTransactions(studentCode, 0, HISTORY_PAGE_SIZE));
             refreshHistoryTable();
             
             JOptionPane.showMessageDialog(this,
@@ -444,10 +444,37 @@ public class PinPage extends JPanel {
             return;
         }
 
+        // Kết nối thẻ, PBKDF2 và RSA chạy nền để không đóng băng cửa sổ
+        loginBtn.setEnabled(false);
+        loginBtn.setText("Đang xác thực...");
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                performLogin(studentCode, pin);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                // Đăng nhập thành công / khóa thẻ đều vô hiệu hóa ô PIN; còn lại cho phép thử lại
+                if (pinField.isEnabled()) {
+                    loginBtn.setEnabled(true);
+                    loginBtn.setText("Đăng Nhập");
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Luồng đăng nhập (chạy trên luồng nền). APDU đi qua hàng đợi của thẻ,
+     * mọi cập nhật giao diện được đưa về EDT bằng runOnEdt.
+     */
+    private void performLogin(String studentCode, char[] pin) {
         // Auto-connect if not connected (after logout)
-        if (!simulatorService.isConnected()) {
+        // Mỗi sinh viên dùng thẻ riêng trong CardPool
+        if (!simulatorService.isConnectedTo(studentCode)) {
             try {
-                simulatorService.connect();
+                simulatorService.connect(studentCode);
                 
                 // Special handling for Admin CT060132 - always ensure PIN "000000" exists
                 boolean isAdmin = AppletConstants.ADMIN_STUDENT_CODE.equalsIgnoreCase(studentCode);
@@ -461,24 +488,18 @@ public class PinPage extends JPanel {
                         System.out.println("Admin PIN might already exist: " + ex.getMessage());
                     }
                 } else {
-                    // For students, restore from JSON if available
-                    // [REMOVED] restoreCardState - No longer used
-                    boolean stateRestored = false;
-                    
-                    // Only create default PIN if state was NOT restored (no saved PIN)
-                    // If state was restored, PIN should already be on the card
-                    if (!stateRestored) {
-                        try {
-                            simulatorService.createDemoPin();
-                        } catch (Exception ex) {
-                            // PIN might already exist, ignore
-                        }
+                    // For students, CardPool đã nạp EEPROM snapshot (nếu có) khi cài thẻ
+                    // -> createDemoPin bỏ qua thẻ đã provisioned, chỉ tạo PIN cho thẻ mới
+                    try {
+                        simulatorService.createDemoPin();
+                    } catch (Exception ex) {
+                        // PIN might already exist, ignore
                     }
                 }
             } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this,
+                runOnEdt(() -> JOptionPane.showMessageDialog(this,
                     "Không thể kết nối với thẻ!\n" + ex.getMessage(),
-                    "Lỗi kết nối", JOptionPane.ERROR_MESSAGE);
+                    "Lỗi kết nối", JOptionPane.ERROR_MESSAGE));
                 return;
             }
         }
@@ -488,7 +509,7 @@ public class PinPage extends JPanel {
 
         if (!isAdmin) {
             if (!simulatorService.isCardExists(studentCode)) {
-                JOptionPane.showMessageDialog(this, "Mã số sinh viên không tồn tại!", "Lỗi", JOptionPane.ERROR_MESSAGE);
+                runOnEdt(() -> JOptionPane.showMessageDialog(this, "Mã số sinh viên không tồn tại!", "Lỗi", JOptionPane.ERROR_MESSAGE));
                 return;
             }
 
@@ -496,10 +517,10 @@ public class PinPage extends JPanel {
             simulatorService.setCurrentStudentCode(studentCode);
 
             if ("Khóa".equals(card.getStatus())) {
-                lockInterfaceState();
-                JOptionPane.showMessageDialog(this,
+                runOnEdt(this::lockInterfaceState);
+                runOnEdt(() -> JOptionPane.showMessageDialog(this,
                         "Thẻ của bạn đã bị KHÓA do nhập sai PIN 3 lần!\nSử dụng nút 'Mở Khóa (Admin)' để mở.",
-                        "Thẻ Bị Khóa", JOptionPane.ERROR_MESSAGE);
+                        "Thẻ Bị Khóa", JOptionPane.ERROR_MESSAGE));
                 return;
             }
 
@@ -517,11 +538,17 @@ public class PinPage extends JPanel {
                         // Also check server for verification (optional)
                         boolean hasRSAKeyOnCard = false;
                         boolean hasRSAKeyOnServer = false;
+                        models.SessionSnapshot snapshot = null;
+                        models.CardInfo serverCard = null;
+                        
+                        // [NEW] Khóa được sinh sẵn khi admin tạo thẻ - chờ nếu còn trong hàng đợi đăng ký
+                        boolean keysRegistered = simulatorService.awaitKeyRegistration(studentCode);
                         
                         // Check card first (this is the source of truth for authentication)
+                        // Session Snapshot: trạng thái RSA + public key + số dư... trong một lần trao đổi
                         try {
-                            byte[] publicKeyData = simulatorService.getRSAPublicKey();
-                            hasRSAKeyOnCard = (publicKeyData != null && publicKeyData.length > 0);
+                            snapshot = simulatorService.readSessionSnapshot();
+                            hasRSAKeyOnCard = snapshot.isRsaKeyPresent();
                             if (hasRSAKeyOnCard) {
                                 System.out.println("RSA keypair found on card");
                             }
@@ -533,7 +560,7 @@ public class PinPage extends JPanel {
                         // Check server (for verification, optional)
                         if (apiManager != null && apiManager.isServerAvailable()) {
                             try {
-                                models.CardInfo serverCard = cardApi.getCard(studentCode);
+                                serverCard = cardApi.getCard(studentCode);
                                 if (serverCard != null && serverCard.getRsaPublicKey() != null && !serverCard.getRsaPublicKey().isEmpty()) {
                                     hasRSAKeyOnServer = true;
                                     System.out.println("RSA public key found on server");
@@ -543,12 +570,42 @@ public class PinPage extends JPanel {
                             }
                         }
                         
+                        // [NEW] Thuật toán xác thực cho thẻ này (RSA / EC theo deployment và khóa đã đăng ký)
+                        String authAlgorithm = simulatorService.negotiateAuthAlgorithm(serverCard, snapshot);
+                        boolean ecMode = config.AuthConfig.ALGORITHM_EC.equals(authAlgorithm);
+                        System.out.println("[AUTH] Card authentication algorithm: " + authAlgorithm);
+                        
                         // Only authenticate if keypair exists on CARD (required for signing)
                         // Server key is optional but recommended for verification
-                        boolean hasRSAKey = hasRSAKeyOnCard;
+                        // EC: chỉ cần khóa trên thẻ - offline thì authenticateCardWithEC đọc public key từ thẻ
+                        boolean hasECKeyOnServer = serverCard != null && serverCard.getEcPublicKey() != null
+                                && !serverCard.getEcPublicKey().isEmpty();
+                        boolean hasRSAKey = ecMode
+                                ? snapshot != null && snapshot.isEcKeyPresent()
+                                : hasRSAKeyOnCard;
+                        
+                        if (ecMode && hasRSAKey && !hasECKeyOnServer
+                                && !keysRegistered && apiManager != null && apiManager.isServerAvailable()) {
+                            // [NEW] Khóa EC có trên thẻ nhưng chưa đăng ký -> đăng ký lại (trả về khóa sẵn có)
+                            try {
+                                simulatorService.registerECPublicKey(studentCode);
+                                hasECKeyOnServer = true;
+                            } catch (Exception regEx) {
+                                System.out.println("Could not register pre-generated EC key: " + regEx.getMessage());
+                            }
+                        }
                         
                         if (hasRSAKeyOnCard && !hasRSAKeyOnServer) {
                             System.out.println("Warning: RSA keypair exists on card but not on server - will use card's key for verification");
+                            // [NEW] Đăng ký nền lúc tạo thẻ thất bại (server offline...) -> đăng ký lại ngay
+                            if (!keysRegistered && apiManager != null && apiManager.isServerAvailable()) {
+                                try {
+                                    simulatorService.registerRSAPublicKey(studentCode);
+                                    hasRSAKeyOnServer = true;
+                                } catch (Exception regEx) {
+                                    System.out.println("Could not register pre-generated RSA key: " + regEx.getMessage());
+                                }
+                            }
                         }
                         
                         if (!hasRSAKey) {
@@ -559,27 +616,40 @@ public class PinPage extends JPanel {
                                 // Use registerRSAPublicKey which handles: Generate + Get + Send to Server
                                 if (apiManager != null && apiManager.isServerAvailable()) {
                                     try {
-                                        simulatorService.registerRSAPublicKey(studentCode);
-                                        System.out.println("RSA public key registered with server via SimulatorService");
-                                        
-                                        // Get the key that was just generated to save in CardInfo
-                                        byte[] publicKeyData = simulatorService.getRSAPublicKey();
-                                        if (publicKeyData != null && publicKeyData.length == 131) {
-                                            byte[] modulus = new byte[applet.AppletConstants.RSA_MODULUS_SIZE];
-                                            byte[] exponent = new byte[3];
-                                            System.arraycopy(publicKeyData, 0, modulus, 0, modulus.length);
-                                            System.arraycopy(publicKeyData, modulus.length, exponent, 0, exponent.length);
-                                            
-                                            String publicKeyPEM = utils.RSAUtility.convertToPEM(modulus, exponent);
-                                            
-                                            // Save to CardInfo for later use
+                                        if (ecMode) {
+                                            // [NEW] Khóa EC cho challenge-response (sinh nhanh, không cần bỏ qua xác thực)
+                                            String ecPEM = simulatorService.registerECPublicKey(studentCode);
                                             models.CardInfo cardInfo = simulatorService.getCardByStudentCode(studentCode);
                                             if (cardInfo != null) {
-                                                cardInfo.setRsaPublicKey(publicKeyPEM);
+                                                cardInfo.setEcPublicKey(ecPEM);
+                                            }
+                                            System.out.println("EC public key registered with server");
+                                        }
+                                        // Khóa RSA vẫn cần để nhận Master Key (INS_RSA_DECRYPT)
+                                        if (!ecMode || !hasRSAKeyOnCard) {
+                                            simulatorService.registerRSAPublicKey(studentCode);
+                                            System.out.println("RSA public key registered with server via SimulatorService");
+                                            
+                                            // Get the key that was just generated to save in CardInfo
+                                            byte[] publicKeyData = simulatorService.getRSAPublicKey();
+                                            if (publicKeyData != null && publicKeyData.length == 131) {
+                                                byte[] modulus = new byte[applet.AppletConstants.RSA_MODULUS_SIZE];
+                                                byte[] exponent = new byte[3];
+                                                System.arraycopy(publicKeyData, 0, modulus, 0, modulus.length);
+                                                System.arraycopy(publicKeyData, modulus.length, exponent, 0, exponent.length);
+                                                
+                                                String publicKeyPEM = utils.RSAUtility.convertToPEM(modulus, exponent);
+                                                
+                                                // Save to CardInfo for later use
+                                                models.CardInfo cardInfo = simulatorService.getCardByStudentCode(studentCode);
+                                                if (cardInfo != null) {
+                                                    cardInfo.setRsaPublicKey(publicKeyPEM);
+                                                }
                                             }
                                         }
                                         
-                                        rsaKeyJustGenerated = true;
+                                        rsaKeyJustGenerated = !ecMode;
+                                        hasRSAKey = hasRSAKey || ecMode;
                                     } catch (Exception apiEx) {
                                         System.out.println("Could not register RSA key with server: " + apiEx.getMessage());
                                         apiEx.printStackTrace();
@@ -593,13 +663,22 @@ public class PinPage extends JPanel {
                             }
                         }
                         
+                        // [NEW] Phiên Secure Messaging: một phép toán RSA/EC trên thẻ vừa xác thực thẻ,
+                        // vừa lấy token và khóa MAC; lỗi (server cũ / offline) -> luồng ký challenge cũ
+                        boolean hasKeyOnServer = ecMode ? hasECKeyOnServer : hasRSAKeyOnServer;
+                        
                         // Only authenticate if keypair existed BEFORE we checked (not just generated)
                         // CRITICAL: Use original hasRSAKey value, not re-check after generation
-                        if (hasRSAKey && !rsaKeyJustGenerated) {
+                        if (hasRSAKey && !rsaKeyJustGenerated && hasKeyOnServer
+                                && openSecureSession(studentCode, authAlgorithm)) {
+                            System.out.println("[AUTH] ✓ Card authenticated via secure session for student: " + studentCode);
+                        } else if (hasRSAKey && !rsaKeyJustGenerated) {
                             // RSA keypair exists - authenticate
                             try {
                                 System.out.println("[RSA AUTH] Starting RSA authentication for student: " + studentCode);
-                                boolean rsaAuthenticated = authenticateCardWithRSA(studentCode);
+                                boolean rsaAuthenticated = ecMode
+                                        ? authenticateCardWithEC(studentCode)
+                                        : authenticateCardWithRSA(studentCode);
                                 if (rsaAuthenticated) {
                                     System.out.println("[RSA AUTH] ✓ Authentication successful for student: " + studentCode);
                                     
@@ -614,10 +693,10 @@ public class PinPage extends JPanel {
                                         System.out.println("[AUTH] Calling server login API to get token...");
                                         // Generate challenge và signature để gửi lên server
                                         byte[] challenge = utils.RSAUtility.generateChallenge();
-                                        byte[] signature = simulatorService.signRSAChallenge(challenge);
+                                        byte[] signature = simulatorService.signChallenge(challenge, authAlgorithm);
                                         
                                         // Gọi API login
-                                        String token = authApi.login(studentCode, challenge, signature);
+                                        String token = authApi.login(studentCode, challenge, signature, authAlgorithm);
                                         if (token != null && !token.isEmpty()) {
                                             System.out.println("[AUTH] ✓ Token received from server");
                                             // Token đã được set vào ApiClient trong AuthApiService
@@ -639,11 +718,11 @@ public class PinPage extends JPanel {
                                     System.out.println("  - Signing error on card (check logs above for error code)");
                                     System.out.println("  - Keypair mismatch between card and server");
                                     // Show warning but allow login (RSA is additional security layer)
-                                    JOptionPane.showMessageDialog(this,
+                                    runOnEdt(() -> JOptionPane.showMessageDialog(this,
                                         "Cảnh báo: Xác thực RSA thất bại. Thẻ có thể bị giả mạo.\n" +
                                         "Bạn vẫn có thể đăng nhập, nhưng hãy kiểm tra lại thẻ.\n\n" +
                                         "Xem console log để biết chi tiết lỗi.",
-                                        "Cảnh báo bảo mật", JOptionPane.WARNING_MESSAGE);
+                                        "Cảnh báo bảo mật", JOptionPane.WARNING_MESSAGE));
                                 }
                             } catch (Exception authEx) {
                                 // Catch authentication errors separately to avoid confusion
@@ -666,9 +745,9 @@ public class PinPage extends JPanel {
                 }
 
                 if (AppletConstants.DEFAULT_PIN.equals(pinStr)) {
-                    setForceChangePinState();
+                    runOnEdt(this::setForceChangePinState);
                 } else {
-                    setVerifiedState();
+                    runOnEdt(this::setVerifiedState);
                     // [NEW] Setup Secure Channel after successful login
                     try {
                         simulatorService.setupSecureChannel(studentCode);
@@ -678,27 +757,29 @@ public class PinPage extends JPanel {
                         // JOptionPane.showMessageDialog(this, "Không thể thiết lập kênh bảo mật: " + secureEx.getMessage(), "Cảnh báo", JOptionPane.WARNING_MESSAGE);
                     }
 
-                    JOptionPane.showMessageDialog(this, "Đăng nhập thành công!", "Thông báo", JOptionPane.INFORMATION_MESSAGE);
+                    runOnEdt(() -> JOptionPane.showMessageDialog(this, "Đăng nhập thành công!", "Thông báo", JOptionPane.INFORMATION_MESSAGE));
                     
                     // Thông báo MainFrame để cập nhật tabs
                     if (onLoginSuccess != null) {
-                        onLoginSuccess.accept("normal");
+                        runOnEdt(() -> onLoginSuccess.accept("normal"));
                     }
                 }
             } else {
                 int remaining = simulatorService.getStudentPinTries(studentCode);
-                triesLabel.setText(remaining + "/3");
-                triesLabel.setForeground(AppConstants.DANGER_COLOR);
+                runOnEdt(() -> {
+                    triesLabel.setText(remaining + "/3");
+                    triesLabel.setForeground(AppConstants.DANGER_COLOR);
+                });
 
                 if (remaining == 0) {
-                    lockInterfaceState();
-                    JOptionPane.showMessageDialog(this,
+                    runOnEdt(this::lockInterfaceState);
+                    runOnEdt(() -> JOptionPane.showMessageDialog(this,
                             "Bạn đã nhập sai quá 3 lần. Thẻ đã bị KHÓA!",
-                            "ĐÃ KHÓA THẺ", JOptionPane.ERROR_MESSAGE);
+                            "ĐÃ KHÓA THẺ", JOptionPane.ERROR_MESSAGE));
                 } else {
-                    JOptionPane.showMessageDialog(this,
+                    runOnEdt(() -> JOptionPane.showMessageDialog(this,
                             "PIN không đúng! Bạn còn " + remaining + " lần thử.",
-                            "Sai Mật Khẩu", JOptionPane.WARNING_MESSAGE);
+                            "Sai Mật Khẩu", JOptionPane.WARNING_MESSAGE));
                 }
             }
         } else {
@@ -765,7 +846,7 @@ public class PinPage extends JPanel {
                         // Không block login nếu API call fail
                     }
                     
-                    setVerifiedState();
+                    runOnEdt(this::setVerifiedState);
                     // [NEW] Setup Secure Channel for Admin
                     try {
                         simulatorService.setupSecureChannel(studentCode);
@@ -773,23 +854,40 @@ public class PinPage extends JPanel {
                         System.err.println("Failed to setup secure channel for Admin: " + secureEx.getMessage());
                     }
 
-                    JOptionPane.showMessageDialog(this, "Đăng nhập Admin thành công!", "Thông báo", JOptionPane.INFORMATION_MESSAGE);
+                    runOnEdt(() -> JOptionPane.showMessageDialog(this, "Đăng nhập Admin thành công!", "Thông báo", JOptionPane.INFORMATION_MESSAGE));
                     
                     // Thông báo MainFrame để cập nhật tabs cho Admin
                     if (onLoginSuccess != null) {
-                        onLoginSuccess.accept("Admin");
+                        runOnEdt(() -> onLoginSuccess.accept("Admin"));
                     }
                 } else {
                     int tries = simulatorService.getPinTriesRemaining();
-                    triesLabel.setText(tries + "/3");
-                    JOptionPane.showMessageDialog(this, "PIN sai! Số lần thử còn lại: " + tries, "Lỗi", JOptionPane.ERROR_MESSAGE);
+                    runOnEdt(() -> triesLabel.setText(tries + "/3"));
+                    runOnEdt(() -> JOptionPane.showMessageDialog(this, "PIN sai! Số lần thử còn lại: " + tries, "Lỗi", JOptionPane.ERROR_MESSAGE));
                 }
             } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, ex.getMessage(), "Lỗi hệ thống", JOptionPane.ERROR_MESSAGE);
+                runOnEdt(() -> JOptionPane.showMessageDialog(this, ex.getMessage(), "Lỗi hệ thống", JOptionPane.ERROR_MESSAGE));
             }
         }
     }
 
+    /**
+     * Chạy cập nhật giao diện trên EDT và chờ xong (giữ thứ tự hộp thoại như khi chạy đồng bộ)
+     */
+    private void runOnEdt(Runnable action) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            action.run();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(action);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (java.lang.reflect.InvocationTargetException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
     private void handleChangePin(ActionEvent e) {
         if (simulatorService == null) return;
 
@@ -909,6 +1007,52 @@ public class PinPage extends JPanel {
         return false;
     }
     
+    /**
+     * [NEW] Xác thực thẻ + lấy token bằng phiên Secure Messaging (một phép toán bất đối xứng trên thẻ)
+     * @return false nếu không mở được phiên (gọi luồng ký challenge cũ)
+     */
+    private boolean openSecureSession(String studentCode, String authAlgorithm) {
+        try {
+            String token = simulatorService.openSecureSession(studentCode, authAlgorithm, authApi);
+            if (token == null || token.isEmpty()) {
+                return false;
+            }
+            apiManager.setAuthToken(token);
+            return true;
+        } catch (Exception e) {
+            System.out.println("[AUTH] Secure session unavailable, falling back to challenge signing: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * [NEW] Authenticate card with ECDSA P-256 challenge-response
+     * Ưu tiên public key EC từ server; offline thì dùng public key đọc từ thẻ
+     */
+    private boolean authenticateCardWithEC(String studentCode) {
+        try {
+            if (!simulatorService.isConnected()) {
+                return false;
+            }
+            String publicKeyPEM = null;
+            if (apiManager != null && apiManager.isServerAvailable()) {
+                models.CardInfo card = cardApi.getCard(studentCode);
+                if (card != null && card.getEcPublicKey() != null && !card.getEcPublicKey().isEmpty()) {
+                    publicKeyPEM = card.getEcPublicKey();
+                    System.out.println("[EC AUTH] Using public key from server");
+                }
+            }
+            if (publicKeyPEM == null) {
+                System.out.println("[EC AUTH] Getting public key directly from card");
+                publicKeyPEM = utils.RSAUtility.convertEcPointToPEM(simulatorService.getECPublicKey());
+            }
+            return simulatorService.authenticateCard(publicKeyPEM);
+        } catch (Exception e) {
+            System.out.println("[EC AUTH] Error: " + e.getMessage());
+            return false;
+        }
+    }
+    
     /**
      * Authenticate card with RSA challenge-response
      * NOTE: This method should NOT be called immediately after generating RSA keypair
@@ -942,7 +1086,7 @@ public class PinPage extends JPanel {
                         // Use public key from server
                         String publicKeyPEM = card.getRsaPublicKey();
                         System.out.println("[RSA AUTH] Using public key from server (length: " + publicKeyPEM.length() + " chars)");
-                        return simulatorService.authenticateCardWithRSA(publicKeyPEM);
+                        return simulatorService.authenticateCard(publicKeyPEM);
                     } else {
                         System.out.println("[RSA AUTH] No public key found on server for student: " + studentCode);
                     }
@@ -47,6 +47,7 @@ public class SettingsPage extends JPanel {
     private int currentPage = 1;
     private int totalPages = 1;
     private int totalCards = 0;
+    private int refreshGeneration; // [NEW] Lần tải danh sách thẻ mới nhất (chỉ truy cập trên EDT)
     private int pageSize = 20; // Số cards mỗi trang
     private JPanel paginationPanel;
     private JLabel paginationLabel;
@@ -318,8 +319,8 @@ public class SettingsPage extends JPanel {
                 }
 
                 // Step 2: Save info to Card
-                // Note: RSA Key & AES Key will be generated upon FIRST LOGIN by the student
-                // Here we just save the personal info.
+                // [UPDATED] RSA/EC keypair được sinh sẵn ở nền ngay sau bước này (Step 3),
+                // AES Key vẫn do server cấp khi đăng ký public key.
                 CardInfo cardInfo = new CardInfo(studentId, name, email, department, birthDate, address);
                 
                 boolean saved = simulatorService.setCardInfo(cardInfo);
@@ -328,6 +329,11 @@ public class SettingsPage extends JPanel {
                     simulatorService.addCardToList(cardInfo);
                     addActivityLog("Lưu thông tin thẻ", studentId, "Thành công");
                     
+                    // Step 3: [NEW] Sinh khóa cho thẻ ở nền + xếp hàng đăng ký với server
+                    simulatorService.preProvisionKeys(studentId).whenComplete((v, keyEx) ->
+                            SwingUtilities.invokeLater(() -> addActivityLog("Sinh khóa thẻ", studentId,
+                                    keyEx == null ? "Thành công" : "Thất bại: " + keyEx.getMessage())));
+                    
                     JOptionPane.showMessageDialog(this,
                         "Đã tạo thẻ thành công!\n" +
                         "MSSV: " + studentId + "\n" +
@@ -693,103 +699,95 @@ public class SettingsPage extends JPanel {
         refreshCardList("");
     }
     
+    /**
+     * [UPDATED] Danh sách thẻ từ server được tải bất đồng bộ (không chặn EDT);
+     * lỗi / server không khả dụng -> dữ liệu trong bộ nhớ (SimulatorService)
+     */
     private void refreshCardList(String keyword) {
         // Reset pagination if searching
         if (!keyword.isEmpty()) {
             currentPage = 1;
         }
+        int generation = ++refreshGeneration;
         
-        cardListPanel.removeAll();
-        
-        List<CardInfo> cards = new ArrayList<>();
+        if (apiManager == null) {
+            System.out.println("[SettingsPage] API not configured, loading from memory");
+            resetPaginationForMemory();
+            showCards(loadCardsFromMemory(keyword), keyword, false);
+            return;
+        }
         
-        // Debug: Check server availability and token
-        boolean serverAvailable = (apiManager != null && apiManager.isServerAvailable());
-        String currentToken = (apiManager != null) ? apiManager.getAuthToken() : null;
-        System.out.println("[SettingsPage] Server available: " + serverAvailable);
+        String currentToken = apiManager.getAuthToken();
         System.out.println("[SettingsPage] Auth token present: " + (currentToken != null && !currentToken.isEmpty()));
+        System.out.println("[SettingsPage] Attempting to load cards from server (page " + currentPage + ")...");
         
-        // Ưu tiên load từ Server API
-        if (serverAvailable) {
-            try {
-                System.out.println("[SettingsPage] Attempting to load cards from server (page " + currentPage + ")...");
-                // Load từ server với pagination
-                api.CardApiService.PaginationResult result = cardApi.getAllCardsWithPagination(currentPage, pageSize);
-                
-                List<CardInfo> serverCards = result.getCards();
-                totalCards = result.getTotal();
-                totalPages = result.getTotalPages();
-                
-                System.out.println("[SettingsPage] Received " + serverCards.size() + " cards from server (page " + currentPage + "/" + totalPages + ", total: " + totalCards + ")");
-                
-                // Sync với SimulatorService để đồng bộ
+        // Ưu tiên load từ Server API (phân trang)
+        cardApi.getAllCardsWithPaginationAsync(currentPage, pageSize, this).whenComplete((result, ex) -> {
+            if (ex == null) {
+                // Sync với SimulatorService để đồng bộ (ngoài EDT)
                 if (simulatorService != null) {
-                    for (CardInfo serverCard : serverCards) {
-                        // Add hoặc update vào cardList của SimulatorService
-                        simulatorService.addCardToList(serverCard);
-                    }
-                    System.out.println("[SettingsPage] Synced " + serverCards.size() + " cards to SimulatorService");
-                }
-                
-                cards.addAll(serverCards);
-                System.out.println("[SettingsPage] Successfully loaded " + serverCards.size() + " cards from server");
-                
-                // Update pagination UI
-                updatePaginationUI();
-            } catch (java.io.IOException e) {
-                System.err.println("[SettingsPage] IOException loading cards from server: " + e.getMessage());
-                e.printStackTrace();
-                // Fallback to in-memory if server fails
-                resetPaginationForMemory();
-                if (simulatorService != null) {
-                    if (keyword.isEmpty()) {
-                        cards = simulatorService.getAllCards();
-                    } else {
-                        cards = simulatorService.searchCards(keyword);
-                    }
-                    System.out.println("[SettingsPage] Fallback: Loaded " + cards.size() + " cards from memory");
-                }
-            } catch (Exception e) {
-                System.err.println("[SettingsPage] Unexpected error loading cards: " + e.getMessage());
-                e.printStackTrace();
-                // Fallback to in-memory if server fails
-                resetPaginationForMemory();
-                if (simulatorService != null) {
-                    if (keyword.isEmpty()) {
-                        cards = simulatorService.getAllCards();
-                    } else {
-                        cards = simulatorService.searchCards(keyword);
-                    }
-                    System.out.println("[SettingsPage] Fallback: Loaded " + cards.size() + " cards from memory");
+                    // Add hoặc update cả trang vào SimulatorService trong một lần
+                    simulatorService.addCardsToList(result.getCards());
+                    System.out.println("[SettingsPage] Synced " + result.getCards().size() + " cards to SimulatorService");
                 }
             }
-        } else {
-            // Fallback: Load từ in-memory (SimulatorService)
-            System.out.println("[SettingsPage] Server not available, loading from memory");
-            resetPaginationForMemory();
-            if (simulatorService != null) {
-                if (keyword.isEmpty()) {
-                    cards = simulatorService.getAllCards();
+            SwingUtilities.invokeLater(() -> {
+                // Bỏ kết quả cũ (đã có lần tải mới hơn) hoặc trang đã bị đóng
+                if (generation != refreshGeneration || !isDisplayable()) {
+                    return;
+                }
+                if (ex == null) {
+                    List<CardInfo> serverCards = result.getCards();
+                    totalCards = result.getTotal();
+                    totalPages = result.getTotalPages();
+                    System.out.println("[SettingsPage] Received " + serverCards.size() + " cards from server (page " + currentPage + "/" + totalPages + ", total: " + totalCards + ")");
+                    
+                    // Update pagination UI
+                    updatePaginationUI();
+                    showCards(new ArrayList<>(serverCards), keyword, true);
                 } else {
-                    cards = simulatorService.searchCards(keyword);
+                    System.err.println("[SettingsPage] Error loading cards from server: " + ex.getMessage());
+                    // Fallback to in-memory if server fails
+                    resetPaginationForMemory();
+                    List<CardInfo> cards = loadCardsFromMemory(keyword);
+                    System.out.println("[SettingsPage] Fallback: Loaded " + cards.size() + " cards from memory");
+                    showCards(cards, keyword, false);
                 }
-                System.out.println("[SettingsPage] Loaded " + cards.size() + " cards from memory");
-            } else {
-                System.out.println("[SettingsPage] SimulatorService is null!");
-            }
+            });
+        });
+    }
+    
+    private List<CardInfo> loadCardsFromMemory(String keyword) {
+        if (simulatorService == null) {
+            System.out.println("[SettingsPage] SimulatorService is null!");
+            return new ArrayList<>();
         }
+        return keyword.isEmpty() ? simulatorService.getAllCards() : simulatorService.searchCards(keyword);
+    }
+    
+    /**
+     * [NEW] Rời trang -> hủy các request API còn đang chờ của trang
+     */
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        api.ApiClient.cancelAll(this);
+    }
+    
+    private void showCards(List<CardInfo> cards, String keyword, boolean serverAvailable) {
+        cardListPanel.removeAll();
         
         // Filter by keyword if provided (after loading from server)
-        if (!keyword.isEmpty() && !cards.isEmpty()) {
-            String lowerKeyword = keyword.toLowerCase();
-            List<CardInfo> filtered = new ArrayList<>();
+        // (chỉ mục của SimulatorService lọc luôn theo MSSV của trang: không phân biệt dấu,
+        // giữ thứ tự xếp hạng, dừng khi đã đủ số thẻ của trang)
+        if (!keyword.isEmpty() && !cards.isEmpty() && simulatorService != null) {
+            List<String> loadedIds = new ArrayList<>(cards.size());
             for (CardInfo card : cards) {
-                if (card.getStudentId().toLowerCase().contains(lowerKeyword) ||
-                    card.getHolderName().toLowerCase().contains(lowerKeyword)) {
-                    filtered.add(card);
+                if (card != null) {
+                    loadedIds.add(card.getStudentId());
                 }
             }
-            cards = filtered;
+            cards = simulatorService.searchCards(keyword, null, loadedIds, loadedIds.size());
         }
         
         if (cards.isEmpty()) {
@@ -1107,18 +1105,20 @@ public class SettingsPage extends JPanel {
             refreshCardList();
             // Try to read card info from JavaCard
             if (simulatorService != null && simulatorService.isConnected()) {
-                try {
-                    CardInfo cardInfo = simulatorService.getCardInfo();
-                    if (cardInfo.isInitialized()) {
-                        addActivityLog("Đọc thẻ", cardInfo.getStudentId(), "Thành công");
-                        JOptionPane.showMessageDialog(this,
-                            "Đã đọc thông tin thẻ từ JavaCard:\n" + cardInfo.toString(),
-                            "Thông tin thẻ", JOptionPane.INFORMATION_MESSAGE);
-                    }
-                } catch (Exception ex) {
-                    // Card might not have info yet
-                    System.out.println("No card info available: " + ex.getMessage());
-                }
+                simulatorService.getCardInfoAsync().whenComplete((cardInfo, ex) ->
+                    SwingUtilities.invokeLater(() -> {
+                        if (ex != null) {
+                            // Card might not have info yet
+                            System.out.println("No card info available: " + ex.getMessage());
+                            return;
+                        }
+                        if (cardInfo.isInitialized()) {
+                            addActivityLog("Đọc thẻ", cardInfo.getStudentId(), "Thành công");
+                            JOptionPane.showMessageDialog(this,
+                                "Đã đọc thông tin thẻ từ JavaCard:\n" + cardInfo.toString(),
+                                "Thông tin thẻ", JOptionPane.INFORMATION_MESSAGE);
+                        }
+                    }));
             }
         });
         
@@ -0,0 +1,256 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bộ dựng lệnh APDU tái sử dụng bộ đệm (không cấp phát mảng mới cho mỗi lệnh)
+ *
+ * Mỗi luồng có một ApduBuilder riêng (get()). Simulator.transmitCommand cần mảng
+ * đúng kích thước, nên build() trả về mảng được cache theo độ dài lệnh: sau vài lệnh
+ * đầu, gửi lệnh liên tục không còn tạo rác. Mảng trả về chỉ hợp lệ tới lần build()
+ * tiếp theo trên cùng luồng - cần giữ lâu hơn thì dùng buildCopy().
+ *
+ * Định dạng: [CLA] [INS] [P1] [P2] [Lc] [Data...]
+ * Dữ liệu > 255 bytes: buildExtended() (extended-length) hoặc buildChain() (command chaining).
+ */
+public final class ApduBuilder {
+
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_DATA_LENGTH = 255;
+    public static final int MAX_EXTENDED_DATA_LENGTH = 1024;
+    public static final byte CLA_CHAINING = (byte)0x10;
+    public static final byte CLA_SECURE_MESSAGING = (byte)0x04;
+
+    private static final ThreadLocal<ApduBuilder> LOCAL = ThreadLocal.withInitial(ApduBuilder::new);
+
+    private final byte[] work = new byte[HEADER_LENGTH + MAX_EXTENDED_DATA_LENGTH];
+    // exact[n] = mảng dài đúng n byte, cấp phát lần đầu rồi dùng lại
+    private final byte[][] exact = new byte[HEADER_LENGTH + MAX_DATA_LENGTH + 1][];
+    private int length;
+
+    /**
+     * Builder của luồng hiện tại
+     */
+    public static ApduBuilder get() {
+        return LOCAL.get();
+    }
+
+    public ApduBuilder begin(byte ins) {
+        return begin((byte)0x00, ins, (byte)0x00, (byte)0x00);
+    }
+
+    public ApduBuilder begin(byte cla, byte ins, byte p1, byte p2) {
+        work[0] = cla;
+        work[1] = ins;
+        work[2] = p1;
+        work[3] = p2;
+        work[4] = 0;
+        length = HEADER_LENGTH;
+        return this;
+    }
+
+    public ApduBuilder put(byte b) {
+        ensure(1);
+        work[length++] = b;
+        return this;
+    }
+
+    public ApduBuilder put(byte[] src) {
+        return put(src, 0, src.length);
+    }
+
+    public ApduBuilder put(byte[] src, int offset, int len) {
+        ensure(len);
+        System.arraycopy(src, offset, work, length, len);
+        length += len;
+        return this;
+    }
+
+    /**
+     * Ghi đúng fieldLength byte: cắt bớt nếu dài hơn, đệm 0x00 nếu ngắn hơn
+     */
+    public ApduBuilder putPadded(byte[] src, int fieldLength) {
+        ensure(fieldLength);
+        int n = Math.min(src.length, fieldLength);
+        System.arraycopy(src, 0, work, length, n);
+        for (int i = n; i < fieldLength; i++) {
+            work[length + i] = 0;
+        }
+        length += fieldLength;
+        return this;
+    }
+
+    public ApduBuilder putShort(int value) {
+        ensure(2);
+        work[length++] = (byte)(value >> 8);
+        work[length++] = (byte)value;
+        return this;
+    }
+
+    public ApduBuilder putLong(long value) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            work[length++] = (byte)(value >> shift);
+        }
+        return this;
+    }
+
+    // --- TLV: [TAG (1)] [LEN (1 hoặc 0x81 + 1)] [VALUE] ---
+
+    public ApduBuilder putTlv(byte tag, byte[] value) {
+        return putTlv(tag, value, 0, value.length);
+    }
+
+    public ApduBuilder putTlv(byte tag, byte[] value, int offset, int len) {
+        putTlvHeader(tag, len);
+        return put(value, offset, len);
+    }
+
+    public ApduBuilder putTlvByte(byte tag, byte value) {
+        putTlvHeader(tag, 1);
+        return put(value);
+    }
+
+    public ApduBuilder putTlvShort(byte tag, int value) {
+        putTlvHeader(tag, 2);
+        return putShort(value);
+    }
+
+    public ApduBuilder putTlvLong(byte tag, long value) {
+        putTlvHeader(tag, 8);
+        return putLong(value);
+    }
+
+    private void putTlvHeader(byte tag, int len) {
+        put(tag);
+        if (len > 0x7F) {
+            put((byte)0x81);
+        }
+        put((byte)len);
+    }
+
+    /**
+     * [NEW] Ghi MAC Secure Messaging (8 bytes) của dữ liệu hiện tại + INS/P1/P2 và bật bit CLA 0x04
+     * (gọi qua SecureChannel.wrap, sau khi đã ghi COUNTER)
+     */
+    ApduBuilder putSecureMessagingMac(SecureChannel channel) {
+        ensure(8);
+        channel.mac(work, HEADER_LENGTH, dataLength(), work[1], work[2], work[3], work, length);
+        length += 8;
+        work[0] |= CLA_SECURE_MESSAGING;
+        return this;
+    }
+
+    /**
+     * [NEW] Dựng lại lệnh từ APDU đã gửi (lệnh thường, extended-length hoặc cả chuỗi command chaining)
+     * để gửi lại trong phiên Secure Messaging khác (tools.ApduReplayRunner):
+     * bỏ bit chaining; lệnh có bit CLA 0x04 thì bỏ luôn trailer [COUNTER (2)] [MAC (8)] và bit đó -
+     * sau đó SecureChannel.wrap() thêm trailer mới.
+     */
+    public ApduBuilder beginUnwrapped(List<byte[]> commands) {
+        byte[] first = commands.get(0);
+        begin((byte)(first[0] & ~(CLA_CHAINING | CLA_SECURE_MESSAGING)), first[1], first[2], first[3]);
+        for (byte[] command : commands) {
+            int offset = HEADER_LENGTH;
+            int lc = command.length > HEADER_LENGTH ? command[4] & 0xFF : 0;
+            if (lc == 0 && command.length >= HEADER_LENGTH + 2) {
+                lc = ((command[5] & 0xFF) << 8) | (command[6] & 0xFF);  // extended-length
+                offset += 2;
+            }
+            if (lc > 0) {
+                put(command, offset, lc);
+            }
+        }
+        if ((first[0] & CLA_SECURE_MESSAGING) != 0) {
+            if (dataLength() < 2 + 8) {
+                throw new IllegalArgumentException("Lệnh Secure Messaging thiếu [COUNTER][MAC]");
+            }
+            length -= 2 + 8;
+        }
+        return this;
+    }
+
+    public int dataLength() {
+        return length - HEADER_LENGTH;
+    }
+
+    /**
+     * Dữ liệu vừa với một APDU thường (Lc 1 byte)
+     */
+    public boolean isShort() {
+        return dataLength() <= MAX_DATA_LENGTH;
+    }
+
+    /**
+     * Hoàn tất lệnh (ghi Lc) và trả về mảng đúng kích thước từ cache của luồng
+     */
+    public byte[] build() {
+        if (!isShort()) {
+            throw new IllegalStateException("APDU data " + dataLength()
+                    + " bytes: dùng buildExtended() hoặc buildChain()");
+        }
+        work[4] = (byte)dataLength();
+        byte[] out = exact[length];
+        if (out == null) {
+            out = new byte[length];
+            exact[length] = out;
+        }
+        System.arraycopy(work, 0, out, 0, length);
+        return out;
+    }
+
+    /**
+     * Như build() nhưng trả về mảng mới - dùng khi lệnh được gửi bất đồng bộ
+     */
+    public byte[] buildCopy() {
+        return build().clone();
+    }
+
+    /**
+     * Lệnh extended-length: [CLA] [INS] [P1] [P2] [00] [Lc (2)] [Data...] [Le (2)]
+     * Trả về mảng mới (lệnh lớn, hiếm gặp - không cache). le = 0 nghĩa là tối đa 65536.
+     */
+    public byte[] buildExtended(int le) {
+        int dataLength = dataLength();
+        byte[] out = new byte[HEADER_LENGTH + 2 + dataLength + 2];
+        System.arraycopy(work, 0, out, 0, 4);
+        out[4] = 0;
+        out[5] = (byte)(dataLength >> 8);
+        out[6] = (byte)dataLength;
+        System.arraycopy(work, HEADER_LENGTH, out, HEADER_LENGTH + 2, dataLength);
+        out[out.length - 2] = (byte)(le >> 8);
+        out[out.length - 1] = (byte)le;
+        return out;
+    }
+
+    /**
+     * Tách dữ liệu thành các lệnh command chaining (ISO 7816-4): mọi block trừ block cuối
+     * có bit CLA 0x10. Các block phải được gửi liên tiếp trên cùng một thẻ.
+     */
+    public List<byte[]> buildChain() {
+        int dataLength = dataLength();
+        List<byte[]> blocks = new ArrayList<>(dataLength / MAX_DATA_LENGTH + 1);
+        int offset = HEADER_LENGTH;
+        do {
+            int n = Math.min(MAX_DATA_LENGTH, length - offset);
+            boolean last = offset + n >= length;
+            byte[] block = new byte[HEADER_LENGTH + n];
+            System.arraycopy(work, 0, block, 0, 4);
+            if (!last) {
+                block[0] |= CLA_CHAINING;
+            }
+            block[4] = (byte)n;
+            System.arraycopy(work, offset, block, HEADER_LENGTH, n);
+            blocks.add(block);
+            offset += n;
+        } while (offset < length);
+        return blocks;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > work.length) {
+            throw new IllegalStateException("APDU data vượt quá " + MAX_EXTENDED_DATA_LENGTH + " bytes");
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package service;
+
+import applet.AppletConstants;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bộ đếm và histogram độ trễ APDU theo INS (lock-free)
+ *
+ * Mỗi INS có một histogram log-tuyến tính (4 bucket cho mỗi lũy thừa 2 của µs, sai số ~25%),
+ * bộ đếm số lệnh / lỗi / lỗi truyền và số lần gặp từng status word.
+ * Ghi chỉ dùng phép cộng nguyên tử nên gọi được từ mọi luồng thẻ; snapshot() chụp lại
+ * để hiển thị trên Admin Dashboard hoặc in trong báo cáo benchmark.
+ */
+public final class ApduMetrics {
+
+    // Bucket 0..3: 0-3 µs; từ 4 µs: 4 bucket cho mỗi [2^e, 2^(e+1)) µs -> tới ~2^38 µs
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKET_COUNT = 150;
+
+    private static ApduMetrics sharedInstance;
+    private static volatile String[] insNames;
+
+    private final AtomicReferenceArray<InsCounters> counters = new AtomicReferenceArray<>(256);
+    private volatile long startedAtMillis = System.currentTimeMillis();
+
+    /**
+     * Metrics dùng chung cho mọi SimulatorService trong JVM
+     */
+    public static synchronized ApduMetrics getShared() {
+        if (sharedInstance == null) {
+            sharedInstance = new ApduMetrics();
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Ghi một lần trao đổi APDU
+     */
+    public void record(byte ins, int sw, long latencyNanos) {
+        InsCounters c = countersFor(ins);
+        c.count.increment();
+        c.totalNanos.add(latencyNanos);
+        c.histogram.incrementAndGet(bucketOf(latencyNanos / 1000));
+        updateMax(c, latencyNanos);
+        if (sw != 0x9000 && (sw >> 8) != 0x61) {
+            c.errors.increment();
+        }
+        c.statusWords.computeIfAbsent(sw, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Ghi lệnh không nhận được response (lỗi truyền / thẻ bị gỡ giữa chừng)
+     */
+    public void recordFailure(byte ins, long latencyNanos) {
+        InsCounters c = countersFor(ins);
+        c.count.increment();
+        c.totalNanos.add(latencyNanos);
+        c.histogram.incrementAndGet(bucketOf(latencyNanos / 1000));
+        updateMax(c, latencyNanos);
+        c.errors.increment();
+        c.transportFailures.increment();
+    }
+
+    /**
+     * Xóa toàn bộ số liệu (bắt đầu một lượt đo mới)
+     */
+    public void reset() {
+        for (int i = 0; i < 256; i++) {
+            counters.set(i, null);
+        }
+        startedAtMillis = System.currentTimeMillis();
+    }
+
+    public Snapshot snapshot() {
+        List<InsStats> stats = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            InsCounters c = counters.get(i);
+            if (c == null) continue;
+            long count = c.count.sum();
+            if (count == 0) continue;
+
+            long[] buckets = new long[BUCKET_COUNT];
+            long total = 0;
+            for (int b = 0; b < BUCKET_COUNT; b++) {
+                buckets[b] = c.histogram.get(b);
+                total += buckets[b];
+            }
+            Map<Integer, Long> sws = new TreeMap<>();
+            for (Map.Entry<Integer, LongAdder> e : c.statusWords.entrySet()) {
+                sws.put(e.getKey(), e.getValue().sum());
+            }
+            double max = c.maxNanos.get(0) / 1000.0;
+            stats.add(new InsStats(i, insName(i), count, c.errors.sum(), c.transportFailures.sum(),
+                    c.totalNanos.sum() / 1000.0 / count,
+                    Math.min(max, percentile(buckets, total, 0.50)), Math.min(max, percentile(buckets, total, 0.90)),
+                    Math.min(max, percentile(buckets, total, 0.99)), max, sws));
+        }
+        return new Snapshot(startedAtMillis, System.currentTimeMillis(), stats);
+    }
+
+    private InsCounters countersFor(byte ins) {
+        int index = ins & 0xFF;
+        InsCounters c = counters.get(index);
+        if (c == null) {
+            counters.compareAndSet(index, null, new InsCounters());
+            c = counters.get(index);
+        }
+        return c;
+    }
+
+    private static void updateMax(InsCounters c, long nanos) {
+        long prev;
+        do {
+            prev = c.maxNanos.get(0);
+        } while (nanos > prev && !c.maxNanos.compareAndSet(0, prev, nanos));
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros);          // >= 2
+        int sub = (int) (micros >> (exp - 2)) - SUB_BUCKETS;        // 0..3
+        return Math.min(BUCKET_COUNT - 1, (exp - 1) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * Cận dưới (µs) của bucket
+     */
+    static long bucketLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exp - 2);
+    }
+
+    private static double percentile(long[] buckets, long total, double p) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            seen += buckets[b];
+            if (seen >= rank) {
+                // Trung điểm của bucket
+                long low = bucketLowerBound(b);
+                long high = b + 1 < BUCKET_COUNT ? bucketLowerBound(b + 1) : low;
+                return (low + high) / 2.0;
+            }
+        }
+        return bucketLowerBound(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Tên INS lấy từ AppletConstants (INS_*), ví dụ 0x20 -> "VERIFY_PIN"
+     */
+    public static String insName(int ins) {
+        String[] names = insNames;
+        if (names == null) {
+            names = new String[256];
+            for (Field f : AppletConstants.class.getFields()) {
+                if (f.getType() != byte.class || !Modifier.isStatic(f.getModifiers())
+                        || !f.getName().startsWith("INS_")) {
+                    continue;
+                }
+                try {
+                    int code = f.getByte(null) & 0xFF;
+                    String name = f.getName().substring(4);
+                    names[code] = names[code] == null ? name : names[code] + "/" + name;
+                } catch (IllegalAccessException e) {
+                    // Bỏ qua
+                }
+            }
+            insNames = names;
+        }
+        String name = names[ins & 0xFF];
+        return name != null ? name : String.format("INS_%02X", ins & 0xFF);
+    }
+
+    private static final class InsCounters {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder transportFailures = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLongArray maxNanos = new AtomicLongArray(1);
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+        final ConcurrentHashMap<Integer, LongAdder> statusWords = new ConcurrentHashMap<>(8);
+    }
+
+    /**
+     * Số liệu của một INS tại thời điểm chụp
+     */
+    public static final class InsStats {
+        private final int ins;
+        private final String name;
+        private final long count;
+        private final long errorCount;
+        private final long transportFailures;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p90Micros;
+        private final double p99Micros;
+        private final double maxMicros;
+        private final Map<Integer, Long> statusWordCounts;
+
+        InsStats(int ins, String name, long count, long errorCount, long transportFailures,
+                 double meanMicros, double p50Micros, double p90Micros, double p99Micros,
+                 double maxMicros, Map<Integer, Long> statusWordCounts) {
+            this.ins = ins;
+            this.name = name;
+            this.count = count;
+            this.errorCount = errorCount;
+            this.transportFailures = transportFailures;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+            this.statusWordCounts = Collections.unmodifiableMap(statusWordCounts);
+        }
+
+        public int getIns() { return ins; }
+        public String getName() { return name; }
+        public long getCount() { return count; }
+        public long getErrorCount() { return errorCount; }
+        public long getTransportFailures() { return transportFailures; }
+        public double getMeanMicros() { return meanMicros; }
+        public double getP50Micros() { return p50Micros; }
+        public double getP90Micros() { return p90Micros; }
+        public double getP99Micros() { return p99Micros; }
+        public double getMaxMicros() { return maxMicros; }
+
+        /**
+         * Số lần gặp từng status word (SW -> số lần)
+         */
+        public Map<Integer, Long> getStatusWordCounts() { return statusWordCounts; }
+
+        public double getErrorRate() {
+            return count == 0 ? 0 : (double) errorCount / count;
+        }
+    }
+
+    /**
+     * Ảnh chụp toàn bộ metrics
+     */
+    public static final class Snapshot {
+        private final long startedAtMillis;
+        private final long takenAtMillis;
+        private final List<InsStats> stats;
+
+        Snapshot(long startedAtMillis, long takenAtMillis, List<InsStats> stats) {
+            this.startedAtMillis = startedAtMillis;
+            this.takenAtMillis = takenAtMillis;
+            this.stats = Collections.unmodifiableList(stats);
+        }
+
+        public long getStartedAtMillis() { return startedAtMillis; }
+        public long getTakenAtMillis() { return takenAtMillis; }
+        public List<InsStats> getStats() { return stats; }
+
+        public long getTotalCount() {
+            long total = 0;
+            for (InsStats s : stats) total += s.getCount();
+            return total;
+        }
+
+        /**
+         * Bảng văn bản (dashboard / báo cáo benchmark)
+         */
+        public String toReport() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-22s %8s %7s %9s %9s %9s %9s  %s%n",
+                    "INS", "n", "lỗi%", "p50(µs)", "p90(µs)", "p99(µs)", "max(µs)", "SW"));
+            for (InsStats s : stats) {
+                StringBuilder sws = new StringBuilder();
+                for (Map.Entry<Integer, Long> e : s.getStatusWordCounts().entrySet()) {
+                    if (sws.length() > 0) sws.append(' ');
+                    sws.append(String.format("%04X:%d", e.getKey(), e.getValue()));
+                }
+                if (s.getTransportFailures() > 0) {
+                    sws.append(" lỗi-truyền:").append(s.getTransportFailures());
+                }
+                sb.append(String.format("%02X %-19s %8d %6.1f%% %9.1f %9.1f %9.1f %9.1f  %s%n",
+                        s.getIns(), s.getName(), s.getCount(), s.getErrorRate() * 100,
+                        s.getP50Micros(), s.getP90Micros(), s.getP99Micros(), s.getMaxMicros(), sws));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toReport();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package service;
+
+import applet.AppletConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ghi lại lưu lượng APDU (append-only, nhị phân) để phát lại bằng tools.ApduReplayRunner
+ *
+ * File: [MAGIC "APDL" (4)] [VERSION (1)] rồi các bản ghi nối tiếp:
+ *   [TIMESTAMP_MS (8)] [LATENCY_US (4)] [SW (2)] [RESP_LEN (2)] [CMD_LEN (2)] [FLAGS (1)] [COMMAND...]
+ * INS = COMMAND[1]. Response chỉ lưu SW + độ dài (dữ liệu mã hóa có IV ngẫu nhiên, không so sánh được).
+ *
+ * [UPDATED] Lệnh mang bí mật (PIN, khóa AES, dữ liệu RSA_DECRYPT, export/import trạng thái) mặc định
+ * chỉ lưu header 5 byte (CLA INS P1 P2 Lc) + CMD_LEN (FLAGS = FLAG_REDACTED). Log như vậy vẫn dùng được cho thống kê
+ * độ trễ nhưng không phát lại được; muốn phát lại phải bật thêm -Dapdu.record.payloads=true
+ * (file khi đó chứa hash PIN, khóa... - chỉ dùng trên máy thử nghiệm).
+ * Bật bằng -Dapdu.record.file=<đường dẫn>. File VERSION 1 (không có FLAGS) vẫn đọc được.
+ */
+public final class ApduRecorder implements Closeable {
+
+    public static final String FILE_PROPERTY = "apdu.record.file";
+    public static final String PAYLOAD_PROPERTY = "apdu.record.payloads"; // [NEW]
+    private static final int MAGIC = 0x4150444C; // "APDL"
+    private static final byte VERSION = 2;
+    private static final byte VERSION_NO_FLAGS = 1;
+    private static final int FLAG_REDACTED = 0x01;
+
+    private static ApduRecorder sharedInstance;
+    private static boolean sharedResolved;
+
+    private final Path file;
+    private final DataOutputStream out;
+    private final boolean fullPayloads;
+    private long recordCount;
+    private boolean failed;
+
+    private ApduRecorder(Path file, boolean fullPayloads) throws IOException {
+        this.file = file;
+        this.fullPayloads = fullPayloads;
+        boolean empty = !Files.exists(file) || Files.size(file) == 0;
+        if (!empty) {
+            checkHeader(file);
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024));
+        if (empty) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+        }
+    }
+
+    /**
+     * Mở (hoặc nối tiếp) file log; lệnh nhạy cảm chỉ lưu header
+     */
+    public static ApduRecorder open(Path file) throws IOException {
+        return new ApduRecorder(file, false);
+    }
+
+    /**
+     * [NEW] Mở file log; fullPayloads = true lưu cả dữ liệu lệnh nhạy cảm (cần cho ApduReplayRunner)
+     */
+    public static ApduRecorder open(Path file, boolean fullPayloads) throws IOException {
+        return new ApduRecorder(file, fullPayloads);
+    }
+
+    /**
+     * Recorder dùng chung trong JVM theo -Dapdu.record.file (null nếu không bật)
+     */
+    public static synchronized ApduRecorder getShared() {
+        if (!sharedResolved) {
+            sharedResolved = true;
+            String path = System.getProperty(FILE_PROPERTY);
+            if (path != null && !path.trim().isEmpty()) {
+                try {
+                    boolean fullPayloads = Boolean.getBoolean(PAYLOAD_PROPERTY);
+                    ApduRecorder recorder = open(Paths.get(path.trim()), fullPayloads);
+                    Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "apdu-recorder-close"));
+                    sharedInstance = recorder;
+                    System.out.println("[ApduRecorder] Ghi APDU vào " + path
+                            + (fullPayloads ? " (CẢ dữ liệu nhạy cảm: PIN, khóa...)" : ""));
+                } catch (IOException e) {
+                    System.out.println("[ApduRecorder] Không mở được " + path + ": " + e.getMessage());
+                }
+            }
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Ghi một lần trao đổi APDU. Lỗi ghi file chỉ tắt recorder, không làm hỏng lệnh gửi thẻ.
+     */
+    public synchronized void record(long timestampMillis, byte[] command, byte[] response, long latencyNanos) {
+        if (failed) return;
+        try {
+            int responseLength = response == null ? 0 : response.length;
+            out.writeLong(timestampMillis);
+            out.writeInt((int)Math.min(Integer.MAX_VALUE, latencyNanos / 1000));
+            out.writeShort(ApduResponse.sw(response));
+            out.writeShort(Math.max(0, responseLength - 2));
+            out.writeShort(command.length);
+            if (!fullPayloads && isSensitive(command)) {
+                out.writeByte(FLAG_REDACTED);
+                out.write(command, 0, ApduBuilder.HEADER_LENGTH);
+            } else {
+                out.writeByte(0);
+                out.write(command);
+            }
+            recordCount++;
+        } catch (IOException e) {
+            failed = true;
+            System.out.println("[ApduRecorder] Lỗi ghi " + file + ", dừng ghi: " + e.getMessage());
+        }
+    }
+
+    /**
+     * [NEW] Lệnh có dữ liệu là bí mật: hash PIN, khóa AES, bản mã khóa phiên, trạng thái thẻ
+     * (INS_GET_RESPONSE trùng mã INS_AES_SET_KEY nhưng không có dữ liệu nên không bị che)
+     */
+    static boolean isSensitive(byte[] command) {
+        if (command.length <= ApduBuilder.HEADER_LENGTH) return false;
+        switch (command[1]) {
+            case AppletConstants.INS_CREATE_PIN:
+            case AppletConstants.INS_VERIFY_PIN:
+            case AppletConstants.INS_CHANGE_PIN:
+            case AppletConstants.INS_RESET_PIN:
+            case AppletConstants.INS_AES_SET_KEY:
+            case AppletConstants.INS_RSA_DECRYPT:
+            case AppletConstants.INS_EXPORT_STATE:
+            case AppletConstants.INS_IMPORT_STATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void checkHeader(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("File đã có log khác định dạng/phiên bản, hãy dùng file mới: " + file);
+            }
+        } catch (EOFException e) {
+            throw new IOException("File log hỏng header: " + file);
+        }
+    }
+
+    public synchronized void flush() {
+        if (failed) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            failed = true;
+            System.out.println("[ApduRecorder] Lỗi flush " + file + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.out.println("[ApduRecorder] Lỗi đóng " + file + ": " + e.getMessage());
+        }
+        failed = true;
+    }
+
+    /**
+     * Đọc toàn bộ log (bản ghi cuối bị ghi dở sẽ được bỏ qua)
+     */
+    public static List<Record> read(Path file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 64 * 1024))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Không phải file APDU log: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION && version != VERSION_NO_FLAGS) {
+                throw new IOException("Phiên bản APDU log không hỗ trợ: " + version);
+            }
+            while (true) {
+                try {
+                    long timestamp = in.readLong();
+                    int latencyMicros = in.readInt();
+                    int sw = in.readUnsignedShort();
+                    int responseLength = in.readUnsignedShort();
+                    int commandLength = in.readUnsignedShort();
+                    boolean redacted = version != VERSION_NO_FLAGS
+                            && (in.readUnsignedByte() & FLAG_REDACTED) != 0;
+                    byte[] command = new byte[redacted ? ApduBuilder.HEADER_LENGTH : commandLength];
+                    in.readFully(command);
+                    records.add(new Record(timestamp, latencyMicros, sw, responseLength, commandLength, redacted, command));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Một bản ghi trong log
+     */
+    public static final class Record {
+        private final long timestampMillis;
+        private final int latencyMicros;
+        private final int sw;
+        private final int responseLength;
+        private final int commandLength;
+        private final boolean redacted;
+        private final byte[] command;
+
+        Record(long timestampMillis, int latencyMicros, int sw, int responseLength,
+               int commandLength, boolean redacted, byte[] command) {
+            this.timestampMillis = timestampMillis;
+            this.latencyMicros = latencyMicros;
+            this.sw = sw;
+            this.responseLength = responseLength;
+            this.commandLength = commandLength;
+            this.redacted = redacted;
+            this.command = command;
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        public int getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        public int getSW() {
+            return sw;
+        }
+
+        /**
+         * Độ dài dữ liệu response (không tính SW)
+         */
+        public int getResponseLength() {
+            return responseLength;
+        }
+
+        public byte getIns() {
+            return command.length > 1 ? command[1] : 0;
+        }
+
+        /**
+         * Độ dài dữ liệu lệnh (không tính header)
+         */
+        public int getPayloadLength() {
+            return Math.max(0, commandLength - ApduBuilder.HEADER_LENGTH);
+        }
+
+        /**
+         * [NEW] true nếu chỉ lưu header (lệnh nhạy cảm, ghi không có -Dapdu.record.payloads)
+         */
+        public boolean isRedacted() {
+            return redacted;
+        }
+
+        /**
+         * Lệnh đã ghi; với bản ghi bị che chỉ có header (HEADER_LENGTH byte)
+         */
+        public byte[] getCommand() {
+            return command;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * View đọc response APDU mà không sao chép dữ liệu
+ *
+ * Response từ thẻ có dạng [DATA...] [SW1] [SW2]. ApduResponse chỉ giữ tham chiếu
+ * tới mảng gốc và đọc trực tiếp theo offset; mỗi luồng dùng lại một instance (wrap()).
+ * Hỗ trợ đọc TLV tuần tự: nextTlv() / seekTlv(tag) rồi lấy tlvTag/tlvOffset/tlvLength.
+ */
+public final class ApduResponse {
+
+    private static final ThreadLocal<ApduResponse> LOCAL = ThreadLocal.withInitial(ApduResponse::new);
+
+    private byte[] raw;
+    private int dataLength;
+
+    // Con trỏ TLV
+    private int cursor;
+    private byte tlvTag;
+    private int tlvOffset;
+    private int tlvLength;
+
+    /**
+     * Bọc response vào view của luồng hiện tại (không cấp phát)
+     */
+    public static ApduResponse wrap(byte[] response) {
+        return LOCAL.get().reset(response);
+    }
+
+    /**
+     * Status word của response (0 nếu response ngắn hơn 2 byte)
+     */
+    public static int sw(byte[] response) {
+        if (response == null || response.length < 2) return 0;
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+
+    public ApduResponse reset(byte[] response) {
+        this.raw = response;
+        this.dataLength = response == null ? 0 : Math.max(0, response.length - 2);
+        this.cursor = 0;
+        this.tlvLength = 0;
+        return this;
+    }
+
+    public int getSW() {
+        return sw(raw);
+    }
+
+    public boolean isSuccess() {
+        return getSW() == 0x9000;
+    }
+
+    public int dataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Mảng gốc (dữ liệu + SW) - chỉ đọc
+     */
+    public byte[] raw() {
+        return raw;
+    }
+
+    public byte getByte(int offset) {
+        checkRange(offset, 1);
+        return raw[offset];
+    }
+
+    public int getUnsignedByte(int offset) {
+        return getByte(offset) & 0xFF;
+    }
+
+    public int getShort(int offset) {
+        checkRange(offset, 2);
+        return ((raw[offset] & 0xFF) << 8) | (raw[offset + 1] & 0xFF);
+    }
+
+    public long getLong(int offset) {
+        checkRange(offset, 8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (raw[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Chép một đoạn dữ liệu vào mảng có sẵn của caller
+     */
+    public void copyData(int offset, byte[] dest, int destOffset, int len) {
+        checkRange(offset, len);
+        System.arraycopy(raw, offset, dest, destOffset, len);
+    }
+
+    /**
+     * Sao chép toàn bộ phần dữ liệu (cấp phát) - dùng khi kết quả cần giữ lại sau lệnh
+     */
+    public byte[] copyData() {
+        return copyData(0, dataLength);
+    }
+
+    public byte[] copyData(int offset, int len) {
+        byte[] out = new byte[len];
+        copyData(offset, out, 0, len);
+        return out;
+    }
+
+    /**
+     * Đọc chuỗi UTF-8 (bỏ byte 0x00 đệm và khoảng trắng hai đầu)
+     */
+    public String getString(int offset, int len) {
+        checkRange(offset, len);
+        int end = offset + len;
+        while (end > offset && raw[end - 1] == 0) end--;
+        return new String(raw, offset, end - offset, StandardCharsets.UTF_8).trim();
+    }
+
+    // --- TLV reader ---
+
+    public void rewindTlv() {
+        cursor = 0;
+        tlvLength = 0;
+    }
+
+    /**
+     * Đọc TLV kế tiếp. Trả về false khi hết dữ liệu hoặc TLV bị lỗi định dạng.
+     */
+    public boolean nextTlv() {
+        if (cursor + 2 > dataLength) return false;
+        int pos = cursor;
+        byte tag = raw[pos++];
+        int len = raw[pos++] & 0xFF;
+        if (len == 0x81) {
+            if (pos >= dataLength) return false;
+            len = raw[pos++] & 0xFF;
+        } else if (len == 0x82) {
+            if (pos + 2 > dataLength) return false;
+            len = ((raw[pos] & 0xFF) << 8) | (raw[pos + 1] & 0xFF);
+            pos += 2;
+        }
+        if (pos + len > dataLength) return false;
+        tlvTag = tag;
+        tlvOffset = pos;
+        tlvLength = len;
+        cursor = pos + len;
+        return true;
+    }
+
+    /**
+     * Tìm TLV có tag cho trước (từ vị trí con trỏ hiện tại)
+     */
+    public boolean seekTlv(byte tag) {
+        while (nextTlv()) {
+            if (tlvTag == tag) return true;
+        }
+        return false;
+    }
+
+    public byte tlvTag() {
+        return tlvTag;
+    }
+
+    public int tlvOffset() {
+        return tlvOffset;
+    }
+
+    public int tlvLength() {
+        return tlvLength;
+    }
+
+    private void checkRange(int offset, int len) {
+        if (offset < 0 || len < 0 || offset + len > dataLength) {
+            throw new IndexOutOfBoundsException("APDU response: offset " + offset + " + " + len
+                    + " vượt quá " + dataLength + " bytes dữ liệu");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Luồng ghi APDU duy nhất cho một thẻ (single-writer).
+ * Mọi APDU tới cùng một thẻ được xếp hàng và chạy tuần tự trên một luồng riêng,
+ * nên các trang GUI có thể gửi lệnh song song mà không đụng nhau và không chặn EDT.
+ * Lệnh INTERACTIVE (người dùng đang chờ: đăng nhập, thanh toán) được ưu tiên
+ * hơn lệnh BACKGROUND (làm mới số dư, đồng bộ); cùng mức ưu tiên thì theo thứ tự gửi.
+ */
+public class CardExecutor {
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+
+    private final String cardId;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile Thread cardThread;
+
+    public CardExecutor(String cardId) {
+        this.cardId = cardId;
+        this.executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(() -> {
+                        cardThread = Thread.currentThread();
+                        r.run();
+                    }, "card-" + cardId);
+                    t.setDaemon(true);
+                    return t;
+                });
+        // Thẻ rảnh lâu thì giải phóng luồng, tạo lại khi có lệnh mới
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public String getCardId() {
+        return cardId;
+    }
+
+    /**
+     * Đưa tác vụ vào hàng đợi của thẻ
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task, Priority priority) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(new CardTask<>(task, priority, sequence.getAndIncrement(), future));
+        } catch (RejectedExecutionException e) {
+            // Pool vừa gỡ thẻ (shutdown) - kiểm tra isShutdown() trước execute() vẫn có thể lọt
+            future.completeExceptionally(new IllegalStateException("Thẻ " + cardId + " đã bị gỡ khỏi pool", e));
+        }
+        return future;
+    }
+
+    /**
+     * Chạy đồng bộ: nếu đang ở luồng của thẻ thì chạy luôn (tránh tự chờ chính mình),
+     * ngược lại xếp hàng INTERACTIVE và chờ kết quả
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        if (isCardThread()) {
+            return task.call();
+        }
+        try {
+            return submit(task, Priority.INTERACTIVE).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    public boolean isCardThread() {
+        return Thread.currentThread() == cardThread;
+    }
+
+    /**
+     * Số lệnh đang chờ trong hàng đợi
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Dừng luồng của thẻ; lệnh còn trong hàng đợi bị hủy
+     */
+    public void shutdown() {
+        for (Runnable pending : executor.shutdownNow()) {
+            if (pending instanceof CardTask) {
+                ((CardTask<?>) pending).future.completeExceptionally(
+                        new IllegalStateException("Thẻ " + cardId + " đã bị gỡ khỏi pool"));
+            }
+        }
+    }
+
+    /**
+     * Tác vụ có thứ tự: ưu tiên trước, sau đó theo số thứ tự gửi (FIFO)
+     */
+    private static final class CardTask<T> implements Runnable, Comparable<CardTask<?>> {
+        private final Callable<T> task;
+        private final Priority priority;
+        private final long seq;
+        private final CompletableFuture<T> future;
+
+        CardTask(Callable<T> task, Priority priority, long seq, CompletableFuture<T> future) {
+            this.task = task;
+            this.priority = priority;
+            this.seq = seq;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) return; // Đã bị hủy khi còn trong hàng đợi
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+            }
+        }
+
+        @Override
+        public int compareTo(CardTask<?> other) {
+            int c = priority.compareTo(other.priority);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Giao thức TCP giữa máy quầy (RemoteCardTransport) và card-host (CardHostServer)
+ *
+ * Mỗi kết nối TCP là một phiên với đúng một thẻ. Frame:
+ *   [LENGTH (4)] [TYPE (1)] [REQUEST_ID (4)] [PAYLOAD...]   (LENGTH = 5 + độ dài payload)
+ * Client có thể gửi nhiều TRANSMIT liên tiếp không chờ (pipelining); card-host xử lý
+ * theo thứ tự và trả response kèm REQUEST_ID tương ứng. Chuỗi APDU phải chạy liền nhau
+ * (command chaining) đi trong một frame TRANSMIT_CHAIN và chạy trong một tác vụ duy nhất
+ * trên luồng của thẻ, giống CardPool.Lease + callOnCard khi chạy cục bộ.
+ *
+ * Xác thực: ngay khi nhận kết nối, card-host gửi HELLO (REQUEST_ID 0) kèm nonce ngẫu nhiên.
+ * Nếu card-host có shared secret (-Dcard.host.secret / biến môi trường CARD_HOST_SECRET),
+ * frame đầu tiên của client phải là AUTH = HMAC-SHA256(secret, nonce); sai hoặc thiếu ->
+ * card-host đóng kết nối. Secret không bao giờ đi trên đường truyền.
+ */
+public final class CardHostProtocol {
+
+    public static final int DEFAULT_PORT = 9025;
+    public static final int HEADER_LENGTH = 9;
+    public static final int MAX_FRAME_LENGTH = 70 * 1024;
+    public static final int NONCE_LENGTH = 16;
+    public static final String SECRET_PROPERTY = "card.host.secret";
+    public static final String SECRET_ENV = "CARD_HOST_SECRET";
+
+    // Client -> card-host
+    public static final byte OPEN = 0x01;              // payload: MSSV (UTF-8)
+    public static final byte TRANSMIT = 0x02;          // payload: APDU
+    public static final byte MARK_PROVISIONED = 0x03;
+    public static final byte CLOSE = 0x04;
+    public static final byte AUTH = 0x05;              // payload: HMAC-SHA256(secret, nonce)
+    public static final byte TRANSMIT_CHAIN = 0x06;    // payload: danh sách APDU (encodeList)
+    public static final byte SAVE_STATE = 0x07;        // -> ACK payload: [SAVED (1)]
+
+    // Card-host -> client
+    public static final byte OPENED = (byte)0x81;      // payload: [PROVISIONED (1)] [MSSV đã chuẩn hóa (UTF-8)]
+    public static final byte RESPONSE = (byte)0x82;    // payload: [DATA...] [SW1] [SW2]
+    public static final byte ACK = (byte)0x83;
+    public static final byte HELLO = (byte)0x84;       // payload: [AUTH_REQUIRED (1)] [NONCE (16)]
+    public static final byte CHAIN_RESPONSE = (byte)0x85; // payload: response của các lệnh đã chạy (encodeList)
+    public static final byte ERROR = (byte)0xFF;       // payload: thông báo lỗi (UTF-8)
+
+    private CardHostProtocol() {
+    }
+
+    /**
+     * Dựng một frame hoàn chỉnh (đã flip, sẵn sàng ghi ra socket)
+     */
+    public static ByteBuffer frame(byte type, int requestId, byte[] payload) {
+        int payloadLength = payload == null ? 0 : payload.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        buf.putInt(HEADER_LENGTH - 4 + payloadLength);
+        buf.put(type);
+        buf.putInt(requestId);
+        if (payloadLength > 0) {
+            buf.put(payload);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * [COUNT (2)] rồi mỗi phần tử [LEN (2)] [BYTES...]
+     */
+    public static byte[] encodeList(List<byte[]> items) {
+        int length = 2;
+        for (byte[] item : items) {
+            length += 2 + item.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putShort((short) items.size());
+        for (byte[] item : items) {
+            buf.putShort((short) item.length);
+            buf.put(item);
+        }
+        return buf.array();
+    }
+
+    public static List<byte[]> decodeList(byte[] payload) throws IOException {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(payload);
+            int count = buf.getShort() & 0xFFFF;
+            List<byte[]> items = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] item = new byte[buf.getShort() & 0xFFFF];
+                buf.get(item);
+                items.add(item);
+            }
+            return items;
+        } catch (RuntimeException e) {
+            throw new IOException("Danh sách APDU không hợp lệ", e);
+        }
+    }
+
+    /**
+     * Shared secret theo -Dcard.host.secret hoặc CARD_HOST_SECRET (null nếu không cấu hình)
+     */
+    public static byte[] sharedSecretFromEnvironment() {
+        String value = System.getProperty(SECRET_PROPERTY);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(SECRET_ENV);
+        }
+        return value == null || value.isEmpty() ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Bằng chứng client biết secret: HMAC-SHA256(secret, nonce)
+     */
+    static byte[] authProof(byte[] secret, byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 không khả dụng", e);
+        }
+    }
+
+    /**
+     * Đọc độ dài frame tại vị trí hiện tại của buffer; kiểm tra giới hạn
+     */
+    static int readLength(ByteBuffer buf) throws IOException {
+        int length = buf.getInt(buf.position());
+        if (length < HEADER_LENGTH - 4 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame không hợp lệ: " + length + " bytes");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,450 @@
+package service;
+
+import applet.AppletConstants;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Card-host: chạy nhiều LibraryCardApplet (CardPool) và phục vụ APDU qua TCP cho nhiều máy quầy
+ *
+ * Một luồng NIO (Selector) đọc/ghi mọi kết nối. Mỗi kết nối mượn đúng một thẻ từ pool;
+ * APDU được đẩy vào CardExecutor của thẻ (tuần tự, đúng thứ tự nhận) và response được
+ * ghi lại khi xong, nên client có thể pipeline nhiều lệnh. TRANSMIT_CHAIN chạy cả chuỗi
+ * trong một tác vụ của thẻ nên không lệnh nào chen vào giữa. Việc mượn thẻ (có thể phải chờ
+ * trạm khác trả thẻ) chạy trên luồng phụ để không chặn Selector.
+ *
+ * An toàn: chỉ được nghe trên địa chỉ loopback nếu không có shared secret; nghe trên mạng
+ * (VD 0.0.0.0) là tùy chọn và bắt buộc secret. Khi có secret, mỗi kết nối phải qua bước
+ * HELLO/AUTH (xem CardHostProtocol) trước khi được mở thẻ.
+ */
+public class CardHostServer implements Closeable {
+
+    private final CardPool pool;
+    private final byte[] sharedSecret;
+    private final SecureRandom random = new SecureRandom();
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final ExecutorService leaseWorkers;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong apduCount = new AtomicLong();
+    private volatile boolean running;
+    private Thread ioThread;
+
+    /**
+     * Secret lấy từ -Dcard.host.secret / CARD_HOST_SECRET (nếu có)
+     *
+     * @param bindAddress Địa chỉ lắng nghe (port 0 = port ngẫu nhiên, xem getPort())
+     */
+    public CardHostServer(CardPool pool, InetSocketAddress bindAddress) throws IOException {
+        this(pool, bindAddress, CardHostProtocol.sharedSecretFromEnvironment());
+    }
+
+    /**
+     * @param bindAddress  Địa chỉ lắng nghe (port 0 = port ngẫu nhiên, xem getPort())
+     * @param sharedSecret Secret cho bước AUTH; null = không xác thực (chỉ cho phép với loopback)
+     */
+    public CardHostServer(CardPool pool, InetSocketAddress bindAddress, byte[] sharedSecret) throws IOException {
+        boolean loopback = bindAddress.getAddress() != null && bindAddress.getAddress().isLoopbackAddress();
+        if (!loopback && sharedSecret == null) {
+            throw new IllegalArgumentException("Nghe trên " + bindAddress.getHostString()
+                    + " cần shared secret (-D" + CardHostProtocol.SECRET_PROPERTY
+                    + " hoặc " + CardHostProtocol.SECRET_ENV + ")");
+        }
+        this.pool = pool;
+        this.sharedSecret = sharedSecret != null ? sharedSecret.clone() : null;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(bindAddress);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.leaseWorkers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "card-host-lease");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        ioThread = new Thread(this::runLoop, "card-host-io");
+        ioThread.start();
+        System.out.println("[CardHost] Listening on " + serverChannel.socket().getLocalSocketAddress()
+                + (sharedSecret != null ? " (shared-secret auth)" : " (loopback only, no auth)"));
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getApduCount() {
+        return apduCount.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        if (ioThread != null && ioThread != Thread.currentThread()) {
+            try {
+                ioThread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("[CardHost] Error closing: " + e.getMessage());
+        }
+        leaseWorkers.shutdownNow();
+    }
+
+    private void runLoop() {
+        while (running) {
+            try {
+                selector.select();
+                Connection pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    if (pending.key.isValid()) {
+                        pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.onWritable();
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("[CardHost] Selector error: " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                // ClosedSelectorException khi đang tắt
+                if (running) throw e;
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        activeConnections.incrementAndGet();
+        conn.hello();
+    }
+
+    /**
+     * Một máy quầy đang kết nối (một phiên thẻ)
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private volatile CardPool.Lease lease;
+        private volatile boolean closed;
+        // Chỉ luồng I/O đọc/ghi
+        private byte[] nonce;
+        private boolean authenticated = sharedSecret == null;
+        private boolean closeAfterFlush;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void hello() {
+            nonce = new byte[CardHostProtocol.NONCE_LENGTH];
+            random.nextBytes(nonce);
+            byte[] payload = new byte[1 + nonce.length];
+            payload[0] = sharedSecret != null ? (byte)1 : (byte)0;
+            System.arraycopy(nonce, 0, payload, 1, nonce.length);
+            send(CardHostProtocol.HELLO, 0, payload);
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (!closeAfterFlush && in.remaining() >= 4) {
+                int length = CardHostProtocol.readLength(in);
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {
+                        // Frame lớn hơn buffer -> mở rộng
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                        bigger.put(in);
+                        in = bigger;
+                        return;
+                    }
+                    break;
+                }
+                in.getInt();
+                byte type = in.get();
+                int requestId = in.getInt();
+                byte[] payload = new byte[length - (CardHostProtocol.HEADER_LENGTH - 4)];
+                in.get(payload);
+                handle(type, requestId, payload);
+            }
+            in.compact();
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer buf;
+            while ((buf = out.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    return;     // Socket đầy, chờ OP_WRITE tiếp
+                }
+                out.poll();
+            }
+            if (closeAfterFlush) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // Response mới có thể được thêm giữa peek() và interestOps() -> kiểm tra lại
+            if (!out.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void handle(byte type, int requestId, byte[] payload) {
+            if (!authenticated) {
+                authenticate(type, requestId, payload);
+                return;
+            }
+            switch (type) {
+                case CardHostProtocol.OPEN:
+                    open(requestId, new String(payload, StandardCharsets.UTF_8));
+                    break;
+                case CardHostProtocol.TRANSMIT:
+                    transmit(requestId, payload);
+                    break;
+                case CardHostProtocol.TRANSMIT_CHAIN:
+                    transmitChain(requestId, payload);
+                    break;
+                case CardHostProtocol.MARK_PROVISIONED:
+                    if (lease != null) lease.markProvisioned();
+                    send(CardHostProtocol.ACK, requestId, null);
+                    break;
+                case CardHostProtocol.SAVE_STATE:
+                    saveState(requestId);
+                    break;
+                case CardHostProtocol.CLOSE:
+                    releaseLease();
+                    send(CardHostProtocol.ACK, requestId, null);
+                    break;
+                default:
+                    sendError(requestId, "Unknown frame type " + type);
+            }
+        }
+
+        private void authenticate(byte type, int requestId, byte[] payload) {
+            byte[] expected = CardHostProtocol.authProof(sharedSecret, nonce);
+            if (type == CardHostProtocol.AUTH && MessageDigest.isEqual(expected, payload)) {
+                authenticated = true;
+                send(CardHostProtocol.ACK, requestId, null);
+                return;
+            }
+            System.out.println("[CardHost] Rejected unauthenticated connection from " + remoteAddress());
+            sendError(requestId, "Authentication required");
+            closeAfterFlush = true;     // Đóng sau khi gửi xong ERROR
+        }
+
+        private String remoteAddress() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "?";
+            }
+        }
+
+        private void open(int requestId, String studentId) {
+            if (lease != null) {
+                sendError(requestId, "Connection already holds card " + lease.getStudentId());
+                return;
+            }
+            leaseWorkers.execute(() -> {
+                try {
+                    CardPool.Lease acquired = pool.lease(studentId);
+                    synchronized (Connection.this) {
+                        if (closed) {
+                            acquired.close();   // Client đã ngắt trong lúc chờ thẻ
+                            return;
+                        }
+                        lease = acquired;
+                    }
+                    byte[] id = acquired.getStudentId().getBytes(StandardCharsets.UTF_8);
+                    byte[] payload = new byte[1 + id.length];
+                    payload[0] = acquired.isProvisioned() ? (byte)1 : (byte)0;
+                    System.arraycopy(id, 0, payload, 1, id.length);
+                    send(CardHostProtocol.OPENED, requestId, payload);
+                } catch (Throwable e) {
+                    // Kể cả Error (ví dụ lỗi nạp applet) -> client không phải chờ tới timeout
+                    sendError(requestId, String.valueOf(e.getMessage()));
+                }
+            });
+        }
+
+        private void transmit(int requestId, byte[] command) {
+            CardPool.Lease current = lease;
+            if (current == null) {
+                sendError(requestId, "No card opened on this connection");
+                return;
+            }
+            if (isHostOnly(command)) {
+                rejectHostOnly(requestId, command);
+                return;
+            }
+            apduCount.incrementAndGet();
+            current.getExecutor().submit(() -> current.transmit(command), CardExecutor.Priority.INTERACTIVE)
+                    .whenComplete((resp, e) -> {
+                        if (e != null) {
+                            sendError(requestId, String.valueOf(e.getMessage()));
+                        } else {
+                            send(CardHostProtocol.RESPONSE, requestId, resp);
+                        }
+                    });
+        }
+
+        private void transmitChain(int requestId, byte[] payload) {
+            CardPool.Lease current = lease;
+            if (current == null) {
+                sendError(requestId, "No card opened on this connection");
+                return;
+            }
+            List<byte[]> commands;
+            try {
+                commands = CardHostProtocol.decodeList(payload);
+            } catch (IOException e) {
+                sendError(requestId, e.getMessage());
+                return;
+            }
+            for (byte[] command : commands) {
+                if (isHostOnly(command)) {
+                    rejectHostOnly(requestId, command);
+                    return;
+                }
+            }
+            apduCount.addAndGet(commands.size());
+            // Lease.transmitChain chạy cả chuỗi trong một tác vụ trên luồng của thẻ
+            current.getExecutor().submit(() -> current.transmitChain(commands), CardExecutor.Priority.INTERACTIVE)
+                    .whenComplete((responses, e) -> {
+                        if (e != null) {
+                            sendError(requestId, String.valueOf(e.getMessage()));
+                        } else {
+                            send(CardHostProtocol.CHAIN_RESPONSE, requestId, CardHostProtocol.encodeList(responses));
+                        }
+                    });
+        }
+
+        private void saveState(int requestId) {
+            CardPool.Lease current = lease;
+            if (current == null) {
+                sendError(requestId, "No card opened on this connection");
+                return;
+            }
+            current.getExecutor().submit(current::saveState, CardExecutor.Priority.INTERACTIVE)
+                    .whenComplete((saved, e) -> {
+                        if (e != null) {
+                            sendError(requestId, String.valueOf(e.getMessage()));
+                        } else {
+                            send(CardHostProtocol.ACK, requestId, new byte[] { saved ? (byte)1 : (byte)0 });
+                        }
+                    });
+        }
+
+        // Export/import trạng thái (khóa riêng, PIN, số dư) chỉ do pool trong tiến trình host gửi
+        private boolean isHostOnly(byte[] command) {
+            return command.length > 1 && (command[1] == AppletConstants.INS_EXPORT_STATE
+                    || command[1] == AppletConstants.INS_IMPORT_STATE);
+        }
+
+        private void rejectHostOnly(int requestId, byte[] command) {
+            System.out.println(String.format("[CardHost] Rejected INS %02X from %s", command[1] & 0xFF, remoteAddress()));
+            sendError(requestId, String.format("INS %02X is not allowed over card-host", command[1] & 0xFF));
+        }
+
+        private void sendError(int requestId, String message) {
+            send(CardHostProtocol.ERROR, requestId,
+                    (message != null ? message : "error").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void send(byte type, int requestId, byte[] payload) {
+            if (closed) return;
+            out.add(CardHostProtocol.frame(type, requestId, payload));
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        private synchronized void releaseLease() {
+            CardPool.Lease current = lease;
+            lease = null;
+            if (current != null) {
+                current.close();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            activeConnections.decrementAndGet();
+            releaseLease();
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Bỏ qua
+            }
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package service;
+
+import com.licel.jcardsim.base.Simulator;
+import applet.AppletConstants;
+import javacard.framework.AID;
+import utils.CardStateManager;
+
+import java.io.ByteArrayOutputStream;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool thẻ ảo (JCardSim) theo MSSV
+ * Mỗi thẻ trong pool có Simulator + LibraryCardApplet riêng. Mỗi phiên đăng nhập
+ * mượn (lease) đúng một thẻ và trả lại pool khi đăng xuất, nên nhiều trạm đọc thẻ
+ * trong cùng JVM có thể gửi APDU song song mà không phải cài lại applet.
+ */
+public class CardPool implements CardTransport {
+
+    public static final String DEFAULT_CARD_ID = "DEFAULT";
+    private static final int DEFAULT_MAX_CARDS = 256;
+    private static final long DEFAULT_LEASE_TIMEOUT_MS = 5000;
+
+    private static final byte[] RESET_SESSION_COMMAND = {0x00, AppletConstants.INS_RESET_SESSION, 0x00, 0x00, 0x00};
+
+    private static CardPool sharedInstance;
+
+    private final int maxCards;
+    private final boolean persistent;  // Lưu / nạp EEPROM snapshot (CardStateManager)
+    private final Object lock = new Object();
+    // access-order = true -> duyệt từ thẻ ít dùng nhất (LRU) khi cần giải phóng chỗ
+    private final LinkedHashMap<String, PooledCard> cards = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Thống kê
+    private final AtomicLong leaseCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong createCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public CardPool() {
+        this(DEFAULT_MAX_CARDS);
+    }
+
+    public CardPool(int maxCards) {
+        this(maxCards, false);
+    }
+
+    /**
+     * @param persistent true -> thẻ mới được nạp lại từ snapshot đã lưu, và trạng thái thẻ
+     *                   được lưu (nền) mỗi khi trả về pool
+     */
+    public CardPool(int maxCards, boolean persistent) {
+        if (maxCards <= 0) {
+            throw new IllegalArgumentException("maxCards must be positive");
+        }
+        this.maxCards = maxCards;
+        this.persistent = persistent;
+    }
+
+    /**
+     * Pool dùng chung cho mọi SimulatorService trong JVM
+     */
+    public static synchronized CardPool getShared() {
+        if (sharedInstance == null) {
+            sharedInstance = new CardPool(DEFAULT_MAX_CARDS, true);
+        }
+        return sharedInstance;
+    }
+
+    @Override
+    public CardSession open(String studentId) throws Exception {
+        return lease(studentId);
+    }
+
+    @Override
+    public String describe() {
+        return "JCardSim trong tiến trình (" + size() + "/" + maxCards + " thẻ)";
+    }
+
+    /**
+     * Mượn thẻ của sinh viên (timeout mặc định)
+     */
+    public Lease lease(String studentId) throws Exception {
+        return lease(studentId, DEFAULT_LEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mượn thẻ của sinh viên.
+     * Nếu thẻ đang được phiên khác dùng (hoặc pool đã đầy) thì chờ tối đa timeout.
+     * Thẻ chưa có trong pool sẽ được tạo mới (cài applet + select).
+     */
+    public Lease lease(String studentId, long timeout, TimeUnit unit) throws Exception {
+        String key = normalize(studentId);
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        boolean waited = false;
+        PooledCard card;
+        boolean reused;
+
+        synchronized (lock) {
+            while (true) {
+                card = cards.get(key);
+                if (card != null) {
+                    if (!card.leased) {
+                        card.leased = true;
+                        reused = true;
+                        break;
+                    }
+                } else if (cards.size() < maxCards || evictIdleCard()) {
+                    card = new PooledCard(key);
+                    card.leased = true;
+                    cards.put(key, card);
+                    reused = false;
+                    break;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    recordWait(System.nanoTime() - start);
+                    throw new TimeoutException("Thẻ " + key + " đang được sử dụng ở trạm khác");
+                }
+                waited = true;
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+        }
+
+        if (!reused) {
+            // Cài applet ngoài lock - thẻ đã được đánh dấu leased nên phiên khác sẽ chờ
+            try {
+                card.install();
+                if (persistent) {
+                    card.restoreState();
+                }
+            } catch (Exception e) {
+                synchronized (lock) {
+                    cards.remove(key);
+                    lock.notifyAll();
+                }
+                card.executor.shutdown();
+                throw e;
+            }
+            createCount.incrementAndGet();
+        } else {
+            reuseCount.incrementAndGet();
+        }
+
+        leaseCount.incrementAndGet();
+        if (waited) {
+            recordWait(System.nanoTime() - start);
+        }
+        return new Lease(this, card);
+    }
+
+    /**
+     * Trả thẻ về pool (gọi qua Lease.close())
+     */
+    void release(Lease lease) {
+        PooledCard card = lease.card;
+        // Kết thúc phiên trên applet (hủy xác thực PIN) nhưng giữ applet đã cài - lần đăng nhập sau
+        // không phải cài lại / tạo PIN. INTERACTIVE để chạy trước mọi lệnh của phiên kế tiếp.
+        card.executor.submit(() -> card.exchange(RESET_SESSION_COMMAND), CardExecutor.Priority.INTERACTIVE);
+        if (persistent && card.provisioned) {
+            // Lưu trạng thái trên luồng của thẻ (xếp sau các lệnh đang chờ), không chặn đăng xuất
+            card.pendingSave = card.executor.submit(() -> {
+                card.saveState();
+                return null;
+            }, CardExecutor.Priority.BACKGROUND).whenComplete((r, e) -> {
+                synchronized (lock) {
+                    lock.notifyAll();   // Thẻ có thể bị thay thế được rồi
+                }
+            });
+        }
+        synchronized (lock) {
+            lease.card.leased = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Bỏ thẻ rảnh ít dùng nhất để lấy chỗ. Gọi khi đang giữ lock.
+     * Lưu ý: pool không persistent thì trạng thái trên thẻ bị bỏ sẽ mất (giống rút thẻ khỏi đầu đọc);
+     * pool persistent bỏ qua thẻ còn đang lưu snapshot.
+     */
+    private boolean evictIdleCard() {
+        Iterator<Map.Entry<String, PooledCard>> it = cards.entrySet().iterator();
+        while (it.hasNext()) {
+            PooledCard candidate = it.next().getValue();
+            CompletableFuture<?> save = candidate.pendingSave;
+            if (!candidate.leased && (save == null || save.isDone())) {
+                it.remove();
+                candidate.executor.shutdown();
+                evictionCount.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordWait(long nanos) {
+        waitCount.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        long prev;
+        do {
+            prev = maxWaitNanos.get();
+        } while (nanos > prev && !maxWaitNanos.compareAndSet(prev, nanos));
+    }
+
+    private static String normalize(String studentId) {
+        if (studentId == null || studentId.trim().isEmpty()) {
+            return DEFAULT_CARD_ID;
+        }
+        return studentId.trim().toUpperCase();
+    }
+
+    /**
+     * Số thẻ đang nằm trong pool
+     */
+    public int size() {
+        synchronized (lock) {
+            return cards.size();
+        }
+    }
+
+    /**
+     * Ảnh chụp thống kê hiện tại
+     */
+    public Stats getStats() {
+        int size;
+        int leased = 0;
+        synchronized (lock) {
+            size = cards.size();
+            for (PooledCard card : cards.values()) {
+                if (card.leased) leased++;
+            }
+        }
+        return new Stats(size, leased, leaseCount.get(), reuseCount.get(), createCount.get(),
+                evictionCount.get(), waitCount.get(), totalWaitNanos.get(), maxWaitNanos.get());
+    }
+
+    /**
+     * Một thẻ ảo trong pool: Simulator + applet đã cài và select
+     */
+    private static final class PooledCard {
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        private final String studentId;
+        private final CardExecutor executor;
+        // Khóa export/import trạng thái của lần cài applet này: chỉ nằm trong RAM của tiến trình host
+        private final byte[] stateKey = new byte[AppletConstants.STATE_KEY_LENGTH];
+        private volatile Simulator simulator;
+        private boolean leased;             // guarded by CardPool.lock
+        private volatile boolean provisioned;
+        private volatile byte[] rsaPublicKey;   // Public key không đổi sau khi tạo -> cache theo thẻ
+        private volatile CompletableFuture<?> pendingSave;
+
+        PooledCard(String studentId) {
+            this.studentId = studentId;
+            this.executor = new CardExecutor(studentId);
+            RANDOM.nextBytes(stateKey);
+        }
+
+        void install() throws Exception {
+            Simulator sim = new Simulator();
+            AID aid = new AID(AppletConstants.APPLET_AID, (short)0, (byte)AppletConstants.APPLET_AID.length);
+            @SuppressWarnings("unchecked")
+            Class<? extends javacard.framework.Applet> appletClass =
+                    (Class<? extends javacard.framework.Applet>) Class.forName("applet.LibraryCardApplet");
+            sim.installApplet(aid, appletClass, stateKey, (short)0, (byte)stateKey.length);
+            sim.selectApplet(aid);
+            this.simulator = sim;
+        }
+
+        /**
+         * Nạp EEPROM snapshot đã lưu (nếu có) vào applet vừa cài - thay cho tạo PIN / sinh khóa RSA
+         */
+        void restoreState() {
+            byte[] state = CardStateManager.loadCardState(studentId);
+            if (state == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            byte[] resp = importState(state);
+            if (ApduResponse.sw(resp) == 0x9000) {
+                provisioned = true;
+                System.out.println("[CardPool] Restored state for " + studentId + " in "
+                        + (System.nanoTime() - start) / 1000 + " µs");
+            } else {
+                System.out.println("[CardPool] Snapshot of " + studentId + " rejected: "
+                        + String.format("%04X", ApduResponse.sw(resp)));
+            }
+        }
+
+        /**
+         * INS_IMPORT_STATE với khóa snapshot của thẻ (chạy trên luồng của thẻ)
+         * @return response của block cuối đã gửi
+         */
+        byte[] importState(byte[] state) {
+            List<byte[]> blocks = ApduBuilder.get().begin(AppletConstants.INS_IMPORT_STATE)
+                    .put(stateKey)
+                    .put(state)
+                    .buildChain();
+            byte[] resp = null;
+            for (byte[] block : blocks) {
+                resp = exchange(block);
+                if (ApduResponse.sw(resp) != 0x9000) break;
+            }
+            return resp;
+        }
+
+        /**
+         * Xuất trạng thái applet và ghi xuống đĩa (chạy trên luồng của thẻ)
+         */
+        boolean saveState() {
+            byte[] resp = exchange(ApduBuilder.get().begin(AppletConstants.INS_EXPORT_STATE)
+                    .put(stateKey)
+                    .build());
+            ApduResponse data = ApduResponse.wrap(resp);
+            if (!data.isSuccess()) {
+                System.out.println("[CardPool] Export state failed for " + studentId + ": "
+                        + String.format("%04X", data.getSW()));
+                return false;
+            }
+            return CardStateManager.saveCardState(studentId, data.copyData());
+        }
+
+        /**
+         * Gửi APDU và tự lấy phần response còn lại khi thẻ trả SW 61xx (GET RESPONSE),
+         * ghép thành một response [DATA...] [SW1] [SW2]. Chạy trọn trên luồng của thẻ.
+         */
+        byte[] exchange(byte[] command) {
+            byte[] response = simulator.transmitCommand(command);
+            if (response == null || response.length < 2 || response[response.length - 2] != (byte)0x61) {
+                return response;
+            }
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream(512);
+            while (response.length >= 2 && response[response.length - 2] == (byte)0x61) {
+                data.write(response, 0, response.length - 2);
+                byte[] getResponse = {(byte)(command[0] & 0x03), AppletConstants.INS_GET_RESPONSE,
+                        0x00, 0x00, response[response.length - 1]};
+                response = simulator.transmitCommand(getResponse);
+            }
+            data.write(response, 0, response.length);
+            return data.toByteArray();
+        }
+    }
+
+    /**
+     * Quyền sử dụng độc quyền một thẻ trong một phiên.
+     * Gọi close() khi đăng xuất để trả thẻ về pool.
+     */
+    public static final class Lease implements CardSession {
+        private final CardPool pool;
+        private final PooledCard card;
+        private volatile boolean released = false;
+
+        private Lease(CardPool pool, PooledCard card) {
+            this.pool = pool;
+            this.card = card;
+        }
+
+        public String getStudentId() {
+            return card.studentId;
+        }
+
+        /**
+         * Gửi APDU tới thẻ đang mượn (chạy trên luồng của thẻ, chờ kết quả)
+         */
+        public byte[] transmit(byte[] command) {
+            if (released) {
+                throw new IllegalStateException("Lease đã được trả lại pool");
+            }
+            if (card.executor.isCardThread()) {
+                return card.exchange(command);
+            }
+            try {
+                return card.executor.call(() -> card.exchange(command));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Lỗi gửi APDU tới thẻ " + card.studentId, e);
+            }
+        }
+
+        /**
+         * Hàng đợi APDU của thẻ - dùng để gửi bất đồng bộ
+         */
+        public CardExecutor getExecutor() {
+            return card.executor;
+        }
+
+        /**
+         * Thẻ đã được khởi tạo (tạo PIN mặc định...) ở phiên trước chưa
+         */
+        public boolean isProvisioned() {
+            return card.provisioned;
+        }
+
+        public void markProvisioned() {
+            card.provisioned = true;
+        }
+
+        /**
+         * Lưu snapshot ngay trên luồng của thẻ (pool không persistent -> false)
+         */
+        @Override
+        public boolean saveState() throws Exception {
+            if (released) {
+                throw new IllegalStateException("Lease đã được trả lại pool");
+            }
+            if (!pool.persistent) {
+                return false;
+            }
+            return card.executor.call(card::saveState);
+        }
+
+        /**
+         * [NEW] Nạp snapshot cho sẵn vào thẻ đang mượn (tools.ApduReplayRunner) - chỉ trong tiến trình,
+         * card-host không chuyển tiếp export/import
+         * @return true nếu thẻ nhận snapshot
+         */
+        public boolean importState(byte[] state) throws Exception {
+            if (released) {
+                throw new IllegalStateException("Lease đã được trả lại pool");
+            }
+            return card.executor.call(() -> ApduResponse.sw(card.importState(state)) == 0x9000);
+        }
+
+        /**
+         * Public key RSA đã đọc từ thẻ (null nếu chưa đọc / thẻ chưa có keypair)
+         */
+        public byte[] getCachedPublicKey() {
+            byte[] key = card.rsaPublicKey;
+            return key != null ? key.clone() : null;
+        }
+
+        public void cachePublicKey(byte[] publicKey) {
+            card.rsaPublicKey = publicKey != null ? publicKey.clone() : null;
+        }
+
+        public boolean isReleased() {
+            return released;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                pool.release(this);
+            }
+        }
+    }
+
+    /**
+     * Thống kê pool: tỉ lệ dùng lại thẻ và thời gian chờ lease
+     */
+    public static final class Stats {
+        private final int size;
+        private final int leased;
+        private final long leaseCount;
+        private final long reuseCount;
+        private final long createCount;
+        private final long evictionCount;
+        private final long waitCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        Stats(int size, int leased, long leaseCount, long reuseCount, long createCount,
+              long evictionCount, long waitCount, long totalWaitNanos, long maxWaitNanos) {
+            this.size = size;
+            this.leased = leased;
+            this.leaseCount = leaseCount;
+            this.reuseCount = reuseCount;
+            this.createCount = createCount;
+            this.evictionCount = evictionCount;
+            this.waitCount = waitCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public int getSize() { return size; }
+        public int getLeased() { return leased; }
+        public long getLeaseCount() { return leaseCount; }
+        public long getReuseCount() { return reuseCount; }
+        public long getCreateCount() { return createCount; }
+        public long getEvictionCount() { return evictionCount; }
+        public long getWaitCount() { return waitCount; }
+
+        public double getReuseRatio() {
+            return leaseCount == 0 ? 0.0 : (double) reuseCount / leaseCount;
+        }
+
+        public double getAverageWaitMillis() {
+            return waitCount == 0 ? 0.0 : totalWaitNanos / 1_000_000.0 / waitCount;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitNanos / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("CardPool{size=%d, leased=%d, leases=%d, reused=%d (%.1f%%), created=%d, " +
+                            "evicted=%d, waits=%d, avgWait=%.2fms, maxWait=%.2fms}",
+                    size, leased, leaseCount, reuseCount, getReuseRatio() * 100, createCount,
+                    evictionCount, waitCount, getAverageWaitMillis(), getMaxWaitMillis());
+        }
+    }
+}
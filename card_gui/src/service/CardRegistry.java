@@ -0,0 +1,113 @@
+package service;
+
+import models.CardInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Danh sách thẻ trong bộ nhớ (hiển thị GUI), tra cứu O(1) theo MSSV
+ *
+ * - Đọc (get/contains) không khóa: ConcurrentHashMap theo MSSV (không phân biệt hoa/thường).
+ * - snapshot() trả về danh sách bất biến theo thứ tự thêm vào; chỉ dựng lại sau khi có
+ *   thay đổi, nên nhiều lần đọc liên tiếp không sao chép lại cả danh sách.
+ * - upsertAll() cập nhật cả một trang thẻ từ server trong một lần khóa.
+ * - search() dùng CardSearchIndex (n-gram, bỏ dấu), cập nhật cùng lúc với danh sách.
+ */
+public class CardRegistry {
+
+    private final Map<String, CardInfo> index = new ConcurrentHashMap<>();
+    // Thứ tự hiển thị; chỉ sửa khi giữ khóa this
+    private final List<String> order = new ArrayList<>();
+    private volatile List<CardInfo> snapshot = Collections.emptyList();
+    private volatile boolean dirty = false;
+    private final CardSearchIndex searchIndex = new CardSearchIndex();
+
+    private static String key(String studentId) {
+        return studentId == null ? "" : studentId.trim().toUpperCase(Locale.ROOT);
+    }
+
+    public CardInfo get(String studentId) {
+        return index.get(key(studentId));
+    }
+
+    public boolean contains(String studentId) {
+        return index.containsKey(key(studentId));
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Thêm mới hoặc thay thế thẻ cùng MSSV (giữ nguyên vị trí cũ)
+     */
+    public synchronized void upsert(CardInfo card) {
+        put(card);
+        dirty = true;
+    }
+
+    /**
+     * Thêm/thay thế nhiều thẻ trong một lần (đồng bộ một trang từ server)
+     */
+    public synchronized void upsertAll(Collection<CardInfo> cards) {
+        for (CardInfo card : cards) {
+            put(card);
+        }
+        dirty = true;
+    }
+
+    private void put(CardInfo card) {
+        String k = key(card.getStudentId());
+        if (index.put(k, card) == null) {
+            order.add(k);
+        }
+        searchIndex.update(card);
+    }
+
+    /**
+     * Đánh chỉ mục lại sau khi sửa trực tiếp một thẻ (ví dụ khóa / mở khóa)
+     */
+    public void reindex(CardInfo card) {
+        searchIndex.update(card);
+    }
+
+    /**
+     * Tìm theo MSSV / họ tên, không phân biệt dấu; kết quả đã xếp hạng
+     */
+    public List<CardInfo> search(String keyword, int limit) {
+        return searchIndex.search(keyword, limit);
+    }
+
+    /**
+     * Tìm kèm bộ lọc chính xác (trạng thái, tập MSSV); null = không lọc theo trường đó
+     */
+    public List<CardInfo> search(String keyword, String status, Collection<String> studentIds, int limit) {
+        return searchIndex.search(keyword, status, studentIds, limit);
+    }
+
+    /**
+     * Ảnh chụp bất biến theo thứ tự thêm vào
+     */
+    public List<CardInfo> snapshot() {
+        if (!dirty) {
+            return snapshot;
+        }
+        synchronized (this) {
+            if (dirty) {
+                List<CardInfo> cards = new ArrayList<>(order.size());
+                for (String k : order) {
+                    cards.add(index.get(k));
+                }
+                snapshot = Collections.unmodifiableList(cards);
+                dirty = false;
+            }
+            return snapshot;
+        }
+    }
+}
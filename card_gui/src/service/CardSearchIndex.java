@@ -0,0 +1,359 @@
+package service;
+
+import models.CardInfo;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * Chỉ mục n-gram (bỏ dấu tiếng Việt) cho tìm kiếm thẻ theo MSSV và họ tên
+ *
+ * Mỗi trường được chuẩn hóa (chữ thường, bỏ dấu, đ -> d) rồi tách thành bigram/trigram
+ * và ký tự đầu mỗi từ, posting riêng cho từng trường. Kết quả xếp hạng:
+ * trùng MSSV > đầu MSSV > đầu một từ trong tên > một phần MSSV > một phần tên,
+ * cùng hạng thì theo thứ tự thêm vào. Trạng thái không nằm trong chỉ mục n-gram (nếu không
+ * "do", "Hồ", "Khoa" sẽ khớp mọi thẻ "Hoạt động"/"Khóa"); nó là bộ lọc so khớp nguyên
+ * giá trị, áp dụng ngay trong từng hạng trước khi đếm kết quả. Mỗi hạng duyệt giao các posting (tăng dần theo doc id)
+ * một cách lười và dừng ngay khi đủ số kết quả, nên truy vấn phổ biến như "nguyen" không
+ * phải kiểm tra hết mọi thẻ khớp. Cập nhật từng thẻ tại chỗ (chỉ sửa posting của n-gram đổi).
+ */
+public class CardSearchIndex {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final char[] FOLD = buildFoldTable();
+
+    // Tiền tố khóa posting theo trường
+    private static final char FIELD_ID = 'i';
+    private static final char FIELD_NAME = 'n';
+    private static final char WORD_START = '^';
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private final List<Doc> docs = new ArrayList<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    /**
+     * "Nguyễn Văn Đạt" -> "nguyen van dat" (một lượt qua chuỗi, tra bảng FOLD)
+     */
+    public static String fold(String text) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean space = true;   // Bỏ khoảng trắng đầu chuỗi và gộp khoảng trắng liên tiếp
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            char f = c < FOLD.length ? FOLD[c] : Character.toLowerCase(c);
+            if (f == 0) {
+                continue;       // Dấu kết hợp (NFD)
+            }
+            if (Character.isWhitespace(f)) {
+                if (!space) sb.append(' ');
+                space = true;
+            } else {
+                sb.append(f);
+                space = false;
+            }
+        }
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == ' ') {
+            sb.setLength(len - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Bảng ký tự -> ký tự thường không dấu cho Latin (gồm Latin Extended Additional
+     * U+1E00-U+1EFF chứa các chữ tiếng Việt); 0 = dấu kết hợp, bỏ qua
+     */
+    private static char[] buildFoldTable() {
+        char[] table = new char[0x1F00];
+        for (char c = 0; c < table.length; c++) {
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                table[c] = 0;
+                continue;
+            }
+            String base = COMBINING_MARKS.matcher(
+                    Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD)).replaceAll("");
+            char f = base.length() == 1 ? base.charAt(0) : c;
+            if (f == 'đ' || f == 'Đ') f = 'd';
+            table[c] = Character.toLowerCase(f);
+        }
+        return table;
+    }
+
+    /**
+     * Thêm mới hoặc đánh chỉ mục lại một thẻ (sau khi sửa tên / khóa / mở khóa)
+     */
+    public void update(CardInfo card) {
+        Doc fresh = new Doc(card);
+        lock.writeLock().lock();
+        try {
+            Integer id = docIds.get(fresh.id);
+            if (id == null) {
+                int newId = docs.size();
+                docIds.put(fresh.id, newId);
+                docs.add(fresh);
+                for (String gram : fresh.grams()) {
+                    postings.computeIfAbsent(gram, g -> new Postings()).add(newId);
+                }
+                return;
+            }
+            Doc old = docs.get(id);
+            docs.set(id, fresh);
+            if (old.sameText(fresh)) {
+                return;
+            }
+            Set<String> oldGrams = old.grams();
+            Set<String> newGrams = fresh.grams();
+            for (String gram : oldGrams) {
+                if (!newGrams.contains(gram)) {
+                    Postings p = postings.get(gram);
+                    p.remove(id);
+                    if (p.size == 0) postings.remove(gram);
+                }
+            }
+            for (String gram : newGrams) {
+                if (!oldGrams.contains(gram)) {
+                    postings.computeIfAbsent(gram, g -> new Postings()).add(id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tìm thẻ theo từ khóa (có dấu hoặc không), kết quả đã xếp hạng
+     *
+     * @param limit Số kết quả tối đa (<= 0: không giới hạn)
+     */
+    public List<CardInfo> search(String keyword, int limit) {
+        return search(keyword, null, null, limit);
+    }
+
+    /**
+     * Như search(keyword, limit) nhưng chỉ lấy thẻ thỏa các bộ lọc chính xác
+     *
+     * @param status     Trạng thái (so khớp nguyên giá trị, không phân biệt dấu); null = mọi trạng thái
+     * @param studentIds Chỉ lấy các MSSV này (VD: thẻ của trang đang hiển thị); null = mọi thẻ
+     * @param limit      Số kết quả tối đa (<= 0: không giới hạn)
+     */
+    public List<CardInfo> search(String keyword, String status, Collection<String> studentIds, int limit) {
+        String q = fold(keyword);
+        if (q.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String wordStart = " " + q;
+        boolean single = q.length() == 1;   // 1 ký tự: chỉ khớp đầu từ
+        int max = limit > 0 ? limit : Integer.MAX_VALUE;
+        if (studentIds != null) {
+            max = Math.min(max, studentIds.size());
+        }
+        Results results = new Results(max);
+
+        lock.readLock().lock();
+        try {
+            IntPredicate accept = filter(status, studentIds);
+            if (accept == null || results.isFull()) {
+                return Collections.emptyList();
+            }
+            Integer exact = docIds.get(q);
+            if (exact != null && accept.test(exact)) {
+                results.add(exact);
+            }
+            if (!results.isFull()) {
+                scan(FIELD_ID, q, id -> !(docs.get(id).id.startsWith(q) && accept.test(id)) || results.add(id));
+            }
+            if (!results.isFull()) {
+                scan(FIELD_NAME, q, id -> {
+                    String name = docs.get(id).name;
+                    return !((name.startsWith(q) || name.contains(wordStart)) && accept.test(id))
+                            || results.add(id);
+                });
+            }
+            if (!single && !results.isFull()) {
+                scan(FIELD_ID, q, id -> !(docs.get(id).id.contains(q) && accept.test(id)) || results.add(id));
+            }
+            if (!single && !results.isFull()) {
+                scan(FIELD_NAME, q, id -> !(docs.get(id).name.contains(q) && accept.test(id)) || results.add(id));
+            }
+            List<CardInfo> cards = new ArrayList<>(results.ids.size());
+            for (int id : results.ids) {
+                cards.add(docs.get(id).card);
+            }
+            return cards;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bộ lọc chính xác theo doc id (gọi khi đang giữ read lock);
+     * null = không thẻ nào thỏa (VD: mọi MSSV trong studentIds đều chưa có trong chỉ mục)
+     */
+    private IntPredicate filter(String status, Collection<String> studentIds) {
+        IntPredicate accept = id -> true;
+        if (studentIds != null) {
+            Set<Integer> allowed = new HashSet<>();
+            for (String studentId : studentIds) {
+                Integer id = docIds.get(fold(studentId));
+                if (id != null) allowed.add(id);
+            }
+            if (allowed.isEmpty()) return null;
+            accept = allowed::contains;
+        }
+        if (status != null) {
+            String s = fold(status);
+            accept = accept.and(id -> docs.get(id).status.equals(s));
+        }
+        return accept;
+    }
+
+    /**
+     * Duyệt (tăng dần) các doc có mọi n-gram của q trong trường field;
+     * visitor trả về false để dừng
+     */
+    private void scan(char field, String q, IntPredicate visitor) {
+        List<Postings> lists = new ArrayList<>();
+        if (q.length() == 1) {
+            lists.add(postings.get("" + field + WORD_START + q));
+        } else {
+            int n = q.length() == 2 ? 2 : 3;
+            for (int i = 0; i + n <= q.length(); i++) {
+                lists.add(postings.get(field + q.substring(i, i + n)));
+            }
+        }
+        Postings smallest = null;
+        for (Postings p : lists) {
+            if (p == null) return;
+            if (smallest == null || p.size < smallest.size) smallest = p;
+        }
+        outer:
+        for (int i = 0; i < smallest.size; i++) {
+            int id = smallest.ids[i];
+            for (Postings p : lists) {
+                if (p != smallest && !p.contains(id)) continue outer;
+            }
+            if (!visitor.test(id)) return;
+        }
+    }
+
+    /**
+     * Kết quả theo thứ tự hạng; add() trả về false khi đã đủ
+     */
+    private static final class Results {
+        final List<Integer> ids = new ArrayList<>();
+        final Set<Integer> taken = new HashSet<>();
+        final int max;
+
+        Results(int max) {
+            this.max = max;
+        }
+
+        boolean add(int id) {
+            if (taken.add(id)) {
+                ids.add(id);
+            }
+            return !isFull();
+        }
+
+        boolean isFull() {
+            return ids.size() >= max;
+        }
+    }
+
+    /**
+     * Một thẻ với các trường đã chuẩn hóa; n-gram được tính lại khi cần (không giữ trong bộ nhớ)
+     */
+    private static final class Doc {
+        final CardInfo card;
+        final String id;
+        final String name;
+        final String status;
+
+        Doc(CardInfo card) {
+            this.card = card;
+            this.id = fold(card.getStudentId());
+            this.name = fold(card.getHolderName());
+            this.status = fold(card.getStatus());
+        }
+
+        // Chỉ các trường có n-gram; đổi trạng thái không cần sửa posting
+        boolean sameText(Doc other) {
+            return id.equals(other.id) && name.equals(other.name);
+        }
+
+        Set<String> grams() {
+            Set<String> grams = new HashSet<>();
+            addGrams(grams, FIELD_ID, id);
+            addGrams(grams, FIELD_NAME, name);
+            return grams;
+        }
+
+        private static void addGrams(Set<String> grams, char field, String text) {
+            for (int i = 0; i < text.length(); i++) {
+                if (i + 2 <= text.length()) grams.add(field + text.substring(i, i + 2));
+                if (i + 3 <= text.length()) grams.add(field + text.substring(i, i + 3));
+                if (text.charAt(i) != ' ' && (i == 0 || text.charAt(i - 1) == ' ')) {
+                    grams.add("" + field + WORD_START + text.charAt(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Danh sách doc id tăng dần
+     */
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == 0 || ids[size - 1] < id) {
+                if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+                ids[size++] = id;               // Trường hợp thường gặp: thẻ mới
+                return;
+            }
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos >= 0) return;
+            pos = -pos - 1;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            ids[pos] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos < 0) return;
+            System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+            size--;
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+}
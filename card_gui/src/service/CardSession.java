@@ -0,0 +1,70 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Phiên làm việc độc quyền với một thẻ (CardPool.Lease hoặc phiên từ xa).
+ * Gọi close() khi đăng xuất để trả thẻ.
+ */
+public interface CardSession extends AutoCloseable {
+
+    String getStudentId();
+
+    /**
+     * Gửi APDU và chờ response [DATA...] [SW1] [SW2] (đã ghép GET RESPONSE)
+     */
+    byte[] transmit(byte[] command);
+
+    /**
+     * Gửi một chuỗi APDU liền nhau (command chaining): không lệnh nào khác chen vào giữa,
+     * dừng ở lệnh đầu tiên có SW khác 9000
+     *
+     * @return response của các lệnh đã gửi, theo thứ tự
+     */
+    default List<byte[]> transmitChain(List<byte[]> commands) throws Exception {
+        return getExecutor().call(() -> {
+            List<byte[]> responses = new ArrayList<>(commands.size());
+            for (byte[] command : commands) {
+                byte[] resp = transmit(command);
+                responses.add(resp);
+                if (ApduResponse.sw(resp) != 0x9000) {
+                    break;
+                }
+            }
+            return responses;
+        });
+    }
+
+    /**
+     * Hàng đợi APDU của phiên - các lệnh cần chạy liền nhau (command chaining) hoặc
+     * bất đồng bộ đi qua đây
+     */
+    CardExecutor getExecutor();
+
+    /**
+     * Thẻ đã được khởi tạo (tạo PIN mặc định...) ở phiên trước chưa
+     */
+    boolean isProvisioned();
+
+    void markProvisioned();
+
+    /**
+     * Lưu snapshot trạng thái thẻ ngay (chờ ghi xong), không đợi tới lúc trả thẻ
+     *
+     * @return true nếu đã lưu; false nếu transport không lưu trạng thái hoặc lưu lỗi
+     */
+    boolean saveState() throws Exception;
+
+    /**
+     * Public key RSA đã đọc từ thẻ (null nếu chưa đọc / thẻ chưa có keypair)
+     */
+    byte[] getCachedPublicKey();
+
+    void cachePublicKey(byte[] publicKey);
+
+    boolean isReleased();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,21 @@
+package service;
+
+/**
+ * Nguồn thẻ cho SimulatorService
+ *
+ * - CardPool: JCardSim chạy ngay trong JVM (mặc định)
+ * - RemoteCardTransport: thẻ chạy trên card-host (CardHostServer) qua TCP, nhiều máy
+ *   quầy dùng chung một "trại thẻ"
+ */
+public interface CardTransport {
+
+    /**
+     * Mở phiên độc quyền với thẻ của sinh viên (chờ nếu thẻ đang được trạm khác dùng)
+     */
+    CardSession open(String studentId) throws Exception;
+
+    /**
+     * Mô tả ngắn (log / màn hình quản trị)
+     */
+    String describe();
+}
@@ -0,0 +1,211 @@
+package service;
+
+import api.CardApiService;
+import applet.AppletConstants;
+import config.AuthConfig;
+import javacard.framework.ISO7816;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * [NEW] Sinh sẵn keypair cho thẻ mới ở nền (lúc admin tạo thẻ trong SettingsPage)
+ *
+ * - Pool sinh khóa: mượn thẻ của sinh viên từ CardTransport, tạo PIN mặc định nếu thẻ
+ *   còn trống, sinh RSA-1024 (và EC P-256 nếu deployment ưu tiên EC), lưu snapshot thẻ
+ *   rồi mới trả thẻ về pool
+ * - Chỉ đăng ký public key khi snapshot đã ghi xong: server không bao giờ giữ public key
+ *   của một private key đã mất
+ * - Hàng đợi đăng ký: một luồng gửi public key lên server, thử lại khi server lỗi
+ *
+ * Lần đăng nhập đầu của sinh viên vì vậy không phải chờ sinh khóa + HTTP PUT;
+ * nếu đăng ký chưa xong, PinPage chờ (awaitRegistration) thay vì tự đăng ký lại.
+ * Thẻ đã có keypair thì không đăng ký lại (server sẽ sinh AES key mới cho thẻ).
+ */
+public class KeyProvisioner {
+
+    private static final int MAX_REGISTRATION_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private static KeyProvisioner sharedInstance;
+
+    private final ScheduledExecutorService generators;
+    private final ScheduledExecutorService registrations;
+    private final CardApiService cardApi;
+    // MSSV -> hoàn tất khi khóa đã sinh và đăng ký xong
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    public KeyProvisioner(int generatorThreads, CardApiService cardApi) {
+        this.generators = Executors.newScheduledThreadPool(generatorThreads, daemonThreads("key-gen"));
+        this.registrations = Executors.newSingleThreadScheduledExecutor(daemonThreads("key-register"));
+        this.cardApi = cardApi;
+    }
+
+    public static synchronized KeyProvisioner getShared() {
+        if (sharedInstance == null) {
+            int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+            sharedInstance = new KeyProvisioner(threads, new CardApiService());
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Xếp hàng sinh khóa + đăng ký cho thẻ (gọi lại khi đang chờ thì trả về cùng future)
+     */
+    public CompletableFuture<Void> provision(CardTransport transport, String studentId) {
+        String key = normalize(studentId);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> existing = pending.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        future.whenComplete((v, ex) -> pending.remove(key, future));
+
+        generators.execute(() -> {
+            try {
+                GeneratedKeys keys = generate(transport, studentId);
+                if (keys.rsaPublicKey == null && keys.ecPoint == null) {
+                    System.out.println("[KeyProvisioner] Card " + key + " already has keys, skipping registration");
+                    future.complete(null);
+                    return;
+                }
+                register(studentId, keys, 1, future);
+            } catch (Exception e) {
+                System.out.println("[KeyProvisioner] Key generation failed for " + key + ": " + e.getMessage());
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Chờ thẻ đang được sinh khóa / đăng ký (không có gì đang chờ -> true ngay)
+     *
+     * @return true nếu không có việc đang chờ hoặc đã đăng ký xong; false nếu lỗi / hết thời gian
+     */
+    public boolean awaitRegistration(String studentId, long timeout, TimeUnit unit) {
+        CompletableFuture<Void> future = pending.get(normalize(studentId));
+        if (future == null) {
+            return true;
+        }
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            System.out.println("[KeyProvisioner] Registration for " + studentId + " not completed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public boolean isPending(String studentId) {
+        return pending.containsKey(normalize(studentId));
+    }
+
+    // Sinh keypair trên thẻ; khóa đã có sẵn trên thẻ -> null (không đăng ký lại)
+    private GeneratedKeys generate(CardTransport transport, String studentId) throws Exception {
+        GeneratedKeys keys = new GeneratedKeys();
+        try (CardSession session = transport.open(studentId)) {
+            long start = System.nanoTime();
+            boolean changed = false;
+            byte[] resp;
+            // Thẻ mới: tạo PIN mặc định trước để snapshot là một thẻ dùng được (như createDemoPin)
+            if (!session.isProvisioned()) {
+                resp = session.transmit(SimulatorService.buildDemoPinCommand());
+                if (ApduResponse.sw(resp) != 0x9000) {
+                    throw new Exception("Lỗi khi tạo PIN: " + String.format("%04X", ApduResponse.sw(resp)));
+                }
+                session.markProvisioned();
+                changed = true;
+            }
+
+            resp = session.transmit(ApduBuilder.get().begin(AppletConstants.INS_RSA_GENERATE_KEYPAIR).buildCopy());
+            if (ApduResponse.sw(resp) == 0x9000) {
+                keys.rsaPublicKey = ApduResponse.wrap(resp).copyData();
+                session.cachePublicKey(keys.rsaPublicKey);
+                changed = true;
+            } else if (ApduResponse.sw(resp) != ISO7816.SW_COMMAND_NOT_ALLOWED) {
+                throw new Exception("Lỗi khi tạo khóa RSA: " + String.format("%04X", ApduResponse.sw(resp)));
+            }
+
+            if (AuthConfig.isEcPreferred()) {
+                resp = session.transmit(ApduBuilder.get().begin(AppletConstants.INS_EC_GENERATE_KEYPAIR).buildCopy());
+                if (ApduResponse.sw(resp) == 0x9000) {
+                    keys.ecPoint = ApduResponse.wrap(resp).copyData();
+                    changed = true;
+                } else if (ApduResponse.sw(resp) != ISO7816.SW_COMMAND_NOT_ALLOWED) {
+                    throw new Exception("Lỗi khi tạo khóa EC: " + String.format("%04X", ApduResponse.sw(resp)));
+                }
+            }
+            // Lưu ngay (không đợi lưu nền khi trả thẻ): lỗi -> không đăng ký khóa với server
+            if (changed && !session.saveState()) {
+                throw new Exception("Không lưu được trạng thái thẻ " + session.getStudentId()
+                        + " (" + transport.describe() + ")");
+            }
+            System.out.println("[KeyProvisioner] Keys generated for " + session.getStudentId()
+                    + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        return keys;
+    }
+
+    // Đăng ký RSA trước (server sinh AES key), sau đó EC; lỗi -> thử lại với độ trễ tăng dần
+    private void register(String studentId, GeneratedKeys keys, int attempt, CompletableFuture<Void> future) {
+        registrations.schedule(() -> {
+            try {
+                if (keys.rsaPublicKey != null && !keys.rsaRegistered) {
+                    if (keys.rsaPublicKey.length != AppletConstants.RSA_MODULUS_SIZE + 3) {
+                        throw new IllegalStateException("Invalid Public Key format from card");
+                    }
+                    byte[] modulus = java.util.Arrays.copyOf(keys.rsaPublicKey, AppletConstants.RSA_MODULUS_SIZE);
+                    byte[] exponent = java.util.Arrays.copyOfRange(keys.rsaPublicKey,
+                            AppletConstants.RSA_MODULUS_SIZE, keys.rsaPublicKey.length);
+                    cardApi.registerRSAPublicKey(studentId,
+                            SimulatorService.bytesToHex(modulus), SimulatorService.bytesToHex(exponent));
+                    keys.rsaRegistered = true;
+                }
+                if (keys.ecPoint != null) {
+                    cardApi.registerECPublicKey(studentId, SimulatorService.bytesToHex(keys.ecPoint));
+                }
+                System.out.println("[KeyProvisioner] Public keys registered for " + studentId);
+                future.complete(null);
+            } catch (IllegalStateException e) {
+                future.completeExceptionally(e);
+            } catch (Exception e) {
+                if (attempt >= MAX_REGISTRATION_ATTEMPTS) {
+                    System.out.println("[KeyProvisioner] Registration failed for " + studentId + ": " + e.getMessage());
+                    future.completeExceptionally(e);
+                } else {
+                    register(studentId, keys, attempt + 1, future);
+                }
+            }
+        }, attempt == 1 ? 0 : RETRY_DELAY_MS << (attempt - 2), TimeUnit.MILLISECONDS);
+    }
+
+    private static String normalize(String studentId) {
+        return studentId == null ? "" : studentId.trim().toUpperCase();
+    }
+
+    private static java.util.concurrent.ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static final class GeneratedKeys {
+        byte[] rsaPublicKey;  // [MODULUS (128)] [EXPONENT (3)]; null = thẻ đã có khóa
+        byte[] ecPoint;       // W (65); null = không sinh / đã có
+        boolean rsaRegistered;
+    }
+}
@@ -0,0 +1,347 @@
+package service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thẻ chạy trên card-host (CardHostServer) thay vì trong JVM của máy quầy
+ *
+ * Mỗi phiên là một kết nối TCP riêng. transmitAsync() trả về future ngay (không chờ
+ * response), nên có thể pipeline nhiều APDU; một luồng đọc nhận response và hoàn tất future
+ * theo REQUEST_ID. Mọi frame APDU đều được ghi từ luồng của CardExecutor cục bộ, nên một
+ * chuỗi đang chạy trong callOnCard không bị lệnh của luồng khác chen vào (giữ ngữ nghĩa
+ * của CardPool.Lease); transmitChain() gửi cả chuỗi trong một frame TRANSMIT_CHAIN.
+ *
+ * Bật bằng -Dcard.host=host:port (port mặc định 9025). Nếu card-host yêu cầu xác thực,
+ * secret lấy từ -Dcard.host.secret / CARD_HOST_SECRET (giống card-host).
+ */
+public class RemoteCardTransport implements CardTransport {
+
+    public static final String HOST_PROPERTY = "card.host";
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final long OPEN_TIMEOUT_MS = 10000;
+    private static final long RESPONSE_TIMEOUT_MS = 10000;
+
+    private final InetSocketAddress address;
+    private final byte[] sharedSecret;
+
+    public RemoteCardTransport(String host, int port) {
+        this(host, port, CardHostProtocol.sharedSecretFromEnvironment());
+    }
+
+    public RemoteCardTransport(String host, int port, byte[] sharedSecret) {
+        this.address = new InetSocketAddress(host, port);
+        this.sharedSecret = sharedSecret != null ? sharedSecret.clone() : null;
+    }
+
+    /**
+     * Transport theo -Dcard.host (null nếu không cấu hình)
+     */
+    public static RemoteCardTransport fromSystemProperty() {
+        String value = System.getProperty(HOST_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return parse(value.trim());
+    }
+
+    /**
+     * "host:port" hoặc "host" (port mặc định)
+     */
+    public static RemoteCardTransport parse(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) {
+            return new RemoteCardTransport(hostPort, CardHostProtocol.DEFAULT_PORT);
+        }
+        return new RemoteCardTransport(hostPort.substring(0, colon),
+                Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    @Override
+    public RemoteSession open(String studentId) throws Exception {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(address, CONNECT_TIMEOUT_MS);
+            RemoteSession session = new RemoteSession(channel);
+            session.authenticate(sharedSecret);
+            session.open(studentId);
+            return session;
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "card-host " + address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * Phiên với một thẻ trên card-host
+     */
+    public static final class RemoteSession implements CardSession {
+        private final SocketChannel channel;
+        private final Map<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger nextRequestId = new AtomicInteger(1);
+        private final Object writeLock = new Object();
+        private final Thread reader;
+        private volatile String studentId;
+        private volatile CardExecutor executor;
+        private volatile boolean provisioned;
+        private volatile byte[] rsaPublicKey;
+        private volatile boolean released = false;
+
+        private final CompletableFuture<Frame> hello = new CompletableFuture<>();
+
+        RemoteSession(SocketChannel channel) {
+            this.channel = channel;
+            pending.put(0, hello);     // HELLO luôn có REQUEST_ID 0
+            this.reader = new Thread(this::readLoop, "card-host-reader");
+            this.reader.setDaemon(true);
+            this.reader.start();
+        }
+
+        void authenticate(byte[] secret) throws Exception {
+            Frame frame = await(hello, OPEN_TIMEOUT_MS);
+            if (frame.type != CardHostProtocol.HELLO || frame.payload.length != 1 + CardHostProtocol.NONCE_LENGTH) {
+                throw new IOException("Card-host gửi HELLO không hợp lệ");
+            }
+            if (frame.payload[0] == 0) {
+                return;     // Card-host chỉ nghe loopback, không yêu cầu xác thực
+            }
+            if (secret == null) {
+                throw new IOException("Card-host yêu cầu xác thực: cấu hình -D" + CardHostProtocol.SECRET_PROPERTY
+                        + " hoặc " + CardHostProtocol.SECRET_ENV);
+            }
+            byte[] nonce = new byte[CardHostProtocol.NONCE_LENGTH];
+            System.arraycopy(frame.payload, 1, nonce, 0, nonce.length);
+            await(request(CardHostProtocol.AUTH, CardHostProtocol.authProof(secret, nonce)), OPEN_TIMEOUT_MS);
+        }
+
+        void open(String requestedId) throws Exception {
+            Frame opened = await(request(CardHostProtocol.OPEN,
+                    requestedId.getBytes(StandardCharsets.UTF_8)), OPEN_TIMEOUT_MS);
+            provisioned = opened.payload[0] == 1;
+            studentId = new String(opened.payload, 1, opened.payload.length - 1, StandardCharsets.UTF_8);
+            executor = new CardExecutor(studentId);
+        }
+
+        @Override
+        public String getStudentId() {
+            return studentId;
+        }
+
+        /**
+         * Gửi APDU không chờ (pipelining) - response về theo thứ tự gửi.
+         * Gọi ngoài luồng của thẻ: frame được ghi qua hàng đợi của thẻ (sau chuỗi đang chạy)
+         */
+        public CompletableFuture<byte[]> transmitAsync(byte[] command) {
+            if (released) {
+                CompletableFuture<byte[]> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("Phiên thẻ đã đóng"));
+                return failed;
+            }
+            if (executor.isCardThread()) {
+                return request(CardHostProtocol.TRANSMIT, command).thenApply(frame -> frame.payload);
+            }
+            // Tác vụ chỉ ghi frame, không chờ response -> các lệnh sau vẫn pipeline được
+            return executor.submit(() -> request(CardHostProtocol.TRANSMIT, command), CardExecutor.Priority.INTERACTIVE)
+                    .thenCompose(sent -> sent)
+                    .thenApply(frame -> frame.payload);
+        }
+
+        @Override
+        public byte[] transmit(byte[] command) {
+            try {
+                if (released) {
+                    throw new IllegalStateException("Phiên thẻ đã đóng");
+                }
+                return executor.call(() ->
+                        await(request(CardHostProtocol.TRANSMIT, command), RESPONSE_TIMEOUT_MS).payload);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Lỗi gửi APDU tới card-host: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Cả chuỗi đi trong một frame và chạy liền nhau trên card-host (một lượt round-trip)
+         */
+        @Override
+        public List<byte[]> transmitChain(List<byte[]> commands) throws Exception {
+            if (released) {
+                throw new IllegalStateException("Phiên thẻ đã đóng");
+            }
+            byte[] payload = CardHostProtocol.encodeList(commands);
+            if (payload.length + CardHostProtocol.HEADER_LENGTH > CardHostProtocol.MAX_FRAME_LENGTH) {
+                return CardSession.super.transmitChain(commands);   // Quá một frame: gửi từng lệnh trong callOnCard
+            }
+            return executor.call(() -> CardHostProtocol.decodeList(
+                    await(request(CardHostProtocol.TRANSMIT_CHAIN, payload), RESPONSE_TIMEOUT_MS).payload));
+        }
+
+        @Override
+        public CardExecutor getExecutor() {
+            return executor;
+        }
+
+        @Override
+        public boolean isProvisioned() {
+            return provisioned;
+        }
+
+        @Override
+        public void markProvisioned() {
+            provisioned = true;
+            request(CardHostProtocol.MARK_PROVISIONED, null);
+        }
+
+        @Override
+        public boolean saveState() throws Exception {
+            if (released) {
+                throw new IllegalStateException("Phiên thẻ đã đóng");
+            }
+            Frame ack = executor.call(() -> await(request(CardHostProtocol.SAVE_STATE, null), RESPONSE_TIMEOUT_MS));
+            return ack.payload.length > 0 && ack.payload[0] == 1;
+        }
+
+        @Override
+        public byte[] getCachedPublicKey() {
+            byte[] key = rsaPublicKey;
+            return key != null ? key.clone() : null;
+        }
+
+        @Override
+        public void cachePublicKey(byte[] publicKey) {
+            rsaPublicKey = publicKey != null ? publicKey.clone() : null;
+        }
+
+        @Override
+        public boolean isReleased() {
+            return released;
+        }
+
+        @Override
+        public void close() {
+            if (released) return;
+            released = true;
+            try {
+                // CLOSE -> card-host trả thẻ về pool; chờ ngắn để frame kịp gửi đi
+                await(request(CardHostProtocol.CLOSE, null), 1000);
+            } catch (Exception e) {
+                // Card-host cũng trả thẻ khi kết nối bị đóng
+            }
+            shutdown(new IllegalStateException("Phiên thẻ đã đóng"));
+        }
+
+        private CompletableFuture<Frame> request(byte type, byte[] payload) {
+            int requestId = nextRequestId.getAndIncrement();
+            CompletableFuture<Frame> future = new CompletableFuture<>();
+            pending.put(requestId, future);
+            ByteBuffer frame = CardHostProtocol.frame(type, requestId, payload);
+            try {
+                synchronized (writeLock) {
+                    while (frame.hasRemaining()) {
+                        channel.write(frame);
+                    }
+                }
+            } catch (IOException e) {
+                pending.remove(requestId);
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        private static Frame await(CompletableFuture<Frame> future, long timeoutMs) throws Exception {
+            try {
+                return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw e;
+            } catch (TimeoutException e) {
+                throw new TimeoutException("Card-host không phản hồi sau " + timeoutMs + " ms");
+            }
+        }
+
+        private void readLoop() {
+            ByteBuffer header = ByteBuffer.allocate(CardHostProtocol.HEADER_LENGTH);
+            try {
+                while (true) {
+                    header.clear();
+                    readFully(header);
+                    header.flip();
+                    int length = CardHostProtocol.readLength(header);
+                    header.getInt();
+                    byte type = header.get();
+                    int requestId = header.getInt();
+
+                    ByteBuffer body = ByteBuffer.allocate(length - (CardHostProtocol.HEADER_LENGTH - 4));
+                    readFully(body);
+
+                    CompletableFuture<Frame> future = pending.remove(requestId);
+                    if (future == null) continue;
+                    if (type == CardHostProtocol.ERROR) {
+                        future.completeExceptionally(new IOException(
+                                "Card-host: " + new String(body.array(), StandardCharsets.UTF_8)));
+                    } else {
+                        future.complete(new Frame(type, body.array()));
+                    }
+                }
+            } catch (IOException e) {
+                shutdown(released ? new IllegalStateException("Phiên thẻ đã đóng")
+                        : new IOException("Mất kết nối tới card-host: " + e.getMessage(), e));
+            }
+        }
+
+        private void readFully(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    throw new EOFException("card-host closed the connection");
+                }
+            }
+        }
+
+        private void shutdown(Exception reason) {
+            released = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Bỏ qua
+            }
+            for (CompletableFuture<Frame> future : pending.values()) {
+                future.completeExceptionally(reason);
+            }
+            pending.clear();
+            CardExecutor current = executor;
+            if (current != null) {
+                current.shutdown();
+            }
+        }
+    }
+
+    private static final class Frame {
+        final byte type;
+        final byte[] payload;
+
+        Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
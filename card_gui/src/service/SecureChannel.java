@@ -0,0 +1,112 @@
+package service;
+
+import applet.AppletConstants;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * [NEW] Phía client của phiên Secure Messaging (xem applet.SecureChannelManager)
+ *
+ * Khóa K_MAC do server trả về sau khi kiểm tra cryptogram của thẻ (một phép toán RSA/EC
+ * trên thẻ cho cả phiên). Mỗi lệnh nhạy cảm được thêm [COUNTER (2)] [MAC (8)] với
+ * MAC = AES-CMAC(K_MAC, DATA || COUNTER || INS || P1 || P2) và bit CLA 0x04.
+ *
+ * Counter phải tăng đúng thứ tự lệnh tới thẻ: wrap + gửi chạy trong cùng một tác vụ trên
+ * luồng của thẻ (SimulatorService.sendSecure -> callOnCard / CardExecutor), nên không lệnh SM nào
+ * khác chen vào giữa. wrap() và mac() synchronized chỉ để giữ trạng thái CMAC của đối tượng này.
+ */
+public final class SecureChannel {
+
+    private static final int BLOCK = 16;
+
+    private final Cipher aes;
+    private final byte[] k1 = new byte[BLOCK];
+    private final byte[] k2 = new byte[BLOCK];
+    private final byte[] state = new byte[BLOCK];
+    private final byte[] last = new byte[BLOCK];
+    private int counter;
+
+    /**
+     * @param macKey K_MAC (16 bytes)
+     */
+    public SecureChannel(byte[] macKey) throws GeneralSecurityException {
+        if (macKey == null || macKey.length != AppletConstants.AES_KEY_SIZE) {
+            throw new GeneralSecurityException("K_MAC phải có độ dài 16 bytes");
+        }
+        aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(macKey, "AES"));
+        aes.doFinal(new byte[BLOCK], 0, BLOCK, k1, 0);
+        doubleBlock(k1);
+        System.arraycopy(k1, 0, k2, 0, BLOCK);
+        doubleBlock(k2);
+    }
+
+    /**
+     * Thêm trailer Secure Messaging vào lệnh đang dựng và bật bit CLA 0x04
+     *
+     * @throws IllegalStateException khi counter hết (phải mở phiên mới)
+     */
+    public synchronized ApduBuilder wrap(ApduBuilder builder) {
+        if (counter >= Short.MAX_VALUE) {
+            throw new IllegalStateException("Secure Messaging counter đã hết - cần mở phiên mới");
+        }
+        builder.putShort(++counter);
+        builder.putSecureMessagingMac(this);
+        return builder;
+    }
+
+    /**
+     * AES-CMAC (RFC 4493) của buf[offset..offset+length) nối thêm ins/p1/p2, ghi 8 bytes đầu vào out
+     */
+    synchronized void mac(byte[] buf, int offset, int length, byte ins, byte p1, byte p2, byte[] out, int outOffset) {
+        int total = length + 3;
+        try {
+            java.util.Arrays.fill(state, (byte)0);
+            int full = total == 0 ? 0 : (total - 1) / BLOCK * BLOCK;
+            for (int i = 0; i < full; i += BLOCK) {
+                for (int j = 0; j < BLOCK; j++) {
+                    state[j] ^= byteAt(buf, offset, length, i + j, ins, p1, p2);
+                }
+                aes.doFinal(state, 0, BLOCK, state, 0);
+            }
+
+            int remaining = total - full;
+            for (int j = 0; j < BLOCK; j++) {
+                last[j] = j < remaining ? byteAt(buf, offset, length, full + j, ins, p1, p2)
+                        : (j == remaining ? (byte)0x80 : 0);
+            }
+            byte[] subkey = remaining == BLOCK ? k1 : k2;
+            for (int j = 0; j < BLOCK; j++) {
+                state[j] ^= (byte)(last[j] ^ subkey[j]);
+            }
+            aes.doFinal(state, 0, BLOCK, state, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-CMAC lỗi: " + e.getMessage(), e);
+        }
+        System.arraycopy(state, 0, out, outOffset, AppletConstants.SM_MAC_LENGTH);
+    }
+
+    // Byte thứ i của DATA || COUNTER || INS || P1 || P2 (không ghép mảng)
+    private static byte byteAt(byte[] buf, int offset, int length, int i, byte ins, byte p1, byte p2) {
+        if (i < length) return buf[offset + i];
+        switch (i - length) {
+            case 0: return ins;
+            case 1: return p1;
+            default: return p2;
+        }
+    }
+
+    // Nhân đôi trong GF(2^128): dịch trái 1 bit, MSB = 1 thì XOR 0x87
+    private static void doubleBlock(byte[] b) {
+        int msb = b[0] & 0x80;
+        for (int i = 0; i < BLOCK - 1; i++) {
+            b[i] = (byte)((b[i] << 1) | ((b[i + 1] & 0xFF) >>> 7));
+        }
+        b[BLOCK - 1] = (byte)(b[BLOCK - 1] << 1);
+        if (msb != 0) {
+            b[BLOCK - 1] ^= (byte)0x87;
+        }
+    }
+}
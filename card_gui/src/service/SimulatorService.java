@@ -1,15 +1,17 @@
 package service;
 
-import com.licel.jcardsim.base.Simulator;
 import applet.AppletConstants;
+import config.AuthConfig;
 import models.CardInfo;
-import javacard.framework.AID;
+import models.SessionSnapshot;
 import javacard.framework.ISO7816;
 import utils.RSAUtility;
 import utils.AESUtility;
+import utils.TransactionJournal;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -17,27 +19,65 @@ import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service class for handling JavaCard simulator operations
  * [FINAL UPDATED] Logic Mở khóa sẽ Reset PIN về 000000
  */
 public class SimulatorService {
-    private Simulator simulator;
-    private boolean isConnected = false;
-    private boolean isPinVerified = false;
-    private int pinTriesRemaining = AppletConstants.DEFAULT_PIN_TRIES;
-    private String currentStudentCode = "";
-    private String currentRole = "Sinh viên";  // Default role
-
-    // In-memory storage for multiple cards (GUI display)
-    private List<CardInfo> cardList = new ArrayList<>();
+    private final CardTransport transport;     // [UPDATED] CardPool trong JVM hoặc card-host qua TCP
+    private volatile CardSession cardLease; // Thẻ đang mượn cho phiên hiện tại
+    // Trạng thái phiên được đọc từ EDT và từ luồng của thẻ -> volatile
+    private volatile boolean isConnected = false;
+    private volatile boolean isPinVerified = false;
+    private volatile int pinTriesRemaining = AppletConstants.DEFAULT_PIN_TRIES;
+    private volatile String currentStudentCode = "";
+    private volatile String currentRole = "Sinh viên";  // Default role
+    private volatile SessionSnapshot lastSnapshot;
+    private volatile boolean extendedLengthEnabled = false; // [NEW] false -> command chaining
+    private volatile ApduRecorder recorder = ApduRecorder.getShared(); // [NEW] null = không ghi APDU
+    private volatile SecureChannel secureChannel; // [NEW] Phiên Secure Messaging (null = lệnh không MAC)
+    private volatile boolean secureSessionLost;   // Phiên SM bị thẻ đóng -> chặn lệnh nhạy cảm tới khi mở phiên mới
+    private final ApduMetrics metrics = ApduMetrics.getShared(); // [NEW] Đếm lệnh / SW / độ trễ theo INS
+
+    // In-memory storage for multiple cards (GUI display) - [UPDATED] tra cứu O(1) theo MSSV
+    private final CardRegistry cardRegistry = new CardRegistry();
+    private final api.CardApiService cardApi = new api.CardApiService(); // [NEW] Đăng ký public key (ApiConfig base URL)
 
     // Cấu hình PBKDF2
     private static final int PBKDF2_ITERATIONS = 10000;
+    // Số kết quả tìm kiếm tối đa hiển thị cho một từ khóa
+    public static final int SEARCH_LIMIT = 200;
     private static final int HASH_BIT_LENGTH = 256;
+    // Bộ đệm salt dùng lại khi verify PIN
+    private static final ThreadLocal<byte[]> SALT_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[AppletConstants.SALT_LENGTH]);
+
+    /**
+     * Dùng card-host từ xa nếu có -Dcard.host=host:port, ngược lại dùng CardPool trong JVM
+     */
+    public SimulatorService() {
+        this(defaultTransport());
+    }
+
+    private static CardTransport defaultTransport() {
+        RemoteCardTransport remote = RemoteCardTransport.fromSystemProperty();
+        return remote != null ? remote : CardPool.getShared();
+    }
+
+    /**
+     * @param transport Nguồn thẻ: CardPool dùng chung (nhiều trạm đọc thẻ trong cùng JVM)
+     *                  hoặc RemoteCardTransport (card-host dùng chung cho nhiều máy)
+     */
+    public SimulatorService(CardTransport transport) {
+        this.transport = transport;
+        System.out.println("[SimulatorService] Card transport: " + transport.describe());
+        replayJournal();
+    }
 
     // --- GETTERS / SETTERS ---
     public boolean isConnected() { return isConnected; }
@@ -77,17 +117,11 @@ public class SimulatorService {
     // --- QUẢN LÝ THẺ & PIN SINH VIÊN (MOCK DB) ---
 
     public boolean isCardExists(String studentCode) {
-        for (CardInfo card : cardList) {
-            if (card.getStudentId().equalsIgnoreCase(studentCode)) return true;
-        }
-        return false;
+        return cardRegistry.contains(studentCode);
     }
 
     public CardInfo getCardByStudentCode(String studentCode) {
-        for (CardInfo card : cardList) {
-            if (card.getStudentId().equalsIgnoreCase(studentCode)) return card;
-        }
-        return null;
+        return cardRegistry.get(studentCode);
     }
 
     /**
@@ -168,11 +202,11 @@ public class SimulatorService {
                 return false;
             }
             
-            // Step 3: Update memory and save to cardList
+            // Step 3: Update memory and save to cardRegistry
             CardInfo card = getCardByStudentCode(studentCode);
             if (card != null) {
                 card.setPin(newPin);
-                // Ensure the updated card is saved in cardList
+                // Ensure the updated card is saved in cardRegistry
                 addCardToList(card);
             }
             
@@ -188,48 +222,56 @@ public class SimulatorService {
      * Nếu Mở khóa -> Reset PIN về 000000 và Reset số lần thử về 3.
      */
     public boolean toggleCardStatus(String studentId) {
-        for (CardInfo card : cardList) {
-            if (card.getStudentId().equals(studentId)) {
-                String currentStatus = card.getStatus();
-                String newStatus = currentStatus.equals("Hoạt động") ? "Khóa" : "Hoạt động";
+        CardInfo card = cardRegistry.get(studentId);
+        if (card == null) {
+            return false;
+        }
+        String currentStatus = card.getStatus();
+        String newStatus = currentStatus.equals("Hoạt động") ? "Khóa" : "Hoạt động";
 
-                card.setStatus(newStatus);
+        card.setStatus(newStatus);
 
-                // [LOGIC MỚI] Reset khi mở khóa
-                if ("Hoạt động".equals(newStatus)) {
-                    card.setPinRetryCount(3);
-                    card.setPin(AppletConstants.DEFAULT_PIN); // Reset về 000000
-                }
-                return true;
-            }
+        // [LOGIC MỚI] Reset khi mở khóa
+        if ("Hoạt động".equals(newStatus)) {
+            card.setPinRetryCount(3);
+            card.setPin(AppletConstants.DEFAULT_PIN); // Reset về 000000
         }
-        return false;
+        cardRegistry.reindex(card);
+        return true;
     }
 
     public void addCardToList(CardInfo cardInfo) {
-        for (int i = 0; i < cardList.size(); i++) {
-            if (cardList.get(i).getStudentId().equals(cardInfo.getStudentId())) {
-                cardList.set(i, cardInfo);
-                return;
-            }
-        }
-        cardList.add(cardInfo);
+        cardRegistry.upsert(cardInfo);
     }
 
+    /**
+     * [NEW] Thêm/cập nhật cả danh sách thẻ trong một lần (đồng bộ từ server)
+     */
+    public void addCardsToList(List<CardInfo> cards) {
+        cardRegistry.upsertAll(cards);
+    }
+
+    /**
+     * [UPDATED] Danh sách bất biến (không sao chép lại nếu không có thay đổi)
+     */
     public List<CardInfo> getAllCards() {
-        return new ArrayList<>(cardList);
+        return cardRegistry.snapshot();
     }
 
+    /**
+     * [UPDATED] Tìm qua chỉ mục n-gram: "nguyen" khớp "Nguyễn", kết quả đã xếp hạng
+     * (tối đa SEARCH_LIMIT thẻ, chỉ mục dừng duyệt khi đủ)
+     */
     public List<CardInfo> searchCards(String keyword) {
-        List<CardInfo> results = new ArrayList<>();
-        String lowerKeyword = keyword.toLowerCase();
-        for (CardInfo card : cardList) {
-            if (card.getStudentId().toLowerCase().contains(lowerKeyword) ||
-                    card.getHolderName().toLowerCase().contains(lowerKeyword)) {
-                results.add(card);
-            }
-        }
-        return results;
+        return cardRegistry.search(keyword, SEARCH_LIMIT);
+    }
+
+    /**
+     * [NEW] Tìm kèm bộ lọc chính xác: status (VD "Khóa") và/hoặc chỉ trong các MSSV cho trước;
+     * null = không lọc theo trường đó
+     */
+    public List<CardInfo> searchCards(String keyword, String status, Collection<String> studentIds, int limit) {
+        return cardRegistry.search(keyword, status, studentIds, limit);
     }
 
     // --- QUẢN LÝ SÁCH (MOCK DATA) ---
@@ -370,83 +412,104 @@ public class SimulatorService {
     }
 
     // --- QUẢN LÝ TÀI CHÍNH (AES Encrypted on Card) ---
-    private java.util.Map<String, java.util.List<models.Transaction>> studentTransactions = new java.util.HashMap<>();
+    // [UPDATED] Sổ giao dịch chỉ ghi thêm (khối mảng nguyên thủy), đọc theo trang mới nhất trước
+    private final TransactionLedger ledger = new TransactionLedger();
+    // [NEW] Journal trên đĩa (null nếu tắt) + số dư cuối theo journal cho thẻ chưa có trong cardRegistry
+    private final TransactionJournal journal = TransactionJournal.getShared();
+    private final java.util.Map<String, Long> journalBalances = new java.util.concurrent.ConcurrentHashMap<>();
 
+    // Giới hạn số dư (trùng MAX_BALANCE trong applet.BalanceManager)
+    private static final long MAX_BALANCE = 100_000_000_000L;
+    private static final long KEY_REGISTRATION_WAIT_SECONDS = 10;
+
+    /**
+     * [UPDATED] Đọc số dư trên thẻ (INS_ADJUST_BALANCE với delta = 0)
+     * Thẻ chưa từng dùng số dư trên thẻ (counter = 0) nhưng còn số dư mã hóa kiểu cũ
+     * (INS_GET_BALANCE) -> chuyển số dư cũ sang một lần.
+     */
     private long getBalanceFromCard() throws Exception {
         if (!isConnected) throw new Exception("Chưa kết nối thẻ");
         
-        byte[] cmd = {0x00, AppletConstants.INS_GET_BALANCE, 0x00, 0x00, 0x00};
-        byte[] resp = sendCommand(cmd);
+        return callOnCard(() -> {
+            long[] current = adjustBalanceOnCard(0);
+            if (current[1] == 0 && current[0] == 0) {
+                long legacy = getLegacyBalanceFromCard();
+                if (legacy > 0) {
+                    System.out.println("[SimulatorService] Chuyển số dư mã hóa cũ lên thẻ: " + legacy);
+                    return adjustBalanceOnCard(legacy)[0];
+                }
+            }
+            return current[0];
+        });
+    }
+
+    /**
+     * Số dư mã hóa kiểu cũ (16 bytes, khóa AES phía client); 0 nếu chưa khởi tạo / chưa có khóa
+     */
+    private long getLegacyBalanceFromCard() throws Exception {
+        if (!AESUtility.isKeyInitialized()) return 0;
         
+        byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_GET_BALANCE).build());
         if (getSW(resp) != 0x9000) {
            throw new Exception("Lỗi lấy số dư từ thẻ: " + String.format("%04X", getSW(resp)));
         }
         
-        // Response: [ENCRYPTED_BALANCE (16 bytes)]
-        byte[] encryptedBalance = new byte[16];
-        System.arraycopy(resp, 0, encryptedBalance, 0, 16);
+        // Response: [ENCRYPTED_BALANCE (16 bytes)] - giải mã trực tiếp trên mảng response
+        long balance = AESUtility.decryptBalance(resp, 0);
         
-        long balance = AESUtility.decryptBalance(encryptedBalance);
-        
-        // [FIX] Kiểm tra balance có hợp lệ không
         // Nếu balance > 100 tỷ VND hoặc < 0, coi như chưa khởi tạo → trả về 0
-        // Balance sẽ được khởi tạo khi user nạp tiền lần đầu (sau khi verify PIN)
-        if (balance < 0 || balance > 100_000_000_000L) {
+        if (balance < 0 || balance > MAX_BALANCE) {
             return 0;
         }
-        
         return balance;
     }
 
-    private void updateBalanceOnCard(long newBalance) throws Exception {
-        if (!isConnected) throw new Exception("Chưa kết nối thẻ");
-        
-        byte[] encryptedBalance = AESUtility.encryptBalance(newBalance);
-        
-        // Cmd: [CLA] [INS] [P1] [P2] [Lc] [Data]
-        byte[] cmd = new byte[5 + 16];
-        cmd[0] = 0x00;
-        cmd[1] = AppletConstants.INS_UPDATE_BALANCE;
-        cmd[2] = 0x00;
-        cmd[3] = 0x00;
-        cmd[4] = 0x10; // 16 bytes
-        System.arraycopy(encryptedBalance, 0, cmd, 5, 16);
-        
-        byte[] resp = sendCommand(cmd);
-        if (getSW(resp) != 0x9000) {
-            throw new Exception("Lỗi cập nhật số dư lên thẻ: " + String.format("%04X", getSW(resp)));
+    /**
+     * [NEW] Cộng delta vào số dư ngay trên thẻ - một APDU, thẻ cập nhật trong một transaction
+     * nên hai giao dịch đồng thời không thể ghi đè nhau.
+     *
+     * @return {số dư mới, counter}; null nếu thẻ báo không đủ số dư
+     */
+    private long[] adjustBalanceOnCard(long delta) throws Exception {
+        byte[] resp = sendSecure(ApduBuilder.get().begin(AppletConstants.INS_ADJUST_BALANCE)
+                .putLong(delta));
+        ApduResponse data = ApduResponse.wrap(resp);
+        if (data.getSW() == ISO7816.SW_CONDITIONS_NOT_SATISFIED) {
+            return null;
         }
+        if (!data.isSuccess()) {
+            throw new Exception("Lỗi cập nhật số dư trên thẻ: " + String.format("%04X", data.getSW()));
+        }
+        long counter = ((long) data.getShort(AppletConstants.BALANCE_LENGTH) << 16)
+                | data.getShort(AppletConstants.BALANCE_LENGTH + 2);
+        return new long[]{data.getLong(0), counter};
+    }
+
+    /**
+     * Chạy một chuỗi APDU liền nhau trên luồng của thẻ (chạy ngay nếu đang ở luồng thẻ)
+     */
+    private <T> T callOnCard(Callable<T> task) throws Exception {
+        CardSession lease = cardLease;
+        if (lease == null) throw new RuntimeException("Simulator chưa được khởi động!");
+        return lease.getExecutor().call(task);
     }
 
     public boolean deposit(String studentCode, long amount) {
         try {
-            long currentBalance = 0;
-            // Ưu tiên lấy từ thẻ nếu có kết nối
+            // Thẻ đã xác thực: cộng trực tiếp trên thẻ
             if (isConnected && isPinVerified) {
-                currentBalance = getBalanceFromCard();
-            } else {
-                CardInfo card = getCardByStudentCode(studentCode);
-                if (card != null) currentBalance = card.getBalance();
-            }
-
-            long newBalance = currentBalance + amount;
-
-            // Ghi lại vào thẻ
-            if (isConnected && isPinVerified) {
-                updateBalanceOnCard(newBalance);
+                long[] result = callOnCard(() -> {
+                    getBalanceFromCard();   // Chuyển số dư cũ (nếu có) trước khi cộng
+                    return adjustBalanceOnCard(amount);
+                });
+                if (result == null) return false;
+                commitCardTransaction(studentCode, TransactionLedger.TYPE_DEPOSIT, amount, result);
+                return true;
             }
 
-            // Update memory cache & Log transaction
-            CardInfo card = getCardByStudentCode(studentCode);
-            if (card != null) card.setBalance(newBalance);
-
-            java.time.LocalDate today = java.time.LocalDate.now();
-            java.time.format.DateTimeFormatter fmt = java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy");
-            java.util.List<models.Transaction> transactions = studentTransactions.getOrDefault(studentCode, new java.util.ArrayList<>());
-            transactions.add(0, new models.Transaction(today.format(fmt), "Nạp tiền", amount, "Thành công"));
-            studentTransactions.put(studentCode, transactions);
-            
-            return true;
+            long newBalance = getCachedBalance(studentCode) + amount;
+            if (newBalance > MAX_BALANCE) return false;
+            return commitCachedTransaction(studentCode, TransactionLedger.TYPE_DEPOSIT, amount, newBalance);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -455,52 +518,123 @@ public class SimulatorService {
 
     public boolean payFine(String studentCode, long amount) {
         try {
-            long currentBalance = 0;
-            boolean usingCardBalance = false;
-            
-            if (isConnected && isPinVerified) {
-                long cardBalance = getBalanceFromCard();
-                // Nếu card balance hợp lệ (đã khởi tạo), dùng nó
-                if (cardBalance >= 0 && cardBalance <= 100_000_000_000L) {
-                    currentBalance = cardBalance;
-                    usingCardBalance = true;
-                } else {
-                    // Card balance chưa khởi tạo, fallback về memory
-                    CardInfo card = getCardByStudentCode(studentCode);
-                    if (card != null) currentBalance = card.getBalance();
-                }
-            } else {
-                CardInfo card = getCardByStudentCode(studentCode);
-                if (card != null) currentBalance = card.getBalance();
-            }
-            
-            if (currentBalance < amount) return false;
-            
-            long newBalance = currentBalance - amount;
-
-            // Ghi lại vào thẻ
             if (isConnected && isPinVerified) {
-                updateBalanceOnCard(newBalance);
+                // Thẻ tự kiểm tra đủ số dư và trừ trong cùng một lệnh
+                long[] result = callOnCard(() -> {
+                    getBalanceFromCard();
+                    return adjustBalanceOnCard(-amount);
+                });
+                if (result == null) return false;   // Không đủ số dư
+                commitCardTransaction(studentCode, TransactionLedger.TYPE_FINE_PAYMENT, -amount, result);
+                return true;
             }
-            
-            // Update memory cache & Log transaction
-            CardInfo card = getCardByStudentCode(studentCode);
-            if (card != null) card.setBalance(newBalance);
 
-            java.time.LocalDate today = java.time.LocalDate.now();
-            java.time.format.DateTimeFormatter fmt = java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy");
-            java.util.List<models.Transaction> transactions = studentTransactions.getOrDefault(studentCode, new java.util.ArrayList<>());
-            transactions.add(0, new models.Transaction(today.format(fmt), "Thanh toán phạt", -amount, "Thành công"));
-            studentTransactions.put(studentCode, transactions);
-            return true;
+            long currentBalance = getCachedBalance(studentCode);
+            if (currentBalance < amount) return false;
+            return commitCachedTransaction(studentCode, TransactionLedger.TYPE_FINE_PAYMENT, -amount,
+                    currentBalance - amount);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
     }
 
+    /**
+     * [UPDATED] Thẻ đã commit giao dịch: luôn cập nhật cache/ledger và báo thành công.
+     * Lỗi journal chỉ là cảnh báo (kèm counter của thẻ để đối soát) - nếu trả về false,
+     * người dùng thử lại sẽ bị trừ/cộng hai lần trên thẻ.
+     *
+     * @param result {số dư mới, counter} từ adjustBalanceOnCard
+     */
+    private void commitCardTransaction(String studentCode, byte type, long amount, long[] result) {
+        long now = System.currentTimeMillis();
+        try {
+            appendJournal(studentCode, type, now, amount, result[0]);
+        } catch (IOException e) {
+            System.out.println(String.format("[SimulatorService] WARNING: thẻ %s đã ghi giao dịch %d (counter=%d, số dư=%d)"
+                    + " nhưng không ghi được journal: %s", studentCode, amount, result[1], result[0], e.getMessage()));
+        }
+        applyTransaction(studentCode, type, amount, result[0], now);
+    }
+
+    /**
+     * [NEW] Chưa có thẻ: journal là bản ghi bền duy nhất nên phải ghi được journal
+     * trước khi cập nhật cache; lỗi journal -> giao dịch thất bại, không có gì thay đổi
+     */
+    private boolean commitCachedTransaction(String studentCode, byte type, long amount, long newBalance) {
+        long now = System.currentTimeMillis();
+        try {
+            appendJournal(studentCode, type, now, amount, newBalance);
+        } catch (IOException e) {
+            System.out.println("[SimulatorService] Không ghi được journal: " + e.getMessage());
+            return false;
+        }
+        applyTransaction(studentCode, type, amount, newBalance, now);
+        return true;
+    }
+
+    /**
+     * [NEW] Ghi journal và chờ xuống đĩa (group commit)
+     */
+    private void appendJournal(String studentCode, byte type, long now, long amount, long newBalance) throws IOException {
+        if (journal != null) {
+            journal.append(new TransactionJournal.Entry(studentCode, type, now, amount, newBalance));
+        }
+    }
+
+    /**
+     * [NEW] Cập nhật số dư trong bộ nhớ và ledger
+     */
+    private void applyTransaction(String studentCode, byte type, long amount, long newBalance, long now) {
+        CardInfo card = getCardByStudentCode(studentCode);
+        if (card != null) card.setBalance(newBalance);
+        journalBalances.put(studentCode, newBalance);
+        ledger.append(studentCode, type, amount, TransactionLedger.STATUS_SUCCESS, now);
+    }
+
+    /**
+     * [NEW] Dựng lại lịch sử giao dịch và số dư từ journal khi khởi động
+     */
+    private void replayJournal() {
+        if (journal == null) return;
+        long start = System.nanoTime();
+        int[] count = {0};
+        journal.replay(entry -> {
+            ledger.append(entry.getStudentId(), entry.getType(), entry.getAmount(),
+                    TransactionLedger.STATUS_SUCCESS, entry.getTimestamp());
+            journalBalances.put(entry.getStudentId(), entry.getBalanceAfter());
+            count[0]++;
+        });
+        System.out.println(String.format("[SimulatorService] Replayed %d transactions (%d students) in %.1f ms",
+                count[0], journalBalances.size(), (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Số dư trong bộ nhớ: thẻ trong cardRegistry, nếu không có thì số dư cuối theo journal
+     */
+    private long getCachedBalance(String studentCode) {
+        CardInfo card = getCardByStudentCode(studentCode);
+        if (card != null) return card.getBalance();
+        Long balance = journalBalances.get(studentCode);
+        return balance != null ? balance : 0;
+    }
+
     public java.util.List<models.Transaction> getTransactions(String studentCode) {
-        return studentTransactions.getOrDefault(studentCode, new java.util.ArrayList<>());
+        return ledger.newestFirst(studentCode, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * [NEW] Một trang lịch sử giao dịch (mới nhất trước)
+     */
+    public java.util.List<models.Transaction> getTransactions(String studentCode, int offset, int limit) {
+        return ledger.newestFirst(studentCode, offset, limit);
+    }
+
+    /**
+     * [NEW] Tổng nạp / tổng chi của sinh viên
+     */
+    public TransactionLedger.Totals getTransactionTotals(String studentCode) {
+        return ledger.getTotals(studentCode);
     }
 
     public long getBalance(String studentCode) {
@@ -517,27 +651,56 @@ public class SimulatorService {
             }
         }
         
-        CardInfo card = getCardByStudentCode(studentCode);
-        return card != null ? card.getBalance() : 0;
+        return getCachedBalance(studentCode);
     }
 
     // --- JAVACARD SIMULATOR & SECURITY (ADMIN) ---
 
     public void connect() throws Exception {
-        simulator = new Simulator();
-        AID aid = new AID(AppletConstants.APPLET_AID, (short)0, (byte)AppletConstants.APPLET_AID.length);
-        String appletClassName = "applet.LibraryCardApplet"; // [FIXED] Correct package and class name
-        Class<?> appletClass = Class.forName(appletClassName);
-        @SuppressWarnings("unchecked")
-        Class<? extends javacard.framework.Applet> appletClassCasted =
-                (Class<? extends javacard.framework.Applet>) appletClass;
-        simulator.installApplet(aid, appletClassCasted);
-        simulator.selectApplet(aid);
+        connect(CardPool.DEFAULT_CARD_ID);
+    }
+
+    /**
+     * Mượn thẻ của sinh viên từ CardPool / card-host (applet đã cài sẵn nếu thẻ từng được dùng)
+     * Nếu đang giữ thẻ khác thì trả thẻ đó về pool trước
+     */
+    public void connect(String studentCode) throws Exception {
+        if (isConnectedTo(studentCode)) {
+            return;
+        }
+        releaseCard();
+        cardLease = transport.open(studentCode);
         isConnected = true;
         
         // [MODIFIED] Secure Key Exchange Flow is now triggered AFTER Login
         // See setupSecureChannel() called from PinPage.java
-        System.out.println("Card connected. Waiting for Login to setup secure channel.");
+        System.out.println("Card " + cardLease.getStudentId() + " connected. Waiting for Login to setup secure channel.");
+    }
+
+    /**
+     * Kiểm tra đang giữ đúng thẻ của sinh viên này chưa
+     */
+    public boolean isConnectedTo(String studentCode) {
+        return isConnected && cardLease != null && studentCode != null
+                && cardLease.getStudentId().equalsIgnoreCase(studentCode.trim());
+    }
+
+    /**
+     * MSSV của thẻ đang mượn (null nếu chưa kết nối)
+     */
+    public String getConnectedCardId() {
+        return cardLease != null ? cardLease.getStudentId() : null;
+    }
+
+    /**
+     * Thống kê CardPool (tỉ lệ dùng lại thẻ, thời gian chờ lease); null khi dùng card-host từ xa
+     */
+    public CardPool.Stats getCardPoolStats() {
+        return transport instanceof CardPool ? ((CardPool) transport).getStats() : null;
+    }
+
+    public CardTransport getTransport() {
+        return transport;
     }
     
     /**
@@ -547,17 +710,22 @@ public class SimulatorService {
     public void disconnect() {
         // Reset connection state
         isConnected = false;
-        isPinVerified = false;
-        pinTriesRemaining = AppletConstants.DEFAULT_PIN_TRIES;
-        currentStudentCode = "";
-        currentRole = "Sinh viên";
+        resetAuthState();
         
-        // Clear simulator reference (but keep cardList for display)
-        // Note: We don't clear cardList as it's used for display purposes
-        // If you want to clear it, uncomment the line below:
-        // cardList.clear();
+        // Note: We don't clear cardRegistry as it's used for display purposes
+        // [UPDATED] Session reset: trả thẻ về pool, pool gửi INS_RESET_SESSION (hủy xác thực PIN trên applet)
+        // còn applet, dữ liệu thẻ và PIN đã tạo được giữ nguyên -> đăng nhập lại không phải cài lại applet
+        releaseCard();
         
-        simulator = null;
+        ApduRecorder rec = recorder;
+        if (rec != null) rec.flush();
+    }
+
+    private void releaseCard() {
+        if (cardLease != null) {
+            cardLease.close();
+            cardLease = null;
+        }
     }
     
     /**
@@ -569,26 +737,211 @@ public class SimulatorService {
         pinTriesRemaining = AppletConstants.DEFAULT_PIN_TRIES;
         currentStudentCode = "";
         currentRole = "Sinh viên";
+        lastSnapshot = null;
+        secureChannel = null;
+        secureSessionLost = false;
+        
+        // [NEW] Hủy cả xác thực PIN trên applet (khi đăng xuất, pool tự gửi lệnh này lúc trả thẻ)
+        if (isConnected && cardLease != null) {
+            sendAsync(ApduBuilder.get().begin(AppletConstants.INS_RESET_SESSION).buildCopy());
+        }
     }
 
     public byte[] sendCommand(byte[] command) {
-        if (simulator == null) throw new RuntimeException("Simulator chưa được khởi động!");
-        return simulator.transmitCommand(command);
+        CardSession lease = cardLease;
+        if (lease == null) throw new RuntimeException("Simulator chưa được khởi động!");
+        return sendCommand(lease, command);
+    }
+
+    // Gửi trên đúng lease đã chọn (không đọc lại cardLease), kèm metrics + ghi APDU
+    private byte[] sendCommand(CardSession lease, byte[] command) {
+        byte ins = command.length > 1 ? command[1] : 0;
+        
+        long start = System.nanoTime();
+        byte[] resp;
+        try {
+            resp = lease.transmit(command);
+        } catch (RuntimeException e) {
+            metrics.recordFailure(ins, System.nanoTime() - start);
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+        metrics.record(ins, ApduResponse.sw(resp), elapsed);
+        
+        ApduRecorder rec = recorder;
+        if (rec != null) {
+            rec.record(System.currentTimeMillis(), command, resp, elapsed);
+        }
+        return resp;
+    }
+
+    /**
+     * [NEW] Số liệu APDU theo INS (p50/p99, tỉ lệ lỗi, SW) của mọi thẻ trong JVM
+     */
+    public ApduMetrics.Snapshot getApduMetrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * [NEW] Ghi lưu lượng APDU của service này (null để tắt); mặc định theo -Dapdu.record.file
+     */
+    public void setRecorder(ApduRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public ApduRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * [NEW] Dùng extended-length APDU thay cho command chaining khi dữ liệu > 255 bytes
+     * (đầu đọc / thẻ thật không phải lúc nào cũng hỗ trợ extended-length)
+     */
+    public void setExtendedLengthEnabled(boolean enabled) {
+        this.extendedLengthEnabled = enabled;
+    }
+
+    public boolean isExtendedLengthEnabled() {
+        return extendedLengthEnabled;
+    }
+
+    /**
+     * [NEW] Gửi lệnh có thể dài hơn 255 bytes: APDU thường nếu vừa, nếu không thì
+     * extended-length hoặc command chaining (các block gửi liền nhau trên luồng của thẻ).
+     * Response dài được transport tự ghép qua GET RESPONSE.
+     */
+    private byte[] sendLarge(ApduBuilder builder) throws Exception {
+        if (builder.isShort()) {
+            return sendCommand(builder.build());
+        }
+        if (extendedLengthEnabled) {
+            return sendCommand(builder.buildExtended(0));
+        }
+        
+        List<byte[]> blocks = builder.buildChain();
+        CardSession lease = cardLease;
+        if (lease == null) throw new RuntimeException("Simulator chưa được khởi động!");
+        // Cả chuỗi chạy liền nhau (card-host: một frame TRANSMIT_CHAIN); thẻ từ chối block -> dừng chuỗi
+        long start = System.nanoTime();
+        List<byte[]> responses;
+        try {
+            responses = lease.transmitChain(blocks);
+        } catch (Exception e) {
+            metrics.recordFailure(blocks.get(0)[1], System.nanoTime() - start);
+            throw e;
+        }
+        long perBlock = (System.nanoTime() - start) / Math.max(1, responses.size());
+        ApduRecorder rec = recorder;
+        for (int i = 0; i < responses.size(); i++) {
+            byte[] block = blocks.get(i);
+            byte[] resp = responses.get(i);
+            metrics.record(block[1], ApduResponse.sw(resp), perBlock);
+            if (rec != null) {
+                rec.record(System.currentTimeMillis(), block, resp, perBlock);
+            }
+        }
+        return responses.get(responses.size() - 1);
+    }
+
+    /**
+     * [NEW] Gửi lệnh nhạy cảm: có phiên Secure Messaging thì thêm [COUNTER][MAC].
+     * Wrap + gửi chạy liền nhau trên luồng của thẻ để counter tới thẻ đúng thứ tự.
+     * Thẻ trả SW_SM_SESSION_CLOSED (phiên đã đóng: deselect, reset, MAC sai) -> bỏ phiên và báo lỗi,
+     * không bao giờ gửi lại lệnh không MAC; các lệnh nhạy cảm sau đó cũng bị từ chối cho tới khi
+     * mở phiên mới (openSecureSession) hoặc đăng xuất.
+     */
+    private byte[] sendSecure(ApduBuilder builder) throws Exception {
+        SecureChannel channel = secureChannel;
+        if (channel == null) {
+            if (secureSessionLost) {
+                throw new Exception("Phiên Secure Messaging đã đóng - vui lòng đăng nhập lại");
+            }
+            return sendLarge(builder);
+        }
+        byte[] resp = callOnCard(() -> sendLarge(channel.wrap(builder)));
+        if (getSW(resp) == AppletConstants.SW_SM_SESSION_CLOSED) {
+            if (secureChannel == channel) {
+                secureChannel = null;
+                secureSessionLost = true;
+            }
+            System.out.println("[SECURE] Secure Messaging session closed by card, command not sent in plain");
+            throw new Exception("Phiên Secure Messaging đã đóng - vui lòng đăng nhập lại");
+        }
+        return resp;
+    }
+
+    public boolean isSecureSessionOpen() {
+        return secureChannel != null;
+    }
+
+    // --- ASYNC API (không chặn EDT) ---
+
+    /**
+     * Gửi APDU bất đồng bộ với mức ưu tiên INTERACTIVE
+     */
+    public CompletableFuture<byte[]> sendAsync(byte[] command) {
+        return sendAsync(command, CardExecutor.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Lệnh chạy trên thẻ đang mượn lúc gọi: đăng xuất / đổi thẻ trước khi tới lượt
+     * không làm lệnh đi sang thẻ khác
+     */
+    public CompletableFuture<byte[]> sendAsync(byte[] command, CardExecutor.Priority priority) {
+        CardSession lease = cardLease;
+        if (lease == null) {
+            CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("Simulator chưa được khởi động!"));
+            return failed;
+        }
+        return lease.getExecutor().submit(() -> sendCommand(lease, command), priority);
+    }
+
+    /**
+     * Chạy một chuỗi thao tác với thẻ (PBKDF2, RSA...) trên luồng của thẻ đang mượn.
+     * Các APDU bên trong chạy liền nhau, không bị lệnh khác chen vào giữa.
+     */
+    public <T> CompletableFuture<T> callAsync(Callable<T> task, CardExecutor.Priority priority) {
+        CardSession lease = cardLease;
+        if (lease == null) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("Simulator chưa được khởi động!"));
+            return failed;
+        }
+        return lease.getExecutor().submit(task, priority);
+    }
+
+    public CompletableFuture<Boolean> verifyPinAsync(char[] pinChars) {
+        return callAsync(() -> verifyPin(pinChars), CardExecutor.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Đọc số dư nền (làm mới màn hình) - nhường lệnh INTERACTIVE
+     */
+    public CompletableFuture<Long> getBalanceAsync(String studentCode) {
+        return callAsync(() -> getBalance(studentCode), CardExecutor.Priority.BACKGROUND);
+    }
+
+    public CompletableFuture<byte[]> signRSAChallengeAsync(byte[] challenge) {
+        return callAsync(() -> signRSAChallenge(challenge), CardExecutor.Priority.INTERACTIVE);
+    }
+
+    public CompletableFuture<CardInfo> getCardInfoAsync() {
+        return callAsync(this::getCardInfo, CardExecutor.Priority.BACKGROUND);
     }
 
     public int getSW(byte[] response) {
-        if (response.length < 2) return 0;
-        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+        return ApduResponse.sw(response);
     }
 
-    private byte[] generateSalt() {
+    private static byte[] generateSalt() {
         SecureRandom random = new SecureRandom();
         byte[] salt = new byte[AppletConstants.SALT_LENGTH];
         random.nextBytes(salt);
         return salt;
     }
 
-    private byte[] hashPin(char[] pin, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
+    private static byte[] hashPin(char[] pin, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
         KeySpec spec = new PBEKeySpec(pin, salt, PBKDF2_ITERATIONS, HASH_BIT_LENGTH);
         SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
         return factory.generateSecret(spec).getEncoded();
@@ -596,29 +949,34 @@ public class SimulatorService {
 
     public void createDemoPin() throws Exception {
         if (!isConnected) return;
+        // Thẻ lấy lại từ pool đã có PIN từ phiên trước -> không ghi đè
+        if (cardLease.isProvisioned()) return;
+        byte[] resp = sendCommand(buildDemoPinCommand());
+        if (getSW(resp) == 0x9000) {
+            cardLease.markProvisioned();
+        }
+    }
+
+    /**
+     * APDU tạo PIN mặc định (salt ngẫu nhiên + PBKDF2) - dùng chung với KeyProvisioner
+     */
+    static byte[] buildDemoPinCommand() throws NoSuchAlgorithmException, InvalidKeySpecException {
         byte[] salt = generateSalt();
         byte[] hash = hashPin(AppletConstants.DEFAULT_PIN.toCharArray(), salt);
-        int dataLength = salt.length + hash.length;
-        byte[] cmd = new byte[5 + dataLength];
-        cmd[0] = 0x00; cmd[1] = AppletConstants.INS_CREATE_PIN; cmd[4] = (byte)dataLength;
-        System.arraycopy(salt, 0, cmd, 5, salt.length);
-        System.arraycopy(hash, 0, cmd, 5 + salt.length, hash.length);
-        sendCommand(cmd);
+        return ApduBuilder.get().begin(AppletConstants.INS_CREATE_PIN)
+                .put(salt).put(hash)
+                .buildCopy();
     }
 
     public boolean verifyPin(char[] pinChars) throws Exception {
         if (!isConnected) return false;
-        byte[] getSaltCmd = {0x00, AppletConstants.INS_GET_SALT, 0x00, 0x00, 0x00};
-        byte[] saltResp = sendCommand(getSaltCmd);
+        byte[] saltResp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_GET_SALT).build());
         if (getSW(saltResp) != 0x9000) return false;
-        byte[] salt = Arrays.copyOf(saltResp, AppletConstants.SALT_LENGTH);
+        // PBEKeySpec tự sao chép salt -> dùng lại bộ đệm salt của luồng
+        byte[] salt = SALT_BUFFER.get();
+        ApduResponse.wrap(saltResp).copyData(0, salt, 0, AppletConstants.SALT_LENGTH);
         byte[] hash = hashPin(pinChars, salt);
-        byte[] verifyCmd = new byte[5 + hash.length];
-        verifyCmd[0] = 0x00;
-        verifyCmd[1] = AppletConstants.INS_VERIFY_PIN; 
-        verifyCmd[4] = (byte)hash.length;
-        System.arraycopy(hash, 0, verifyCmd, 5, hash.length);
-        byte[] resp = sendCommand(verifyCmd);
+        byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_VERIFY_PIN).put(hash).build());
 
         if (getSW(resp) == 0x9000 && resp.length > 2) {
             if (resp[0] == 0x01) {
@@ -637,11 +995,9 @@ public class SimulatorService {
         if (!isConnected) return false;
         byte[] newSalt = generateSalt();
         byte[] newHash = hashPin(newPin, newSalt);
-        int dataLength = newSalt.length + newHash.length;
-        byte[] cmd = new byte[5 + dataLength];
-        cmd[0] = 0x00; cmd[1] = AppletConstants.INS_CHANGE_PIN; cmd[4] = (byte)dataLength;
-        System.arraycopy(newSalt, 0, cmd, 5, newSalt.length);
-        System.arraycopy(newHash, 0, cmd, 5 + newSalt.length, newHash.length);
+        byte[] cmd = ApduBuilder.get().begin(AppletConstants.INS_CHANGE_PIN)
+                .put(newSalt).put(newHash)
+                .build();
         byte[] resp = sendCommand(cmd);
         return getSW(resp) == 0x9000;
     }
@@ -675,51 +1031,26 @@ public class SimulatorService {
             byte[] encryptedExpiry = AESUtility.encrypt(
                 expiryDate.getBytes(StandardCharsets.UTF_8), aesKey);
             
-            // Prepare Card ID as plaintext (pad/truncate to 10 bytes)
+            // Card ID as plaintext (pad/truncate to 10 bytes)
             byte[] cardIdBytes = cardId.getBytes(StandardCharsets.UTF_8);
-            byte[] cardIdData = new byte[AppletConstants.CARD_ID_LENGTH];
-            System.arraycopy(cardIdBytes, 0, cardIdData, 0, 
-                Math.min(cardIdData.length, cardIdBytes.length));
             
-            // Truncate encrypted Name to fit applet constraints (max 50 bytes)
-            // Note: Encrypted data format is [IV (16 bytes)] + [Encrypted data]
-            // If truncated, IV will be lost and decryption will fail
-            // This is a limitation - we can only store partial encrypted data
-            byte[] nameData = new byte[Math.min(encryptedName.length, AppletConstants.NAME_MAX_LENGTH)];
-            System.arraycopy(encryptedName, 0, nameData, 0, nameData.length);
-            
-            // Truncate encrypted Expiry to fit applet constraints (8 bytes)
-            // Note: This will lose IV, making decryption impossible
-            // For expiry date, we might need to store it plaintext or use a different approach
-            byte[] expiryData = new byte[AppletConstants.EXPIRY_DATE_LENGTH];
-            System.arraycopy(encryptedExpiry, 0, expiryData, 0, 
-                Math.min(expiryData.length, encryptedExpiry.length));
-            
-            // Build command
-            // Format: [ENCRYPTED_FLAG (1)] [CARD_ID_PLAINTEXT (10)] [NAME_LEN] [NAME_ENCRYPTED] [EXPIRY_ENCRYPTED]
-            int totalLength = 1 + cardIdData.length + 1 + nameData.length + expiryData.length;
-            byte[] cmd = new byte[5 + totalLength];
-            cmd[0] = (byte)0x00;
-            cmd[1] = AppletConstants.INS_SET_CARD_INFO;
-            cmd[2] = (byte)0x00;
-            cmd[3] = (byte)0x00;
-            cmd[4] = (byte)totalLength;
+            // [UPDATED] Định dạng mở rộng: lưu bản mã đầy đủ (IV + data) của Name và Expiry,
+            // không còn cắt Name còn 50 bytes / Expiry còn 8 bytes (mất IV -> không giải mã được)
+            if (encryptedName.length > AppletConstants.NAME_EXT_MAX_LENGTH
+                    || encryptedExpiry.length > AppletConstants.EXPIRY_EXT_MAX_LENGTH) {
+                throw new Exception("Tên chủ thẻ quá dài (" + encryptedName.length + " bytes sau mã hóa)");
+            }
             
-            int offset = 5;
-            // Encrypted flag (1 = Name and Expiry are encrypted, Card ID is plaintext)
-            cmd[offset++] = (byte)0x01;
-            // Card ID (PLAINTEXT)
-            System.arraycopy(cardIdData, 0, cmd, offset, cardIdData.length);
-            offset += cardIdData.length;
-            // Name length
-            cmd[offset++] = (byte)nameData.length;
-            // Name (ENCRYPTED, may be truncated)
-            System.arraycopy(nameData, 0, cmd, offset, nameData.length);
-            offset += nameData.length;
-            // Expiry date (ENCRYPTED, may be truncated)
-            System.arraycopy(expiryData, 0, cmd, offset, expiryData.length);
+            // Format: [FLAG = 0x02] [CARD_ID_PLAINTEXT (10)] [NAME_LEN (2)] [NAME_ENCRYPTED] [EXPIRY_LEN (1)] [EXPIRY_ENCRYPTED]
+            ApduBuilder builder = ApduBuilder.get().begin(AppletConstants.INS_SET_CARD_INFO)
+                    .put(AppletConstants.CARD_INFO_EXTENDED)
+                    .putPadded(cardIdBytes, AppletConstants.CARD_ID_LENGTH)
+                    .putShort(encryptedName.length)
+                    .put(encryptedName)
+                    .put((byte)encryptedExpiry.length)
+                    .put(encryptedExpiry);
             
-            byte[] resp = sendCommand(cmd);
+            byte[] resp = sendSecure(builder);
             return getSW(resp) == 0x9000;
             
         } catch (Exception e) {
@@ -739,94 +1070,221 @@ public class SimulatorService {
         
         try {
             // Send GET_CARD_INFO command
-            byte[] cmd = new byte[5];
-            cmd[0] = (byte)0x00;
-            cmd[1] = AppletConstants.INS_GET_CARD_INFO;
-            cmd[2] = (byte)0x00;
-            cmd[3] = (byte)0x00;
-            cmd[4] = (byte)0x00;
-            
-            byte[] resp = sendCommand(cmd);
-            if (getSW(resp) != 0x9000) {
-                throw new Exception("Lỗi khi đọc thông tin thẻ: " + String.format("%04X", getSW(resp)));
+            byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_GET_CARD_INFO).build());
+            ApduResponse data = ApduResponse.wrap(resp);
+            if (!data.isSuccess()) {
+                throw new Exception("Lỗi khi đọc thông tin thẻ: " + String.format("%04X", data.getSW()));
             }
             
             // Response format: [ENCRYPTED_FLAG (1)] [CARD_ID] [NAME_LEN] [NAME] [EXPIRY] [NUM_BOOKS]
-            // If ENCRYPTED_FLAG = 1: Card ID is plaintext, Name and Expiry are encrypted
-            byte[] data = new byte[resp.length - 2];
-            System.arraycopy(resp, 0, data, 0, data.length);
-            
-            int offset = 0;
-            boolean encrypted = (data[offset++] == (byte)0x01);
-            
-            // Read Card ID (PLAINTEXT if encrypted flag is set, otherwise may be plaintext)
-            byte[] cardIdBytes = new byte[AppletConstants.CARD_ID_LENGTH];
-            System.arraycopy(data, offset, cardIdBytes, 0, cardIdBytes.length);
-            offset += cardIdBytes.length;
-            String cardId = new String(cardIdBytes, StandardCharsets.UTF_8).trim();
-            
-            // Read Name
-            byte nameLen = data[offset++];
-            byte[] nameData = new byte[nameLen];
-            System.arraycopy(data, offset, nameData, 0, nameLen);
-            offset += nameLen;
-            
-            // Read Expiry
-            byte[] expiryData = new byte[AppletConstants.EXPIRY_DATE_LENGTH];
-            System.arraycopy(data, offset, expiryData, 0, expiryData.length);
-            offset += expiryData.length;
-            
-            // Read num books
-            byte numBooks = data[offset];
+            int numBooks = data.getUnsignedByte(data.dataLength() - 1);
+            return decodeCardInfo(data, 0, numBooks);
             
-            CardInfo cardInfo = new CardInfo();
-            cardInfo.setBorrowedBooks(numBooks & 0xFF);
-            cardInfo.setStudentId(cardId); // Card ID is always plaintext
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new Exception("Lỗi khi đọc và giải mã thông tin thẻ: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decode card info record [ENCRYPTED_FLAG (1)] [CARD_ID] [NAME_LEN] [NAME] [EXPIRY]
+     * hoặc định dạng mở rộng [0x02] [CARD_ID] [NAME_LEN (2)] [NAME] [EXPIRY_LEN] [EXPIRY]
+     * (dùng chung cho GET_CARD_INFO và Session Snapshot)
+     */
+    private CardInfo decodeCardInfo(ApduResponse data, int offset, int numBooks) throws Exception {
+        // If ENCRYPTED_FLAG = 1 (hoặc 2 - mở rộng): Card ID is plaintext, Name and Expiry are encrypted
+        byte flag = data.getByte(offset++);
+        boolean extended = flag == AppletConstants.CARD_INFO_EXTENDED;
+        boolean encrypted = flag == AppletConstants.CARD_INFO_ENCRYPTED || extended;
+        
+        // Read Card ID (PLAINTEXT if encrypted flag is set, otherwise may be plaintext)
+        String cardId = data.getString(offset, AppletConstants.CARD_ID_LENGTH);
+        offset += AppletConstants.CARD_ID_LENGTH;
+        
+        // Read Name (chỉ phần này cần mảng riêng để giải mã)
+        int nameLen;
+        if (extended) {
+            nameLen = data.getShort(offset);
+            offset += 2;
+        } else {
+            nameLen = data.getUnsignedByte(offset++);
+        }
+        byte[] nameData = data.copyData(offset, nameLen);
+        // Expiry is skipped (see note below)
+        
+        CardInfo cardInfo = new CardInfo();
+        cardInfo.setBorrowedBooks(numBooks);
+        cardInfo.setStudentId(cardId); // Card ID is always plaintext
+        
+        if (encrypted) {
+            // Name and Expiry are encrypted, Card ID is plaintext
+            // Use Card ID to derive key
+            String masterKey = AESUtility.getMasterKey();
+            javax.crypto.SecretKey aesKey = AESUtility.deriveKey(masterKey, cardId);
             
-            if (encrypted) {
-                // Name and Expiry are encrypted, Card ID is plaintext
-                // Use Card ID to derive key
-                String masterKey = AESUtility.getMasterKey();
-                javax.crypto.SecretKey aesKey = AESUtility.deriveKey(masterKey, cardId);
-                
-                // Decrypt Name
-                try {
-                    // Note: Encrypted data may be truncated (missing IV or partial data)
-                    // If data is too short (< 16 bytes), it's likely truncated and can't be decrypted
-                    if (nameData.length >= 16) {
-                        byte[] decryptedName = AESUtility.decrypt(nameData, aesKey);
-                        String nameStr = new String(decryptedName, StandardCharsets.UTF_8).trim();
-                        cardInfo.setHolderName(nameStr);
-                    } else {
-                        // Data too short, likely truncated - treat as plaintext or use fallback
-                        System.err.println("Warning: Encrypted name data too short, may be truncated");
-                        String nameStr = new String(nameData, StandardCharsets.UTF_8).trim();
-                        cardInfo.setHolderName(nameStr);
-                    }
-                } catch (Exception e) {
-                    // Decryption failed - data may be truncated or corrupted
-                    // Fallback to plaintext (may be garbage if actually encrypted)
-                    System.err.println("Warning: Failed to decrypt name, using as plaintext: " + e.getMessage());
+            // Decrypt Name
+            try {
+                // Note: Encrypted data may be truncated (missing IV or partial data)
+                // If data is too short (< 16 bytes), it's likely truncated and can't be decrypted
+                if (nameData.length >= 16) {
+                    byte[] decryptedName = AESUtility.decrypt(nameData, aesKey);
+                    String nameStr = new String(decryptedName, StandardCharsets.UTF_8).trim();
+                    cardInfo.setHolderName(nameStr);
+                } else {
+                    // Data too short, likely truncated - treat as plaintext or use fallback
+                    System.err.println("Warning: Encrypted name data too short, may be truncated");
                     String nameStr = new String(nameData, StandardCharsets.UTF_8).trim();
                     cardInfo.setHolderName(nameStr);
                 }
-                
-                // Expiry date decryption (not used in CardInfo model currently)
-                // Note: Expiry is only 8 bytes, encrypted data needs 16+ bytes (IV + encrypted)
-                // So expiry cannot be properly encrypted with current constraints
-                // For now, we'll skip expiry decryption
-            } else {
-                // All data is plaintext
+            } catch (Exception e) {
+                // Decryption failed - data may be truncated or corrupted
+                // Fallback to plaintext (may be garbage if actually encrypted)
+                System.err.println("Warning: Failed to decrypt name, using as plaintext: " + e.getMessage());
                 String nameStr = new String(nameData, StandardCharsets.UTF_8).trim();
                 cardInfo.setHolderName(nameStr);
             }
             
-            return cardInfo;
-            
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new Exception("Lỗi khi đọc và giải mã thông tin thẻ: " + e.getMessage());
+            // Expiry date decryption (not used in CardInfo model currently)
+            // Note: format cũ chỉ có 8 bytes (mất IV); format mở rộng lưu đủ nhưng model chưa dùng
+            // For now, we'll skip expiry decryption
+        } else {
+            // All data is plaintext
+            String nameStr = new String(nameData, StandardCharsets.UTF_8).trim();
+            cardInfo.setHolderName(nameStr);
+        }
+        
+        return cardInfo;
+    }
+
+    // ========== Session Snapshot ==========
+
+    /**
+     * Đọc card info, số dư, sách đang mượn, số lần thử PIN và trạng thái RSA
+     * trong MỘT lần trao đổi APDU (INS_GET_SESSION_SNAPSHOT) thay vì 4-5 lệnh riêng.
+     * Public key chỉ được yêu cầu khi chưa có trong cache của thẻ.
+     */
+    public SessionSnapshot readSessionSnapshot() throws Exception {
+        if (!isConnected) {
+            throw new Exception("Chưa kết nối với thẻ");
+        }
+        CardSession lease = cardLease;
+        byte mask = AppletConstants.SNAPSHOT_DEFAULT;
+        byte[] publicKey = lease.getCachedPublicKey();
+        if (publicKey == null) {
+            mask |= AppletConstants.SNAPSHOT_RSA_PUBLIC_KEY;
+        }
+        if (AuthConfig.isEcPreferred()) {
+            mask |= AppletConstants.SNAPSHOT_EC_PUBLIC_KEY;
+        }
+        
+        byte[] resp = sendCommand(ApduBuilder.get()
+                .begin((byte)0x00, AppletConstants.INS_GET_SESSION_SNAPSHOT, mask, (byte)0x00)
+                .build());
+        ApduResponse data = ApduResponse.wrap(resp);
+        if (!data.isSuccess()) {
+            throw new Exception("Lỗi khi đọc session snapshot: " + String.format("%04X", data.getSW()));
+        }
+        
+        int cardInfoOffset = -1;
+        int balanceOffset = -1;
+        int balanceValueOffset = -1;
+        int pinTries = pinTriesRemaining;
+        boolean rsaKeyPresent = publicKey != null;
+        boolean ecKeyPresent = false;
+        byte[] ecPublicKey = null;
+        List<String> bookIds = new ArrayList<>();
+        
+        while (data.nextTlv()) {
+            int off = data.tlvOffset();
+            switch (data.tlvTag()) {
+                case AppletConstants.TAG_CARD_INFO:
+                    cardInfoOffset = off;
+                    break;
+                case AppletConstants.TAG_BALANCE:
+                    balanceOffset = off;
+                    break;
+                case AppletConstants.TAG_BALANCE_VALUE:
+                    balanceValueOffset = off;
+                    break;
+                case AppletConstants.TAG_BORROWED_BOOKS:
+                    int numBooks = data.getUnsignedByte(off);
+                    for (int i = 0; i < numBooks; i++) {
+                        bookIds.add(data.getString(off + 1 + i * AppletConstants.BOOK_ID_LENGTH,
+                                AppletConstants.BOOK_ID_LENGTH));
+                    }
+                    break;
+                case AppletConstants.TAG_PIN_TRIES:
+                    pinTries = data.getUnsignedByte(off);
+                    break;
+                case AppletConstants.TAG_RSA_STATUS:
+                    rsaKeyPresent = data.getByte(off) == (byte)0x01;
+                    break;
+                case AppletConstants.TAG_RSA_PUBLIC_KEY:
+                    publicKey = data.copyData(off, data.tlvLength());
+                    break;
+                case AppletConstants.TAG_EC_STATUS:
+                    ecKeyPresent = data.getByte(off) == (byte)0x01;
+                    break;
+                case AppletConstants.TAG_EC_PUBLIC_KEY:
+                    ecPublicKey = data.copyData(off, data.tlvLength());
+                    break;
+                default:
+                    // Tag mới từ applet đời sau -> bỏ qua
+                    break;
+            }
+        }
+        if (publicKey != null) {
+            lease.cachePublicKey(publicKey);
+        }
+        
+        // Giải mã số dư ngay trên mảng response (cần khóa AES của phiên)
+        String studentCode = currentStudentCode;
+        CardInfo cachedCard = getCardByStudentCode(studentCode);
+        long balance = cachedCard != null ? cachedCard.getBalance() : 0;
+        boolean onCardBalance = balanceValueOffset >= 0
+                && (data.getLong(balanceValueOffset) != 0
+                    || data.getShort(balanceValueOffset + 8) != 0 || data.getShort(balanceValueOffset + 10) != 0);
+        if (onCardBalance) {
+            // [NEW] Số dư trên thẻ (INS_ADJUST_BALANCE) đã được dùng -> không cần giải mã
+            balance = data.getLong(balanceValueOffset);
+            if (cachedCard != null) cachedCard.setBalance(balance);
+        } else if (balanceOffset >= 0 && AESUtility.isKeyInitialized()) {
+            balance = AESUtility.decryptBalance(resp, balanceOffset);
+            if (balance < 0 || balance > MAX_BALANCE) {
+                balance = 0;
+            }
+            if (cachedCard != null) cachedCard.setBalance(balance);
         }
+        
+        CardInfo cardInfo = null;
+        if (cardInfoOffset >= 0) {
+            try {
+                cardInfo = decodeCardInfo(data, cardInfoOffset, bookIds.size());
+                cardInfo.setBalance(balance);
+            } catch (Exception e) {
+                System.out.println("[Snapshot] Không giải mã được card info: " + e.getMessage());
+            }
+        }
+        
+        pinTriesRemaining = pinTries;
+        SessionSnapshot snapshot = new SessionSnapshot(cardInfo, balance, bookIds, pinTries, rsaKeyPresent, publicKey,
+                ecKeyPresent, ecPublicKey);
+        lastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Đọc snapshot nền (mở tab, làm mới) - nhường lệnh INTERACTIVE
+     */
+    public CompletableFuture<SessionSnapshot> readSessionSnapshotAsync() {
+        return callAsync(this::readSessionSnapshot, CardExecutor.Priority.BACKGROUND);
+    }
+
+    /**
+     * Snapshot đọc gần nhất trong phiên (null nếu chưa đọc)
+     */
+    public SessionSnapshot getLastSessionSnapshot() {
+        return lastSnapshot;
     }
 
     // ========== RSA Authentication Methods ==========
@@ -840,21 +1298,14 @@ public class SimulatorService {
             throw new Exception("Chưa kết nối với thẻ");
         }
         
-        byte[] cmd = new byte[5];
-        cmd[0] = (byte)0x00;  // CLA
-        cmd[1] = AppletConstants.INS_RSA_GENERATE_KEYPAIR;
-        cmd[2] = (byte)0x00;
-        cmd[3] = (byte)0x00;
-        cmd[4] = (byte)0x00;
-        
-        byte[] resp = sendCommand(cmd);
+        byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_RSA_GENERATE_KEYPAIR).build());
         if (getSW(resp) != 0x9000) {
             throw new Exception("Lỗi khi tạo khóa RSA: " + String.format("%04X", getSW(resp)));
         }
         
         // Response: [MODULUS (128 bytes)] [EXPONENT (3 bytes)]
-        byte[] publicKeyData = new byte[resp.length - 2];
-        System.arraycopy(resp, 0, publicKeyData, 0, publicKeyData.length);
+        byte[] publicKeyData = ApduResponse.wrap(resp).copyData();
+        cardLease.cachePublicKey(publicKeyData);
         return publicKeyData;
     }
     
@@ -867,20 +1318,19 @@ public class SimulatorService {
             throw new Exception("Chưa kết nối với thẻ");
         }
         
-        byte[] cmd = new byte[5];
-        cmd[0] = (byte)0x00;
-        cmd[1] = AppletConstants.INS_RSA_GET_PUBLIC_KEY;
-        cmd[2] = (byte)0x00;
-        cmd[3] = (byte)0x00;
-        cmd[4] = (byte)0x00;
+        // Keypair trên thẻ không đổi -> dùng bản đã đọc (từ lệnh trước hoặc Session Snapshot)
+        byte[] cached = cardLease.getCachedPublicKey();
+        if (cached != null) {
+            return cached;
+        }
         
-        byte[] resp = sendCommand(cmd);
+        byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_RSA_GET_PUBLIC_KEY).build());
         if (getSW(resp) != 0x9000) {
             throw new Exception("Thẻ chưa có khóa RSA: " + String.format("%04X", getSW(resp)));
         }
         
-        byte[] publicKeyData = new byte[resp.length - 2];
-        System.arraycopy(resp, 0, publicKeyData, 0, publicKeyData.length);
+        byte[] publicKeyData = ApduResponse.wrap(resp).copyData();
+        cardLease.cachePublicKey(publicKeyData);
         return publicKeyData;
     }
     
@@ -916,13 +1366,9 @@ public class SimulatorService {
         }
         
         // Build APDU command: [CLA] [INS] [P1] [P2] [Lc] [Data...]
-        byte[] cmd = new byte[5 + challenge.length];
-        cmd[0] = (byte)0x00;  // CLA
-        cmd[1] = AppletConstants.INS_RSA_SIGN_CHALLENGE;  // INS
-        cmd[2] = (byte)0x00;  // P1
-        cmd[3] = (byte)0x00;  // P2
-        cmd[4] = (byte)challenge.length;  // Lc (length of data)
-        System.arraycopy(challenge, 0, cmd, 5, challenge.length);
+        byte[] cmd = ApduBuilder.get().begin(AppletConstants.INS_RSA_SIGN_CHALLENGE)
+                .put(challenge)
+                .build();
         
         System.out.println("[DEBUG] Sending RSA sign challenge command:");
         System.out.println("  CLA: 0x" + String.format("%02X", cmd[0]));
@@ -1080,33 +1526,37 @@ public class SimulatorService {
             throw new Exception(errorMsg);
         }
         
-        byte[] signature = new byte[resp.length - 2];
-        System.arraycopy(resp, 0, signature, 0, signature.length);
-        return signature;
+        return ApduResponse.wrap(resp).copyData();
     }
     
     /**
-     * Authenticate card using RSA challenge-response
-     * @param publicKeyPEM Public key from server (PEM format)
+     * Authenticate card using challenge-response
+     * [UPDATED] Thuật toán theo loại khóa: RSA -> SHA1withRSA (INS_RSA_SIGN_CHALLENGE),
+     * EC -> ECDSA P-256 (INS_EC_SIGN_CHALLENGE)
+     * @param publicKeyPEM Public key from server / card (PEM format, RSA hoặc EC)
      * @return true if card is authenticated
      */
-    public boolean authenticateCardWithRSA(String publicKeyPEM) {
+    public boolean authenticateCard(String publicKeyPEM) {
         try {
             // Verify keypair exists and is ready before attempting authentication
             if (!isConnected) {
                 return false;
             }
             
+            boolean ec = publicKeyPEM != null && isEcPublicKey(publicKeyPEM);
+            
             // First, verify keypair exists on card (needed for signing)
-            try {
-                byte[] testKey = getRSAPublicKey();
-                if (testKey == null || testKey.length == 0) {
-                    System.out.println("RSA keypair not found on card for authentication");
+            if (!ec) {
+                try {
+                    byte[] testKey = getRSAPublicKey();
+                    if (testKey == null || testKey.length == 0) {
+                        System.out.println("RSA keypair not found on card for authentication");
+                        return false;
+                    }
+                } catch (Exception keyCheckEx) {
+                    System.out.println("RSA keypair check failed: " + keyCheckEx.getMessage());
                     return false;
                 }
-            } catch (Exception keyCheckEx) {
-                System.out.println("RSA keypair check failed: " + keyCheckEx.getMessage());
-                return false;
             }
             
             // [FIXED] Use public key from SERVER (not from card)
@@ -1128,8 +1578,9 @@ public class SimulatorService {
             // Sign challenge on card - catch 6700 error specifically
             byte[] signature;
             try {
-                signature = signRSAChallenge(challenge);
-                System.out.println("[RSA AUTH] Card signed challenge, signature length: " + signature.length);
+                signature = ec ? signECChallenge(challenge) : signRSAChallenge(challenge);
+                System.out.println("[RSA AUTH] Card signed challenge (" + (ec ? "ECDSA" : "RSA")
+                        + "), signature length: " + signature.length);
             } catch (Exception signEx) {
                 // 6700 error means keypair may not be ready
                 String errorMsg = signEx.getMessage();
@@ -1164,6 +1615,118 @@ public class SimulatorService {
         }
     }
     
+    // ========== [NEW] EC (ECDSA P-256) Authentication Methods ==========
+    
+    /**
+     * Generate EC keypair on card (nếu đã có thì đọc lại public key)
+     * @return Public key W (65 bytes: 04 || X || Y)
+     */
+    public byte[] generateECKeyPair() throws Exception {
+        if (!isConnected) {
+            throw new Exception("Chưa kết nối với thẻ");
+        }
+        
+        byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_EC_GENERATE_KEYPAIR).build());
+        if (getSW(resp) == ISO7816.SW_COMMAND_NOT_ALLOWED) {
+            return getECPublicKey();
+        }
+        if (getSW(resp) != 0x9000) {
+            throw new Exception("Lỗi khi tạo khóa EC: " + String.format("%04X", getSW(resp)));
+        }
+        return ApduResponse.wrap(resp).copyData();
+    }
+    
+    /**
+     * Get EC public key from card
+     * @return Public key W (65 bytes)
+     */
+    public byte[] getECPublicKey() throws Exception {
+        if (!isConnected) {
+            throw new Exception("Chưa kết nối với thẻ");
+        }
+        
+        byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_EC_GET_PUBLIC_KEY).build());
+        if (getSW(resp) != 0x9000) {
+            throw new Exception("Thẻ chưa có khóa EC: " + String.format("%04X", getSW(resp)));
+        }
+        return ApduResponse.wrap(resp).copyData();
+    }
+    
+    /**
+     * Sign challenge with EC private key on card (ECDSA SHA-256)
+     * @param challenge Challenge bytes (16 bytes)
+     * @return Signature (DER, tối đa 72 bytes)
+     */
+    public byte[] signECChallenge(byte[] challenge) throws Exception {
+        if (!isConnected) {
+            throw new Exception("Chưa kết nối với thẻ");
+        }
+        if (challenge.length != AppletConstants.RSA_CHALLENGE_SIZE) {
+            throw new Exception("Challenge phải có độ dài 16 bytes");
+        }
+        
+        byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_EC_SIGN_CHALLENGE)
+                .put(challenge)
+                .build());
+        if (getSW(resp) != 0x9000) {
+            throw new Exception("Lỗi khi ký challenge (EC): " + String.format("%04X", getSW(resp)));
+        }
+        return ApduResponse.wrap(resp).copyData();
+    }
+    
+    /**
+     * Ký challenge theo thuật toán đã thỏa thuận cho thẻ (AuthConfig.ALGORITHM_RSA / ALGORITHM_EC)
+     */
+    public byte[] signChallenge(byte[] challenge, String algorithm) throws Exception {
+        return AuthConfig.ALGORITHM_EC.equals(algorithm) ? signECChallenge(challenge) : signRSAChallenge(challenge);
+    }
+    
+    /**
+     * Chọn thuật toán xác thực cho một thẻ
+     * - Server đã có khóa EC của thẻ và thẻ có keypair EC -> EC
+     * - Deployment ưu tiên EC -> EC (khóa EC được sinh và đăng ký nếu chưa có)
+     * - Còn lại -> RSA (thẻ / server cũ)
+     *
+     * @param serverCard Thẻ trên server (có thể null khi offline)
+     * @param snapshot Session snapshot vừa đọc (có thể null)
+     */
+    public String negotiateAuthAlgorithm(CardInfo serverCard, SessionSnapshot snapshot) {
+        boolean serverHasEc = serverCard != null && serverCard.getEcPublicKey() != null
+                && !serverCard.getEcPublicKey().isEmpty();
+        boolean cardHasEc = snapshot != null && snapshot.isEcKeyPresent();
+        if ((serverHasEc && cardHasEc) || AuthConfig.isEcPreferred()) {
+            return AuthConfig.ALGORITHM_EC;
+        }
+        return AuthConfig.ALGORITHM_RSA;
+    }
+    
+    /**
+     * Register EC Public Key with Server (sinh keypair EC trên thẻ nếu chưa có)
+     * @return Public key PEM đã đăng ký
+     */
+    public String registerECPublicKey(String studentId) throws Exception {
+        if (!isConnected) throw new Exception("Card not connected");
+        
+        byte[] point = generateECKeyPair();
+        if (point.length != AppletConstants.EC_PUBLIC_KEY_SIZE) {
+            throw new Exception("Invalid EC Public Key format from card");
+        }
+        String publicKeyPEM = RSAUtility.convertEcPointToPEM(point);
+        
+        cardApi.registerECPublicKey(studentId, bytesToHex(point));
+        
+        System.out.println("[SECURE] EC Public Key registered.");
+        return publicKeyPEM;
+    }
+    
+    private static boolean isEcPublicKey(String publicKeyPEM) {
+        try {
+            return "EC".equals(RSAUtility.pemToPublicKey(publicKeyPEM).getAlgorithm());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+    
     // ========== AES Encryption Methods ==========
     
     /**
@@ -1184,18 +1747,58 @@ public class SimulatorService {
             throw new Exception("Cần xác thực PIN trước");
         }
         
-        byte[] cmd = new byte[5 + aesKey.length];
-        cmd[0] = (byte)0x00;
-        cmd[1] = AppletConstants.INS_AES_SET_KEY;
-        cmd[2] = (byte)0x00;
-        cmd[3] = (byte)0x00;
-        cmd[4] = (byte)aesKey.length;
-        System.arraycopy(aesKey, 0, cmd, 5, aesKey.length);
-        
-        byte[] resp = sendCommand(cmd);
+        byte[] resp = sendSecure(ApduBuilder.get().begin(AppletConstants.INS_AES_SET_KEY).put(aesKey));
         return getSW(resp) == 0x9000;
     }
 
+    /**
+     * [NEW] Mở phiên Secure Messaging: một phép toán RSA/EC trên thẻ xác thực thẻ với server,
+     * lấy JWT token và khóa K_MAC cho các lệnh nhạy cảm của phiên.
+     *
+     * 1. Server: hostChallenge + secret (mã hóa bằng khóa RSA của thẻ / khóa tạm ECDH)
+     * 2. Thẻ: INS_OPEN_SECURE_SESSION -> [CARD_CHALLENGE (16)] [CRYPTOGRAM (8)]
+     * 3. Server kiểm tra cryptogram -> token + K_MAC
+     *
+     * @param algorithm AuthConfig.ALGORITHM_RSA / ALGORITHM_EC (khóa của thẻ đã đăng ký với server)
+     * @return JWT token
+     * @throws Exception khi server / thẻ không hỗ trợ hoặc xác thực thất bại (gọi lại luồng ký cũ)
+     */
+    public String openSecureSession(String studentId, String algorithm, api.AuthApiService authApi) throws Exception {
+        if (!isConnected) throw new Exception("Card not connected");
+        secureChannel = null;
+        
+        boolean ec = AuthConfig.ALGORITHM_EC.equals(algorithm);
+        secureSessionLost = false;   // Phiên mới thay phiên cũ (nếu mở thất bại -> luồng cũ không SM)
+        com.google.gson.JsonObject session = authApi.createSession(studentId, ec ? AuthConfig.ALGORITHM_EC : AuthConfig.ALGORITHM_RSA);
+        if (session == null) {
+            throw new Exception("Server không tạo được phiên Secure Messaging");
+        }
+        String sessionId = session.get("sessionId").getAsString();
+        byte[] hostChallenge = java.util.Base64.getDecoder().decode(session.get("hostChallenge").getAsString());
+        byte[] keyBlob = java.util.Base64.getDecoder().decode(session.get("keyBlob").getAsString());
+        
+        byte[] resp = sendLarge(ApduBuilder.get().begin((byte)0x00, AppletConstants.INS_OPEN_SECURE_SESSION,
+                        ec ? AppletConstants.SESSION_ALG_EC : AppletConstants.SESSION_ALG_RSA, (byte)0x00)
+                .put(hostChallenge)
+                .put(keyBlob));
+        ApduResponse data = ApduResponse.wrap(resp);
+        if (!data.isSuccess() || data.dataLength() != AppletConstants.SESSION_CHALLENGE_SIZE + AppletConstants.SM_MAC_LENGTH) {
+            throw new Exception("Thẻ không mở được phiên Secure Messaging: " + String.format("%04X", data.getSW()));
+        }
+        byte[] cardChallenge = new byte[AppletConstants.SESSION_CHALLENGE_SIZE];
+        byte[] cryptogram = new byte[AppletConstants.SM_MAC_LENGTH];
+        System.arraycopy(resp, 0, cardChallenge, 0, cardChallenge.length);
+        System.arraycopy(resp, cardChallenge.length, cryptogram, 0, cryptogram.length);
+        
+        byte[] macKey = authApi.loginWithSession(studentId, sessionId, cardChallenge, cryptogram);
+        if (macKey == null) {
+            throw new Exception("Server từ chối cryptogram của thẻ");
+        }
+        secureChannel = new SecureChannel(macKey);
+        System.out.println("[SECURE] Secure Messaging session opened (" + (ec ? "EC" : "RSA") + ")");
+        return authApi.getApiClient().getAuthToken();
+    }
+
     /**
      * [NEW] Setup Secure Channel based on User Role
      * If Admin (CT060132) -> Use Hardcoded Bypass Key
@@ -1206,12 +1809,41 @@ public class SimulatorService {
             System.out.println("[SECURE] Admin Login (CT060132) detected. Using Bypass AES Key.");
             // Temporary hardcoded key for Admin as requested
             AESUtility.setMasterKey("avnalksnv23");
+        } else if (secureChannel != null && isPinVerified) {
+            // [NEW] Trong phiên Secure Messaging: master key đã lưu trên thẻ -> không cần RSA decrypt
+            byte[] resp = sendSecure(ApduBuilder.get().begin(AppletConstants.INS_AES_GET_KEY));
+            if (getSW(resp) == 0x9000 && resp.length - 2 == AppletConstants.AES_KEY_SIZE) {
+                AESUtility.setMasterKey(new String(resp, 0, AppletConstants.AES_KEY_SIZE, StandardCharsets.UTF_8));
+                System.out.println("[SECURE] Master Key read from card (Secure Messaging).");
+                return;
+            }
+            System.out.println("[SECURE] Master Key not stored on card. Fetching Encrypted AES Key from Server...");
+            byte[] masterKey = fetchMasterKeyFromServer(studentId);
+            if (masterKey.length == AppletConstants.AES_KEY_SIZE && secureChannel != null) {
+                setAESKey(masterKey);
+            }
         } else {
             System.out.println("[SECURE] Student Login. Fetching Encrypted AES Key from Server...");
             fetchMasterKeyFromServer(studentId);
         }
     }
 
+    /**
+     * [NEW] Sinh sẵn keypair cho thẻ mới ở nền và xếp hàng đăng ký với server
+     * (gọi khi admin tạo thẻ - lần đăng nhập đầu không phải sinh khóa)
+     */
+    public CompletableFuture<Void> preProvisionKeys(String studentId) {
+        return KeyProvisioner.getShared().provision(transport, studentId);
+    }
+
+    /**
+     * [NEW] Chờ đăng ký khóa đang xếp hàng cho thẻ (nếu có)
+     * @return true nếu không có gì đang chờ hoặc đã đăng ký xong
+     */
+    public boolean awaitKeyRegistration(String studentId) {
+        return KeyProvisioner.getShared().awaitRegistration(studentId, KEY_REGISTRATION_WAIT_SECONDS, java.util.concurrent.TimeUnit.SECONDS);
+    }
+
     /**
      * [NEW] Register RSA Public Key with Server
      * This triggers the Server to generate a unique AES Key and encrypt it.
@@ -1222,10 +1854,7 @@ public class SimulatorService {
         // 1. Generate Key Pair on Card (if not exists)
         // Check if key exists first? Or just force generate?
         // Let's assume we force generate for "New Card" flow
-        byte[] cmdGen = {
-            (byte)0x00, (byte)AppletConstants.INS_RSA_GENERATE_KEYPAIR, (byte)0x00, (byte)0x00, (byte)0x00
-        };
-        byte[] respGen = sendCommand(cmdGen);
+        byte[] respGen = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_RSA_GENERATE_KEYPAIR).build());
         if (getSW(respGen) != 0x9000 && getSW(respGen) != 0x6A80) { // 6A80: Not allowed (already exists)
              // If already exists, we proceed to get it. If other error, throw.
              if (getSW(respGen) != ISO7816.SW_COMMAND_NOT_ALLOWED) {
@@ -1248,27 +1877,7 @@ public class SimulatorService {
         String exponentHex = bytesToHex(exponent);
 
         // 3. Send to Server
-        String endpoint = "http://localhost:3000/api/cards/" + studentId + "/rsa-key";
-        java.net.URL url = new java.net.URL(endpoint);
-        java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("PUT"); // Assuming PUT for update
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setDoOutput(true);
-
-        String jsonInputString = String.format(
-            "{\"rsaModulus\": \"%s\", \"rsaExponent\": \"%s\"}", 
-            modulusHex, exponentHex
-        );
-
-        try (java.io.OutputStream os = conn.getOutputStream()) {
-            byte[] input = jsonInputString.getBytes("utf-8");
-            os.write(input, 0, input.length);
-        }
-
-        int code = conn.getResponseCode();
-        if (code != 200) {
-            throw new Exception("Server Registration failed with code: " + code);
-        }
+        cardApi.registerRSAPublicKey(studentId, modulusHex, exponentHex);
         
         System.out.println("[SECURE] RSA Public Key registered. Server generated encrypted AES Key.");
     }
@@ -1280,7 +1889,7 @@ public class SimulatorService {
      * 3. Send Encrypted Key to Card -> Decrypt
      * 4. Set Decrypted Master Key to Client Memory (AESUtility)
      */
-    public void fetchMasterKeyFromServer(String studentId) throws Exception {
+    public byte[] fetchMasterKeyFromServer(String studentId) throws Exception {
         if (!isConnected) throw new Exception("Card not connected");
 
         // 1. Get Public Key from Card
@@ -1300,68 +1909,21 @@ public class SimulatorService {
         String modulusHex = bytesToHex(modulus);
         String exponentHex = bytesToHex(exponent);
         
-        // 2. Call Server API
-        java.net.URL url = new java.net.URL("http://localhost:3000/api/cards/master-key");
-        java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setDoOutput(true);
-        
-        String jsonInputString = String.format(
-            "{\"studentId\": \"%s\", \"rsaModulus\": \"%s\", \"rsaExponent\": \"%s\"}", 
-            studentId, modulusHex, exponentHex
-        );
-        
-        try (java.io.OutputStream os = conn.getOutputStream()) {
-            byte[] input = jsonInputString.getBytes("utf-8");
-            os.write(input, 0, input.length);
-        }
-        
-        int code = conn.getResponseCode();
-        if (code != 200) {
-            throw new Exception("Server API failed with code: " + code);
-        }
-        
-        java.io.BufferedReader br = new java.io.BufferedReader(
-            new java.io.InputStreamReader(conn.getInputStream(), "utf-8"));
-        StringBuilder response = new StringBuilder();
-        String responseLine = null;
-        while ((responseLine = br.readLine()) != null) {
-            response.append(responseLine.trim());
-        }
-        
-        // Simple JSON Parsing (assuming structure: data: { encryptedMasterKey: "..." })
-        String respStr = response.toString();
-        String encryptedKeyB64 = extractJsonValue(respStr, "encryptedMasterKey");
-        if (encryptedKeyB64 == null) {
-            throw new Exception("Encrypted Master Key not found in response");
-        }
-        
-        byte[] encryptedKey = java.util.Base64.getDecoder().decode(encryptedKeyB64);
+        // 2. Call Server API (base URL theo ApiConfig)
+        byte[] encryptedKey = cardApi.getEncryptedMasterKey(studentId, modulusHex, exponentHex);
         
         // 3. Decrypt on Card
-        byte[] cmd = new byte[5 + encryptedKey.length];
-        cmd[0] = (byte)0x00;
-        cmd[1] = AppletConstants.INS_RSA_DECRYPT;
-        cmd[2] = (byte)0x00;
-        cmd[3] = (byte)0x00;
-        cmd[4] = (byte)encryptedKey.length;
-        System.arraycopy(encryptedKey, 0, cmd, 5, encryptedKey.length);
-        
-        byte[] resp = sendCommand(cmd);
+        byte[] resp = sendCommand(ApduBuilder.get().begin(AppletConstants.INS_RSA_DECRYPT).put(encryptedKey).build());
         if (getSW(resp) != 0x9000) {
             throw new Exception("Card Decryption failed: " + String.format("%04X", getSW(resp)));
         }
         
-        // Decrypted data is in response (minus SW)
-        byte[] decryptedKeyBytes = new byte[resp.length - 2];
-        System.arraycopy(resp, 0, decryptedKeyBytes, 0, decryptedKeyBytes.length);
-        
-        // 4. Set Master Key
-        String masterKey = new String(decryptedKeyBytes, StandardCharsets.UTF_8);
+        // 4. Set Master Key (decrypted data is in response, minus SW)
+        String masterKey = new String(resp, 0, resp.length - 2, StandardCharsets.UTF_8);
         AESUtility.setMasterKey(masterKey);
         
         System.out.println("[SECURE] Master Key retrieved and set successfully.");
+        return java.util.Arrays.copyOf(resp, resp.length - 2);
     }
 
     // Helper functions
@@ -1375,14 +1937,4 @@ public class SimulatorService {
         }
         return new String(hexChars);
     }
-    
-    private String extractJsonValue(String json, String key) {
-        String searchKey = "\"" + key + "\":\"";
-        int start = json.indexOf(searchKey);
-        if (start < 0) return null;
-        start += searchKey.length();
-        int end = json.indexOf("\"", start);
-        if (end < 0) return null;
-        return json.substring(start, end);
-    }
 }
\ No newline at end of file
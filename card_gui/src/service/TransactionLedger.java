@@ -0,0 +1,182 @@
+package service;
+
+import models.Transaction;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sổ giao dịch theo MSSV: chỉ ghi thêm, lưu theo khối mảng nguyên thủy
+ *
+ * Mỗi giao dịch chỉ tốn 18 byte (thời điểm epoch ms, số tiền long, mã loại, mã trạng thái).
+ * Khối đầu chỉ FIRST_CHUNK_SIZE phần tử, mỗi khối sau gấp đôi khối trước (16, 32, 64, ...):
+ * MSSV ít giao dịch chỉ tốn vài trăm byte; thêm là O(1) và không dịch chuyển phần tử cũ.
+ * Đọc theo trang từ mới nhất về cũ nhất, chỉ tạo models.Transaction cho các dòng của trang.
+ * Mỗi MSSV có tổng nạp / tổng chi cập nhật ngay khi ghi.
+ *
+ * Một luồng ghi tại một thời điểm cho mỗi MSSV (synchronized); luồng đọc không khóa:
+ * số phần tử (volatile) chỉ tăng sau khi dữ liệu đã ghi xong.
+ */
+public class TransactionLedger {
+
+    public static final byte TYPE_DEPOSIT = 0;
+    public static final byte TYPE_FINE_PAYMENT = 1;
+    private static final String[] TYPE_LABELS = {"Nạp tiền", "Thanh toán phạt"};
+
+    public static final byte STATUS_SUCCESS = 0;
+    private static final String[] STATUS_LABELS = {"Thành công"};
+
+    private static final int FIRST_CHUNK_SHIFT = 4;
+    private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_SHIFT;  // 16 giao dịch ở khối đầu
+    private static final int MAX_CHUNKS = 31 - FIRST_CHUNK_SHIFT;
+    // OFFSETS[k] = chỉ số toàn cục của phần tử đầu khối k = FIRST_CHUNK_SIZE * (2^k - 1)
+    private static final int[] OFFSETS = new int[MAX_CHUNKS];
+
+    static {
+        for (int k = 0; k < MAX_CHUNKS; k++) {
+            OFFSETS[k] = (int) (((long) FIRST_CHUNK_SIZE << k) - FIRST_CHUNK_SIZE);
+        }
+    }
+
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MM/yyyy").withZone(ZoneId.systemDefault());
+
+    private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+
+    /**
+     * Ghi một giao dịch thành công (thời điểm hiện tại)
+     *
+     * @param amount Dương = tiền vào, âm = tiền ra
+     */
+    public void append(String studentId, byte type, long amount) {
+        append(studentId, type, amount, STATUS_SUCCESS, System.currentTimeMillis());
+    }
+
+    public void append(String studentId, byte type, long amount, byte status, long epochMillis) {
+        accounts.computeIfAbsent(studentId, k -> new Account()).append(type, amount, status, epochMillis);
+    }
+
+    /**
+     * Số giao dịch của MSSV
+     */
+    public int size(String studentId) {
+        Account account = accounts.get(studentId);
+        return account != null ? account.count : 0;
+    }
+
+    /**
+     * Một trang giao dịch, mới nhất trước
+     *
+     * @param offset Bỏ qua bao nhiêu giao dịch mới nhất
+     * @param limit  Số giao dịch tối đa
+     */
+    public List<Transaction> newestFirst(String studentId, int offset, int limit) {
+        Account account = accounts.get(studentId);
+        if (account == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        int count = account.count;          // Đọc volatile trước các mảng
+        Chunk[] chunks = account.chunks;
+        int from = count - 1 - Math.max(0, offset);
+        int to = Math.max(-1, from - limit);
+        List<Transaction> page = new ArrayList<>(Math.max(0, from - to));
+        for (int i = from; i > to; i--) {
+            int c = chunkOf(i);
+            Chunk chunk = chunks[c];
+            int j = i - OFFSETS[c];
+            page.add(new Transaction(DATE_FORMAT.format(Instant.ofEpochMilli(chunk.timestamps[j])),
+                    TYPE_LABELS[chunk.types[j]], chunk.amounts[j], STATUS_LABELS[chunk.statuses[j]]));
+        }
+        return page;
+    }
+
+    /**
+     * Tổng tiền vào / ra của MSSV (cập nhật khi ghi, không phải duyệt lại)
+     */
+    public Totals getTotals(String studentId) {
+        Account account = accounts.get(studentId);
+        if (account == null) {
+            return new Totals(0, 0, 0);
+        }
+        synchronized (account) {
+            return new Totals(account.count, account.totalIn, account.totalOut);
+        }
+    }
+
+    // Khối chứa phần tử i: i + FIRST nằm trong [FIRST << k, FIRST << (k+1)) -> k từ bit cao nhất
+    private static int chunkOf(int index) {
+        return 31 - Integer.numberOfLeadingZeros(index + FIRST_CHUNK_SIZE) - FIRST_CHUNK_SHIFT;
+    }
+
+    private static final class Chunk {
+        final long[] timestamps;
+        final long[] amounts;
+        final byte[] types;
+        final byte[] statuses;
+
+        Chunk(int size) {
+            timestamps = new long[size];
+            amounts = new long[size];
+            types = new byte[size];
+            statuses = new byte[size];
+        }
+    }
+
+    private static final class Account {
+        volatile Chunk[] chunks = new Chunk[1];
+        volatile int count;
+        long totalIn;
+        long totalOut;
+
+        synchronized void append(byte type, long amount, byte status, long epochMillis) {
+            int index = count;
+            int c = chunkOf(index);
+            Chunk[] current = chunks;
+            if (c == current.length) {
+                current = Arrays.copyOf(current, current.length + 1);
+            }
+            if (current[c] == null) {
+                current[c] = new Chunk(FIRST_CHUNK_SIZE << c);
+            }
+            int j = index - OFFSETS[c];
+            Chunk chunk = current[c];
+            chunk.timestamps[j] = epochMillis;
+            chunk.amounts[j] = amount;
+            chunk.types[j] = type;
+            chunk.statuses[j] = status;
+            if (amount >= 0) {
+                totalIn += amount;
+            } else {
+                totalOut -= amount;
+            }
+            chunks = current;
+            count = index + 1;              // Công bố sau cùng
+        }
+    }
+
+    /**
+     * Tổng hợp giao dịch của một MSSV
+     */
+    public static final class Totals {
+        private final int count;
+        private final long totalIn;
+        private final long totalOut;
+
+        Totals(int count, long totalIn, long totalOut) {
+            this.count = count;
+            this.totalIn = totalIn;
+            this.totalOut = totalOut;
+        }
+
+        public int getCount() { return count; }
+        public long getTotalIn() { return totalIn; }
+        public long getTotalOut() { return totalOut; }
+        public long getNet() { return totalIn - totalOut; }
+    }
+}
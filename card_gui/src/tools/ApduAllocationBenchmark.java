@@ -0,0 +1,173 @@
+package tools;
+
+import applet.AppletConstants;
+import service.ApduBuilder;
+import service.ApduResponse;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Benchmark cấp phát bộ nhớ khi dựng/đọc APDU: cách cũ (new byte[] + arraycopy)
+ * so với ApduBuilder/ApduResponse.
+ *
+ * Đo phía client (không gửi tới JCardSim) cho một loạt lệnh điển hình:
+ * GET_BALANCE, VERIFY_PIN (GET_SALT + hash), UPDATE_BALANCE, GET_CARD_INFO, GET_PUBLIC_KEY.
+ * Số byte cấp phát lấy từ com.sun.management.ThreadMXBean của luồng hiện tại.
+ *
+ * Chạy: java -cp <classes> tools.ApduAllocationBenchmark [số vòng]
+ */
+public class ApduAllocationBenchmark {
+
+    private static final int WARMUP_ROUNDS = 200_000;
+
+    // Response giả lập (dữ liệu + SW 9000)
+    private static final byte[] BALANCE_RESP = response(16);
+    private static final byte[] SALT_RESP = response(AppletConstants.SALT_LENGTH);
+    private static final byte[] CARD_INFO_RESP = cardInfoResponse();
+    private static final byte[] PUBKEY_RESP = response(131);
+    private static final byte[] OK_RESP = response(0);
+
+    private static final byte[] HASH = new byte[32];
+    private static final byte[] ENCRYPTED_BALANCE = new byte[16];
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!mx.isThreadAllocatedMemorySupported()) {
+            System.out.println("[Benchmark] JVM không hỗ trợ đo bộ nhớ cấp phát theo luồng");
+            return;
+        }
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        // Warm-up cho JIT
+        runLegacy(WARMUP_ROUNDS);
+        runPooled(WARMUP_ROUNDS);
+
+        Result legacy = measure(mx, rounds, false);
+        Result pooled = measure(mx, rounds, true);
+
+        System.out.println("[Benchmark] " + rounds + " vòng x 6 lệnh");
+        System.out.println("[Benchmark] legacy : " + legacy);
+        System.out.println("[Benchmark] pooled : " + pooled);
+        System.out.println("(sink=" + sink + ")");
+    }
+
+    private static Result measure(com.sun.management.ThreadMXBean mx, int rounds, boolean pooled) {
+        long tid = Thread.currentThread().getId();
+        long bytesBefore = mx.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        if (pooled) {
+            runPooled(rounds);
+        } else {
+            runLegacy(rounds);
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = mx.getThreadAllocatedBytes(tid) - bytesBefore;
+        return new Result(rounds * 6L, bytes, elapsed);
+    }
+
+    // --- Cách cũ: giống SimulatorService trước khi có ApduBuilder ---
+
+    private static void runLegacy(int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            byte[] cmd = {0x00, AppletConstants.INS_GET_BALANCE, 0x00, 0x00, 0x00};
+            byte[] encrypted = new byte[16];
+            System.arraycopy(BALANCE_RESP, 0, encrypted, 0, 16);
+            sink += cmd.length + encrypted[0] + legacySW(BALANCE_RESP);
+
+            byte[] saltCmd = {0x00, AppletConstants.INS_GET_SALT, 0x00, 0x00, 0x00};
+            byte[] salt = Arrays.copyOf(SALT_RESP, AppletConstants.SALT_LENGTH);
+            byte[] verifyCmd = new byte[5 + HASH.length];
+            verifyCmd[1] = AppletConstants.INS_VERIFY_PIN;
+            verifyCmd[4] = (byte)HASH.length;
+            System.arraycopy(HASH, 0, verifyCmd, 5, HASH.length);
+            sink += saltCmd.length + salt[0] + verifyCmd.length;
+
+            byte[] updateCmd = new byte[5 + 16];
+            updateCmd[1] = AppletConstants.INS_UPDATE_BALANCE;
+            updateCmd[4] = 0x10;
+            System.arraycopy(ENCRYPTED_BALANCE, 0, updateCmd, 5, 16);
+            sink += updateCmd.length + legacySW(OK_RESP);
+
+            byte[] infoCmd = new byte[5];
+            infoCmd[1] = AppletConstants.INS_GET_CARD_INFO;
+            byte[] data = new byte[CARD_INFO_RESP.length - 2];
+            System.arraycopy(CARD_INFO_RESP, 0, data, 0, data.length);
+            byte[] cardId = new byte[AppletConstants.CARD_ID_LENGTH];
+            System.arraycopy(data, 1, cardId, 0, cardId.length);
+            sink += infoCmd.length + cardId[0] + data[data.length - 1];
+
+            byte[] keyCmd = new byte[5];
+            keyCmd[1] = AppletConstants.INS_RSA_GET_PUBLIC_KEY;
+            byte[] modulus = new byte[128];
+            System.arraycopy(PUBKEY_RESP, 0, modulus, 0, 128);
+            sink += keyCmd.length + modulus[0];
+        }
+    }
+
+    private static int legacySW(byte[] response) {
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+
+    // --- ApduBuilder / ApduResponse ---
+
+    private static void runPooled(int rounds) {
+        ApduBuilder builder = ApduBuilder.get();
+        for (int i = 0; i < rounds; i++) {
+            byte[] cmd = builder.begin(AppletConstants.INS_GET_BALANCE).build();
+            ApduResponse resp = ApduResponse.wrap(BALANCE_RESP);
+            sink += cmd.length + resp.getByte(0) + resp.getSW();
+
+            byte[] saltCmd = builder.begin(AppletConstants.INS_GET_SALT).build();
+            sink += saltCmd.length + ApduResponse.wrap(SALT_RESP).getByte(0);
+            byte[] verifyCmd = builder.begin(AppletConstants.INS_VERIFY_PIN).put(HASH).build();
+            sink += verifyCmd.length;
+
+            byte[] updateCmd = builder.begin(AppletConstants.INS_UPDATE_BALANCE).put(ENCRYPTED_BALANCE).build();
+            sink += updateCmd.length + ApduResponse.sw(OK_RESP);
+
+            byte[] infoCmd = builder.begin(AppletConstants.INS_GET_CARD_INFO).build();
+            ApduResponse info = ApduResponse.wrap(CARD_INFO_RESP);
+            sink += infoCmd.length + info.getByte(1) + info.getByte(info.dataLength() - 1);
+
+            byte[] keyCmd = builder.begin(AppletConstants.INS_RSA_GET_PUBLIC_KEY).build();
+            sink += keyCmd.length + ApduResponse.wrap(PUBKEY_RESP).getByte(0);
+        }
+    }
+
+    private static byte[] response(int dataLength) {
+        byte[] resp = new byte[dataLength + 2];
+        for (int i = 0; i < dataLength; i++) resp[i] = (byte)i;
+        resp[dataLength] = (byte)0x90;
+        return resp;
+    }
+
+    private static byte[] cardInfoResponse() {
+        // [FLAG] [CARD_ID (10)] [NAME_LEN] [NAME (32)] [EXPIRY (8)] [NUM_BOOKS]
+        return response(1 + AppletConstants.CARD_ID_LENGTH + 1 + 32 + AppletConstants.EXPIRY_DATE_LENGTH + 1);
+    }
+
+    private static final class Result {
+        final long commands;
+        final long bytes;
+        final long nanos;
+
+        Result(long commands, long bytes, long nanos) {
+            this.commands = commands;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("%.1f bytes/lệnh, %.1f MB/s cấp phát, %.0f lệnh/s",
+                    (double) bytes / commands, bytes / 1e6 / seconds, commands / seconds);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package tools;
+
+import applet.AppletConstants;
+import service.ApduBuilder;
+import service.ApduMetrics;
+import service.ApduRecorder;
+import service.ApduResponse;
+import service.CardPool;
+import service.CardSession;
+import service.CardTransport;
+import service.RemoteCardTransport;
+import service.SecureChannel;
+import utils.CardStateManager;
+import utils.RSAUtility;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Phát lại APDU log (ghi bởi ApduRecorder) vào một LibraryCardApplet mới trên JCardSim
+ *
+ * Mỗi vòng dùng một thẻ mới trong CardPool riêng (cùng đường truyền với SimulatorService:
+ * luồng của thẻ + GET RESPONSE), so SW và độ dài response với bản ghi, rồi in
+ * throughput và phân bố độ trễ theo INS (ApduMetrics: p50/p90/p99/max, SW).
+ * Thoát với mã 1 nếu có response lệch so với log.
+ * Với -Dcard.host=host:port, phát lại qua card-host (CardHostServer) thay vì JCardSim cục bộ.
+ *
+ * [NEW] Log có phiên Secure Messaging:
+ * - -Dreplay.snapshot=<mã SV>: nạp snapshot của thẻ đã ghi log (CardStateManager) vào thẻ mới
+ *   trước mỗi vòng - cùng PIN, khóa RSA/EC như lúc ghi (chỉ JCardSim cục bộ: card-host không
+ *   chuyển tiếp export/import trạng thái)
+ * - INS_OPEN_SECURE_SESSION được thay bằng phiên do runner mở (runner đóng vai server:
+ *   secret mã hóa bằng public key của thẻ / ECDH), vì K_MAC lúc ghi phụ thuộc challenge ngẫu nhiên
+ *   của thẻ và secret chỉ server biết
+ * - Lệnh có bit CLA 0x04 (cả chuỗi chaining) được bỏ [COUNTER][MAC] cũ và wrap lại với phiên mới
+ *
+ * [UPDATED] Log phải được ghi với -Dapdu.record.payloads=true: lệnh nhạy cảm bị che (chỉ còn header)
+ * thì không phát lại được.
+ *
+ * Chạy: java -Dapdu.record.file= [-Dreplay.snapshot=SV001] -cp <classes> tools.ApduReplayRunner <log> [số vòng]
+ */
+public class ApduReplayRunner {
+
+    private static final int MAX_MISMATCH_PRINT = 10;
+    private static final String SNAPSHOT_PROPERTY = "replay.snapshot";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Cách dùng: ApduReplayRunner <apdu-log> [số vòng]");
+            System.exit(2);
+        }
+        List<ApduRecorder.Record> records = ApduRecorder.read(Paths.get(args[0]));
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        if (records.isEmpty()) {
+            System.out.println("[Replay] Log rỗng: " + args[0]);
+            return;
+        }
+        int redacted = 0;
+        for (ApduRecorder.Record record : records) {
+            if (record.isRedacted()) redacted++;
+        }
+        if (redacted > 0) {
+            System.out.println("[Replay] " + redacted + " lệnh nhạy cảm chỉ có header - ghi lại log với -D"
+                    + ApduRecorder.PAYLOAD_PROPERTY + "=true để phát lại");
+            printRecordedLatencies(records);
+            System.exit(2);
+        }
+        RemoteCardTransport remote = RemoteCardTransport.fromSystemProperty();
+        String snapshotId = System.getProperty(SNAPSHOT_PROPERTY);
+        byte[] snapshot = null;
+        if (snapshotId != null && !snapshotId.trim().isEmpty()) {
+            if (remote != null) {
+                System.out.println("[Replay] -D" + SNAPSHOT_PROPERTY + " chỉ dùng được với JCardSim cục bộ");
+                System.exit(2);
+            }
+            snapshot = CardStateManager.loadCardState(snapshotId.trim());
+            if (snapshot == null) {
+                System.out.println("[Replay] Không đọc được snapshot của " + snapshotId);
+                System.exit(2);
+            }
+        }
+        System.out.println("[Replay] " + records.size() + " lệnh x " + iterations + " vòng"
+                + (remote != null ? " qua " + remote.describe() : "")
+                + (snapshot != null ? ", từ snapshot " + snapshotId.trim() : ""));
+
+        ApduMetrics metrics = new ApduMetrics();
+        int mismatches = 0;
+        long totalNanos = 0;
+
+        for (int iter = 0; iter < iterations; iter++) {
+            CardTransport transport = remote != null ? remote : new CardPool(1);
+            try (CardSession lease = transport.open("REPLAY-" + iter)) {
+                if (snapshot != null) {
+                    restoreSnapshot(lease, snapshot);
+                }
+                SecureMessaging sm = new SecureMessaging();
+                long replayNanos = 0;
+                int i = 0;
+                while (i < records.size()) {
+                    int end = groupEnd(records, i);
+                    List<byte[]> commands = sm.prepare(lease, records.subList(i, end));
+                    long t0 = System.nanoTime();
+                    List<byte[]> responses = commands.size() == 1
+                            ? Collections.singletonList(lease.transmit(commands.get(0)))
+                            : lease.transmitChain(commands);
+                    long elapsed = System.nanoTime() - t0;
+                    replayNanos += elapsed;
+                    sm.onResponse(records.get(i), responses.get(responses.size() - 1));
+
+                    // Chuỗi bị thẻ dừng giữa chừng -> các block còn lại tính là lệch
+                    long perBlock = elapsed / responses.size();
+                    for (int k = i; k < end; k++) {
+                        ApduRecorder.Record record = records.get(k);
+                        ApduResponse data = k - i < responses.size() ? ApduResponse.wrap(responses.get(k - i)) : null;
+                        if (data != null) {
+                            metrics.record(record.getIns(), data.getSW(), perBlock);
+                        }
+                        if (data == null || data.getSW() != record.getSW() || data.dataLength() != record.getResponseLength()) {
+                            if (mismatches < MAX_MISMATCH_PRINT) {
+                                System.out.println(String.format(
+                                        "[Replay] Lệch #%d INS=%02X: SW %s (log %04X), %d bytes (log %d)",
+                                        k, record.getIns() & 0xFF, data == null ? "----" : String.format("%04X", data.getSW()),
+                                        record.getSW(), data == null ? 0 : data.dataLength(), record.getResponseLength()));
+                            }
+                            mismatches++;
+                        }
+                    }
+                    i = end;
+                }
+                totalNanos += replayNanos;
+            }
+        }
+
+        long commands = (long) records.size() * iterations;
+        System.out.println(String.format("[Replay] %d lệnh trong %.1f ms -> %.0f lệnh/s, %d response lệch",
+                commands, totalNanos / 1e6, commands / (totalNanos / 1e9), mismatches));
+        System.out.print(metrics.snapshot().toReport());
+        printRecordedLatencies(records);
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+
+    /**
+     * Bản ghi [start, end) gửi cùng nhau: chuỗi chaining của lệnh Secure Messaging phải được
+     * wrap lại cả chuỗi; lệnh khác phát lại từng APDU như trong log
+     */
+    private static int groupEnd(List<ApduRecorder.Record> records, int start) {
+        int end = start;
+        while (end < records.size()) {
+            byte cla = records.get(end).getCommand()[0];
+            end++;
+            if ((cla & ApduBuilder.CLA_SECURE_MESSAGING) == 0 || (cla & ApduBuilder.CLA_CHAINING) == 0) {
+                break;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Nạp snapshot vào thẻ mới (CardPool.Lease.importState) - không tính vào thời gian
+     */
+    private static void restoreSnapshot(CardSession lease, byte[] snapshot) throws Exception {
+        if (!((CardPool.Lease) lease).importState(snapshot)) {
+            throw new Exception("Thẻ từ chối snapshot");
+        }
+    }
+
+    /**
+     * Phiên Secure Messaging của runner: thay lệnh mở phiên trong log, wrap lại lệnh SM
+     */
+    private static final class SecureMessaging {
+        private final SecureRandom random = new SecureRandom();
+        private SecureChannel channel;
+        private byte[] secret;
+        private byte[] hostChallenge;
+        private boolean warned;
+
+        List<byte[]> prepare(CardSession lease, List<ApduRecorder.Record> group) throws Exception {
+            byte[] first = group.get(0).getCommand();
+            if (first[1] == AppletConstants.INS_OPEN_SECURE_SESSION) {
+                return Collections.singletonList(openCommand(lease, first));
+            }
+            List<byte[]> recorded = new ArrayList<>(group.size());
+            for (ApduRecorder.Record record : group) {
+                recorded.add(record.getCommand());
+            }
+            if ((first[0] & ApduBuilder.CLA_SECURE_MESSAGING) == 0) {
+                return recorded;
+            }
+            if (channel == null) {
+                if (!warned) {
+                    warned = true;
+                    System.out.println("[Replay] Lệnh Secure Messaging trước khi mở phiên - gửi nguyên bản ghi");
+                }
+                return recorded;
+            }
+            ApduBuilder builder = channel.wrap(ApduBuilder.get().beginUnwrapped(recorded));
+            return builder.isShort() ? Collections.singletonList(builder.buildCopy()) : builder.buildChain();
+        }
+
+        void onResponse(ApduRecorder.Record record, byte[] resp) throws Exception {
+            if (record.getIns() != AppletConstants.INS_OPEN_SECURE_SESSION || secret == null) {
+                return;
+            }
+            ApduResponse data = ApduResponse.wrap(resp);
+            channel = null;
+            if (data.isSuccess() && data.dataLength() >= AppletConstants.SESSION_CHALLENGE_SIZE) {
+                // K_MAC = SHA-256(SECRET || HC || CC || 0x02)[0..16] (như server/utils/secureSession.js)
+                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                sha256.update(secret);
+                sha256.update(hostChallenge);
+                sha256.update(resp, 0, AppletConstants.SESSION_CHALLENGE_SIZE);
+                sha256.update((byte)0x02);
+                channel = new SecureChannel(Arrays.copyOf(sha256.digest(), AppletConstants.AES_KEY_SIZE));
+            }
+            secret = null;
+        }
+
+        // Runner đóng vai server: secret mới cho public key của thẻ đang phát lại
+        private byte[] openCommand(CardSession lease, byte[] recorded) throws Exception {
+            byte algorithm = recorded[2];
+            hostChallenge = new byte[AppletConstants.SESSION_CHALLENGE_SIZE];
+            random.nextBytes(hostChallenge);
+            byte[] keyBlob;
+            if (algorithm == AppletConstants.SESSION_ALG_EC) {
+                byte[] point = readPublicKey(lease, AppletConstants.INS_EC_GET_PUBLIC_KEY);
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec("secp256r1"));
+                KeyPair ephemeral = generator.generateKeyPair();
+                KeyAgreement ecdh = KeyAgreement.getInstance("ECDH");
+                ecdh.init(ephemeral.getPrivate());
+                ecdh.doPhase(RSAUtility.convertEcPointToPublicKey(point), true);
+                secret = MessageDigest.getInstance("SHA-1").digest(ecdh.generateSecret());
+                keyBlob = encodePoint((ECPublicKey) ephemeral.getPublic());
+            } else {
+                byte[] key = readPublicKey(lease, AppletConstants.INS_RSA_GET_PUBLIC_KEY);
+                int modulusLength = AppletConstants.RSA_MODULUS_SIZE;
+                secret = new byte[16];
+                random.nextBytes(secret);
+                Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                rsa.init(Cipher.ENCRYPT_MODE, RSAUtility.convertToPublicKey(
+                        Arrays.copyOf(key, modulusLength), Arrays.copyOfRange(key, modulusLength, key.length)));
+                keyBlob = rsa.doFinal(secret);
+            }
+            return ApduBuilder.get().begin(recorded[0], recorded[1], recorded[2], recorded[3])
+                    .put(hostChallenge)
+                    .put(keyBlob)
+                    .buildCopy();
+        }
+
+        private static byte[] readPublicKey(CardSession lease, byte ins) throws Exception {
+            byte[] resp = lease.transmit(ApduBuilder.get().begin(ins).buildCopy());
+            ApduResponse data = ApduResponse.wrap(resp);
+            if (!data.isSuccess()) {
+                throw new Exception(String.format("Không đọc được public key của thẻ (INS %02X): %04X -"
+                        + " cần -D" + SNAPSHOT_PROPERTY + " của thẻ đã ghi log", ins & 0xFF, data.getSW()));
+            }
+            return data.copyData();
+        }
+
+        // W không nén: 04 || X (32) || Y (32)
+        private static byte[] encodePoint(ECPublicKey key) {
+            byte[] out = new byte[AppletConstants.EC_PUBLIC_KEY_SIZE];
+            out[0] = 0x04;
+            copyUnsigned(key.getW().getAffineX().toByteArray(), out, 1);
+            copyUnsigned(key.getW().getAffineY().toByteArray(), out, 33);
+            return out;
+        }
+
+        private static void copyUnsigned(byte[] value, byte[] out, int offset) {
+            int n = Math.min(value.length, 32);
+            System.arraycopy(value, value.length - n, out, offset + 32 - n, n);
+        }
+    }
+
+    /**
+     * Độ trễ trung bình lúc ghi (µs) theo INS để đặt cạnh kết quả phát lại
+     */
+    private static void printRecordedLatencies(List<ApduRecorder.Record> records) {
+        Map<Integer, long[]> recorded = new TreeMap<>();
+        for (ApduRecorder.Record record : records) {
+            long[] sum = recorded.computeIfAbsent(record.getIns() & 0xFF, k -> new long[2]);
+            sum[0] += record.getLatencyMicros();
+            sum[1]++;
+        }
+        System.out.println("[Replay] Độ trễ trung bình trong log:");
+        for (Map.Entry<Integer, long[]> e : recorded.entrySet()) {
+            long[] sum = e.getValue();
+            System.out.println(String.format("%02X %-19s %9.1f µs", e.getKey(),
+                    ApduMetrics.insName(e.getKey()), (double) sum[0] / sum[1]));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package tools;
+
+import service.CardHostProtocol;
+import service.CardHostServer;
+import service.CardPool;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Card-host chạy không giao diện: một trại thẻ JCardSim dùng chung cho nhiều máy quầy
+ *
+ * Các máy quầy chạy LibraryCardMainFrame với -Dcard.host=<máy chủ>:<port>.
+ *
+ * Mặc định chỉ nghe trên 127.0.0.1. Cho máy quầy khác kết nối: -Dcard.host.bind=0.0.0.0
+ * (hoặc IP của card-host) kèm -Dcard.host.secret=<secret> (hoặc CARD_HOST_SECRET);
+ * các máy quầy dùng cùng secret.
+ *
+ * Chạy: java -cp <classes> tools.CardHostMain [port] [số thẻ tối đa]
+ */
+public class CardHostMain {
+
+    private static final int DEFAULT_MAX_CARDS = 64;
+    private static final String BIND_PROPERTY = "card.host.bind";
+    private static final String DEFAULT_BIND = "127.0.0.1";
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : CardHostProtocol.DEFAULT_PORT;
+        int maxCards = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_CARDS;
+
+        String bind = System.getProperty(BIND_PROPERTY, DEFAULT_BIND);
+
+        CardHostServer server = new CardHostServer(new CardPool(maxCards, true), new InetSocketAddress(bind, port));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "card-host-shutdown"));
+        server.start();
+        System.out.println("[CardHost] Tối đa " + maxCards + " thẻ");
+
+        while (true) {
+            Thread.sleep(60000);
+            System.out.println("[CardHost] " + server.getActiveConnections() + " kết nối, "
+                    + server.getApduCount() + " APDU");
+        }
+    }
+}
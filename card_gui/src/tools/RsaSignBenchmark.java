@@ -0,0 +1,164 @@
+package tools;
+
+import applet.AppletConstants;
+import com.licel.jcardsim.base.Simulator;
+import javacard.framework.AID;
+import javacard.security.KeyPair;
+import javacard.security.MessageDigest;
+import javacard.security.RSAPrivateKey;
+import javacard.security.Signature;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Benchmark ký challenge RSA (INS_RSA_SIGN_CHALLENGE) trên JCardSim
+ *
+ * - legacy : mỗi lần ký gọi MessageDigest/Signature.getInstance và cấp phát
+ *            new byte[20], new byte[128], digestInfo (giống RSAAuthenticationManager cũ)
+ * - cached : Signature tạo một lần, không cấp phát khi ký (như RSAAuthenticationManager hiện tại)
+ * - applet : gửi APDU SIGN_CHALLENGE tới LibraryCardApplet qua Simulator (đầu-cuối)
+ *
+ * Số byte cấp phát lấy từ com.sun.management.ThreadMXBean của luồng hiện tại.
+ *
+ * Chạy: java -cp <classes> tools.RsaSignBenchmark [số chữ ký]
+ */
+public class RsaSignBenchmark {
+
+    private static final int WARMUP_ROUNDS = 200;
+
+    private static final byte[] CHALLENGE = new byte[AppletConstants.RSA_CHALLENGE_SIZE];
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!mx.isThreadAllocatedMemorySupported()) {
+            System.out.println("[Benchmark] JVM không hỗ trợ đo bộ nhớ cấp phát theo luồng");
+            return;
+        }
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < CHALLENGE.length; i++) {
+            CHALLENGE[i] = (byte)(i * 31);
+        }
+
+        KeyPair keyPair = new KeyPair(KeyPair.ALG_RSA, AppletConstants.RSA_KEY_SIZE);
+        keyPair.genKeyPair();
+        RSAPrivateKey privateKey = (RSAPrivateKey) keyPair.getPrivate();
+
+        Simulator sim = new Simulator();
+        AID aid = new AID(AppletConstants.APPLET_AID, (short)0, (byte)AppletConstants.APPLET_AID.length);
+        sim.installApplet(aid, applet.LibraryCardApplet.class);
+        sim.selectApplet(aid);
+        byte[] resp = sim.transmitCommand(new byte[] {0x00, AppletConstants.INS_RSA_GENERATE_KEYPAIR, 0x00, 0x00, 0x00});
+        if (resp.length < 2 || resp[resp.length - 2] != (byte)0x90) {
+            System.out.println("[Benchmark] Không tạo được keypair trên applet");
+            return;
+        }
+        byte[] signCmd = new byte[5 + CHALLENGE.length + 1];
+        signCmd[1] = AppletConstants.INS_RSA_SIGN_CHALLENGE;
+        signCmd[4] = (byte)CHALLENGE.length;
+        System.arraycopy(CHALLENGE, 0, signCmd, 5, CHALLENGE.length);
+        signCmd[signCmd.length - 1] = (byte)AppletConstants.RSA_SIGNATURE_SIZE;
+
+        // Warm-up cho JIT
+        runLegacy(privateKey, WARMUP_ROUNDS);
+        Signature signature = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+        byte[] out = new byte[AppletConstants.RSA_MODULUS_SIZE];
+        runCached(signature, privateKey, out, WARMUP_ROUNDS);
+        runApplet(sim, signCmd, WARMUP_ROUNDS);
+
+        long tid = Thread.currentThread().getId();
+        Result legacy = new Result(rounds);
+        legacy.start(mx, tid);
+        runLegacy(privateKey, rounds);
+        legacy.stop(mx, tid);
+
+        Result cached = new Result(rounds);
+        cached.start(mx, tid);
+        runCached(signature, privateKey, out, rounds);
+        cached.stop(mx, tid);
+
+        Result viaApplet = new Result(rounds);
+        viaApplet.start(mx, tid);
+        runApplet(sim, signCmd, rounds);
+        viaApplet.stop(mx, tid);
+
+        System.out.println("[Benchmark] " + rounds + " chữ ký RSA-" + AppletConstants.RSA_KEY_SIZE);
+        System.out.println("[Benchmark] legacy : " + legacy);
+        System.out.println("[Benchmark] cached : " + cached);
+        System.out.println("[Benchmark] applet : " + viaApplet);
+        System.out.println("(sink=" + sink + ")");
+    }
+
+    // --- Cách cũ: cấp phát và getInstance trong mỗi lần ký ---
+
+    private static void runLegacy(RSAPrivateKey privateKey, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            MessageDigest sha1 = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
+            byte[] challengeHash = new byte[20];
+            sha1.doFinal(CHALLENGE, (short)0, (short)CHALLENGE.length, challengeHash, (short)0);
+
+            byte[] padded = new byte[AppletConstants.RSA_MODULUS_SIZE];
+            byte[] digestInfo = {
+                (byte)0x30, (byte)0x21, (byte)0x30, (byte)0x09, (byte)0x06, (byte)0x05,
+                (byte)0x2B, (byte)0x0E, (byte)0x03, (byte)0x02, (byte)0x1A, (byte)0x05,
+                (byte)0x00, (byte)0x04, (byte)0x14
+            };
+            padded[1] = (byte)0x01;
+            System.arraycopy(digestInfo, 0, padded, 93, digestInfo.length);
+            System.arraycopy(challengeHash, 0, padded, 108, challengeHash.length);
+
+            Signature sig = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+            sig.init(privateKey, Signature.MODE_SIGN);
+            byte[] out = new byte[AppletConstants.RSA_MODULUS_SIZE];
+            sink += sig.sign(CHALLENGE, (short)0, (short)CHALLENGE.length, out, (short)0) + padded[108];
+        }
+    }
+
+    // --- Đối tượng tạo một lần ---
+
+    private static void runCached(Signature signature, RSAPrivateKey privateKey, byte[] out, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            signature.init(privateKey, Signature.MODE_SIGN);
+            sink += signature.sign(CHALLENGE, (short)0, (short)CHALLENGE.length, out, (short)0) + out[0];
+        }
+    }
+
+    private static void runApplet(Simulator sim, byte[] signCmd, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            byte[] resp = sim.transmitCommand(signCmd);
+            sink += resp.length + resp[0];
+        }
+    }
+
+    private static final class Result {
+        final long signatures;
+        long bytes;
+        long nanos;
+
+        Result(long signatures) {
+            this.signatures = signatures;
+        }
+
+        void start(com.sun.management.ThreadMXBean mx, long tid) {
+            bytes = mx.getThreadAllocatedBytes(tid);
+            nanos = System.nanoTime();
+        }
+
+        void stop(com.sun.management.ThreadMXBean mx, long tid) {
+            nanos = System.nanoTime() - nanos;
+            bytes = mx.getThreadAllocatedBytes(tid) - bytes;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("%.0f chữ ký/s, %.1f bytes/chữ ký",
+                    signatures / seconds, (double) bytes / signatures);
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package utils;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Utility for AES Encryption/Decryption of Balance
@@ -19,6 +24,27 @@ public class AESUtility {
 
     private static final String ALGORITHM = "AES/ECB/NoPadding";
 
+    // [NEW] Derived keys cost 65536 PBKDF2 iterations (~100 ms), so keep the most recent ones.
+    // Keyed by SHA-256(master key) + salt: the cache never holds the plaintext master key; cleared on key change.
+    private static final int KEY_CACHE_SIZE = 256;
+    private static final Map<String, SecretKey> derivedKeys =
+            new LinkedHashMap<String, SecretKey>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                    return size() > KEY_CACHE_SIZE;
+                }
+            };
+    private static volatile SecretKeySpec balanceKey;
+
+    // [NEW] Cipher.getInstance is a provider lookup; each thread reuses its own (Cipher is not thread-safe)
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (Exception e) {
+            throw new IllegalStateException("AES cipher unavailable", e);
+        }
+    });
+
     /**
      * Set Master Key (called after secure exchange with Server & Card)
      * @param masterKey Plaintext Master Key acquired from secure channel
@@ -27,6 +53,9 @@ public class AESUtility {
         if (masterKey == null || masterKey.isEmpty()) {
             throw new IllegalArgumentException("Master Key cannot be empty");
         }
+        if (!masterKey.equals(systemMasterKey)) {
+            clearKeyCache();
+        }
         systemMasterKey = masterKey;
         
         // For 'encryptBalance' legacy support (which used a fixed key derived from "Password..."):
@@ -39,6 +68,7 @@ public class AESUtility {
             byte[] keyBytes = masterKey.getBytes("UTF-8");
             aesKey = new byte[16];
             System.arraycopy(keyBytes, 0, aesKey, 0, Math.min(keyBytes.length, 16));
+            balanceKey = new SecretKeySpec(aesKey, "AES");
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -71,22 +101,65 @@ public class AESUtility {
         return aesKey;
     }
 
+    private static SecretKeySpec getBalanceKey() {
+        SecretKeySpec key = balanceKey;
+        if (key == null) {
+            key = new SecretKeySpec(getAESKey(), "AES");
+            balanceKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * [NEW] Drop all cached derived keys (called when the Master Key changes)
+     */
+    public static void clearKeyCache() {
+        synchronized (derivedKeys) {
+            derivedKeys.clear();
+        }
+    }
+
     /**
      * Derive AES Key from Master Key and Salt (Card ID)
-     * using PBKDF2WithHmacSHA256
+     * using PBKDF2WithHmacSHA256 ([UPDATED] cached, LRU of KEY_CACHE_SIZE entries)
      */
     public static javax.crypto.SecretKey deriveKey(String masterKey, String salt) throws Exception {
+        String cacheKey = fingerprint(masterKey) + "|" + salt;
+        synchronized (derivedKeys) {
+            SecretKey cached = derivedKeys.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // PBKDF2 runs outside the lock; two threads deriving the same key at once both get the same result
         SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
         KeySpec spec = new PBEKeySpec(masterKey.toCharArray(), salt.getBytes(), 65536, 128);
         byte[] keyBytes = factory.generateSecret(spec).getEncoded();
-        return new SecretKeySpec(keyBytes, "AES");
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        synchronized (derivedKeys) {
+            derivedKeys.put(cacheKey, key);
+        }
+        return key;
+    }
+
+    /**
+     * SHA-256 of the master key (hex). Hashed on every call (~1 µs, vs ~100 ms PBKDF2) so that
+     * nothing here keeps a reference to the plaintext key.
+     */
+    private static String fingerprint(String masterKey) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(masterKey.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
     }
 
     /**
      * Generic Encrypt using SecretKey
      */
     public static byte[] encrypt(byte[] data, javax.crypto.SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        Cipher cipher = CIPHERS.get();
         cipher.init(Cipher.ENCRYPT_MODE, key);
         
         // Pad data to multiple of 16 bytes (PKCS5Padding manual or ZeroPadding)
@@ -107,7 +180,7 @@ public class AESUtility {
      * Generic Decrypt using SecretKey
      */
     public static byte[] decrypt(byte[] data, javax.crypto.SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        Cipher cipher = CIPHERS.get();
         cipher.init(Cipher.DECRYPT_MODE, key);
         return cipher.doFinal(data);
     }
@@ -125,9 +198,8 @@ public class AESUtility {
         }
         byte[] input = buffer.array();
 
-        SecretKeySpec keySpec = new SecretKeySpec(getAESKey(), "AES");
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, keySpec);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, getBalanceKey());
 
         return cipher.doFinal(input);
     }
@@ -139,12 +211,21 @@ public class AESUtility {
         if (encryptedData == null || encryptedData.length != 16) {
             throw new IllegalArgumentException("Invalid encrypted data length");
         }
+        return decryptBalance(encryptedData, 0);
+    }
+
+    /**
+     * Decrypt 16 bytes at offset (e.g. directly from an APDU response) into a long value
+     */
+    public static long decryptBalance(byte[] data, int offset) throws Exception {
+        if (data == null || offset < 0 || offset + 16 > data.length) {
+            throw new IllegalArgumentException("Invalid encrypted data length");
+        }
 
-        SecretKeySpec keySpec = new SecretKeySpec(getAESKey(), "AES");
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.DECRYPT_MODE, keySpec);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, getBalanceKey());
 
-        byte[] decrypted = cipher.doFinal(encryptedData);
+        byte[] decrypted = cipher.doFinal(data, offset, 16);
 
         // Read first 8 bytes as long
         ByteBuffer buffer = ByteBuffer.wrap(decrypted);
@@ -1,71 +1,56 @@
 package utils;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import models.CardInfo;
-
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.zip.CRC32;
 
 /**
- * Manager để lưu/load applet state vào JSON file
+ * Manager để lưu/load EEPROM snapshot của applet (nhị phân)
  * Dùng cho JCardSim demo (vì không có persistent storage)
+ *
+ * Snapshot là dữ liệu INS_EXPORT_STATE của applet (PIN salt/hash, card info, sách,
+ * số dư mã hóa, khóa RSA, khóa AES); nạp lại bằng INS_IMPORT_STATE mà không phải
+ * tạo PIN (PBKDF2) hay sinh khóa RSA lại. Không lưu PIN dạng plaintext.
+ *
+ * [UPDATED] STATE chứa Master Key AES, RSA d và scalar EC dạng rõ -> file được mã hóa
+ * AES-256-GCM (AAD = studentId, nên không đổi file giữa hai thẻ được) bằng khóa của máy:
+ * file CARD_STATE_KEY_FILE (mặc định ~/.library_card/card_state.key), sinh ngẫu nhiên
+ * lần đầu, không nằm trong binary. Thư mục, khóa và snapshot chỉ chủ sở hữu đọc/ghi được
+ * (POSIX 600/700).
+ * Ranh giới tin cậy: tài khoản OS chạy simulator / card-host. Ai đọc được file khóa của
+ * tài khoản đó thì đọc được snapshot - giống như đọc được bộ nhớ của tiến trình.
+ *
+ * File: [MAGIC "LCST" (4)] [FORMAT 2 (1)] [IV (12)] [LENGTH (2)] [AES-GCM(STATE) + TAG (16)]
+ * File FORMAT 1 cũ ([CRC32 (4)] [LENGTH (2)] [STATE...] không mã hóa) vẫn đọc được;
+ * lần lưu kế tiếp ghi lại dạng FORMAT 2.
  */
 public class CardStateManager {
     private static final String STATE_DIR = "card_states";
     private static final String STATE_FILE_PREFIX = "card_state_";
-    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final String STATE_FILE_SUFFIX = ".bin";
+    private static final int MAGIC = 0x4C435354; // "LCST"
+    private static final byte FORMAT_PLAIN = 1;
+    private static final byte FORMAT = 2;
+    private static final int PLAIN_HEADER_LENGTH = 11;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final int HEADER_LENGTH = 4 + 1 + IV_LENGTH + 2;
+    private static final int KEY_LENGTH = 32;
+    private static final String KEY_FILE_SETTING = "CARD_STATE_KEY_FILE";
     
-    /**
-     * Card state data structure - Mô phỏng EEPROM của JavaCard
-     * Lưu đầy đủ dữ liệu để tái tạo lại toàn bộ applet state
-     */
-    public static class CardState {
-        public String studentId;
-        
-        // RSA Keypair (Mô phỏng EEPROM - lưu cả public và private components)
-        public String rsaPublicKeyPEM;  // RSA public key (PEM format)
-        public String rsaModulusBase64;  // RSA modulus (Base64) - để restore keypair
-        public String rsaExponentBase64; // RSA public exponent (Base64) - để restore keypair
-        public String rsaPrivateExponentBase64; // RSA private exponent (d) - [DEMO ONLY] Mô phỏng EEPROM
-        
-        // PIN State
-        public String pinHash;          // PIN hash (Base64) - nếu có
-        public String pinSalt;          // PIN salt (Base64) - nếu có
-        public String pinPlainText;     // PIN plain text (để regenerate hash/salt)
-        public int pinTriesRemaining;
-        
-        // Card Info trên Applet (CardInfoManager)
-        public String cardId;           // Card ID (10 bytes max)
-        public String holderName;       // Holder name (50 bytes max)
-        public String expiryDate;       // Expiry date (DDMMYYYY format)
-        public boolean cardInfoEncrypted; // Flag: card info có được mã hóa không
-        
-        // Borrowed Books trên Applet (BookManager)
-        public String[] borrowedBookIds; // Danh sách Book IDs trên applet
-        
-        // Balance (nếu có trên applet)
-        public long balance;
-        
-        // Full CardInfo (cho GUI và server sync)
-        public CardInfo cardInfo;       // Card information (full)
-        
-        // Metadata
-        public long lastUpdated;        // Timestamp
-        public String version;          // Version của state format
-        
-        public CardState() {
-            this.lastUpdated = System.currentTimeMillis();
-            this.version = "1.0";
-            this.pinTriesRemaining = 3;
-            this.balance = 0;
-            this.cardInfoEncrypted = false;
-            this.borrowedBookIds = new String[0];
-        }
-    }
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static byte[] stateKey; // guarded by CardStateManager.class
     
     /**
      * Ensure state directory exists
@@ -74,57 +59,190 @@ public class CardStateManager {
         File dir = new File(STATE_DIR);
         if (!dir.exists()) {
             dir.mkdirs();
+            restrictToOwner(dir.toPath(), true);
+        }
+    }
+    
+    /**
+     * [NEW] Đường dẫn file khóa mã hóa snapshot
+     * Priority: System Property CARD_STATE_KEY_FILE > Environment Variable > ~/.library_card/card_state.key
+     */
+    private static Path getKeyFilePath() {
+        String value = System.getProperty(KEY_FILE_SETTING);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(KEY_FILE_SETTING);
         }
+        if (value == null || value.isEmpty()) {
+            return Paths.get(System.getProperty("user.home"), ".library_card", "card_state.key");
+        }
+        return Paths.get(value);
+    }
+    
+    /**
+     * [NEW] Khóa AES-256 của máy: đọc từ file, chưa có thì sinh ngẫu nhiên và ghi (quyền 600)
+     */
+    private static synchronized byte[] getStateKey() throws IOException {
+        if (stateKey != null) {
+            return stateKey;
+        }
+        Path keyFile = getKeyFilePath();
+        if (!Files.exists(keyFile)) {
+            Path dir = keyFile.toAbsolutePath().getParent();
+            if (dir != null && !Files.exists(dir)) {
+                Files.createDirectories(dir);
+                restrictToOwner(dir, true);
+            }
+            byte[] key = new byte[KEY_LENGTH];
+            RANDOM.nextBytes(key);
+            Path tmp = keyFile.resolveSibling(keyFile.getFileName() + "." + System.nanoTime() + ".tmp");
+            Files.write(tmp, key);
+            restrictToOwner(tmp, false);
+            try {
+                // Không ghi đè: tiến trình khác (card-host / GUI) tạo trước thì dùng khóa của nó
+                Files.move(tmp, keyFile);
+                System.out.println("[CardState] Generated snapshot key: " + keyFile);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        byte[] key = Files.readAllBytes(keyFile);
+        if (key.length != KEY_LENGTH) {
+            throw new IOException("Invalid snapshot key file: " + keyFile);
+        }
+        stateKey = key;
+        return stateKey;
+    }
+    
+    /**
+     * [NEW] Chỉ chủ sở hữu đọc/ghi (POSIX 600 / 700 cho thư mục; hệ khác: quyền owner-only của File)
+     */
+    private static void restrictToOwner(Path path, boolean directory) {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(directory ? "rwx------" : "rw-------"));
+        } catch (UnsupportedOperationException e) {
+            File file = path.toFile();
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+            if (directory) {
+                file.setExecutable(false, false);
+                file.setExecutable(true, true);
+            }
+        } catch (IOException e) {
+            System.err.println("[CardState] Could not restrict permissions of " + path + ": " + e.getMessage());
+        }
+    }
+    
+    private static Cipher cipher(int mode, byte[] iv, String studentId) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, new SecretKeySpec(getStateKey(), "AES"), new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(studentId.getBytes(StandardCharsets.UTF_8));
+        return cipher;
     }
     
     /**
      * Get state file path for a student ID
      */
-    private static String getStateFilePath(String studentId) {
+    private static Path getStateFilePath(String studentId) {
         ensureDirectory();
-        return STATE_DIR + File.separator + STATE_FILE_PREFIX + studentId + ".json";
+        return Paths.get(STATE_DIR, STATE_FILE_PREFIX + studentId + STATE_FILE_SUFFIX);
     }
     
     /**
-     * Save card state to JSON file
+     * Save applet state snapshot (mã hóa; ghi file tạm rồi đổi tên -> không để lại file ghi dở)
      */
-    public static boolean saveCardState(String studentId, CardState state) {
+    public static boolean saveCardState(String studentId, byte[] state) {
         try {
-            state.studentId = studentId;
-            state.lastUpdated = System.currentTimeMillis();
-            
-            String filePath = getStateFilePath(studentId);
-            String json = gson.toJson(state);
-            
-            Files.write(Paths.get(filePath), json.getBytes("UTF-8"));
-            System.out.println("Saved card state for: " + studentId);
+            byte[] iv = new byte[IV_LENGTH];
+            RANDOM.nextBytes(iv);
+            byte[] sealed = cipher(Cipher.ENCRYPT_MODE, iv, studentId).doFinal(state);
+            if (sealed.length > 0xFFFF) {
+                throw new IOException("Card state too large: " + state.length);
+            }
+        
+            ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + sealed.length);
+            out.putInt(MAGIC).put(FORMAT).put(iv).putShort((short) sealed.length).put(sealed);
+        
+            Path file = getStateFilePath(studentId);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, out.array());
+            restrictToOwner(tmp, false);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             return true;
         } catch (Exception e) {
             System.err.println("Error saving card state: " + e.getMessage());
-            e.printStackTrace();
             return false;
         }
     }
     
     /**
-     * Load card state from JSON file
+     * Load applet state snapshot (null nếu chưa có hoặc file hỏng)
      */
-    public static CardState loadCardState(String studentId) {
+    public static byte[] loadCardState(String studentId) {
         try {
-            String filePath = getStateFilePath(studentId);
-            File file = new File(filePath);
-            
-            if (!file.exists()) {
+            Path file = getStateFilePath(studentId);
+            if (!Files.exists(file)) {
+                return null;
+            }
+        
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (in.remaining() < PLAIN_HEADER_LENGTH || in.getInt() != MAGIC) {
+                System.err.println("Invalid card state file: " + file);
+                return null;
+            }
+            byte format = in.get();
+            if (format == FORMAT) {
+                return loadSealed(in, studentId, file);
+            }
+            if (format != FORMAT_PLAIN) {
+                System.err.println("Invalid card state file: " + file);
+                return null;
+            }
+            int expectedCrc = in.getInt();
+            int length = in.getShort() & 0xFFFF;
+            if (in.remaining() != length) {
+                System.err.println("Truncated card state file: " + file);
+                return null;
+            }
+            byte[] state = new byte[length];
+            in.get(state);
+        
+            CRC32 crc = new CRC32();
+            crc.update(state, 0, length);
+            if ((int) crc.getValue() != expectedCrc) {
+                System.err.println("Card state checksum mismatch: " + file);
                 return null;
             }
-            
-            String json = new String(Files.readAllBytes(Paths.get(filePath)), "UTF-8");
-            CardState state = gson.fromJson(json, CardState.class);
-            System.out.println("Loaded card state for: " + studentId);
             return state;
         } catch (Exception e) {
             System.err.println("Error loading card state: " + e.getMessage());
-            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    // FORMAT 2: [IV] [LENGTH] [CIPHERTEXT + TAG]; sai khóa / bị sửa / đổi file giữa hai thẻ -> null
+    private static byte[] loadSealed(ByteBuffer in, String studentId, Path file) {
+        if (in.remaining() < IV_LENGTH + 2) {
+            System.err.println("Truncated card state file: " + file);
+            return null;
+        }
+        byte[] iv = new byte[IV_LENGTH];
+        in.get(iv);
+        int length = in.getShort() & 0xFFFF;
+        if (in.remaining() != length) {
+            System.err.println("Truncated card state file: " + file);
+            return null;
+        }
+        byte[] sealed = new byte[length];
+        in.get(sealed);
+        try {
+            return cipher(Cipher.DECRYPT_MODE, iv, studentId).doFinal(sealed);
+        } catch (javax.crypto.AEADBadTagException e) {
+            System.err.println("Card state authentication failed (wrong key or modified file): " + file);
+            return null;
+        } catch (Exception e) {
+            System.err.println("Error decrypting card state: " + e.getMessage());
             return null;
         }
     }
@@ -134,11 +252,7 @@ public class CardStateManager {
      */
     public static boolean deleteCardState(String studentId) {
         try {
-            String filePath = getStateFilePath(studentId);
-            File file = new File(filePath);
-            if (file.exists()) {
-                return file.delete();
-            }
+            Files.deleteIfExists(getStateFilePath(studentId));
             return true;
         } catch (Exception e) {
             System.err.println("Error deleting card state: " + e.getMessage());
@@ -150,37 +264,6 @@ public class CardStateManager {
      * Check if card state exists
      */
     public static boolean cardStateExists(String studentId) {
-        String filePath = getStateFilePath(studentId);
-        return new File(filePath).exists();
-    }
-    
-    /**
-     * Get all saved card states
-     */
-    public static Map<String, CardState> getAllCardStates() {
-        Map<String, CardState> states = new HashMap<>();
-        try {
-            ensureDirectory();
-            File dir = new File(STATE_DIR);
-            File[] files = dir.listFiles((d, name) -> name.startsWith(STATE_FILE_PREFIX) && name.endsWith(".json"));
-            
-            if (files != null) {
-                for (File file : files) {
-                    try {
-                        String json = new String(Files.readAllBytes(file.toPath()), "UTF-8");
-                        CardState state = gson.fromJson(json, CardState.class);
-                        if (state != null && state.studentId != null) {
-                            states.put(state.studentId, state);
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Error loading state from file: " + file.getName());
-                    }
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("Error getting all card states: " + e.getMessage());
-        }
-        return states;
+        return Files.exists(getStateFilePath(studentId));
     }
 }
-
@@ -7,6 +7,7 @@ import java.math.BigInteger;
 /**
  * Utility class để xử lý RSA authentication
  * Chuyển đổi RSA key format và verify signature
+ * [UPDATED] Hỗ trợ cả khóa ECDSA P-256 (điểm W 65 bytes từ thẻ, chữ ký DER)
  */
 public class RSAUtility {
     
@@ -30,6 +31,36 @@ public class RSAUtility {
         }
     }
     
+    /**
+     * [NEW] Convert EC public key từ JavaCard format (điểm W không nén: 04 || X || Y) sang Java PublicKey
+     * 
+     * @param point 65 bytes trên đường cong secp256r1
+     */
+    public static PublicKey convertEcPointToPublicKey(byte[] point) {
+        try {
+            if (point == null || point.length != 65 || point[0] != 0x04) {
+                throw new IllegalArgumentException("EC point must be 65 bytes uncompressed");
+            }
+            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            params.init(new ECGenParameterSpec("secp256r1"));
+            ECParameterSpec curve = params.getParameterSpec(ECParameterSpec.class);
+            
+            byte[] x = java.util.Arrays.copyOfRange(point, 1, 33);
+            byte[] y = java.util.Arrays.copyOfRange(point, 33, 65);
+            ECPoint w = new ECPoint(new BigInteger(1, x), new BigInteger(1, y));
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(w, curve));
+        } catch (Exception e) {
+            throw new RuntimeException("Error converting EC key", e);
+        }
+    }
+    
+    /**
+     * [NEW] Convert EC public key (điểm W) sang PEM format (Base64 SubjectPublicKeyInfo)
+     */
+    public static String convertEcPointToPEM(byte[] point) {
+        return java.util.Base64.getEncoder().encodeToString(convertEcPointToPublicKey(point).getEncoded());
+    }
+    
     /**
      * Convert RSA public key sang PEM format
      * 
@@ -55,6 +86,9 @@ public class RSAUtility {
      * @return true nếu signature hợp lệ
      */
     public static boolean verifySignature(PublicKey publicKey, byte[] challenge, byte[] signature) {
+        if ("EC".equals(publicKey.getAlgorithm())) {
+            return verifyEcSignature(publicKey, challenge, signature);
+        }
         try {
             // First try Signature API (SHA1withRSA) to match card's Signature path
             try {
@@ -161,6 +195,23 @@ public class RSAUtility {
         }
     }
     
+    /**
+     * [NEW] Verify ECDSA signature (SHA256withECDSA, DER - định dạng Signature.ALG_ECDSA_SHA_256 của thẻ)
+     */
+    public static boolean verifyEcSignature(PublicKey publicKey, byte[] challenge, byte[] signature) {
+        try {
+            java.security.Signature verifier = java.security.Signature.getInstance("SHA256withECDSA");
+            verifier.initVerify(publicKey);
+            verifier.update(challenge);
+            boolean ok = verifier.verify(signature);
+            System.out.println("[EC Verify] Signature verification " + (ok ? "SUCCESS" : "FAILED"));
+            return ok;
+        } catch (Exception e) {
+            System.out.println("[EC Verify] Error: " + e.getMessage());
+            return false;
+        }
+    }
+    
     public static String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
@@ -184,6 +235,7 @@ public class RSAUtility {
     /**
      * Convert PEM string to PublicKey
      * Handles both full PEM format (with headers) and Base64-only format
+     * [UPDATED] Khóa RSA hoặc EC (nhận diện theo SubjectPublicKeyInfo)
      * 
      * @param pemString PEM format string or Base64 string
      * @return PublicKey object
@@ -200,8 +252,11 @@ public class RSAUtility {
             
             byte[] keyBytes = java.util.Base64.getDecoder().decode(base64Key);
             X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            return keyFactory.generatePublic(spec);
+            try {
+                return KeyFactory.getInstance("RSA").generatePublic(spec);
+            } catch (InvalidKeySpecException notRsa) {
+                return KeyFactory.getInstance("EC").generatePublic(spec);
+            }
         } catch (Exception e) {
             throw new RuntimeException("Error parsing PEM key: " + e.getMessage(), e);
         }
@@ -0,0 +1,458 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Nhật ký giao dịch (nạp tiền / trả phạt) ghi thêm vào file ánh xạ bộ nhớ, chịu được crash
+ *
+ * File journal/transactions-<thế hệ>.journal:
+ *   [MAGIC "LJNL" (4)] [VERSION (1)] [RESERVED (3)]
+ *   Bản ghi: [LEN (2)] [CRC32 (4)] [TYPE (1)] [TIMESTAMP (8)] [AMOUNT (8)] [BALANCE (8)] [ID_LEN (1)] [MSSV...]
+ * BALANCE là số dư sau giao dịch nên phát lại chỉ cần bản ghi cuối của mỗi MSSV.
+ * Khi mở, bản ghi đầu tiên có LEN = 0 hoặc CRC sai đánh dấu điểm cuối (bản ghi ghi dở bị bỏ).
+ *
+ * Group commit: append() ghi vào vùng ánh xạ rồi chờ luồng flush gọi force(); mọi bản ghi
+ * đến trong lúc đang force được gom vào lần force kế tiếp. Luồng chờ theo số thứ tự bản ghi
+ * (tăng đơn điệu) chứ không theo offset trong file, vì nén/đổi thế hệ làm offset nhỏ lại.
+ *
+ * Nén (checkpoint): khi file vượt COMPACT_THRESHOLD, chỉ giữ HISTORY_KEEP giao dịch mới nhất
+ * của mỗi MSSV và ghi sang file thế hệ mới. MAGIC được ghi sau cùng (sau force), nên file
+ * thế hệ mới chỉ được dùng khi đã ghi xong; sau đó file cũ bị xóa.
+ */
+public class TransactionJournal implements Closeable {
+
+    public static final String FILE_PROPERTY = "transaction.journal.dir";
+    private static final String DEFAULT_DIR = "journal";
+    private static final String FILE_PREFIX = "transactions-";
+    private static final String FILE_SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x4C4A4E4C; // "LJNL"
+    private static final byte VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 6;
+    private static final int FIXED_PAYLOAD_LENGTH = 1 + 8 + 8 + 8 + 1;
+    private static final int INITIAL_MAP_SIZE = 1 << 20;           // 1 MB, gấp đôi khi đầy
+    private static final int COMPACT_THRESHOLD = 8 << 20;          // 8 MB
+    private static final int HISTORY_KEEP = 500;
+
+    private static TransactionJournal sharedInstance;
+    private static boolean sharedResolved = false;
+
+    private final Path dir;
+    private final Object lock = new Object();
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int position;
+    private long appendedSequence;      // [NEW] Số bản ghi đã append (không reset khi nén)
+    private long forcedSequence;        // [NEW] Số bản ghi đã chắc chắn xuống đĩa
+    private int compactThreshold = COMPACT_THRESHOLD;
+    private boolean closed = false;
+    private final Thread flusher;
+
+    /**
+     * Journal dùng chung (thư mục theo -Dtransaction.journal.dir, mặc định "journal";
+     * để trống = tắt). Null nếu tắt hoặc không mở được.
+     */
+    public static synchronized TransactionJournal getShared() {
+        if (!sharedResolved) {
+            sharedResolved = true;
+            String value = System.getProperty(FILE_PROPERTY, DEFAULT_DIR).trim();
+            if (!value.isEmpty()) {
+                try {
+                    TransactionJournal journal = open(Paths.get(value));
+                    Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "transaction-journal-close"));
+                    sharedInstance = journal;
+                } catch (IOException e) {
+                    System.out.println("[Journal] Không mở được " + value + ": " + e.getMessage());
+                }
+            }
+        }
+        return sharedInstance;
+    }
+
+    public static TransactionJournal open(Path dir) throws IOException {
+        return new TransactionJournal(dir);
+    }
+
+    private TransactionJournal(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        generation = findLatestGeneration();
+        if (generation < 0) {
+            generation = 0;
+            writeGeneration(0, new ArrayList<>());
+        }
+        mapGeneration();
+        deleteOlderGenerations();
+        System.out.println("[Journal] " + fileFor(generation) + ": " + position + " bytes");
+        if (position > compactThreshold) {
+            synchronized (lock) {
+                compact();
+            }
+        }
+        flusher = new Thread(this::flushLoop, "transaction-journal-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Một giao dịch trong journal
+     */
+    public static final class Entry {
+        private final String studentId;
+        private final byte type;
+        private final long timestamp;
+        private final long amount;
+        private final long balanceAfter;
+
+        public Entry(String studentId, byte type, long timestamp, long amount, long balanceAfter) {
+            this.studentId = studentId;
+            this.type = type;
+            this.timestamp = timestamp;
+            this.amount = amount;
+            this.balanceAfter = balanceAfter;
+        }
+
+        public String getStudentId() { return studentId; }
+        public byte getType() { return type; }
+        public long getTimestamp() { return timestamp; }
+        public long getAmount() { return amount; }
+        public long getBalanceAfter() { return balanceAfter; }
+    }
+
+    /**
+     * Ghi một giao dịch và chờ tới khi đã xuống đĩa (group commit)
+     */
+    public void append(Entry entry) throws IOException {
+        byte[] id = entry.studentId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > 255) {
+            throw new IOException("MSSV quá dài: " + entry.studentId);
+        }
+        int payloadLength = FIXED_PAYLOAD_LENGTH + id.length;
+        ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        payload.put(entry.type).putLong(entry.timestamp).putLong(entry.amount)
+                .putLong(entry.balanceAfter).put((byte) id.length).put(id);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payloadLength);
+
+        long sequence;
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Journal đã đóng");
+            }
+            ensureCapacity(RECORD_HEADER_LENGTH + payloadLength);
+            map.position(position);
+            map.putShort((short) payloadLength).putInt((int) crc.getValue()).put(payload.array());
+            position += RECORD_HEADER_LENGTH + payloadLength;
+            sequence = ++appendedSequence;
+            lock.notifyAll();               // Đánh thức luồng flush
+
+            while (forcedSequence < sequence && !closed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Bị ngắt khi chờ ghi journal");
+                }
+            }
+        }
+    }
+
+    /**
+     * Đọc lại toàn bộ giao dịch hợp lệ theo thứ tự ghi
+     */
+    public void replay(Consumer<Entry> listener) {
+        synchronized (lock) {
+            scan(map, listener);
+        }
+    }
+
+    public long getGeneration() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    /**
+     * Nén ngay (giữ HISTORY_KEEP giao dịch mới nhất mỗi MSSV)
+     */
+    public void checkpoint() throws IOException {
+        synchronized (lock) {
+            compact();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            map.force();
+            forcedSequence = appendedSequence;
+            lock.notifyAll();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("[Journal] Error closing: " + e.getMessage());
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            MappedByteBuffer target;
+            long upTo;
+            synchronized (lock) {
+                while (!closed && forcedSequence == appendedSequence) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                target = map;
+                upTo = appendedSequence;
+            }
+            // Force ngoài khóa: các append mới tiếp tục ghi và chờ lần force sau.
+            // Nếu trong lúc đó đã nén/đổi vùng ánh xạ thì forcedSequence đã được nâng sẵn
+            target.force();
+            synchronized (lock) {
+                if (upTo > forcedSequence) {
+                    forcedSequence = upTo;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gọi khi giữ lock
+     */
+    private void ensureCapacity(int length) throws IOException {
+        if (position + length > compactThreshold) {
+            compact();
+            if (position + length > compactThreshold / 2) {
+                // Vẫn lớn sau khi nén (nhiều MSSV) -> nâng ngưỡng để không nén liên tục
+                compactThreshold = Math.max(compactThreshold, (position + length) * 2);
+            }
+        }
+        if (position + length > map.capacity()) {
+            int size = map.capacity();
+            while (position + length > size) {
+                size *= 2;
+            }
+            map.force();
+            forcedSequence = appendedSequence;
+            lock.notifyAll();
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Gọi khi giữ lock: ghi các giao dịch còn giữ sang thế hệ mới và chuyển sang dùng file đó
+     */
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        List<Entry> all = new ArrayList<>();
+        Map<String, Deque<Integer>> recent = new HashMap<>();
+        scan(map, entry -> {
+            Deque<Integer> indexes = recent.computeIfAbsent(entry.studentId, k -> new ArrayDeque<>());
+            indexes.addLast(all.size());
+            if (indexes.size() > HISTORY_KEEP) {
+                indexes.removeFirst();
+            }
+            all.add(entry);
+        });
+        boolean[] keep = new boolean[all.size()];
+        for (Deque<Integer> indexes : recent.values()) {
+            for (int i : indexes) keep[i] = true;
+        }
+        List<Entry> retained = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            if (keep[i]) retained.add(all.get(i));
+        }
+
+        map.force();
+        long next = generation + 1;
+        writeGeneration(next, retained);
+        channel.close();
+        generation = next;
+        mapGeneration();
+        // Mọi bản ghi đã append đều đã force (file cũ) hoặc nằm trong file mới -> thả mọi luồng chờ
+        forcedSequence = appendedSequence;
+        lock.notifyAll();
+        deleteOlderGenerations();
+        System.out.println(String.format("[Journal] Checkpoint -> thế hệ %d: giữ %d/%d giao dịch, %.1f ms",
+                next, retained.size(), all.size(), (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Ghi file thế hệ mới; MAGIC ghi sau cùng để file dở dang không bao giờ được chọn
+     */
+    private void writeGeneration(long gen, List<Entry> entries) throws IOException {
+        Path file = fileFor(gen);
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+            header.putInt(0).put(VERSION).put(new byte[3]).flip();
+            out.write(header);
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            CRC32 crc = new CRC32();
+            for (Entry e : entries) {
+                byte[] id = e.studentId.getBytes(StandardCharsets.UTF_8);
+                int payloadLength = FIXED_PAYLOAD_LENGTH + id.length;
+                if (buf.remaining() < RECORD_HEADER_LENGTH + payloadLength) {
+                    buf.flip();
+                    while (buf.hasRemaining()) out.write(buf);
+                    buf.clear();
+                }
+                int start = buf.position() + RECORD_HEADER_LENGTH;
+                buf.position(start);
+                buf.put(e.type).putLong(e.timestamp).putLong(e.amount).putLong(e.balanceAfter)
+                        .put((byte) id.length).put(id);
+                crc.reset();
+                crc.update(buf.array(), start, payloadLength);
+                buf.putShort(start - RECORD_HEADER_LENGTH, (short) payloadLength);
+                buf.putInt(start - 4, (int) crc.getValue());
+            }
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+            out.force(true);
+
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            magic.putInt(MAGIC).flip();
+            out.write(magic, 0);
+            out.force(true);
+        }
+    }
+
+    private void mapGeneration() throws IOException {
+        channel = FileChannel.open(fileFor(generation), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int size = INITIAL_MAP_SIZE;
+        while (size < channel.size()) {
+            size *= 2;
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        position = scan(map, null);
+        // Xóa phần đuôi ghi dở (nếu có) để lần quét sau không đọc nhầm
+        for (int i = position; i < map.capacity() && i < channel.size(); i++) {
+            if (map.get(i) != 0) map.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Quét các bản ghi hợp lệ; trả về vị trí kết thúc
+     */
+    private static int scan(MappedByteBuffer source, Consumer<Entry> listener) {
+        ByteBuffer buf = source.duplicate();
+        int offset = FILE_HEADER_LENGTH;
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[FIXED_PAYLOAD_LENGTH + 255];
+        while (offset + RECORD_HEADER_LENGTH <= buf.capacity()) {
+            int length = buf.getShort(offset) & 0xFFFF;
+            if (length < FIXED_PAYLOAD_LENGTH || length > payload.length
+                    || offset + RECORD_HEADER_LENGTH + length > buf.capacity()) {
+                break;
+            }
+            int expected = buf.getInt(offset + 2);
+            buf.position(offset + RECORD_HEADER_LENGTH);
+            buf.get(payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            if (listener != null) {
+                ByteBuffer p = ByteBuffer.wrap(payload, 0, length);
+                byte type = p.get();
+                long timestamp = p.getLong();
+                long amount = p.getLong();
+                long balance = p.getLong();
+                int idLength = p.get() & 0xFF;
+                if (FIXED_PAYLOAD_LENGTH + idLength != length) {
+                    break;
+                }
+                String id = new String(payload, FIXED_PAYLOAD_LENGTH, idLength, StandardCharsets.UTF_8);
+                listener.accept(new Entry(id, type, timestamp, amount, balance));
+            }
+            offset += RECORD_HEADER_LENGTH + length;
+        }
+        return offset;
+    }
+
+    private Path fileFor(long gen) {
+        return dir.resolve(FILE_PREFIX + gen + FILE_SUFFIX);
+    }
+
+    private long generationOf(File file) {
+        String name = file.getName();
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Thế hệ mới nhất có header hợp lệ (-1 nếu chưa có)
+     */
+    private long findLatestGeneration() {
+        long latest = -1;
+        File[] files = dir.toFile().listFiles();
+        if (files == null) return latest;
+        for (File f : files) {
+            long gen = generationOf(f);
+            if (gen > latest && hasValidHeader(f.toPath())) {
+                latest = gen;
+            }
+        }
+        return latest;
+    }
+
+    private static boolean hasValidHeader(Path file) {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+            while (header.hasRemaining() && in.read(header) > 0) { }
+            header.flip();
+            return header.remaining() == FILE_HEADER_LENGTH && header.getInt() == MAGIC && header.get() == VERSION;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Xóa các thế hệ khác (cũ hơn, hoặc thế hệ mới ghi dở do crash khi đang nén)
+     */
+    private void deleteOlderGenerations() {
+        File[] files = dir.toFile().listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            long gen = generationOf(f);
+            if (gen >= 0 && gen != generation && !f.delete()) {
+                // Windows: file cũ còn được ánh xạ tới khi GC -> xóa khi thoát
+                f.deleteOnExit();
+            }
+        }
+    }
+}
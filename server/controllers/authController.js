@@ -1,17 +1,87 @@
 const { Card } = require('../models');
 const crypto = require('crypto');
 const jwt = require('jsonwebtoken');
+const secureSession = require('../utils/secureSession');
 
 // Admin student ID - bypass authentication
 const ADMIN_STUDENT_ID = 'CT060132';
 
+/**
+ * [NEW] Tạo phiên Secure Messaging cho thẻ (bước 1 của login một phép toán bất đối xứng)
+ * Body: { studentId, algorithm: 'RSA' | 'EC' }
+ * Trả về hostChallenge + keyBlob (secret mã hóa RSA / khóa tạm ECDH) để client gửi vào thẻ
+ */
+exports.createSession = async (req, res) => {
+    try {
+        const { studentId, algorithm } = req.body;
+        if (!studentId) {
+            return res.status(400).json({
+                success: false,
+                message: 'Thiếu thông tin: studentId'
+            });
+        }
+
+        const card = await Card.findOne({ where: { studentId } });
+        if (!card) {
+            return res.status(404).json({
+                success: false,
+                message: 'Thẻ không tồn tại'
+            });
+        }
+
+        // [NEW] Chỉ đếm MSSV có thật nên bảng đếm không phình theo MSSV rác
+        const retryAfter = secureSession.checkRateLimit(card.studentId);
+        if (retryAfter > 0) {
+            res.set('Retry-After', String(retryAfter));
+            return res.status(429).json({
+                success: false,
+                message: 'Quá nhiều yêu cầu tạo phiên, thử lại sau'
+            });
+        }
+
+        const useEc = algorithm === 'EC';
+        if ((useEc && !card.ecPublicKey) || (!useEc && !card.rsaPublicKey)) {
+            return res.status(400).json({
+                success: false,
+                message: useEc ? 'Thẻ chưa có EC public key' : 'Thẻ chưa có RSA public key'
+            });
+        }
+
+        const session = secureSession.createSession(card, useEc ? 'EC' : 'RSA');
+        return res.json({
+            success: true,
+            message: 'Secure session created',
+            data: {
+                sessionId: session.sessionId,
+                algorithm: useEc ? 'EC' : 'RSA',
+                hostChallenge: session.hostChallenge.toString('base64'),
+                keyBlob: session.keyBlob.toString('base64')
+            }
+        });
+    } catch (error) {
+        console.error('[AUTH] Create session error:', error);
+        return res.status(500).json({
+            success: false,
+            message: 'Internal server error',
+            error: process.env.NODE_ENV === 'development' ? error.message : {}
+        });
+    }
+};
+
 /**
  * Login với RSA signature
  * Client đã verify RSA ở client-side, giờ server verify lại để tạo token
+ * [NEW] algorithm = 'EC': chữ ký ECDSA P-256 (SHA-256, DER) kiểm tra bằng ecPublicKey của thẻ
+ * [NEW] algorithm = 'SESSION': cryptogram AES-CMAC của thẻ cho phiên từ createSession,
+ *       trả thêm sessionKey (K_MAC) để client MAC các lệnh nhạy cảm
  */
 exports.login = async (req, res) => {
     try {
-        const { studentId, challenge, signature } = req.body;
+        const { studentId, challenge, signature, algorithm } = req.body;
+
+        if (algorithm === 'SESSION') {
+            return loginWithSession(req, res);
+        }
 
         if (!studentId || !challenge || !signature) {
             return res.status(400).json({
@@ -53,6 +123,11 @@ exports.login = async (req, res) => {
             });
         }
 
+        // [NEW] Chữ ký ECDSA P-256 -> loginWithEcSignature (luồng RSA bên dưới giữ nguyên)
+        if (algorithm === 'EC') {
+            return loginWithEcSignature(res, card, challenge, signature);
+        }
+
         if (!card.rsaPublicKey) {
             return res.status(400).json({
                 success: false,
@@ -217,6 +292,111 @@ exports.login = async (req, res) => {
     }
 };
 
+/**
+ * [NEW] Login bằng chữ ký ECDSA P-256 (SHA-256, DER), kiểm tra bằng ecPublicKey của thẻ
+ */
+const loginWithEcSignature = (res, card, challenge, signature) => {
+    const studentId = card.studentId;
+    if (!card.ecPublicKey) {
+        return res.status(400).json({
+            success: false,
+            message: 'Thẻ chưa có EC public key'
+        });
+    }
+
+    let isValid;
+    try {
+        const verify = crypto.createVerify('SHA256');
+        verify.update(Buffer.from(challenge, 'base64'));
+        verify.end();
+        isValid = verify.verify(card.ecPublicKey, Buffer.from(signature, 'base64'));
+    } catch (verifyError) {
+        console.error(`[AUTH] EC verification error for student ${studentId}:`, verifyError);
+        return res.status(401).json({
+            success: false,
+            message: 'EC signature verification failed: ' + verifyError.message
+        });
+    }
+    if (!isValid) {
+        console.log(`[AUTH] EC signature verification failed for student: ${studentId}`);
+        return res.status(401).json({
+            success: false,
+            message: 'EC signature verification failed'
+        });
+    }
+    console.log(`[AUTH] EC signature verification successful for student: ${studentId}`);
+
+    const token = jwt.sign(
+        { 
+            studentId: studentId,
+            role: 'user',
+            iat: Math.floor(Date.now() / 1000)
+        },
+        process.env.JWT_SECRET || 'library_card_secret_key',
+        { expiresIn: '24h' }
+    );
+
+    return res.json({
+        success: true,
+        message: 'Login successful',
+        data: {
+            token: token,
+            studentId: studentId,
+            role: 'user'
+        }
+    });
+};
+
+/**
+ * [NEW] Login bằng cryptogram của phiên Secure Messaging
+ * Body: { studentId, algorithm: 'SESSION', sessionId, cardChallenge, cryptogram }
+ */
+const loginWithSession = (req, res) => {
+    const { studentId, sessionId, cardChallenge, cryptogram } = req.body;
+    if (!studentId || !sessionId || !cardChallenge || !cryptogram) {
+        return res.status(400).json({
+            success: false,
+            message: 'Thiếu thông tin: studentId, sessionId, cardChallenge, cryptogram'
+        });
+    }
+
+    const macKey = secureSession.verifySession(
+        sessionId,
+        studentId,
+        Buffer.from(cardChallenge, 'base64'),
+        Buffer.from(cryptogram, 'base64')
+    );
+    if (!macKey) {
+        console.log(`[AUTH] Session cryptogram verification failed for student: ${studentId}`);
+        return res.status(401).json({
+            success: false,
+            message: 'Session cryptogram verification failed'
+        });
+    }
+    console.log(`[AUTH] Session cryptogram verification successful for student: ${studentId}`);
+
+    const token = jwt.sign(
+        { 
+            studentId: studentId,
+            role: 'user',
+            iat: Math.floor(Date.now() / 1000)
+        },
+        process.env.JWT_SECRET || 'library_card_secret_key',
+        { expiresIn: '24h' }
+    );
+
+    return res.json({
+        success: true,
+        message: 'Login successful',
+        data: {
+            token: token,
+            studentId: studentId,
+            role: 'user',
+            sessionKey: macKey.toString('base64')
+        }
+    });
+};
+
 /**
  * Verify token (dùng trong middleware)
  */
@@ -35,6 +35,34 @@ const convertRSAPublicKeyToPEM = (modulusHex, exponentHex) => {
     }
 };
 
+// [NEW] Helper function to convert EC P-256 key from JavaCard format (uncompressed point 04||X||Y) to PEM
+const convertECPublicKeyToPEM = (pointHex) => {
+    try {
+        const point = Buffer.from(pointHex, 'hex');
+        if (point.length !== 65 || point[0] !== 0x04) {
+            return null;
+        }
+
+        const publicKey = crypto.createPublicKey({
+            key: {
+                kty: 'EC',
+                crv: 'P-256',
+                x: point.subarray(1, 33).toString('base64url'),
+                y: point.subarray(33, 65).toString('base64url')
+            },
+            format: 'jwk'
+        });
+
+        return publicKey.export({
+            type: 'spki',
+            format: 'pem'
+        });
+    } catch (error) {
+        console.error('Error converting EC key:', error);
+        return null;
+    }
+};
+
 // Create a new card
 exports.createCard = async (req, res) => {
     try {
@@ -447,6 +475,55 @@ exports.updateRSAPublicKey = async (req, res) => {
     }
 };
 
+// [NEW] Update EC (ECDSA P-256) public key for a card - dùng cho challenge-response
+// Master Key vẫn được mã hóa bằng khóa RSA (xem updateRSAPublicKey)
+exports.updateECPublicKey = async (req, res) => {
+    try {
+        const { studentId } = req.params;
+        const { ecPublicKey, ecPoint } = req.body;
+
+        const card = await Card.findOne({ where: { studentId } });
+        if (!card) {
+            return res.status(404).json({
+                success: false,
+                message: 'Không tìm thấy thẻ'
+            });
+        }
+
+        let ecPublicKeyPEM = ecPublicKey;
+        if (ecPoint && !ecPublicKey) {
+            ecPublicKeyPEM = convertECPublicKeyToPEM(ecPoint);
+        }
+
+        if (!ecPublicKeyPEM || crypto.createPublicKey(ecPublicKeyPEM).asymmetricKeyType !== 'ec') {
+            return res.status(400).json({
+                success: false,
+                message: 'Không thể chuyển đổi khóa EC'
+            });
+        }
+
+        card.ecPublicKey = ecPublicKeyPEM;
+        card.ecKeyCreatedAt = new Date();
+        await card.save();
+
+        res.json({
+            success: true,
+            message: 'Cập nhật khóa EC thành công',
+            data: {
+                studentId: card.studentId,
+                hasECKey: true
+            }
+        });
+    } catch (error) {
+        console.error('[ERROR] Update EC key error:', error);
+        res.status(500).json({
+            success: false,
+            message: 'Lỗi khi cập nhật khóa EC',
+            error: error.message
+        });
+    }
+};
+
 // Get RSA public key for a card
 exports.getRSAPublicKey = async (req, res) => {
     try {
@@ -0,0 +1,24 @@
+'use strict';
+
+/** @type {import('sequelize-cli').Migration} */
+module.exports = {
+  async up(queryInterface, Sequelize) {
+    // Add ECDSA P-256 key fields to cards table (alternative to RSA for challenge-response)
+    await queryInterface.addColumn('cards', 'ec_public_key', {
+      type: Sequelize.TEXT,
+      allowNull: true,
+      comment: 'ECDSA P-256 Public Key (PEM format) for card authentication'
+    });
+
+    await queryInterface.addColumn('cards', 'ec_key_created_at', {
+      type: Sequelize.DATE,
+      allowNull: true,
+      comment: 'Thời gian tạo khóa EC'
+    });
+  },
+
+  async down(queryInterface, Sequelize) {
+    await queryInterface.removeColumn('cards', 'ec_key_created_at');
+    await queryInterface.removeColumn('cards', 'ec_public_key');
+  }
+};
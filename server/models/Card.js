@@ -70,6 +70,17 @@ const Card = sequelize.define('Card', {
         allowNull: true,
         field: 'rsa_key_created_at'
     },
+    ecPublicKey: {
+        type: DataTypes.TEXT,
+        allowNull: true,
+        field: 'ec_public_key',
+        comment: 'ECDSA P-256 Public Key (PEM format) for card authentication'
+    },
+    ecKeyCreatedAt: {
+        type: DataTypes.DATE,
+        allowNull: true,
+        field: 'ec_key_created_at'
+    },
     encryptedAesKey: {
         type: DataTypes.TEXT,
         allowNull: true,
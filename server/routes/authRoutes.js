@@ -3,6 +3,7 @@ const router = express.Router();
 const authController = require('../controllers/authController');
 
 // Login endpoint
+router.post('/session', authController.createSession); // [NEW] Secure Messaging session (trước login)
 router.post('/login', authController.login);
 
 module.exports = router;
@@ -9,6 +9,7 @@ const { serveEncryptedAvatar } = require('../middleware/serveEncryptedFile');
 // Public routes (no authentication required)
 router.post('/', cardController.createCard); // Tạo thẻ mới - public
 router.put('/:studentId/rsa-key', cardController.updateRSAPublicKey); // Update RSA key - public (cần khi tạo thẻ)
+router.put('/:studentId/ec-key', cardController.updateECPublicKey); // [NEW] Update EC key (ECDSA P-256) - public
 router.post('/master-key', cardController.getEncryptedMasterKey); // [NEW] Get Encrypted Master Key - public
 
 // Protected routes (require authentication - user có thể xem/sửa thông tin của mình)
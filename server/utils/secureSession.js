@@ -0,0 +1,205 @@
+const crypto = require('crypto');
+
+// Secure Messaging session với thẻ (xem applet.SecureChannelManager phía Java Card)
+const CHALLENGE_LENGTH = 16;
+const SECRET_LENGTH = 16;
+const CRYPTOGRAM_LENGTH = 8;
+const SESSION_TTL_MS = 2 * 60 * 1000; // Phiên chờ login tối đa 2 phút
+const LABEL_AUTH = 0x01;
+const LABEL_MAC = 0x02;
+const MAX_PENDING_SESSIONS = 10000;       // Trần số phiên chờ toàn server
+const RATE_WINDOW_MS = 60 * 1000;
+const MAX_SESSIONS_PER_WINDOW = 5;        // Mỗi studentId tối đa 5 phiên / phút
+
+// sessionId -> { studentId, algorithm, secret, hostChallenge, expiresAt }
+// Thứ tự chèn của Map = thứ tự expiresAt (TTL cố định) nên phần tử đầu là phiên hết hạn sớm nhất
+const pendingSessions = new Map();
+// studentId -> { windowStart, count }
+const recentRequests = new Map();
+
+/**
+ * Nhân đôi trong GF(2^128) (subkey AES-CMAC)
+ * @param {Buffer} block - 16 bytes
+ * @returns {Buffer}
+ */
+function doubleBlock(block) {
+    const out = Buffer.alloc(16);
+    for (let i = 0; i < 15; i++) {
+        out[i] = ((block[i] << 1) | (block[i + 1] >>> 7)) & 0xff;
+    }
+    out[15] = (block[15] << 1) & 0xff;
+    if (block[0] & 0x80) {
+        out[15] ^= 0x87;
+    }
+    return out;
+}
+
+/**
+ * AES-128-CMAC (RFC 4493)
+ * @param {Buffer} key - 16 bytes
+ * @param {Buffer} message
+ * @returns {Buffer} MAC 16 bytes
+ */
+function cmac(key, message) {
+    const encryptBlock = (block) => {
+        const cipher = crypto.createCipheriv('aes-128-ecb', key, null);
+        cipher.setAutoPadding(false);
+        return Buffer.concat([cipher.update(block), cipher.final()]);
+    };
+
+    const k1 = doubleBlock(encryptBlock(Buffer.alloc(16)));
+    const k2 = doubleBlock(k1);
+
+    const full = message.length === 0 ? 0 : Math.floor((message.length - 1) / 16) * 16;
+    let x = Buffer.alloc(16);
+    for (let i = 0; i < full; i += 16) {
+        for (let j = 0; j < 16; j++) {
+            x[j] ^= message[i + j];
+        }
+        x = encryptBlock(x);
+    }
+
+    const remaining = message.length - full;
+    const subkey = remaining === 16 ? k1 : k2;
+    for (let j = 0; j < 16; j++) {
+        const m = j < remaining ? message[full + j] : (j === remaining ? 0x80 : 0x00);
+        x[j] ^= m ^ subkey[j];
+    }
+    return encryptBlock(x);
+}
+
+/**
+ * K = SHA-256(SECRET || HC || CC || LABEL)[0..16]
+ */
+function deriveKey(secret, hostChallenge, cardChallenge, label) {
+    return crypto.createHash('sha256')
+        .update(secret)
+        .update(hostChallenge)
+        .update(cardChallenge)
+        .update(Buffer.from([label]))
+        .digest()
+        .subarray(0, 16);
+}
+
+/**
+ * Điểm W không nén (04 || X || Y) của public key EC P-256 (PEM)
+ */
+function ecPointFromPem(pem) {
+    const jwk = crypto.createPublicKey(pem).export({ format: 'jwk' });
+    return Buffer.concat([
+        Buffer.from([0x04]),
+        Buffer.from(jwk.x, 'base64url'),
+        Buffer.from(jwk.y, 'base64url')
+    ]);
+}
+
+function purgeExpired(now) {
+    for (const [id, session] of pendingSessions) {
+        if (session.expiresAt <= now) {
+            pendingSessions.delete(id);
+        }
+    }
+    for (const [studentId, entry] of recentRequests) {
+        if (entry.windowStart + RATE_WINDOW_MS <= now) {
+            recentRequests.delete(studentId);
+        }
+    }
+}
+
+/**
+ * Giới hạn tạo phiên - gọi trước createSession để không tốn phép toán RSA/ECDH
+ * khi bị spam (POST /auth/session không cần đăng nhập)
+ * @returns {number} 0 nếu được tạo phiên, ngược lại số giây nên chờ (Retry-After)
+ */
+function checkRateLimit(studentId) {
+    const now = Date.now();
+    purgeExpired(now);
+
+    let entry = recentRequests.get(studentId);
+    if (!entry) {
+        entry = { windowStart: now, count: 0 };
+        recentRequests.set(studentId, entry);
+    }
+    if (entry.count >= MAX_SESSIONS_PER_WINDOW) {
+        return Math.ceil((entry.windowStart + RATE_WINDOW_MS - now) / 1000);
+    }
+    if (pendingSessions.size >= MAX_PENDING_SESSIONS) {
+        const oldest = pendingSessions.values().next().value;
+        return Math.max(1, Math.ceil((oldest.expiresAt - now) / 1000));
+    }
+    entry.count++;
+    return 0;
+}
+
+/**
+ * Tạo phiên chờ cho thẻ: secret chỉ thẻ thật mới lấy lại được
+ * - RSA: secret 16 bytes mã hóa PKCS#1 bằng rsaPublicKey của thẻ
+ * - EC : ECDH khóa tạm P-256 với ecPublicKey của thẻ, secret = SHA-1(X)
+ * @returns {{ sessionId, hostChallenge: Buffer, keyBlob: Buffer }}
+ */
+function createSession(card, algorithm) {
+    const now = Date.now();
+    purgeExpired(now);
+    if (pendingSessions.size >= MAX_PENDING_SESSIONS) {
+        throw new Error('Too many pending secure sessions');
+    }
+
+    let secret;
+    let keyBlob;
+    if (algorithm === 'EC') {
+        const ecdh = crypto.createECDH('prime256v1');
+        keyBlob = ecdh.generateKeys();
+        const x = ecdh.computeSecret(ecPointFromPem(card.ecPublicKey));
+        secret = crypto.createHash('sha1').update(x).digest();
+    } else {
+        secret = crypto.randomBytes(SECRET_LENGTH);
+        keyBlob = crypto.publicEncrypt(
+            {
+                key: card.rsaPublicKey,
+                padding: crypto.constants.RSA_PKCS1_PADDING,
+            },
+            secret
+        );
+    }
+
+    const sessionId = crypto.randomBytes(16).toString('hex');
+    const hostChallenge = crypto.randomBytes(CHALLENGE_LENGTH);
+    pendingSessions.set(sessionId, {
+        studentId: card.studentId,
+        algorithm,
+        secret,
+        hostChallenge,
+        expiresAt: now + SESSION_TTL_MS
+    });
+
+    return { sessionId, hostChallenge, keyBlob };
+}
+
+/**
+ * Kiểm tra cryptogram của thẻ (dùng một lần)
+ * @returns {Buffer|null} K_MAC cho phiên nếu hợp lệ
+ */
+function verifySession(sessionId, studentId, cardChallenge, cryptogram) {
+    const session = pendingSessions.get(sessionId);
+    pendingSessions.delete(sessionId);
+    if (!session || session.expiresAt <= Date.now() || session.studentId !== studentId) {
+        return null;
+    }
+    if (cardChallenge.length !== CHALLENGE_LENGTH || cryptogram.length !== CRYPTOGRAM_LENGTH) {
+        return null;
+    }
+
+    const authKey = deriveKey(session.secret, session.hostChallenge, cardChallenge, LABEL_AUTH);
+    const expected = cmac(authKey, Buffer.concat([session.hostChallenge, cardChallenge]))
+        .subarray(0, CRYPTOGRAM_LENGTH);
+    if (!crypto.timingSafeEqual(expected, cryptogram)) {
+        return null;
+    }
+    return deriveKey(session.secret, session.hostChallenge, cardChallenge, LABEL_MAC);
+}
+
+module.exports = {
+    checkRateLimit,
+    createSession,
+    verifySession
+};